@@ -81,6 +81,7 @@ public abstract class BaseCommands implements CommandsInterface {
     protected RegistrantList mRilConnectedRegistrants = new RegistrantList();
     @UnsupportedAppUsage
     protected RegistrantList mIccRefreshRegistrants = new RegistrantList();
+    protected RegistrantList mSmsOnSimRegistrants = new RegistrantList();
     @UnsupportedAppUsage
     protected RegistrantList mRilCellInfoListRegistrants = new RegistrantList();
     @UnsupportedAppUsage
@@ -391,6 +392,17 @@ public abstract class BaseCommands implements CommandsInterface {
         }
     }
 
+    @Override
+    public void registerForSmsOnSim(Handler h, int what, Object obj) {
+        Registrant r = new Registrant (h, what, obj);
+        mSmsOnSimRegistrants.add(r);
+    }
+
+    @Override
+    public void unregisterForSmsOnSim(Handler h) {
+        mSmsOnSimRegistrants.remove(h);
+    }
+
     @Override
     public void setOnSmsStatus(Handler h, int what, Object obj) {
         mSmsStatusRegistrant = new Registrant (h, what, obj);
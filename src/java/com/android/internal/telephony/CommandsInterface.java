@@ -275,6 +275,15 @@ public interface CommandsInterface {
     void setOnSmsOnSim(Handler h, int what, Object obj);
     void unSetOnSmsOnSim(Handler h);
 
+    /**
+     * Register for NEW_SMS_ON_SIM unsolicited message. Unlike {@link #setOnSmsOnSim}, which
+     * keeps a single handler, any number of handlers can be registered.
+     *
+     * AsyncResult.result is an Integer holding the index of the new SMS
+     */
+    void registerForSmsOnSim(Handler h, int what, Object obj);
+    void unregisterForSmsOnSim(Handler h);
+
     /**
      * Register for NEW_SMS_STATUS_REPORT unsolicited message
      *
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker.MultipartMessage;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Sent messages awaiting a delivery status report, indexed by message reference.
+ *
+ * A status report only carries the message reference, which wraps around, so several trackers
+ * may share one; the one sent first is matched first. The parts of a multipart message are
+ * tracked together: when the report for one part never arrives in time, the remaining parts of
+ * that message are given up on as well.
+ *
+ * Trackers are dropped {@link #EXPIRY_MS} after they were added, or once more than
+ * {@link #MAX_PENDING} are waiting, so senders whose reports never arrive cannot grow the list
+ * without bound.
+ *
+ * Not thread safe; used from the {@link SMSDispatcher} handler thread only.
+ */
+public class DeliveryPendingList {
+    private static final String TAG = "DeliveryPendingList";
+
+    @VisibleForTesting
+    static final long EXPIRY_MS = 48 * 60 * 60 * 1000L;
+    @VisibleForTesting
+    static final int MAX_PENDING = 1000;
+
+    // Tracker to the elapsed realtime it was added at, oldest first
+    private final LinkedHashMap<SmsTracker, Long> mAddedTimes = new LinkedHashMap<>();
+    private final SparseArray<ArrayList<SmsTracker>> mByMessageRef = new SparseArray<>();
+    // Pending parts of each multipart message
+    private final HashMap<MultipartMessage, ArrayList<SmsTracker>> mByMessage = new HashMap<>();
+    private int mPendingMessages;
+    // Bumped on every change, so the list view knows when its copy is stale
+    private int mModCount;
+    private final ListView mListView = new ListView();
+
+    private long mReports;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+    private long mExpired;
+
+    /**
+     * Start waiting for the status report of a sent message.
+     */
+    public void add(SmsTracker tracker) {
+        long now = SystemClock.elapsedRealtime();
+        mAddedTimes.put(tracker, now);
+        mModCount++;
+
+        ArrayList<SmsTracker> sameRef = mByMessageRef.get(tracker.mMessageRef);
+        if (sameRef == null) {
+            sameRef = new ArrayList<>(1);
+            mByMessageRef.put(tracker.mMessageRef, sameRef);
+        }
+        sameRef.add(tracker);
+
+        MultipartMessage message = tracker.getMultipartMessage();
+        if (message == null) {
+            mPendingMessages++;
+        } else {
+            ArrayList<SmsTracker> parts = mByMessage.get(message);
+            if (parts == null) {
+                parts = new ArrayList<>();
+                mByMessage.put(message, parts);
+                mPendingMessages++;
+            }
+            parts.add(tracker);
+        }
+
+        expire(now);
+    }
+
+    /**
+     * @return the tracker waiting longest for a report with the given message reference, or null
+     */
+    public SmsTracker find(int messageRef) {
+        expire(SystemClock.elapsedRealtime());
+        ArrayList<SmsTracker> sameRef = mByMessageRef.get(messageRef);
+        return sameRef == null ? null : sameRef.get(0);
+    }
+
+    /**
+     * Stop waiting for the status report of a message, because the final report arrived.
+     */
+    public void remove(SmsTracker tracker) {
+        Long addedTime = mAddedTimes.get(tracker);
+        if (addedTime == null) return;
+        long latencyMs = SystemClock.elapsedRealtime() - addedTime;
+        mReports++;
+        mTotalLatencyMs += latencyMs;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        mAddedTimes.remove(tracker);
+        mModCount++;
+        removeFromIndexes(tracker);
+    }
+
+    /**
+     * @return a view of the trackers waiting for a status report, oldest first. Adding or
+     *         removing trackers through the view adds them to or removes them from this list;
+     *         other changes are not supported.
+     */
+    public ArrayList<SmsTracker> asList() {
+        return mListView;
+    }
+
+    /**
+     * @return the number of sent message parts waiting for a status report
+     */
+    public int size() {
+        return mAddedTimes.size();
+    }
+
+    /**
+     * @return the number of messages with at least one part waiting for a status report
+     */
+    public int getPendingMessageCount() {
+        return mPendingMessages;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("DeliveryPendingList: pendingParts=" + mAddedTimes.size()
+                + " pendingMessages=" + mPendingMessages + " reports=" + mReports
+                + " avgLatencyMs=" + (mReports == 0 ? 0 : mTotalLatencyMs / mReports)
+                + " maxLatencyMs=" + mMaxLatencyMs + " expired=" + mExpired);
+    }
+
+    private void expire(long now) {
+        HashSet<SmsTracker> expired = null;
+        // Parts of expired messages that the iteration has not reached yet
+        HashSet<SmsTracker> otherParts = null;
+        Iterator<Map.Entry<SmsTracker, Long>> it = mAddedTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SmsTracker, Long> eldest = it.next();
+            SmsTracker tracker = eldest.getKey();
+            boolean isOtherPart = otherParts != null && otherParts.remove(tracker);
+            if (!isOtherPart) {
+                int remaining = mAddedTimes.size() - (otherParts == null ? 0 : otherParts.size());
+                if (remaining <= MAX_PENDING && now - eldest.getValue() < EXPIRY_MS) {
+                    break;
+                }
+            }
+            it.remove();
+            if (expired == null) {
+                expired = new HashSet<>();
+            }
+            expired.add(tracker);
+
+            ArrayList<SmsTracker> parts = removeFromIndexes(tracker);
+            if (!isOtherPart && parts != null) {
+                if (otherParts == null) {
+                    otherParts = new HashSet<>();
+                }
+                otherParts.addAll(parts);
+            }
+        }
+        if (otherParts != null) {
+            for (SmsTracker part : otherParts) {
+                mAddedTimes.remove(part);
+                removeFromIndexes(part);
+                expired.add(part);
+            }
+        }
+        if (expired != null) {
+            mModCount++;
+            mExpired += expired.size();
+            Rlog.d(TAG, "gave up waiting for " + expired.size() + " status reports");
+        }
+    }
+
+    /**
+     * Remove a tracker from the message ref and multipart message indexes.
+     *
+     * @return the parts of its multipart message still pending, or null if there are none
+     */
+    private ArrayList<SmsTracker> removeFromIndexes(SmsTracker tracker) {
+        ArrayList<SmsTracker> sameRef = mByMessageRef.get(tracker.mMessageRef);
+        if (sameRef != null) {
+            sameRef.remove(tracker);
+            if (sameRef.isEmpty()) {
+                mByMessageRef.remove(tracker.mMessageRef);
+            }
+        }
+
+        MultipartMessage message = tracker.getMultipartMessage();
+        if (message == null) {
+            mPendingMessages--;
+            return null;
+        }
+        ArrayList<SmsTracker> parts = mByMessage.get(message);
+        if (parts == null) {
+            return null;
+        }
+        parts.remove(tracker);
+        if (parts.isEmpty()) {
+            mByMessage.remove(message);
+            mPendingMessages--;
+            return null;
+        }
+        return parts;
+    }
+
+    /**
+     * The trackers as an ArrayList, for callers that still read the plain list this class
+     * replaced. Nothing is copied until the view is read, and then only once per change, so
+     * adding and removing trackers costs no more than the indexes above.
+     */
+    private final class ListView extends ArrayList<SmsTracker> {
+        private ArrayList<SmsTracker> mCopy;
+        private int mCopyModCount;
+
+        ListView() {
+            super(0);
+        }
+
+        private List<SmsTracker> copy() {
+            if (mCopy == null || mCopyModCount != mModCount) {
+                mCopy = new ArrayList<>(mAddedTimes.keySet());
+                mCopyModCount = mModCount;
+            }
+            return Collections.unmodifiableList(mCopy);
+        }
+
+        @Override
+        public int size() {
+            return mAddedTimes.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mAddedTimes.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return mAddedTimes.containsKey(o);
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return copy().indexOf(o);
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return copy().lastIndexOf(o);
+        }
+
+        @Override
+        public SmsTracker get(int index) {
+            return copy().get(index);
+        }
+
+        @Override
+        public Object[] toArray() {
+            return copy().toArray();
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            return copy().toArray(a);
+        }
+
+        @Override
+        public Iterator<SmsTracker> iterator() {
+            return copy().iterator();
+        }
+
+        @Override
+        public ListIterator<SmsTracker> listIterator() {
+            return copy().listIterator();
+        }
+
+        @Override
+        public ListIterator<SmsTracker> listIterator(int index) {
+            return copy().listIterator(index);
+        }
+
+        @Override
+        public List<SmsTracker> subList(int fromIndex, int toIndex) {
+            return copy().subList(fromIndex, toIndex);
+        }
+
+        @Override
+        public void forEach(Consumer<? super SmsTracker> action) {
+            copy().forEach(action);
+        }
+
+        @Override
+        public Spliterator<SmsTracker> spliterator() {
+            return copy().spliterator();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return copy().equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return copy().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return copy().toString();
+        }
+
+        @Override
+        public Object clone() {
+            return new ArrayList<>(copy());
+        }
+
+        @Override
+        public boolean add(SmsTracker tracker) {
+            DeliveryPendingList.this.add(tracker);
+            return true;
+        }
+
+        @Override
+        public SmsTracker remove(int index) {
+            SmsTracker tracker = get(index);
+            DeliveryPendingList.this.remove(tracker);
+            return tracker;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o)) return false;
+            DeliveryPendingList.this.remove((SmsTracker) o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            for (SmsTracker tracker : copy()) {
+                DeliveryPendingList.this.remove(tracker);
+            }
+        }
+
+        @Override
+        public void add(int index, SmsTracker tracker) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SmsTracker set(int index, SmsTracker tracker) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends SmsTracker> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends SmsTracker> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super SmsTracker> filter) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<SmsTracker> operator) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sort(Comparator<? super SmsTracker> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
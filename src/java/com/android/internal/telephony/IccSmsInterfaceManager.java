@@ -47,6 +47,7 @@ import com.android.internal.telephony.cdma.CdmaSmsBroadcastConfigInfo;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 import com.android.internal.telephony.uicc.IccConstants;
 import com.android.internal.telephony.uicc.IccFileHandler;
+import com.android.internal.telephony.uicc.IccRefreshResponse;
 import com.android.internal.telephony.uicc.IccUtils;
 import com.android.internal.util.HexDump;
 
@@ -54,6 +55,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -81,6 +83,10 @@ public class IccSmsInterfaceManager {
     private static final int EVENT_UPDATE_DONE = 2;
     protected static final int EVENT_SET_BROADCAST_ACTIVATION_DONE = 3;
     protected static final int EVENT_SET_BROADCAST_CONFIG_DONE = 4;
+    private static final int EVENT_LOAD_RECORD_DONE = 5;
+    private static final int EVENT_SMS_ON_ICC = 6;
+    private static final int EVENT_ICC_REFRESH = 7;
+    private static final int EVENT_GET_SMS_RECORDS_DONE = 8;
     private static final int SMS_CB_CODE_SCHEME_MIN = 0;
     private static final int SMS_CB_CODE_SCHEME_MAX = 255;
     public static final int SMS_MESSAGE_PRIORITY_NOT_SPECIFIED = -1;
@@ -98,6 +104,20 @@ public class IccSmsInterfaceManager {
 
     private final LocalLog mCellBroadcastLocalLog = new LocalLog(100);
 
+    // Copy of the records of EF_SMS, or null if not loaded, guarded by mLock. Records are
+    // replaced rather than modified, as they are shared with the SmsRawData returned.
+    private ArrayList<byte[]> mSmsRecords;
+    // The file handler mSmsRecords was loaded from, a new one being a new card or application
+    private IccFileHandler mSmsRecordsFileHandler;
+    // Zero based index of the records of mSmsRecords changed on the card, to be loaded again
+    private final BitSet mStaleSmsRecords = new BitSet();
+    // Loads of EF_SMS in flight. Loads started before the last invalidation are ignored.
+    private int mPendingSmsLoads;
+    private int mSmsRecordsGeneration;
+    private Throwable mSmsLoadException;
+    // Callers waiting for the records
+    private final ArrayList<Message> mSmsRecordsRequests = new ArrayList<>();
+
     @UnsupportedAppUsage
     protected Handler mHandler = new Handler() {
         @Override
@@ -109,22 +129,81 @@ public class IccSmsInterfaceManager {
                     ar = (AsyncResult) msg.obj;
                     synchronized (mLock) {
                         mSuccess = (ar.exception == null);
+                        if (mSuccess) {
+                            // arg1 is the record updated, or 0 if the modem chose it
+                            int index = msg.arg1;
+                            if (index == 0 && ar.result instanceof int[]
+                                    && ((int[]) ar.result).length > 0) {
+                                index = ((int[]) ar.result)[0];
+                            }
+                            onSmsRecordChangedLocked(index, (byte[]) ar.userObj);
+                        }
                         mLock.notifyAll();
                     }
                     break;
                 case EVENT_LOAD_DONE:
                     ar = (AsyncResult)msg.obj;
                     synchronized (mLock) {
-                        if (ar.exception == null) {
-                            mSms = buildValidRawData((ArrayList<byte[]>) ar.result);
+                        mPendingSmsLoads--;
+                        if (msg.arg1 != mSmsRecordsGeneration) {
+                            // invalidated while loading
+                        } else if (ar.exception == null) {
+                            ArrayList<byte[]> records = (ArrayList<byte[]>) ar.result;
+                            List<SmsRawData> sms = buildValidRawData(records);
                             //Mark SMS as read after importing it from card.
-                            markMessagesAsRead((ArrayList<byte[]>) ar.result);
+                            markMessagesAsRead(records);
+                            mSmsRecords = records;
+                            mSmsRecordsFileHandler = (IccFileHandler) ar.userObj;
+                            // Messages read for the first time are returned as unread
+                            deliverSmsRecordsLocked(sms);
+                            break;
                         } else {
                             if (Rlog.isLoggable("SMS", Log.DEBUG)) {
                                 log("Cannot load Sms records");
                             }
-                            mSms = null;
+                            mSmsLoadException = ar.exception;
+                        }
+                        serveSmsRecordsRequestsLocked();
+                    }
+                    break;
+                case EVENT_LOAD_RECORD_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    synchronized (mLock) {
+                        mPendingSmsLoads--;
+                        if (msg.arg1 != mSmsRecordsGeneration) {
+                            // invalidated while loading
+                        } else if (ar.exception == null) {
+                            mSmsRecords.set(msg.arg2 - 1, (byte[]) ar.result);
+                        } else {
+                            // load all the records again
+                            invalidateSmsRecordsLocked();
+                        }
+                        serveSmsRecordsRequestsLocked();
+                    }
+                    break;
+                case EVENT_SMS_ON_ICC:
+                    ar = (AsyncResult) msg.obj;
+                    synchronized (mLock) {
+                        onSmsRecordChangedLocked((Integer) ar.result, null);
+                    }
+                    break;
+                case EVENT_ICC_REFRESH:
+                    ar = (AsyncResult) msg.obj;
+                    IccRefreshResponse refresh = (IccRefreshResponse) ar.result;
+                    // Refreshes of other files leave EF_SMS unchanged
+                    if (ar.exception != null || refresh == null
+                            || refresh.efId == IccConstants.EF_SMS || refresh.refreshResult
+                                    != IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE) {
+                        synchronized (mLock) {
+                            invalidateSmsRecordsLocked();
                         }
+                    }
+                    break;
+                case EVENT_GET_SMS_RECORDS_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    synchronized (mLock) {
+                        // wake up the binder thread blocked in getAllMessagesFromIccEf
+                        ((AsyncResult[]) ar.userObj)[0] = ar;
                         mLock.notifyAll();
                     }
                     break;
@@ -157,6 +236,10 @@ public class IccSmsInterfaceManager {
         mAppOps = appOps;
         mDispatchersController = dispatchersController;
         mSmsPermissions = new SmsPermissions(phone, context, appOps);
+
+        // SIMRecords holds the single setOnSmsOnSim handler
+        mPhone.mCi.registerForSmsOnSim(mHandler, EVENT_SMS_ON_ICC, null);
+        mPhone.mCi.registerForIccRefresh(mHandler, EVENT_ICC_REFRESH, null);
     }
 
     protected void markMessagesAsRead(ArrayList<byte[]> messages) {
@@ -185,6 +268,7 @@ public class IccSmsInterfaceManager {
                  System.arraycopy(ba, 1, nba, 0, n - 1);
                  byte[] record = makeSmsRecordData(STATUS_ON_ICC_READ, nba);
                  fh.updateEFLinearFixed(IccConstants.EF_SMS, i + 1, record, null, null);
+                 messages.set(i, record);
                  if (Rlog.isLoggable("SMS", Log.DEBUG)) {
                      log("SMS " + (i + 1) + " marked as read");
                  }
@@ -225,9 +309,11 @@ public class IccSmsInterfaceManager {
         }
         synchronized(mLock) {
             mSuccess = false;
-            Message response = mHandler.obtainMessage(EVENT_UPDATE_DONE);
+            Message response;
 
             if ((status & 0x01) == STATUS_ON_ICC_FREE) {
+                response = mHandler.obtainMessage(EVENT_UPDATE_DONE, index, 0,
+                        makeSmsRecordData(STATUS_ON_ICC_FREE, new byte[0]));
                 // RIL_REQUEST_DELETE_SMS_ON_SIM vs RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM
                 // Special case FREE: call deleteSmsOnSim/Ruim instead of
                 // manipulating the record
@@ -241,10 +327,10 @@ public class IccSmsInterfaceManager {
                 //IccFilehandler can be null if ICC card is not present.
                 IccFileHandler fh = mPhone.getIccFileHandler();
                 if (fh == null) {
-                    response.recycle();
                     return mSuccess; /* is false */
                 }
                 byte[] record = makeSmsRecordData(status, pdu);
+                response = mHandler.obtainMessage(EVENT_UPDATE_DONE, index, 0, record);
                 fh.updateEFLinearFixed(
                         IccConstants.EF_SMS,
                         index, record, null, response);
@@ -318,26 +404,147 @@ public class IccSmsInterfaceManager {
             return new ArrayList<SmsRawData>();
         }
         synchronized(mLock) {
-
-            IccFileHandler fh = mPhone.getIccFileHandler();
-            if (fh == null) {
+            if (isSmsRecordsValidLocked()) {
+                return buildValidRawData(mSmsRecords);
+            }
+            if (mPhone.getIccFileHandler() == null) {
                 Rlog.e(LOG_TAG, "Cannot load Sms records. No icc card?");
                 mSms = null;
                 return mSms;
             }
 
-            Message response = mHandler.obtainMessage(EVENT_LOAD_DONE);
-            fh.loadEFLinearFixedAll(IccConstants.EF_SMS, response);
-
+            // Shares the load with the other callers waiting for the records
+            AsyncResult[] result = new AsyncResult[1];
+            mSmsRecordsRequests.add(mHandler.obtainMessage(EVENT_GET_SMS_RECORDS_DONE, result));
+            serveSmsRecordsRequestsLocked();
             try {
-                mLock.wait();
+                while (result[0] == null) {
+                    mLock.wait();
+                }
             } catch (InterruptedException e) {
                 log("interrupted while trying to load from the Icc");
             }
+            mSms = result[0] != null && result[0].exception == null
+                    ? (List<SmsRawData>) result[0].result : null;
         }
         return mSms;
     }
 
+    /**
+     * Retrieves all messages currently stored on Icc without blocking the caller. Messages
+     * are read from the card only the first time, and records written since.
+     *
+     * For callers in the phone process; ISms only exposes {@link #getAllMessagesFromIccEf}.
+     *
+     * @param response sent with an AsyncResult holding the list of SmsRawData of all sms on
+     *        Icc, or the exception if they could not be read
+     */
+    public void getAllMessagesFromIccEfAsync(String callingPackage, Message response) {
+        if (DBG) log("getAllMessagesFromEFAsync");
+
+        mContext.enforceCallingOrSelfPermission(
+                Manifest.permission.RECEIVE_SMS,
+                "Reading messages from Icc");
+        if (mAppOps.noteOp(AppOpsManager.OP_READ_ICC_SMS, Binder.getCallingUid(),
+                callingPackage) != AppOpsManager.MODE_ALLOWED) {
+            AsyncResult.forMessage(response, new ArrayList<SmsRawData>(), null);
+            response.sendToTarget();
+            return;
+        }
+        synchronized (mLock) {
+            mSmsRecordsRequests.add(response);
+            serveSmsRecordsRequestsLocked();
+        }
+    }
+
+    /**
+     * @return whether mSmsRecords is a complete copy of EF_SMS on the current card
+     */
+    private boolean isSmsRecordsValidLocked() {
+        if (mSmsRecords != null && mSmsRecordsFileHandler != mPhone.getIccFileHandler()) {
+            invalidateSmsRecordsLocked();
+        }
+        return mSmsRecords != null && mStaleSmsRecords.isEmpty() && mPendingSmsLoads == 0;
+    }
+
+    /**
+     * Answer the callers waiting for the records of EF_SMS, after loading the records missing.
+     */
+    private void serveSmsRecordsRequestsLocked() {
+        if (mPendingSmsLoads > 0 || mSmsRecordsRequests.isEmpty()) {
+            return;
+        }
+        if (mSmsLoadException != null) {
+            deliverSmsRecordsLocked(null);
+            return;
+        }
+        if (isSmsRecordsValidLocked()) {
+            deliverSmsRecordsLocked(buildValidRawData(mSmsRecords));
+            return;
+        }
+        IccFileHandler fh = mPhone.getIccFileHandler();
+        if (fh == null) {
+            Rlog.e(LOG_TAG, "Cannot load Sms records. No icc card?");
+            deliverSmsRecordsLocked(null);
+        } else if (mSmsRecords == null) {
+            mPendingSmsLoads++;
+            fh.loadEFLinearFixedAll(IccConstants.EF_SMS, mHandler.obtainMessage(
+                    EVENT_LOAD_DONE, mSmsRecordsGeneration, 0, fh));
+        } else {
+            // Only read the records written by the card
+            for (int i = mStaleSmsRecords.nextSetBit(0); i >= 0;
+                    i = mStaleSmsRecords.nextSetBit(i + 1)) {
+                mPendingSmsLoads++;
+                fh.loadEFLinearFixed(IccConstants.EF_SMS, i + 1, mHandler.obtainMessage(
+                        EVENT_LOAD_RECORD_DONE, mSmsRecordsGeneration, i + 1));
+            }
+            mStaleSmsRecords.clear();
+        }
+    }
+
+    private void deliverSmsRecordsLocked(List<SmsRawData> sms) {
+        Throwable exception = mSmsLoadException;
+        if (sms == null && exception == null) {
+            exception = new IllegalStateException("No icc card");
+        }
+        mSmsLoadException = null;
+        for (Message response : mSmsRecordsRequests) {
+            AsyncResult.forMessage(response, sms != null ? new ArrayList<>(sms) : null,
+                    exception);
+            response.sendToTarget();
+        }
+        mSmsRecordsRequests.clear();
+    }
+
+    /**
+     * Update the copy of EF_SMS after a record was written.
+     *
+     * @param index the record written
+     * @param record its new content, or null to load it from the card
+     */
+    private void onSmsRecordChangedLocked(int index, byte[] record) {
+        if (mPendingSmsLoads > 0) {
+            // a load in flight may have read the record before the change
+            invalidateSmsRecordsLocked();
+        } else if (mSmsRecords == null) {
+            return;
+        } else if (index < 1 || index > mSmsRecords.size()) {
+            invalidateSmsRecordsLocked();
+        } else if (record != null) {
+            mSmsRecords.set(index - 1, record);
+            mStaleSmsRecords.clear(index - 1);
+        } else {
+            mStaleSmsRecords.set(index - 1);
+        }
+    }
+
+    private void invalidateSmsRecordsLocked() {
+        mSmsRecords = null;
+        mSmsRecordsFileHandler = null;
+        mStaleSmsRecords.clear();
+        mSmsRecordsGeneration++;
+    }
+
     /**
      * A permissions check before passing to {@link IccSmsInterfaceManager#sendDataInternal}.
      * This method checks if the calling package or itself has the permission to send the data sms.
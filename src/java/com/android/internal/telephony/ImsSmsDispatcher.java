@@ -20,6 +20,7 @@ import android.content.Context;
 import android.os.Binder;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.provider.Telephony.Sms.Intents;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
@@ -54,6 +55,9 @@ public class ImsSmsDispatcher extends SMSDispatcher {
 
     private static final String TAG = "ImsSmsDispacher";
 
+    /** Default number of messages handed to the IMS service at a time. */
+    private static final int IMS_SEND_WINDOW_DEFAULT = 16;
+
     @VisibleForTesting
     public Map<Integer, SmsTracker> mTrackers = new ConcurrentHashMap<>();
     @VisibleForTesting
@@ -210,6 +214,8 @@ public class ImsSmsDispatcher extends SMSDispatcher {
 
     public ImsSmsDispatcher(Phone phone, SmsDispatchersController smsDispatchersController) {
         super(phone, smsDispatchersController);
+        mSendQueue.setWindow(SystemProperties.getInt("persist.radio.ims_sms_send_window",
+                IMS_SEND_WINDOW_DEFAULT));
 
         mImsManagerConnector = new ImsManager.Connector(mContext, mPhone.getPhoneId(),
                 new ImsManager.Connector.Listener() {
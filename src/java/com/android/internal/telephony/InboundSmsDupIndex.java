@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the rows in the raw table, used to skip the duplicate detection queries
+ * of {@link InboundSmsHandler} for segments that cannot be duplicates.
+ *
+ * The index holds a 64-bit hash of the columns matched by
+ * {@link InboundSmsTracker#getExactMatchDupDetectQuery()} and, for multi-part segments, of those
+ * matched by {@link InboundSmsTracker#getInexactMatchDupDetectQuery()}, for every row added to
+ * the raw table. It may contain rows that have since been deleted, so a hit only means the
+ * database has to be asked; a miss means no matching row exists and the query can be skipped.
+ *
+ * Entries are dropped after {@link #WINDOW_MS} or when more than {@link #MAX_ENTRIES} are held.
+ * A dropped entry sets its bit in a tombstone bitmap, and lookups whose hash falls on a set bit
+ * are answered from the database again. Once half the bitmap is set the index stops answering
+ * until it is rebuilt from the raw table, which {@link #shouldRebuild()} asks for at most once
+ * per window.
+ *
+ * The raw table is shared by all handlers, so is this index. Thread safe.
+ */
+public class InboundSmsDupIndex {
+    private static final String TAG = "InboundSmsDupIndex";
+
+    /** No row in the raw table matches. */
+    public static final int ABSENT = 0;
+    /** A row in the raw table may match. */
+    public static final int PRESENT = 1;
+    /** The index cannot tell; the raw table has to be queried. */
+    public static final int UNKNOWN = 2;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 2048;
+    @VisibleForTesting
+    static final long WINDOW_MS = 24 * 60 * 60 * 1000L;
+
+    private static final int TOMBSTONE_BITS_LOG2 = 16;
+
+    private static final String[] RAW_PROJECTION = {
+            "address",
+            "reference_number",
+            "count",
+            "sequence",
+            "date",
+            "message_body",
+            "destination_port",
+            "deleted"
+    };
+
+    private static final char KIND_EXACT = 'E';
+    private static final char KIND_INEXACT = 'I';
+
+    // 64-bit FNV-1a
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Hash to the elapsed realtime it was added at, oldest first
+    private final LinkedHashMap<Long, Long> mEntries = new LinkedHashMap<>();
+    private final BitSet mTombstones = new BitSet(1 << TOMBSTONE_BITS_LOG2);
+    private int mTombstoneCount;
+    private boolean mReady;
+    private boolean mSaturated;
+    private long mLastRebuildTime;
+
+    private long mHits;
+    private long mMisses;
+    private long mFallbacks;
+    private long mRebuilds;
+
+    /**
+     * Look up the row {@link InboundSmsTracker#getExactMatchDupDetectQuery()} would find.
+     *
+     * @return {@link #ABSENT}, {@link #PRESENT} or {@link #UNKNOWN}
+     */
+    public synchronized int lookupExact(InboundSmsTracker tracker) {
+        return lookup(exactKey(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount(), tracker.getSequenceNumber(), tracker.is3gpp2WapPdu(),
+                tracker.getTimestamp(), tracker.getMessageBody()));
+    }
+
+    /**
+     * Look up the row {@link InboundSmsTracker#getInexactMatchDupDetectQuery()} would find.
+     *
+     * @return {@link #ABSENT}, {@link #PRESENT} or {@link #UNKNOWN}
+     */
+    public synchronized int lookupInexact(InboundSmsTracker tracker) {
+        return lookup(inexactKey(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount(), tracker.getSequenceNumber(),
+                tracker.is3gpp2WapPdu()));
+    }
+
+    /**
+     * Record a row added to the raw table for the tracker.
+     */
+    public synchronized void add(InboundSmsTracker tracker) {
+        add(tracker.getAddress(), tracker.getReferenceNumber(), tracker.getMessageCount(),
+                tracker.getSequenceNumber(), tracker.is3gpp2WapPdu(), tracker.getTimestamp(),
+                tracker.getMessageBody(), false);
+    }
+
+    /**
+     * Replace the contents of the index with the rows of the raw table. Rows added by other
+     * threads while this runs wait for it to finish, so none of them are missed.
+     *
+     * @param resolver the resolver to query with
+     * @param rawUri the raw table
+     */
+    public synchronized void rebuild(ContentResolver resolver, Uri rawUri) {
+        mEntries.clear();
+        mTombstones.clear();
+        mTombstoneCount = 0;
+        mReady = false;
+        mSaturated = false;
+        mLastRebuildTime = SystemClock.elapsedRealtime();
+
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(rawUri, RAW_PROJECTION, null, null, null);
+            if (cursor == null) {
+                Rlog.e(TAG, "rebuild: raw table query returned null");
+                return;
+            }
+            // Stays false if the rows fill the tombstone bitmap
+            mReady = true;
+            while (cursor.moveToNext()) {
+                int destPort = cursor.getInt(6);
+                add(cursor.getString(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                        (destPort & InboundSmsTracker.DEST_PORT_FLAG_3GPP2_WAP_PDU) != 0,
+                        cursor.getLong(4), cursor.getString(5), cursor.getInt(7) == 1);
+            }
+            mRebuilds++;
+        } catch (SQLException e) {
+            Rlog.e(TAG, "rebuild: can't read raw table", e);
+            mReady = false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the index stopped answering because too many entries were dropped, and
+     *         has not been rebuilt within the last window
+     */
+    public synchronized boolean shouldRebuild() {
+        return mSaturated && SystemClock.elapsedRealtime() - mLastRebuildTime >= WINDOW_MS;
+    }
+
+    /**
+     * Stop answering lookups until the next {@link #rebuild}.
+     */
+    public synchronized void invalidate() {
+        mReady = false;
+    }
+
+    @VisibleForTesting
+    public synchronized boolean isReady() {
+        return mReady;
+    }
+
+    @VisibleForTesting
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    @VisibleForTesting
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    @VisibleForTesting
+    public synchronized long getFallbackCount() {
+        return mFallbacks;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("InboundSmsDupIndex: ready=" + mReady + " entries=" + mEntries.size()
+                + " tombstones=" + mTombstoneCount + " hits=" + mHits + " misses=" + mMisses
+                + " dbFallbacks=" + mFallbacks + " rebuilds=" + mRebuilds);
+    }
+
+    private int lookup(long key) {
+        if (!mReady || mTombstones.get(bucketOf(key))) {
+            mFallbacks++;
+            return UNKNOWN;
+        }
+        if (mEntries.containsKey(key)) {
+            mHits++;
+            return PRESENT;
+        }
+        mMisses++;
+        return ABSENT;
+    }
+
+    private void add(String address, int referenceNumber, int messageCount, int sequenceNumber,
+            boolean is3gpp2WapPdu, long date, String messageBody, boolean deleted) {
+        long now = SystemClock.elapsedRealtime();
+        put(exactKey(address, referenceNumber, messageCount, sequenceNumber, is3gpp2WapPdu, date,
+                messageBody), now);
+        // The inexact query only matches rows that are not deleted
+        if (messageCount > 1 && !deleted) {
+            put(inexactKey(address, referenceNumber, messageCount, sequenceNumber,
+                    is3gpp2WapPdu), now);
+        }
+        trim(now);
+    }
+
+    private void put(long key, long now) {
+        if (!mEntries.containsKey(key)) {
+            mEntries.put(key, now);
+        }
+    }
+
+    private void trim(long now) {
+        Iterator<Map.Entry<Long, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> eldest = it.next();
+            if (mEntries.size() <= MAX_ENTRIES && now - eldest.getValue() < WINDOW_MS) {
+                break;
+            }
+            it.remove();
+            int bucket = bucketOf(eldest.getKey());
+            if (!mTombstones.get(bucket)) {
+                mTombstones.set(bucket);
+                mTombstoneCount++;
+            }
+        }
+        if (mReady && mTombstoneCount > (1 << (TOMBSTONE_BITS_LOG2 - 1))) {
+            Rlog.d(TAG, "tombstones saturated, falling back to the raw table until rebuilt");
+            mReady = false;
+            mSaturated = true;
+        }
+    }
+
+    private static int bucketOf(long key) {
+        return (int) (key >>> (64 - TOMBSTONE_BITS_LOG2));
+    }
+
+    private static long exactKey(String address, int referenceNumber, int messageCount,
+            int sequenceNumber, boolean is3gpp2WapPdu, long date, String messageBody) {
+        long hash = hash(FNV_OFFSET, KIND_EXACT);
+        hash = hashCommon(hash, address, referenceNumber, messageCount, sequenceNumber,
+                is3gpp2WapPdu);
+        hash = hash(hash, date);
+        return mix(hash(hash, messageBody));
+    }
+
+    private static long inexactKey(String address, int referenceNumber, int messageCount,
+            int sequenceNumber, boolean is3gpp2WapPdu) {
+        long hash = hash(FNV_OFFSET, KIND_INEXACT);
+        return mix(hashCommon(hash, address, referenceNumber, messageCount, sequenceNumber,
+                is3gpp2WapPdu));
+    }
+
+    private static long hashCommon(long hash, String address, int referenceNumber,
+            int messageCount, int sequenceNumber, boolean is3gpp2WapPdu) {
+        hash = hash(hash, address);
+        hash = hash(hash, referenceNumber);
+        hash = hash(hash, messageCount);
+        hash = hash(hash, sequenceNumber);
+        return hash(hash, is3gpp2WapPdu ? 1 : 0);
+    }
+
+    // Spread the bits so the top ones can pick the tombstone bucket
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return hash(hash, -1L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        // Terminate so that adjacent strings cannot run into each other
+        return hash(hash, value.length());
+    }
+}
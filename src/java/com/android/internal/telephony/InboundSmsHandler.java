@@ -69,7 +69,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.SmsConstants.MessageClass;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 import com.android.internal.telephony.util.NotificationChannelController;
-import com.android.internal.util.HexDump;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -238,6 +237,12 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     private LocalLog mLocalLog = new LocalLog(64);
 
+    /** Segments of concatenated messages being reassembled. */
+    private final InboundSmsReassembler mReassembler = new InboundSmsReassembler();
+
+    /** Index of the raw table; shared by all handlers, like the raw table itself. */
+    private static final InboundSmsDupIndex sDupIndex = new InboundSmsDupIndex();
+
     @UnsupportedAppUsage
     IDeviceIdleController mDeviceIdleController;
 
@@ -374,6 +379,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                     return HANDLED;
 
                 case EVENT_START_ACCEPTING_SMS:
+                    // New rows are added to the raw table from here on; index the ones there
+                    sDupIndex.rebuild(mResolver, sRawUri);
                     transitionTo(mIdleState);
                     return HANDLED;
 
@@ -835,84 +842,55 @@ public abstract class InboundSmsHandler extends StateMachine {
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress(), null);
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        tracker.getQueryForSegments(), whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
+            InboundSmsReassembler.Segment[] segments;
+            if (mReassembler.hasMessage(tracker)) {
+                // The earlier segments are already in memory, add this one
+                int index = tracker.getSequenceNumber() - tracker.getIndexOffset();
+                if (index >= messageCount || index < 0) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            tracker.getSequenceNumber(), messageCount));
                     return false;
                 }
+                segments = mReassembler.addSegment(tracker, index,
+                        new InboundSmsReassembler.Segment(tracker.getPdu(),
+                                tracker.getTimestamp(), tracker.getDisplayAddress(),
+                                tracker.getDestPort()));
+            } else {
+                segments = loadSegmentsFromRawTable(tracker);
+            }
+            if (segments == null) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
+                // find no segments in the table and return.
+                return false;
+            }
 
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                timestamps = new long[messageCount];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
-
-                    // The invalid PDUs can be received and stored in the raw table. The range
-                    // check ensures the process not crash even if the seqNumber in the
-                    // UserDataHeader is invalid.
-                    if (index >= pdus.length || index < 0) {
-                        loge(String.format(
-                                "processMessagePart: invalid seqNumber = %d, messageCount = %d",
-                                index + tracker.getIndexOffset(),
-                                messageCount));
-                        continue;
-                    }
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN)));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(DESTINATION_PORT_COLUMN))) {
-                        int port = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                .get(DESTINATION_PORT_COLUMN));
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-
-                    timestamps[index] = cursor.getLong(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(DATE_COLUMN));
-
-                    // check if display address should be blocked or not
-                    if (!block) {
-                        // Depending on the nature of the gateway, the display origination address
-                        // is either derived from the content of the SMS TP-OA field, or the TP-OA
-                        // field contains a generic gateway address and the from address is added
-                        // at the beginning in the message body. In that case only the first SMS
-                        // (part of Multi-SMS) comes with the display originating address which
-                        // could be used for block checking purpose.
-                        block = BlockChecker.isBlocked(mContext,
-                                cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                        .get(DISPLAY_ADDRESS_COLUMN)), null);
-                    }
+            // All the parts are in place, deal with them
+            pdus = new byte[messageCount][];
+            timestamps = new long[messageCount];
+            for (int index = 0; index < messageCount; index++) {
+                InboundSmsReassembler.Segment segment = segments[index];
+                pdus[index] = segment.pdu;
+                timestamps[index] = segment.timestamp;
+
+                // Read the destination port from the first segment (needed for CDMA WAP PDU).
+                // It's not a bad idea to prefer the port from the first segment in other cases.
+                if (index == 0 && segment.destPort != -1) {
+                    destPort = segment.destPort;
                 }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
-                return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+
+                // check if display address should be blocked or not
+                if (!block) {
+                    // Depending on the nature of the gateway, the display origination address
+                    // is either derived from the content of the SMS TP-OA field, or the TP-OA
+                    // field contains a generic gateway address and the from address is added
+                    // at the beginning in the message body. In that case only the first SMS
+                    // (part of Multi-SMS) comes with the display originating address which
+                    // could be used for block checking purpose.
+                    block = BlockChecker.isBlocked(mContext, segment.displayAddress, null);
                 }
             }
         }
@@ -998,6 +976,75 @@ public abstract class InboundSmsHandler extends StateMachine {
         return true;
     }
 
+    /**
+     * Read the stored segments of a multi-part message from the raw table and hand them to the
+     * reassembler, which keeps them if segments are still missing.
+     * @param tracker any segment of the message
+     * @return all segments in order if the message is complete, null otherwise
+     */
+    private InboundSmsReassembler.Segment[] loadSegmentsFromRawTable(InboundSmsTracker tracker) {
+        Cursor cursor = null;
+        try {
+            // used by several query selection arguments
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String count = Integer.toString(tracker.getMessageCount());
+
+            // query for all segments and broadcast message if we have all the parts
+            String[] whereArgs = {tracker.getAddress(), refNumber, count};
+            cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
+                    tracker.getQueryForSegments(), whereArgs, null);
+
+            InboundSmsReassembler.Segment[] segments = null;
+            while (cursor.moveToNext()) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
+
+                // The invalid PDUs can be received and stored in the raw table. The range
+                // check ensures the process not crash even if the seqNumber in the
+                // UserDataHeader is invalid.
+                if (index >= tracker.getMessageCount() || index < 0) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            index + tracker.getIndexOffset(),
+                            tracker.getMessageCount()));
+                    continue;
+                }
+
+                int port = -1;
+                if (!cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                        .get(DESTINATION_PORT_COLUMN))) {
+                    // strip format flags and convert to real port number, or -1
+                    port = InboundSmsTracker.getRealDestPort(cursor.getInt(
+                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                    .get(DESTINATION_PORT_COLUMN)));
+                }
+
+                segments = mReassembler.addSegment(tracker, index,
+                        new InboundSmsReassembler.Segment(
+                                InboundSmsTracker.getPdu(cursor,
+                                        PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                                .get(PDU_COLUMN)),
+                                cursor.getLong(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                        .get(DATE_COLUMN)),
+                                cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
+                                        .get(DISPLAY_ADDRESS_COLUMN)),
+                                port));
+                if (segments != null) {
+                    break;
+                }
+            }
+            return segments;
+        } catch (SQLException e) {
+            loge("Can't access multipart SMS database", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Processes the message part while the credential-encrypted storage is still locked.
      *
@@ -1291,13 +1338,18 @@ public abstract class InboundSmsHandler extends StateMachine {
      * false otherwise
      */
     private boolean checkAndHandleDuplicate(InboundSmsTracker tracker) throws SQLException {
+        if (sDupIndex.shouldRebuild()) {
+            sDupIndex.rebuild(mResolver, sRawUri);
+        }
         Pair<String, String[]> exactMatchQuery = tracker.getExactMatchDupDetectQuery();
 
         Cursor cursor = null;
         try {
-            // Check for duplicate message segments
-            cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION, exactMatchQuery.first,
-                    exactMatchQuery.second, null);
+            // Check for duplicate message segments, unless the index knows there are none
+            if (sDupIndex.lookupExact(tracker) != InboundSmsDupIndex.ABSENT) {
+                cursor = mResolver.query(sRawUri, PDU_DELETED_FLAG_PROJECTION,
+                        exactMatchQuery.first, exactMatchQuery.second, null);
+            }
 
             // moveToNext() returns false if no duplicates were found
             if (cursor != null && cursor.moveToNext()) {
@@ -1334,7 +1386,8 @@ public abstract class InboundSmsHandler extends StateMachine {
         // The code above does an exact match. Multi-part message segments need an additional check
         // on top of that: if there is a message segment that conflicts this new one (may not be an
         // exact match), replace the old message segment with this one.
-        if (tracker.getMessageCount() > 1) {
+        if (tracker.getMessageCount() > 1
+                && sDupIndex.lookupInexact(tracker) != InboundSmsDupIndex.ABSENT) {
             Pair<String, String[]> inexactMatchQuery = tracker.getInexactMatchDupDetectQuery();
             cursor = null;
             try {
@@ -1364,10 +1417,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     }
 
     private void logDupPduMismatch(Cursor cursor, InboundSmsTracker tracker) {
-        String oldPduString = cursor.getString(
-                PDU_DELETED_FLAG_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN));
         byte[] pdu = tracker.getPdu();
-        byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
+        byte[] oldPdu = InboundSmsTracker.getPdu(cursor,
+                PDU_DELETED_FLAG_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN));
         if (!Arrays.equals(oldPdu, tracker.getPdu())) {
             loge("Warning: dup message PDU of length " + pdu.length
                     + " is different from existing PDU of length " + oldPdu.length);
@@ -1406,6 +1458,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (VDBG) log("adding content values to raw table: " + values.toString());
         Uri newUri = mResolver.insert(sRawUri, values);
         if (DBG) log("URI of new row -> " + newUri);
+        sDupIndex.add(tracker);
 
         try {
             long rowId = ContentUris.parseId(newUri);
@@ -1705,6 +1758,8 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (mCellBroadcastHandler != null) {
             mCellBroadcastHandler.dump(fd, pw, args);
         }
+        mReassembler.dump(pw);
+        sDupIndex.dump(pw);
         mLocalLog.dump(fd, pw, args);
     }
 
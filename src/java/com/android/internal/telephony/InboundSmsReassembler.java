@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory reassembly of concatenated inbound SMS.
+ *
+ * The raw table remains the source of truth and is still written for every segment so messages
+ * survive a crash. Once the segments of a message have been read from the raw table, the
+ * segments that follow are added here as they arrive instead of querying and decoding all of
+ * them again. A message this buffer does not know, for instance one evicted to bound memory, is
+ * simply read from the raw table again.
+ *
+ * Rows deleted from the raw table by others, such as the expired segments deleted by
+ * {@link SmsBroadcastUndelivered}, are reported through {@link #onRawTableRowsDeleted}, which
+ * makes every reassembler drop what it holds and read the table again.
+ *
+ * Not thread safe, except for {@link #onRawTableRowsDeleted}; used from the
+ * {@link InboundSmsHandler} state machine only.
+ */
+public class InboundSmsReassembler {
+    @VisibleForTesting
+    static final int MAX_MESSAGES = 64;
+
+    /** Bumped whenever segments may have been deleted from the raw table behind our back. */
+    private static final AtomicInteger sRawTableGeneration = new AtomicInteger();
+
+    /**
+     * One segment of a concatenated message.
+     */
+    public static class Segment {
+        public final byte[] pdu;
+        public final long timestamp;
+        public final String displayAddress;
+        /** The real destination port, or -1 */
+        public final int destPort;
+
+        public Segment(byte[] pdu, long timestamp, String displayAddress, int destPort) {
+            this.pdu = pdu;
+            this.timestamp = timestamp;
+            this.displayAddress = displayAddress;
+            this.destPort = destPort;
+        }
+    }
+
+    /**
+     * Identifies a message the way {@link InboundSmsTracker#getQueryForSegments} does.
+     */
+    private static final class Key {
+        private final String mAddress;
+        private final int mReferenceNumber;
+        private final int mMessageCount;
+        private final boolean mIs3gpp2WapPdu;
+
+        Key(InboundSmsTracker tracker) {
+            mAddress = tracker.getAddress();
+            mReferenceNumber = tracker.getReferenceNumber();
+            mMessageCount = tracker.getMessageCount();
+            mIs3gpp2WapPdu = tracker.is3gpp2WapPdu();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mReferenceNumber == other.mReferenceNumber
+                    && mMessageCount == other.mMessageCount
+                    && mIs3gpp2WapPdu == other.mIs3gpp2WapPdu
+                    && Objects.equals(mAddress, other.mAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mAddress, mReferenceNumber, mMessageCount, mIs3gpp2WapPdu);
+        }
+    }
+
+    private static final class PendingMessage {
+        final Segment[] segments;
+        int received;
+
+        PendingMessage(int messageCount) {
+            segments = new Segment[messageCount];
+        }
+    }
+
+    // In access order, so the message that has waited longest for a segment is evicted first
+    private final LinkedHashMap<Key, PendingMessage> mMessages =
+            new LinkedHashMap<Key, PendingMessage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, PendingMessage> eldest) {
+                    if (size() > MAX_MESSAGES) {
+                        mEvicted++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private long mCompleted;
+    private long mEvicted;
+    private long mInvalidated;
+    private int mRawTableGeneration = sRawTableGeneration.get();
+
+    /**
+     * Report that rows were deleted from the raw table by someone other than the handlers.
+     * Every reassembler then drops its segments before it is next used. May be called from any
+     * thread.
+     */
+    public static void onRawTableRowsDeleted() {
+        sRawTableGeneration.incrementAndGet();
+    }
+
+    /**
+     * Drop the segments held if the raw table changed since they were read.
+     */
+    private void checkRawTableGeneration() {
+        int generation = sRawTableGeneration.get();
+        if (generation != mRawTableGeneration) {
+            mRawTableGeneration = generation;
+            if (!mMessages.isEmpty()) {
+                mMessages.clear();
+                mInvalidated++;
+            }
+        }
+    }
+
+    /**
+     * @return true if segments of the tracker's message are being reassembled here
+     */
+    public boolean hasMessage(InboundSmsTracker tracker) {
+        checkRawTableGeneration();
+        return mMessages.containsKey(new Key(tracker));
+    }
+
+    /**
+     * Add a segment of the tracker's message, replacing any segment with the same index.
+     *
+     * @param tracker any segment of the message
+     * @param index the 0-based index of the segment
+     * @param segment the segment
+     * @return all segments in order if the message is now complete, in which case it is no
+     *         longer held here; null if segments are still missing
+     */
+    public Segment[] addSegment(InboundSmsTracker tracker, int index, Segment segment) {
+        int messageCount = tracker.getMessageCount();
+        if (index < 0 || index >= messageCount) {
+            throw new IllegalArgumentException("invalid index " + index + " of " + messageCount);
+        }
+        checkRawTableGeneration();
+        Key key = new Key(tracker);
+        PendingMessage message = mMessages.get(key);
+        if (message == null) {
+            message = new PendingMessage(messageCount);
+            mMessages.put(key, message);
+        }
+        if (message.segments[index] == null) {
+            message.received++;
+        }
+        message.segments[index] = segment;
+
+        if (message.received < messageCount) {
+            return null;
+        }
+        mMessages.remove(key);
+        mCompleted++;
+        return message.segments;
+    }
+
+    /**
+     * @return the number of messages waiting for segments
+     */
+    public int size() {
+        checkRawTableGeneration();
+        return mMessages.size();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("InboundSmsReassembler: pending=" + mMessages.size() + " completed="
+                + mCompleted + " evicted=" + mEvicted + " invalidated=" + mInvalidated);
+    }
+}
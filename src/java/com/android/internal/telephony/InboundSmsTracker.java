@@ -169,7 +169,7 @@ public class InboundSmsTracker {
      * @param cursor a Cursor pointing to the row to construct this SmsTracker for
      */
     public InboundSmsTracker(Cursor cursor, boolean isCurrentFormat3gpp2) {
-        mPdu = HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+        mPdu = getPdu(cursor, InboundSmsHandler.PDU_COLUMN);
 
         // TODO: add a column to raw db to store this
         mIsClass0 = false;
@@ -228,6 +228,7 @@ public class InboundSmsTracker {
 
     public ContentValues getContentValues() {
         ContentValues values = new ContentValues();
+        // Hex, which is what every reader of the raw table, including older versions, expects
         values.put("pdu", HexDump.toHexString(mPdu));
         values.put("date", mTimestamp);
         // Always set the destination port, since it now contains message format flags.
@@ -259,6 +260,19 @@ public class InboundSmsTracker {
         return values;
     }
 
+    /**
+     * Read a PDU from the raw table. PDUs are stored as hex strings; a blob is read as is.
+     * @param cursor a Cursor pointing to the row
+     * @param column the index of the pdu column
+     * @return the PDU
+     */
+    public static byte[] getPdu(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getBlob(column);
+        }
+        return HexDump.hexStringToByteArray(cursor.getString(column));
+    }
+
     /**
      * Get the port number, or -1 if there is no destination port.
      * @param destPort the destination port value, with flags
@@ -321,6 +335,10 @@ public class InboundSmsTracker {
         return mIs3gpp2;
     }
 
+    public boolean is3gpp2WapPdu() {
+        return mIs3gpp2WapPdu;
+    }
+
     public boolean isClass0() {
         return mIsClass0;
     }
@@ -19,6 +19,7 @@ package com.android.internal.telephony;
 import android.annotation.UnsupportedAppUsage;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Clients can enable reception of SMS-CB messages for specific ranges of
@@ -31,7 +32,9 @@ import java.util.Iterator;
  * Calls to {@link #enableRange} and {@link #disableRange} will perform
  * an incremental update operation if the enabled ranges have changed.
  * A full update operation (i.e. after a radio reset) can be performed
- * by a call to {@link #updateRanges}.
+ * by a call to {@link #updateRanges}. Enable and disable calls made
+ * between {@link #startBatch} and {@link #finishBatch} result in a single
+ * full update operation, if any.
  *
  * Clients are identified by String (the name associated with the User ID
  * of the caller) so that a call to remove a range can be mapped to the
@@ -106,39 +109,34 @@ public abstract class IntRangeManager {
          * <p>If the new ClientRange is known to be sorted before or after the
          * existing ClientRanges, or at a particular index, it can be added
          * to the clients array list directly, instead of via this method.
-         * <p>Note that this can be changed from linear to binary search if the
-         * number of clients grows large enough that it would make a difference.
          * @param range the new ClientRange to insert
          */
         void insert(ClientRange range) {
-            int len = mClients.size();
-            int insert = -1;
-            for (int i=0; i < len; i++) {
-                ClientRange nextRange = mClients.get(i);
-                if (range.mStartId <= nextRange.mStartId) {
-                    // ignore duplicate ranges from the same client
-                    if (!range.equals(nextRange)) {
-                        // check if same startId, then order by endId
-                        if (range.mStartId == nextRange.mStartId
-                                && range.mEndId > nextRange.mEndId) {
-                            insert = i + 1;
-                            if (insert < len) {
-                                // there may be more client following with same startId
-                                // new [1, 5] existing [1, 2] [1, 4] [1, 7]
-                                continue;
-                            }
-                            break;
-                        }
-                        mClients.add(i, range);
-                    }
-                    return;
+            // find the first ClientRange sorted after the new one
+            int low = 0;
+            int high = mClients.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                ClientRange midRange = mClients.get(mid);
+                if (midRange.mStartId < range.mStartId || (midRange.mStartId == range.mStartId
+                        && midRange.mEndId <= range.mEndId)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
                 }
             }
-            if (insert != -1 && insert < len) {
-                mClients.add(insert, range);
-                return;
+            // ignore duplicate ranges from the same client, which are sorted just before
+            // new [1, 5] existing [1, 2] [1, 5] [1, 5] [1, 7]
+            for (int i = low - 1; i >= 0; i--) {
+                ClientRange prevRange = mClients.get(i);
+                if (prevRange.mStartId != range.mStartId || prevRange.mEndId != range.mEndId) {
+                    break;
+                }
+                if (prevRange.equals(range)) {
+                    return;
+                }
             }
-            mClients.add(range);    // append to end of list
+            mClients.add(low, range);
         }
     }
 
@@ -180,6 +178,15 @@ public abstract class IntRangeManager {
     @UnsupportedAppUsage
     private ArrayList<IntRange> mRanges = new ArrayList<IntRange>();
 
+    /** Whether the radio update of enable and disable calls is deferred to a batch. */
+    private boolean mInBatch;
+
+    /** Whether the enabled ranges may have changed since {@link #startBatch}. */
+    private boolean mBatchChanged;
+
+    /** Copy of the ranges at {@link #startBatch}, restored if the batch fails. */
+    private ArrayList<IntRange> mBatchRanges;
+
     protected IntRangeManager() {}
 
     /**
@@ -197,7 +204,7 @@ public abstract class IntRangeManager {
 
         // empty range list: add the initial IntRange
         if (len == 0) {
-            if (tryAddRanges(startId, endId, true)) {
+            if (addEnabledRange(startId, endId)) {
                 mRanges.add(new IntRange(startId, endId, client));
                 return true;
             } else {
@@ -205,7 +212,9 @@ public abstract class IntRangeManager {
             }
         }
 
-        for (int startIndex = 0; startIndex < len; startIndex++) {
+        // IntRanges ending before startId - 1 can neither contain nor join the new range
+        for (int startIndex = findFirstRangeEndingAtOrAfter(startId - 1); startIndex < len;
+                startIndex++) {
             IntRange range = mRanges.get(startIndex);
             if ((startId) >= range.mStartId && (endId) <= range.mEndId) {
                 // exact same range:  new [1, 1] existing [1, 1]
@@ -216,35 +225,26 @@ public abstract class IntRangeManager {
                 return true;
             } else if ((startId - 1) == range.mEndId) {
                 // new [3, x] existing [1, 2]  OR new [2, 2] existing [1, 1]
-                // found missing link? check if next range can be joined
-                int newRangeEndId = endId;
-                IntRange nextRange = null;
-                if ((startIndex + 1) < len) {
-                    nextRange = mRanges.get(startIndex + 1);
-                    if ((nextRange.mStartId - 1) <= endId) {
-                        // new [3, x] existing [1, 2] [5, 7] OR  new [2 , 2] existing [1, 1] [3, 5]
-                        if (endId <= nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 7]
-                            newRangeEndId = nextRange.mStartId - 1; // need to enable [3, 4]
-                        }
-                    } else {
-                        // mark nextRange to be joined as null.
-                        nextRange = null;
+                // found missing link? find last range that can be joined
+                int endIndex = startIndex;
+                for (int testIndex = startIndex + 1; testIndex < len; testIndex++) {
+                    if ((endId + 1) < mRanges.get(testIndex).mStartId) {
+                        break;
                     }
+                    // new [3, x] existing [1, 2] [5, 7] OR  new [2 , 2] existing [1, 1] [3, 5]
+                    endIndex = testIndex;
+                }
+                IntRange endRange = mRanges.get(endIndex);
+                int newRangeEndId = endId;
+                if (endIndex != startIndex && endId <= endRange.mEndId) {
+                    // new [3, 6] existing [1, 2] [5, 7]
+                    newRangeEndId = endRange.mStartId - 1; // need to enable [3, 4]
                 }
-                if (tryAddRanges(startId, newRangeEndId, true)) {
-                    range.mEndId = endId;
+                if (addEnabledRange(startId, newRangeEndId)) {
+                    // new [3, 6] existing [1, 2] [5, 10]
+                    range.mEndId = Math.max(endId, endRange.mEndId);
                     range.insert(new ClientRange(startId, endId, client));
-
-                    // found missing link? check if next range can be joined
-                    if (nextRange != null) {
-                        if (range.mEndId < nextRange.mEndId) {
-                            // new [3, 6] existing [1, 2] [5, 10]
-                            range.mEndId = nextRange.mEndId;
-                        }
-                        range.mClients.addAll(nextRange.mClients);
-                        mRanges.remove(nextRange);
-                    }
+                    joinRanges(range, startIndex + 1, endIndex + 1);
                     return true;
                 } else {
                     return false;   // failed to update radio
@@ -256,7 +256,7 @@ public abstract class IntRangeManager {
                 if ((endId + 1) < range.mStartId) {
                     // new [1, 3] existing [5, 6] non contiguous case
                     // insert new int range before previous first range
-                    if (tryAddRanges(startId, endId, true)) {
+                    if (addEnabledRange(startId, endId)) {
                         mRanges.add(startIndex, new IntRange(startId, endId, client));
                         return true;
                     } else {
@@ -265,7 +265,7 @@ public abstract class IntRangeManager {
                 } else if (endId <= range.mEndId) {
                     // new [1, 4] existing [5, 6]  or  new [1, 1] existing [2, 2]
                     // extend the start of this range
-                    if (tryAddRanges(startId, range.mStartId - 1, true)) {
+                    if (addEnabledRange(startId, range.mStartId - 1)) {
                         range.mStartId = startId;
                         range.mClients.add(0, new ClientRange(startId, endId, client));
                         return true;
@@ -279,23 +279,14 @@ public abstract class IntRangeManager {
                         if ((endId + 1) < endRange.mStartId) {
                             // new [1, 10] existing [2, 3] [14, 15]
                             // try to add entire new range
-                            if (tryAddRanges(startId, endId, true)) {
+                            if (addEnabledRange(startId, endId)) {
                                 range.mStartId = startId;
                                 range.mEndId = endId;
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex-1
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i < endIndex; i++) {
-                                    // new [1, 10] existing [2, 3] [5, 6] [14, 15]
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
+                                // new [1, 10] existing [2, 3] [5, 6] [14, 15]
+                                joinRanges(range, startIndex + 1, endIndex);
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -304,22 +295,13 @@ public abstract class IntRangeManager {
                             // new [1, 10] existing [2, 3] [5, 15]
                             // add range from start id to start of last overlapping range,
                             // values from endRange.startId to endId are already enabled
-                            if (tryAddRanges(startId, endRange.mStartId - 1, true)) {
+                            if (addEnabledRange(startId, endRange.mStartId - 1)) {
                                 range.mStartId = startId;
                                 range.mEndId = endRange.mEndId;
                                 // insert new ClientRange before existing ranges
                                 range.mClients.add(0, new ClientRange(startId, endId, client));
                                 // coalesce range with following ranges up to endIndex
-                                // remove each range after adding its elements, so the index
-                                // of the next range to join is always startIndex+1.
-                                // i is the index if no elements were removed: we only care
-                                // about the number of loop iterations, not the value of i.
-                                int joinIndex = startIndex + 1;
-                                for (int i = joinIndex; i <= endIndex; i++) {
-                                    IntRange joinRange = mRanges.get(joinIndex);
-                                    range.mClients.addAll(joinRange.mClients);
-                                    mRanges.remove(joinRange);
-                                }
+                                joinRanges(range, startIndex + 1, endIndex + 1);
                                 return true;
                             } else {
                                 return false;   // failed to update radio
@@ -329,30 +311,21 @@ public abstract class IntRangeManager {
 
                     // new [1, 10] existing [2, 3]
                     // endId extends past all existing IntRanges: combine them all together
-                    if (tryAddRanges(startId, endId, true)) {
+                    if (addEnabledRange(startId, endId)) {
                         range.mStartId = startId;
                         range.mEndId = endId;
                         // insert new ClientRange before existing ranges
                         range.mClients.add(0, new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to len-1
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1.
-                        // i is the index if no elements were removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i < len; i++) {
-                            // new [1, 10] existing [2, 3] [5, 6]
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
+                        // new [1, 10] existing [2, 3] [5, 6]
+                        joinRanges(range, startIndex + 1, len);
                         return true;
                     } else {
                         return false;   // failed to update radio
                     }
                 }
-            } else if ((startId + 1) <= range.mEndId) {
-                // new [2, x] existing [1, 4]
+            } else if (startId <= range.mEndId) {
+                // new [2, x] existing [1, 4]  or  new [4, x] existing [1, 4]
                 if (endId <= range.mEndId) {
                     // new [2, 3] existing [1, 4]
                     // completely contained in existing range; no radio changes
@@ -375,7 +348,7 @@ public abstract class IntRangeManager {
                         // new [2, 5] existing [1, 4]
                         // add range from range.endId+1 to endId,
                         // values from startId to range.endId are already enabled
-                        if (tryAddRanges(range.mEndId + 1, endId, true)) {
+                        if (addEnabledRange(range.mEndId + 1, endId)) {
                             range.mEndId = endId;
                             range.insert(new ClientRange(startId, endId, client));
                             return true;
@@ -392,22 +365,13 @@ public abstract class IntRangeManager {
                     int newRangeEndId = (endId <= endRange.mEndId) ? endRange.mStartId - 1 : endId;
                     // new [2, 10] existing [1, 4] [7, 8] OR
                     // new [2, 10] existing [1, 4] [7, 15]
-                    if (tryAddRanges(range.mEndId + 1, newRangeEndId, true)) {
+                    if (addEnabledRange(range.mEndId + 1, newRangeEndId)) {
                         newRangeEndId = (endId <= endRange.mEndId) ? endRange.mEndId : endId;
                         range.mEndId = newRangeEndId;
                         // insert new ClientRange in place
                         range.insert(new ClientRange(startId, endId, client));
                         // coalesce range with following ranges up to endIndex
-                        // remove each range after adding its elements, so the index
-                        // of the next range to join is always startIndex+1 (joinIndex).
-                        // i is the index if no elements had been removed: we only care
-                        // about the number of loop iterations, not the value of i.
-                        int joinIndex = startIndex + 1;
-                        for (int i = joinIndex; i <= endIndex; i++) {
-                            IntRange joinRange = mRanges.get(joinIndex);
-                            range.mClients.addAll(joinRange.mClients);
-                            mRanges.remove(joinRange);
-                        }
+                        joinRanges(range, startIndex + 1, endIndex + 1);
                         return true;
                     } else {
                         return false;   // failed to update radio
@@ -418,7 +382,7 @@ public abstract class IntRangeManager {
 
         // new [5, 6], existing [1, 3]
         // append new range after existing IntRanges
-        if (tryAddRanges(startId, endId, true)) {
+        if (addEnabledRange(startId, endId)) {
             mRanges.add(new IntRange(startId, endId, client));
             return true;
         } else {
@@ -439,7 +403,8 @@ public abstract class IntRangeManager {
     public synchronized boolean disableRange(int startId, int endId, String client) {
         int len = mRanges.size();
 
-        for (int i=0; i < len; i++) {
+        // IntRanges ending before endId cannot enclose the client range
+        for (int i = findFirstRangeEndingAtOrAfter(endId); i < len; i++) {
             IntRange range = mRanges.get(i);
             if (startId < range.mStartId) {
                 return false;   // not found
@@ -456,7 +421,7 @@ public abstract class IntRangeManager {
                         // mRange contains only what's enabled.
                         // remove the range from mRange then update the radio
                         mRanges.remove(i);
-                        if (updateRanges()) {
+                        if (updateEnabledRanges()) {
                             return true;
                         } else {
                             // failed to update radio.  insert back the range
@@ -492,7 +457,7 @@ public abstract class IntRangeManager {
                                 // disable the channels at the end and lower the end id
                                 clients.remove(crIndex);
                                 range.mEndId = largestEndId;
-                                if (updateRanges()) {
+                                if (updateEnabledRanges()) {
                                     return true;
                                 } else {
                                     clients.add(crIndex, cr);
@@ -557,7 +522,7 @@ public abstract class IntRangeManager {
                         // replace the original IntRange with newRanges
                         mRanges.remove(i);
                         mRanges.addAll(i, newRanges);
-                        if (updateStarted && !updateRanges()) {
+                        if (updateStarted && !updateEnabledRanges()) {
                             // failed to update radio.  revert back mRange.
                             mRanges.removeAll(newRanges);
                             mRanges.add(i, range);
@@ -578,6 +543,59 @@ public abstract class IntRangeManager {
         return false;   // not found
     }
 
+    /**
+     * Start a batch of enable and disable calls. Until {@link #finishBatch}, these calls
+     * update the ranges without updating the radio, and do not fail for lack of radio.
+     * Useful to enable many ranges at once, e.g. all the channels of a client at boot.
+     */
+    public synchronized void startBatch() {
+        if (mInBatch) {
+            throw new IllegalStateException("Batch already started");
+        }
+        mInBatch = true;
+        mBatchChanged = false;
+        mBatchRanges = copyRanges(mRanges);
+    }
+
+    /**
+     * Finish a batch started by {@link #startBatch}, performing a single complete update
+     * operation if the enabled ranges have changed. If {@link #finishUpdate} returns failure,
+     * false is returned and the ranges are restored to what they were before the batch.
+     *
+     * @return true if successful, false otherwise
+     */
+    public synchronized boolean finishBatch() {
+        if (!mInBatch) {
+            throw new IllegalStateException("No batch started");
+        }
+        mInBatch = false;
+        ArrayList<IntRange> oldRanges = mBatchRanges;
+        mBatchRanges = null;
+        // e.g. a range enabled then disabled again, or only enabled within existing ranges
+        if (!mBatchChanged || hasSameEnabledIds(oldRanges, mRanges)) {
+            return true;
+        }
+        if (updateRanges()) {
+            return true;
+        } else {
+            mRanges = oldRanges;
+            return false;
+        }
+    }
+
+    /**
+     * Cancel a batch started by {@link #startBatch}, restoring the ranges to what they were
+     * before the batch. The radio is not updated.
+     */
+    public synchronized void cancelBatch() {
+        if (!mInBatch) {
+            throw new IllegalStateException("No batch started");
+        }
+        mInBatch = false;
+        mRanges = mBatchRanges;
+        mBatchRanges = null;
+    }
+
     /**
      * Perform a complete update operation (enable all ranges). Useful
      * after a radio reset. Calls {@link #startUpdate}, followed by zero or
@@ -607,6 +625,88 @@ public abstract class IntRangeManager {
         return finishUpdate();
     }
 
+    /**
+     * Enable a single range of message identifiers in addition to the
+     * current ranges, unless the update is deferred to a batch.
+     * @return true if successful, false otherwise
+     */
+    private boolean addEnabledRange(int startId, int endId) {
+        if (mInBatch) {
+            mBatchChanged = true;
+            return true;
+        }
+        return tryAddRanges(startId, endId, true);
+    }
+
+    /**
+     * Perform a complete update operation, unless it is deferred to a batch.
+     * @return true if successful, false otherwise
+     */
+    private boolean updateEnabledRanges() {
+        if (mInBatch) {
+            mBatchChanged = true;
+            return true;
+        }
+        return updateRanges();
+    }
+
+    /**
+     * Find where a range starts or ends among the IntRanges. IntRanges are
+     * sorted by start id and do not overlap, so they are sorted by end id too.
+     * @param id the id to search for
+     * @return the index of the first IntRange ending at or after id, or the
+     *         number of IntRanges if there is none
+     */
+    private int findFirstRangeEndingAtOrAfter(int id) {
+        int low = 0;
+        int high = mRanges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRanges.get(mid).mEndId < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the clients of the IntRanges in [fromIndex, toIndex) to range,
+     * then remove these IntRanges.
+     */
+    private void joinRanges(IntRange range, int fromIndex, int toIndex) {
+        List<IntRange> joinRanges = mRanges.subList(fromIndex, toIndex);
+        for (int i = 0; i < joinRanges.size(); i++) {
+            range.mClients.addAll(joinRanges.get(i).mClients);
+        }
+        joinRanges.clear();
+    }
+
+    private ArrayList<IntRange> copyRanges(ArrayList<IntRange> ranges) {
+        ArrayList<IntRange> copy = new ArrayList<IntRange>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            IntRange range = ranges.get(i);
+            copy.add(new IntRange(range, range.mClients.size()));
+        }
+        return copy;
+    }
+
+    private static boolean hasSameEnabledIds(ArrayList<IntRange> ranges,
+            ArrayList<IntRange> otherRanges) {
+        if (ranges.size() != otherRanges.size()) {
+            return false;
+        }
+        for (int i = 0; i < ranges.size(); i++) {
+            IntRange range = ranges.get(i);
+            IntRange otherRange = otherRanges.get(i);
+            if (range.mStartId != otherRange.mStartId || range.mEndId != otherRange.mEndId) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns whether the list of ranges is completely empty.
      * @return true if there are no enabled ranges
@@ -102,6 +102,7 @@ import android.telephony.emergency.EmergencyNumber;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cat.ComprehensionTlv;
@@ -224,10 +225,24 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
+    final RilRequestTable mRequestTable = new RilRequestTable();
+    // View of mRequestTable for callers still expecting the original SparseArray
     @UnsupportedAppUsage
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    SparseArray<RILRequest> mRequestList = mRequestTable.asSparseArray();
+    final RILRequestPool mRequestPool = new RILRequestPool();
+    final RilLatencyRecorder mLatencyRecorder = new RilLatencyRecorder();
     static SparseArray<TelephonyHistogram> mRilTimeHistograms = new
             SparseArray<TelephonyHistogram>();
+    // All RIL instances, keyed by phone id, for metrics collection
+    static final SparseArray<RIL> sRilInstances = new SparseArray<RIL>();
+
+    // Whether identical read-only requests are coalesced while one of them is in flight
+    private volatile boolean mCoalesceRequests;
+    // In-flight requests that identical requests may attach to, keyed by RIL_REQUEST_*
+    private final SparseArray<RILRequest> mCoalescingLeaders = new SparseArray<RILRequest>();
+    // Modem round trips saved by coalescing, keyed by RIL_REQUEST_*. Guarded by
+    // mCoalescingLeaders.
+    private final SparseIntArray mCoalescedCounts = new SparseIntArray();
 
     Object[] mLastNITZTimeInfo;
 
@@ -300,6 +315,35 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return list;
     }
 
+    /**
+     * @return the RILRequest pool statistics of every RIL instance, keyed by phone id
+     */
+    public static SparseArray<RILRequestPool.Stats> getRilRequestPoolStats() {
+        SparseArray<RILRequestPool.Stats> stats;
+        synchronized (sRilInstances) {
+            stats = new SparseArray<>(sRilInstances.size());
+            for (int i = 0; i < sRilInstances.size(); i++) {
+                stats.put(sRilInstances.keyAt(i), sRilInstances.valueAt(i).mRequestPool.getStats());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return the request latency summaries of every RIL instance, keyed by phone id
+     */
+    public static SparseArray<List<RilLatencyRecorder.Summary>> getRilLatencySummaries() {
+        SparseArray<List<RilLatencyRecorder.Summary>> summaries;
+        synchronized (sRilInstances) {
+            summaries = new SparseArray<>(sRilInstances.size());
+            for (int i = 0; i < sRilInstances.size(); i++) {
+                summaries.put(sRilInstances.keyAt(i),
+                        sRilInstances.valueAt(i).mLatencyRecorder.getSummaries());
+            }
+        }
+        return summaries;
+    }
+
     /** The handler used to handle the internal event of RIL. */
     @VisibleForTesting
     public class RilHandler extends Handler {
@@ -316,26 +360,25 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                     // The timer of WAKE_LOCK_TIMEOUT is reset with each
                     // new send request. So when WAKE_LOCK_TIMEOUT occurs
-                    // all requests in mRequestList already waited at
+                    // all requests in mRequestTable already waited at
                     // least DEFAULT_WAKE_LOCK_TIMEOUT_MS but no response.
                     //
-                    // Note: Keep mRequestList so that delayed response
+                    // Note: Keep mRequestTable so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (mRadioBugDetector != null) {
-                                mRadioBugDetector.processWakelockTimeout();
-                            }
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (mRadioBugDetector != null) {
+                            mRadioBugDetector.processWakelockTimeout();
+                        }
+                        if (RILJ_LOGD) {
+                            List<RILRequest> pending = mRequestTable.snapshot();
+                            int count = pending.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = pending.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -605,6 +648,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mPreferredNetworkType = preferredNetworkType;
         mPhoneType = RILConstants.NO_PHONE;
         mPhoneId = instanceId == null ? 0 : instanceId;
+        synchronized (sRilInstances) {
+            sRilInstances.put(mPhoneId, this);
+        }
         if (isRadioBugDetectionEnabled()) {
             mRadioBugDetector = new RadioBugDetector(context, mPhoneId);
         }
@@ -615,6 +661,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mUseOldMncMccFormat = SystemProperties.getBoolean(
                 "ro.telephony.use_old_mnc_mcc_format", false);
 
+        mCoalesceRequests = SystemProperties.getBoolean(
+                "persist.radio.ril_coalesce_requests", false);
+
         ConnectivityManager cm = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
         mIsMobileNetworkSupported = cm.isNetworkSupported(ConnectivityManager.TYPE_MOBILE);
@@ -674,20 +723,120 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private void addRequest(RILRequest rr) {
         acquireWakeLock(rr, FOR_WAKELOCK);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
-        }
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        // The HIDL call is issued synchronously right after the request is registered
+        rr.mSentTimeNs = SystemClock.elapsedRealtimeNanos();
+        mRequestTable.put(rr);
+        mRequestPool.onInFlight(mRequestTable.size());
     }
 
     private RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
-        RILRequest rr = RILRequest.obtain(request, result, workSource);
+        RILRequest rr = RILRequest.obtain(mRequestPool, request, result, workSource);
         addRequest(rr);
         return rr;
     }
 
+    /**
+     * @return true if requests of this type take no arguments and have no side effects, so that
+     * one in flight can answer identical ones issued before its response arrives. The result must
+     * also be copyable, see {@link RILRequest#copyCoalescedResult}; the registration states are
+     * HAL structs that cannot be copied and are therefore not coalesced.
+     */
+    private static boolean isCoalescableRequest(int request) {
+        switch (request) {
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+            case RIL_REQUEST_OPERATOR:
+            case RIL_REQUEST_GET_CELL_INFO_LIST:
+            case RIL_REQUEST_DATA_CALL_LIST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Obtain a request for a coalescable request type. If coalescing is enabled and an identical
+     * request is already in flight, the result message is attached to that request instead.
+     *
+     * @return the new request to send to the radio, or null if the request was coalesced
+     */
+    private RILRequest obtainCoalescedRequest(int request, Message result,
+            WorkSource workSource) {
+        if (!mCoalesceRequests) {
+            return obtainRequest(request, result, workSource);
+        }
+        synchronized (mCoalescingLeaders) {
+            RILRequest leader = mCoalescingLeaders.get(request);
+            if (leader != null) {
+                if (result != null) {
+                    leader.addFollower(result);
+                }
+                addFollowerWorkSource(leader, workSource);
+                mCoalescedCounts.put(request, mCoalescedCounts.get(request) + 1);
+                if (RILJ_LOGD) {
+                    riljLog(leader.serialString() + "> " + requestToString(request)
+                            + " coalesced");
+                }
+                return null;
+            }
+            RILRequest rr = obtainRequest(request, result, workSource);
+            mCoalescingLeaders.put(request, rr);
+            return rr;
+        }
+    }
+
+    /**
+     * Bill the wakelock held for a coalesced request to the client of an identical request
+     * attached to it as well, as if that request had been sent on its own.
+     */
+    private void addFollowerWorkSource(RILRequest leader, WorkSource workSource) {
+        if (workSource == null) return;
+        synchronized (leader) {
+            if (leader.mWakeLockType != FOR_WAKELOCK) return;
+            synchronized (mWakeLock) {
+                String clientId = RILRequest.getWorkSourceClientId(workSource);
+                if (!mClientWakelockTracker.isClientActive(clientId)) {
+                    mActiveWakelockWorkSource.add(workSource);
+                    mWakeLock.setWorkSource(mActiveWakelockWorkSource);
+                }
+                mClientWakelockTracker.startTracking(clientId, leader.mRequest, leader.mSerial,
+                        mWakeLockCount);
+            }
+            leader.addFollowerWorkSource(workSource);
+        }
+    }
+
+    /**
+     * Stop attaching identical requests to the given request. Must be called before its result
+     * is delivered.
+     */
+    private void removeCoalescingLeader(RILRequest rr) {
+        if (!isCoalescableRequest(rr.mRequest)) return;
+        synchronized (mCoalescingLeaders) {
+            if (mCoalescingLeaders.get(rr.mRequest) == rr) {
+                mCoalescingLeaders.remove(rr.mRequest);
+            }
+        }
+    }
+
+    /** Enable or disable coalescing of identical read-only requests. */
+    @VisibleForTesting
+    public void setRequestCoalescingEnabled(boolean enabled) {
+        mCoalesceRequests = enabled;
+    }
+
+    /**
+     * @return number of modem round trips saved by coalescing for the given RIL_REQUEST_*
+     */
+    @VisibleForTesting
+    public int getCoalescedRequestCount(int request) {
+        synchronized (mCoalescingLeaders) {
+            return mCoalescedCounts.get(request);
+        }
+    }
+
     protected int obtainRequestSerial(int request, Message result, WorkSource workSource) {
-        RILRequest rr = RILRequest.obtain(request, result, workSource);
+        RILRequest rr = RILRequest.obtain(mRequestPool, request, result, workSource);
         addRequest(rr);
         return rr.mSerial;
     }
@@ -1245,8 +1394,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getSignalStrength(Message result) {
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
-            RILRequest rr = obtainRequest(RIL_REQUEST_SIGNAL_STRENGTH, result,
+            RILRequest rr = obtainCoalescedRequest(RIL_REQUEST_SIGNAL_STRENGTH, result,
                     mRILDefaultWorkSource);
+            if (rr == null) return;
 
             if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -1306,8 +1456,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getOperator(Message result) {
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
-            RILRequest rr = obtainRequest(RIL_REQUEST_OPERATOR, result,
+            RILRequest rr = obtainCoalescedRequest(RIL_REQUEST_OPERATOR, result,
                     mRILDefaultWorkSource);
+            if (rr == null) return;
 
             if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -2362,8 +2513,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
     public void getDataCallList(Message result) {
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
-            RILRequest rr = obtainRequest(RIL_REQUEST_DATA_CALL_LIST, result,
+            RILRequest rr = obtainCoalescedRequest(RIL_REQUEST_DATA_CALL_LIST, result,
                     mRILDefaultWorkSource);
+            if (rr == null) return;
 
             if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
 
@@ -3500,8 +3652,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
         workSource = getDeafultWorkSourceIfInvalid(workSource);
         IRadio radioProxy = getRadioProxy(result);
         if (radioProxy != null) {
-            RILRequest rr = obtainRequest(RIL_REQUEST_GET_CELL_INFO_LIST, result,
+            RILRequest rr = obtainCoalescedRequest(RIL_REQUEST_GET_CELL_INFO_LIST, result,
                     workSource);
+            if (rr == null) return;
 
             if (RILJ_LOGD) {
                 riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
@@ -4739,10 +4892,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     void processRequestAck(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        RILRequest rr = mRequestTable.get(serial);
         if (rr == null) {
             Rlog.w(RIL.RILJ_LOG_TAG, "processRequestAck: Unexpected solicited ack response! "
                     + "serial: " + serial);
@@ -4770,9 +4920,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = null;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestTable.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -4796,6 +4944,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
         // Time logging for RIL command and storing it in TelephonyHistogram.
         addToRilHistogram(rr);
+        rr.mResponseTimeNs = SystemClock.elapsedRealtimeNanos();
+        mLatencyRecorder.record(rr.mRequest, RilLatencyRecorder.PHASE_RADIO,
+                (rr.mResponseTimeNs - rr.mSentTimeNs) / 1000);
         if (mRadioBugDetector != null) {
             mRadioBugDetector.detectRadioBug(rr.mRequest, error);
         }
@@ -4884,6 +5035,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
                         + " " + retToString(rr.mRequest, ret));
             }
+            rr.notifyFollowers(ret, null);
         } else {
             if (RILJ_LOGD) {
                 riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
@@ -4897,6 +5049,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
             if (responseInfo.type == RadioResponseType.SOLICITED) {
                 decrementWakeLock(rr);
             }
+            if (rr.mResponseTimeNs != 0) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                mLatencyRecorder.record(rr.mRequest, RilLatencyRecorder.PHASE_RESPONSE,
+                        (now - rr.mResponseTimeNs) / 1000);
+                mLatencyRecorder.record(rr.mRequest, RilLatencyRecorder.PHASE_TOTAL,
+                        (now - rr.mSentTimeNs) / 1000);
+            }
             rr.release();
         }
     }
@@ -4911,7 +5070,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     private void sendAck() {
         // TODO: Remove rr and clean up acquireWakelock for response and ack
-        RILRequest rr = RILRequest.obtain(RIL_RESPONSE_ACKNOWLEDGEMENT, null,
+        RILRequest rr = RILRequest.obtain(mRequestPool, RIL_RESPONSE_ACKNOWLEDGEMENT, null,
                 mRILDefaultWorkSource);
         acquireWakeLock(rr, RIL.FOR_ACK_WAKELOCK);
         IRadio radioProxy = getRadioProxy(null);
@@ -5004,6 +5163,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return mRilHandler;
     }
 
+    /** Returns the RILRequest pool. */
+    @VisibleForTesting
+    public RILRequestPool getRilRequestPool() {
+        return mRequestPool;
+    }
+
     /** Returns the Ril request list. */
     @VisibleForTesting
     public SparseArray<RILRequest> getRilRequestList() {
@@ -5016,6 +5181,15 @@ public class RIL extends BaseCommands implements CommandsInterface {
             switch(rr.mWakeLockType) {
                 case FOR_WAKELOCK:
                     synchronized (mWakeLock) {
+                        for (int i = 0; i < rr.getFollowerWorkSourceCount(); i++) {
+                            WorkSource workSource = rr.getFollowerWorkSource(i);
+                            String followerId = RILRequest.getWorkSourceClientId(workSource);
+                            mClientWakelockTracker.stopTracking(followerId, rr.mRequest,
+                                    rr.mSerial, mWakeLockCount);
+                            if (!mClientWakelockTracker.isClientActive(followerId)) {
+                                mActiveWakelockWorkSource.remove(workSource);
+                            }
+                        }
                         mClientWakelockTracker.stopTracking(rr.mClientId,
                                 rr.mRequest, rr.mSerial,
                                 (mWakeLockCount > 1) ? mWakeLockCount - 1 : 0);
@@ -5068,44 +5242,39 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     /**
-     * Release each request in mRequestList then clear the list
+     * Release each request in mRequestTable then clear the list
      * @param error is the RIL_Errno sent back
-     * @param loggable true means to print all requests in mRequestList
+     * @param loggable true means to print all requests in mRequestTable
      */
     @UnsupportedAppUsage
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
-                        + mWakeLockCount + " mRequestList=" + count);
-            }
+        List<RILRequest> removed = mRequestTable.removeAll();
+        int count = removed.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
+                    + mWakeLockCount + " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                            + requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count; i++) {
+            rr = removed.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                        + requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            removeCoalescingLeader(rr);
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     @UnsupportedAppUsage
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
+        RILRequest rr = mRequestTable.remove(serial);
+        if (rr != null) {
+            removeCoalescingLeader(rr);
         }
-
         return rr;
     }
 
@@ -5807,15 +5976,23 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println("RIL: " + this);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> pending = mRequestTable.snapshot();
+        int count = pending.size();
+        pw.println(" mRequestList count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
+        }
+        mRequestPool.dump(pw);
+        mLatencyRecorder.dump(pw);
+        pw.println(" mCoalesceRequests=" + mCoalesceRequests);
+        synchronized (mCoalescingLeaders) {
+            for (int i = 0; i < mCoalescedCounts.size(); i++) {
+                pw.println("  " + requestToString(mCoalescedCounts.keyAt(i)) + " coalesced="
+                        + mCoalescedCounts.valueAt(i));
             }
         }
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
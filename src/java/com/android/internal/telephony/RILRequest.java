@@ -19,10 +19,13 @@ package com.android.internal.telephony;
 import android.annotation.UnsupportedAppUsage;
 import android.os.AsyncResult;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.SystemClock;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
+import android.telephony.CellInfo;
 import android.telephony.Rlog;
+import android.telephony.SignalStrength;
 
 import java.util.ArrayList;
 import java.util.Random;
@@ -38,10 +41,8 @@ public class RILRequest {
     //***** Class Variables
     static Random sRandom = new Random();
     static AtomicInteger sNextSerial = new AtomicInteger(0);
-    private static Object sPoolSync = new Object();
-    private static RILRequest sPool = null;
-    private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+    // Pool shared by callers that do not own a pool, e.g. RadioConfig
+    private static final RILRequestPool sDefaultPool = new RILRequestPool();
 
     //***** Instance Variables
     @UnsupportedAppUsage
@@ -50,12 +51,21 @@ public class RILRequest {
     int mRequest;
     @UnsupportedAppUsage
     Message mResult;
-    RILRequest mNext;
+    // Pool this instance is returned to on release
+    RILRequestPool mPool;
     int mWakeLockType;
     WorkSource mWorkSource;
     String mClientId;
     // time in ms when RIL request was made
     long mStartTimeMs;
+    // elapsed realtime in ns when the request was sent to the radio
+    long mSentTimeNs;
+    // elapsed realtime in ns when the RadioResponse callback arrived, 0 if it has not
+    long mResponseTimeNs;
+    // Messages of identical requests coalesced into this one, see RIL#obtainCoalescedRequest
+    ArrayList<Message> mFollowers;
+    // Clients of the coalesced requests the wakelock of this one is also billed to
+    ArrayList<WorkSource> mFollowerWorkSources;
 
     public int getSerial() {
         return mSerial;
@@ -70,7 +80,7 @@ public class RILRequest {
     }
 
     /**
-     * Retrieves a new RILRequest instance from the pool.
+     * Retrieves a new RILRequest instance from the default pool.
      *
      * @param request RIL_REQUEST_*
      * @param result sent when operation completes
@@ -78,20 +88,24 @@ public class RILRequest {
      */
     @UnsupportedAppUsage
     private static RILRequest obtain(int request, Message result) {
-        RILRequest rr = null;
-
-        synchronized (sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
-            }
-        }
+        return obtain(sDefaultPool, request, result);
+    }
+
+    /**
+     * Retrieves a new RILRequest instance from the pool.
+     *
+     * @param pool the pool to take the instance from and return it to on release
+     * @param request RIL_REQUEST_*
+     * @param result sent when operation completes
+     * @return a RILRequest instance from the pool.
+     */
+    private static RILRequest obtain(RILRequestPool pool, int request, Message result) {
+        RILRequest rr = pool.acquire();
 
         if (rr == null) {
             rr = new RILRequest();
         }
+        rr.mPool = pool;
 
         // Increment serial number. Wrap to 0 when reaching Integer.MAX_VALUE.
         rr.mSerial = sNextSerial.getAndUpdate(n -> ((n + 1) % Integer.MAX_VALUE));
@@ -101,7 +115,10 @@ public class RILRequest {
 
         rr.mWakeLockType = RIL.INVALID_WAKELOCK;
         rr.mWorkSource = null;
+        rr.mClientId = null;
         rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        rr.mSentTimeNs = 0;
+        rr.mResponseTimeNs = 0;
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
         }
@@ -120,7 +137,21 @@ public class RILRequest {
      */
     // @VisibleForTesting
     public static RILRequest obtain(int request, Message result, WorkSource workSource) {
-        RILRequest rr = obtain(request, result);
+        return obtain(sDefaultPool, request, result, workSource);
+    }
+
+    /**
+     * Retrieves a new RILRequest instance from the given pool and sets the clientId
+     *
+     * @param pool the pool to take the instance from and return it to on release
+     * @param request RIL_REQUEST_*
+     * @param result sent when operation completes
+     * @param workSource WorkSource to track the client
+     * @return a RILRequest instance from the pool.
+     */
+    public static RILRequest obtain(RILRequestPool pool, int request, Message result,
+            WorkSource workSource) {
+        RILRequest rr = obtain(pool, request, result);
 
         if (workSource != null) {
             rr.mWorkSource = workSource;
@@ -137,15 +168,22 @@ public class RILRequest {
      */
     // @VisibleForTesting
     public String getWorkSourceClientId() {
-        if (mWorkSource == null || mWorkSource.isEmpty()) {
+        return getWorkSourceClientId(mWorkSource);
+    }
+
+    /**
+     * Generate a String client ID from the given WorkSource.
+     */
+    static String getWorkSourceClientId(WorkSource workSource) {
+        if (workSource == null || workSource.isEmpty()) {
             return null;
         }
 
-        if (mWorkSource.size() > 0) {
-            return mWorkSource.get(0) + ":" + mWorkSource.getName(0);
+        if (workSource.size() > 0) {
+            return workSource.get(0) + ":" + workSource.getName(0);
         }
 
-        final ArrayList<WorkChain> workChains = mWorkSource.getWorkChains();
+        final ArrayList<WorkChain> workChains = workSource.getWorkChains();
         if (workChains != null && !workChains.isEmpty()) {
             final WorkChain workChain = workChains.get(0);
             return workChain.getAttributionUid() + ":" + workChain.getTags()[0];
@@ -161,26 +199,117 @@ public class RILRequest {
      */
     @UnsupportedAppUsage
     void release() {
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                mNext = sPool;
-                sPool = this;
-                sPoolSize++;
-                mResult = null;
-                if (mWakeLockType != RIL.INVALID_WAKELOCK) {
-                    //This is OK for some wakelock types and not others
-                    if (mWakeLockType == RIL.FOR_WAKELOCK) {
-                        Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
-                                + serialString());
-                    }
-                }
+        if (mWakeLockType != RIL.INVALID_WAKELOCK) {
+            //This is OK for some wakelock types and not others
+            if (mWakeLockType == RIL.FOR_WAKELOCK) {
+                Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
+                        + serialString());
             }
         }
+
+        RILRequestPool pool = mPool;
+        // Drop every reference so that pooled instances do not keep clients alive
+        mPool = null;
+        mResult = null;
+        mWorkSource = null;
+        mClientId = null;
+        mWakeLockType = RIL.INVALID_WAKELOCK;
+        mStartTimeMs = 0;
+        if (mFollowers != null) {
+            mFollowers.clear();
+        }
+        if (mFollowerWorkSources != null) {
+            mFollowerWorkSources.clear();
+        }
+        if (pool != null) {
+            pool.offer(this);
+        }
     }
 
     private RILRequest() {
     }
 
+    /**
+     * Attach the result message of an identical request that will be answered by this one.
+     */
+    void addFollower(Message result) {
+        if (mFollowers == null) {
+            mFollowers = new ArrayList<>();
+        }
+        mFollowers.add(result);
+    }
+
+    /**
+     * Record the client of an identical request the wakelock of this one is also billed to.
+     */
+    void addFollowerWorkSource(WorkSource workSource) {
+        if (mFollowerWorkSources == null) {
+            mFollowerWorkSources = new ArrayList<>();
+        }
+        mFollowerWorkSources.add(workSource);
+    }
+
+    int getFollowerWorkSourceCount() {
+        return mFollowerWorkSources == null ? 0 : mFollowerWorkSources.size();
+    }
+
+    WorkSource getFollowerWorkSource(int index) {
+        return mFollowerWorkSources.get(index);
+    }
+
+    /**
+     * @return the number of coalesced requests attached to this one
+     */
+    int getFollowerCount() {
+        return mFollowers == null ? 0 : mFollowers.size();
+    }
+
+    /**
+     * Send the result of this request to the coalesced requests attached to it. Each of them
+     * gets its own copy, so that no recipient sees changes another one makes.
+     */
+    void notifyFollowers(Object ret, Throwable ex) {
+        if (mFollowers == null) return;
+        for (int i = 0; i < mFollowers.size(); i++) {
+            Message follower = mFollowers.get(i);
+            AsyncResult.forMessage(follower, copyCoalescedResult(ret), ex);
+            follower.sendToTarget();
+        }
+        mFollowers.clear();
+    }
+
+    /**
+     * @return a copy of the result of a coalescable request, see RIL#isCoalescableRequest
+     */
+    // @VisibleForTesting
+    static Object copyCoalescedResult(Object ret) {
+        if (ret instanceof SignalStrength) {
+            return new SignalStrength((SignalStrength) ret);
+        } else if (ret instanceof String[]) {
+            return ((String[]) ret).clone();
+        } else if (ret instanceof ArrayList) {
+            // Cell info lists; data call responses are immutable and only the list is copied
+            ArrayList<?> list = (ArrayList<?>) ret;
+            ArrayList<Object> copy = new ArrayList<>(list.size());
+            for (Object item : list) {
+                copy.add(item instanceof CellInfo ? copyCellInfo((CellInfo) item) : item);
+            }
+            return copy;
+        }
+        return ret;
+    }
+
+    private static CellInfo copyCellInfo(CellInfo cellInfo) {
+        Parcel p = Parcel.obtain();
+        try {
+            cellInfo.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            return CellInfo.CREATOR.createFromParcel(p);
+        } finally {
+            p.recycle();
+        }
+    }
+
     static void resetSerial() {
         // Use a non-negative random number so that on recovery we probably don't mix old requests
         // with new.
@@ -224,5 +353,6 @@ public class RILRequest {
             AsyncResult.forMessage(mResult, ret, ex);
             mResult.sendToTarget();
         }
+        notifyFollowers(ret, ex);
     }
 }
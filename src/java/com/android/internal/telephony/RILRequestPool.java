@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free pool of {@link RILRequest} objects.
+ *
+ * The number of idle objects retained follows the peak number of requests observed in flight,
+ * bounded by {@link #MIN_CAPACITY} and {@link #MAX_CAPACITY}, so that bursts such as SIM record
+ * loading are served from the pool instead of allocating. Idle objects live in a fixed array of
+ * slots that are claimed and filled with single atomic operations, which avoids both a global
+ * monitor and the ABA problem of a linked lock-free stack.
+ *
+ * {@hide}
+ */
+public class RILRequestPool {
+    @VisibleForTesting
+    static final int MIN_CAPACITY = 4;
+    @VisibleForTesting
+    static final int MAX_CAPACITY = 64;
+
+    private final AtomicReferenceArray<RILRequest> mSlots =
+            new AtomicReferenceArray<>(MAX_CAPACITY);
+    private final AtomicInteger mPooledCount = new AtomicInteger(0);
+    private final AtomicInteger mPeakInFlight = new AtomicInteger(0);
+
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicLong mDiscards = new AtomicLong(0);
+
+    /**
+     * Snapshot of the pool counters.
+     */
+    public static class Stats {
+        /** Number of obtain calls served from the pool */
+        public final long hits;
+        /** Number of obtain calls that had to allocate a new object */
+        public final long allocations;
+        /** Number of released objects dropped because the pool was full */
+        public final long discards;
+        /** Peak number of requests observed in flight */
+        public final int peakInFlight;
+        /** Current number of idle objects the pool will retain */
+        public final int capacity;
+        /** Current number of idle objects in the pool */
+        public final int pooled;
+
+        Stats(long hits, long allocations, long discards, int peakInFlight, int capacity,
+                int pooled) {
+            this.hits = hits;
+            this.allocations = allocations;
+            this.discards = discards;
+            this.peakInFlight = peakInFlight;
+            this.capacity = capacity;
+            this.pooled = pooled;
+        }
+
+        /** @return percentage of obtain calls served from the pool */
+        public int getHitRatePercent() {
+            long total = hits + allocations;
+            return total == 0 ? 0 : (int) (hits * 100 / total);
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " allocations=" + allocations + " hitRate="
+                    + getHitRatePercent() + "% discards=" + discards + " peakInFlight="
+                    + peakInFlight + " capacity=" + capacity + " pooled=" + pooled;
+        }
+    }
+
+    /**
+     * Take an idle object from the pool.
+     *
+     * @return a pooled object, or null if the pool is empty and the caller must allocate
+     */
+    RILRequest acquire() {
+        if (mPooledCount.get() > 0) {
+            // offer() fills the lowest free slot, but concurrent acquires can leave holes below
+            // an occupied slot, so scan every slot the pool may have filled. The capacity never
+            // shrinks, so no object lives above it.
+            int capacity = getCapacity();
+            for (int i = 0; i < capacity; i++) {
+                RILRequest rr = mSlots.get(i);
+                if (rr != null && mSlots.compareAndSet(i, rr, null)) {
+                    mPooledCount.decrementAndGet();
+                    mHits.incrementAndGet();
+                    return rr;
+                }
+            }
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Return an object to the pool. The caller must have reset it already.
+     *
+     * @return true if the object was retained
+     */
+    boolean offer(RILRequest rr) {
+        int capacity = getCapacity();
+        if (mPooledCount.get() < capacity) {
+            for (int i = 0; i < capacity; i++) {
+                if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, rr)) {
+                    mPooledCount.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        mDiscards.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record the number of requests currently in flight so the pool can size itself.
+     */
+    void onInFlight(int depth) {
+        int peak;
+        while (depth > (peak = mPeakInFlight.get())) {
+            if (mPeakInFlight.compareAndSet(peak, depth)) break;
+        }
+    }
+
+    /**
+     * @return the number of idle objects the pool currently retains at most
+     */
+    public int getCapacity() {
+        return Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, mPeakInFlight.get()));
+    }
+
+    /**
+     * @return a snapshot of the pool counters
+     */
+    public Stats getStats() {
+        return new Stats(mHits.get(), mMisses.get(), mDiscards.get(), mPeakInFlight.get(),
+                getCapacity(), mPooledCount.get());
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" RILRequestPool: " + getStats());
+    }
+}
@@ -184,6 +184,7 @@ public class RadioIndication extends IRadioIndication.Stub {
         if (mRil.mSmsOnSimRegistrant != null) {
             mRil.mSmsOnSimRegistrant.notifyRegistrant(new AsyncResult(null, recordNumber, null));
         }
+        mRil.mSmsOnSimRegistrants.notifyRegistrants(new AsyncResult(null, recordNumber, null));
     }
 
     public void onUssd(int indicationType, int ussdModeType, String msg) {
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free per-request-type latency recorder for solicited RIL requests.
+ *
+ * Each request type has one histogram per {@link #PHASE_RADIO phase}. Histograms use
+ * logarithmic buckets with four sub-buckets per power of two, so percentiles are reported with
+ * at most 25% relative error over a range of one microsecond to over an hour, in a fixed amount
+ * of memory and without locking on the record path.
+ *
+ * {@hide}
+ */
+public class RilLatencyRecorder {
+    /** From the request being sent to the radio until its RadioResponse callback arrives */
+    public static final int PHASE_RADIO = 0;
+    /** From the RadioResponse callback until the result Message has been sent to its target */
+    public static final int PHASE_RESPONSE = 1;
+    /** From the request being sent to the radio until the result Message has been sent */
+    public static final int PHASE_TOTAL = 2;
+    public static final int PHASE_COUNT = 3;
+
+    // Request ids above this (vendor extensions beyond the known range) are not recorded
+    private static final int MAX_REQUEST_ID = RIL.RIL_REQUEST_VENDOR_BASE + 200;
+
+    private final AtomicReferenceArray<Histogram[]> mHistograms =
+            new AtomicReferenceArray<>(MAX_REQUEST_ID + 1);
+
+    /**
+     * Record one sample.
+     *
+     * @param request RIL_REQUEST_*
+     * @param phase one of the PHASE_* constants
+     * @param micros the latency in microseconds
+     */
+    public void record(int request, int phase, long micros) {
+        if (request < 0 || request > MAX_REQUEST_ID) return;
+        Histogram[] histograms = mHistograms.get(request);
+        if (histograms == null) {
+            histograms = new Histogram[PHASE_COUNT];
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                histograms[i] = new Histogram();
+            }
+            if (!mHistograms.compareAndSet(request, null, histograms)) {
+                histograms = mHistograms.get(request);
+            }
+        }
+        histograms[phase].record(micros);
+    }
+
+    /**
+     * @return summaries of every request type and phase with at least one sample
+     */
+    public List<Summary> getSummaries() {
+        List<Summary> list = new ArrayList<>();
+        for (int request = 0; request <= MAX_REQUEST_ID; request++) {
+            Histogram[] histograms = mHistograms.get(request);
+            if (histograms == null) continue;
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                Summary summary = histograms[phase].summarize(request, phase);
+                if (summary.count > 0) {
+                    list.add(summary);
+                }
+            }
+        }
+        return list;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" RIL request latency (us):");
+        for (Summary summary : getSummaries()) {
+            pw.println("  " + RIL.requestToString(summary.request) + " " + summary);
+        }
+    }
+
+    /** @return the name of the given phase */
+    public static String phaseToString(int phase) {
+        switch (phase) {
+            case PHASE_RADIO: return "radio";
+            case PHASE_RESPONSE: return "response";
+            case PHASE_TOTAL: return "total";
+            default: return "unknown(" + phase + ")";
+        }
+    }
+
+    /**
+     * Latency percentiles of one request type and phase.
+     */
+    public static class Summary {
+        public final int request;
+        public final int phase;
+        public final long count;
+        public final long p50Micros;
+        public final long p90Micros;
+        public final long p99Micros;
+        public final long maxMicros;
+
+        Summary(int request, int phase, long count, long p50Micros, long p90Micros,
+                long p99Micros, long maxMicros) {
+            this.request = request;
+            this.phase = phase;
+            this.count = count;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return phaseToString(phase) + ": count=" + count + " p50=" + p50Micros + " p90="
+                    + p90Micros + " p99=" + p99Micros + " max=" + maxMicros;
+        }
+    }
+
+    /**
+     * Log-bucketed histogram.
+     */
+    @VisibleForTesting
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Values at or above 2^32 us (about 71 minutes) go into the last bucket
+        private static final int MAX_EXPONENT = 32;
+        @VisibleForTesting
+        static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong(0);
+        private final AtomicLong mMax = new AtomicLong(0);
+
+        @VisibleForTesting
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return value < 0 ? 0 : (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** @return the largest value that falls into the given bucket */
+        @VisibleForTesting
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            long base = 1L << exponent;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return base + (sub + 1) * width - 1;
+        }
+
+        void record(long value) {
+            mCounts.incrementAndGet(bucketOf(value));
+            mCount.incrementAndGet();
+            long max;
+            while (value > (max = mMax.get())) {
+                if (mMax.compareAndSet(max, value)) break;
+            }
+        }
+
+        Summary summarize(int request, int phase) {
+            // Counts may advance while we read them; use the sum of the buckets we actually see
+            int[] counts = new int[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = mCounts.get(i);
+                total += counts[i];
+            }
+            long max = mMax.get();
+            return new Summary(request, phase, total, percentile(counts, total, 50, max),
+                    percentile(counts, total, 90, max), percentile(counts, total, 99, max), max);
+        }
+
+        private static long percentile(int[] counts, long total, int percent, long max) {
+            if (total == 0) return 0;
+            long rank = (total * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
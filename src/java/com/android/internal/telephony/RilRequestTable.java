@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table of outstanding solicited {@link RILRequest}s keyed by serial number.
+ *
+ * The table is split into a fixed number of stripes, each of which is an open-addressed hash
+ * table with its own monitor. Serial numbers are handed out sequentially, so consecutive requests
+ * land in different stripes and binder threads delivering responses rarely contend with the
+ * thread sending requests. Lookups do not box the serial and steady-state insertion and removal
+ * do not allocate; a stripe only grows when its load factor is exceeded.
+ *
+ * {@hide}
+ */
+public class RilRequestTable {
+    private static final int STRIPE_COUNT = 8; // Must be a power of two
+    private static final int STRIPE_SHIFT = Integer.numberOfTrailingZeros(STRIPE_COUNT);
+    private static final int INITIAL_STRIPE_CAPACITY = 16; // Must be a power of two
+    private static final int EMPTY = -1;
+    private static final Comparator<RILRequest> BY_SERIAL =
+            (a, b) -> Integer.compare(a.mSerial, b.mSerial);
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    public RilRequestTable() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe(INITIAL_STRIPE_CAPACITY);
+        }
+    }
+
+    /**
+     * Add a request to the table, replacing any request already stored with the same serial.
+     *
+     * @param rr the request; its serial must be non-negative
+     */
+    public void put(RILRequest rr) {
+        int serial = rr.mSerial;
+        if (serial < 0) {
+            throw new IllegalArgumentException("Invalid serial " + serial);
+        }
+        Stripe stripe = stripeFor(serial);
+        synchronized (stripe) {
+            if (stripe.put(serial >>> STRIPE_SHIFT, rr) == null) {
+                mSize.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the request with the given serial, or null if there is none
+     */
+    public RILRequest get(int serial) {
+        if (serial < 0) return null;
+        Stripe stripe = stripeFor(serial);
+        synchronized (stripe) {
+            return stripe.get(serial >>> STRIPE_SHIFT);
+        }
+    }
+
+    /**
+     * Remove the request with the given serial.
+     *
+     * @return the removed request, or null if there was none
+     */
+    public RILRequest remove(int serial) {
+        if (serial < 0) return null;
+        Stripe stripe = stripeFor(serial);
+        RILRequest rr;
+        synchronized (stripe) {
+            rr = stripe.remove(serial >>> STRIPE_SHIFT);
+        }
+        if (rr != null) {
+            mSize.decrementAndGet();
+        }
+        return rr;
+    }
+
+    /**
+     * @return the number of outstanding requests
+     */
+    public int size() {
+        return mSize.get();
+    }
+
+    /**
+     * Return a point-in-time copy of the outstanding requests, ordered by serial. Each stripe is
+     * copied atomically, but requests added or removed concurrently in other stripes may or may
+     * not be included.
+     */
+    public List<RILRequest> snapshot() {
+        ArrayList<RILRequest> list = new ArrayList<>(Math.max(mSize.get(), 0));
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.copyTo(list, false);
+            }
+        }
+        list.sort(BY_SERIAL);
+        return list;
+    }
+
+    /**
+     * @return a {@link SparseArray} view of the table, keyed by serial
+     */
+    public SparseArray<RILRequest> asSparseArray() {
+        return new SparseArrayView();
+    }
+
+    /**
+     * Remove every request from the table.
+     *
+     * @return the requests that were removed
+     */
+    public List<RILRequest> removeAll() {
+        ArrayList<RILRequest> list = new ArrayList<>(Math.max(mSize.get(), 0));
+        for (Stripe stripe : mStripes) {
+            int removed;
+            synchronized (stripe) {
+                removed = stripe.copyTo(list, true);
+            }
+            mSize.addAndGet(-removed);
+        }
+        return list;
+    }
+
+    /**
+     * @return a value that changes whenever any stripe is modified
+     */
+    private long modCount() {
+        long modCount = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                modCount += stripe.mModCount;
+            }
+        }
+        return modCount;
+    }
+
+    private Stripe stripeFor(int serial) {
+        return mStripes[serial & (STRIPE_COUNT - 1)];
+    }
+
+    @VisibleForTesting
+    static int stripeCount() {
+        return STRIPE_COUNT;
+    }
+
+    /**
+     * Single open-addressed table with linear probing and backward-shift deletion, so that no
+     * tombstones accumulate. Callers must hold the stripe monitor.
+     */
+    private static final class Stripe {
+        private int[] mKeys;
+        private RILRequest[] mValues;
+        private int mCount;
+        // Bumped on every change, so views can tell when their copy is stale
+        int mModCount;
+
+        Stripe(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            mKeys = new int[capacity];
+            mValues = new RILRequest[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mKeys[i] = EMPTY;
+            }
+            mCount = 0;
+        }
+
+        private static int hash(int key) {
+            // Fibonacci hashing spreads the sequential keys across the table
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        RILRequest get(int key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int k = mKeys[i];
+                if (k == key) return mValues[i];
+                if (k == EMPTY) return null;
+            }
+        }
+
+        RILRequest put(int key, RILRequest value) {
+            if ((mCount + 1) * 2 > mKeys.length) {
+                rehash(mKeys.length * 2);
+            }
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int k = mKeys[i];
+                if (k == key) {
+                    RILRequest old = mValues[i];
+                    mValues[i] = value;
+                    mModCount++;
+                    return old;
+                }
+                if (k == EMPTY) {
+                    mKeys[i] = key;
+                    mValues[i] = value;
+                    mCount++;
+                    mModCount++;
+                    return null;
+                }
+            }
+        }
+
+        RILRequest remove(int key) {
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            while (true) {
+                int k = mKeys[i];
+                if (k == EMPTY) return null;
+                if (k == key) break;
+                i = (i + 1) & mask;
+            }
+            RILRequest old = mValues[i];
+            // Shift back any entries in the same probe run so lookups never see a hole
+            int hole = i;
+            int j = (i + 1) & mask;
+            while (mKeys[j] != EMPTY) {
+                int home = hash(mKeys[j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    mKeys[hole] = mKeys[j];
+                    mValues[hole] = mValues[j];
+                    hole = j;
+                }
+                j = (j + 1) & mask;
+            }
+            mKeys[hole] = EMPTY;
+            mValues[hole] = null;
+            mCount--;
+            mModCount++;
+            return old;
+        }
+
+        int copyTo(List<RILRequest> out, boolean clear) {
+            int copied = 0;
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] != EMPTY) {
+                    out.add(mValues[i]);
+                    copied++;
+                    if (clear) {
+                        mKeys[i] = EMPTY;
+                        mValues[i] = null;
+                    }
+                }
+            }
+            if (clear && copied > 0) {
+                mCount = 0;
+                mModCount++;
+            }
+            return copied;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldKeys = mKeys;
+            RILRequest[] oldValues = mValues;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * View of the table for code written against the SparseArray it replaced. Writes go straight
+     * to the table. Indexed access works on a copy ordered by serial, which is only retaken once
+     * the table has changed, so a size()/keyAt() loop sees one consistent list.
+     */
+    private final class SparseArrayView extends SparseArray<RILRequest> {
+        private List<RILRequest> mCopy;
+        private long mCopyModCount = -1;
+
+        SparseArrayView() {
+            super(0);
+        }
+
+        private synchronized List<RILRequest> copy() {
+            long modCount = modCount();
+            if (mCopy == null || modCount != mCopyModCount) {
+                mCopy = snapshot();
+                mCopyModCount = modCount;
+            }
+            return mCopy;
+        }
+
+        @Override
+        public int size() {
+            return copy().size();
+        }
+
+        @Override
+        public RILRequest get(int key) {
+            return RilRequestTable.this.get(key);
+        }
+
+        @Override
+        public RILRequest get(int key, RILRequest valueIfKeyNotFound) {
+            RILRequest rr = RilRequestTable.this.get(key);
+            return rr != null ? rr : valueIfKeyNotFound;
+        }
+
+        @Override
+        public int indexOfKey(int key) {
+            List<RILRequest> list = copy();
+            int lo = 0;
+            int hi = list.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int serial = list.get(mid).mSerial;
+                if (serial < key) {
+                    lo = mid + 1;
+                } else if (serial > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return ~lo;
+        }
+
+        @Override
+        public int indexOfValue(RILRequest value) {
+            return copy().indexOf(value);
+        }
+
+        @Override
+        public int keyAt(int index) {
+            return copy().get(index).mSerial;
+        }
+
+        @Override
+        public RILRequest valueAt(int index) {
+            return copy().get(index);
+        }
+
+        @Override
+        public void put(int key, RILRequest value) {
+            if (value == null) {
+                RilRequestTable.this.remove(key);
+                return;
+            }
+            if (value.mSerial != key) {
+                throw new IllegalArgumentException("Key " + key + " is not the serial of "
+                        + value.serialString());
+            }
+            RilRequestTable.this.put(value);
+        }
+
+        @Override
+        public void append(int key, RILRequest value) {
+            put(key, value);
+        }
+
+        @Override
+        public void setValueAt(int index, RILRequest value) {
+            put(keyAt(index), value);
+        }
+
+        @Override
+        public void delete(int key) {
+            RilRequestTable.this.remove(key);
+        }
+
+        @Override
+        public void remove(int key) {
+            RilRequestTable.this.remove(key);
+        }
+
+        @Override
+        public void removeAt(int index) {
+            RilRequestTable.this.remove(keyAt(index));
+        }
+
+        @Override
+        public void removeAtRange(int index, int size) {
+            List<RILRequest> list = copy();
+            int end = Math.min(list.size(), index + size);
+            for (int i = index; i < end; i++) {
+                RilRequestTable.this.remove(list.get(i).mSerial);
+            }
+        }
+
+        @Override
+        public void clear() {
+            removeAll();
+        }
+
+        @Override
+        public SparseArray<RILRequest> clone() {
+            List<RILRequest> list = copy();
+            SparseArray<RILRequest> clone = new SparseArray<>(list.size());
+            for (RILRequest rr : list) {
+                clone.append(rr.mSerial, rr);
+            }
+            return clone;
+        }
+
+        @Override
+        public String toString() {
+            return clone().toString();
+        }
+    }
+}
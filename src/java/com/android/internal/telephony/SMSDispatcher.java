@@ -56,6 +56,7 @@ import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Telephony;
@@ -90,6 +91,8 @@ import com.android.internal.telephony.cdma.sms.UserData;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -178,6 +181,12 @@ public abstract class SMSDispatcher extends Handler {
     /** Number of outgoing SmsTrackers waiting for user confirmation. */
     private int mPendingTrackerCount;
 
+    /** Default number of messages handed to the radio at a time. */
+    private static final int SEND_WINDOW_DEFAULT = 8;
+
+    /** Outgoing messages waiting for earlier ones to be sent. */
+    protected final SmsSendQueue mSendQueue;
+
     /* Flags indicating whether the current device allows sms service */
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
@@ -207,6 +216,8 @@ public abstract class SMSDispatcher extends Handler {
                 com.android.internal.R.bool.config_sms_capable);
         mSmsSendDisabled = !mTelephonyManager.getSmsSendCapableForPhone(
                 mPhone.getPhoneId(), mSmsCapable);
+        mSendQueue = new SmsSendQueue(getClass().getSimpleName(), this, this::sendSms,
+                SystemProperties.getInt("persist.radio.sms_send_window", SEND_WINDOW_DEFAULT));
         Rlog.d(TAG, "SMSDispatcher: ctor mSmsCapable=" + mSmsCapable + " format=" + getFormat()
                 + " mSmsSendDisabled=" + mSmsSendDisabled);
     }
@@ -268,8 +279,14 @@ public abstract class SMSDispatcher extends Handler {
      *       will be dropped.
      */
     /** Sent messages awaiting a delivery status report. */
+    protected final DeliveryPendingList mDeliveryPendingList = new DeliveryPendingList();
+
+    /**
+     * The trackers of {@link #mDeliveryPendingList} as a plain list, oldest first. A view of
+     * mDeliveryPendingList; trackers removed through it are removed from mDeliveryPendingList.
+     */
     @UnsupportedAppUsage
-    protected final ArrayList<SmsTracker> deliveryPendingList = new ArrayList<SmsTracker>();
+    protected final ArrayList<SmsTracker> deliveryPendingList = mDeliveryPendingList.asList();
 
     /**
      * Handles events coming from the phone stack. Overridden from handler.
@@ -312,7 +329,7 @@ public abstract class SMSDispatcher extends Handler {
                 } else {
                     tracker.mExpectMore = false;
                 }
-                sendSms(tracker);
+                mSendQueue.send(tracker);
             }
             mPendingTrackerCount--;
             break;
@@ -676,7 +693,7 @@ public abstract class SMSDispatcher extends Handler {
 
             if (tracker.mDeliveryIntent != null) {
                 // Expecting a status report.  Add it to the list.
-                deliveryPendingList.add(tracker);
+                mDeliveryPendingList.add(tracker);
             }
             tracker.onSent(mContext);
             mPhone.notifySmsSent(tracker.mDestAddress);
@@ -1011,6 +1028,8 @@ public abstract class SMSDispatcher extends Handler {
         // States to track at the message level (for all parts)
         final AtomicInteger unsentPartCount = new AtomicInteger(msgCount);
         final AtomicBoolean anyPartFailed = new AtomicBoolean(false);
+        final SmsTracker.MultipartMessage multipartMessage =
+                new SmsTracker.MultipartMessage(msgCount);
 
         for (int i = 0; i < msgCount; i++) {
             SmsHeader.ConcatRef concatRef = new SmsHeader.ConcatRef();
@@ -1053,6 +1072,7 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
             trackers[i].mPersistMessage = persistMessage;
+            trackers[i].mMultipartMessage = multipartMessage;
         }
 
         String carrierPackage = getCarrierAppPackageName();
@@ -1196,7 +1216,7 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            sendSms(tracker);
+            mSendQueue.send(tracker);
         }
 
         if (PhoneNumberUtils.isLocalEmergencyNumber(mContext, tracker.mDestAddress)) {
@@ -1521,6 +1541,8 @@ public abstract class SMSDispatcher extends Handler {
         // Reference to states of a multipart message that this part belongs to
         private AtomicInteger mUnsentPartCount;
         private AtomicBoolean mAnyPartFailed;
+        // Shared by the trackers of all parts of a multipart message, null for a single part
+        private MultipartMessage mMultipartMessage;
         // The full message content of a single part message
         // or a multipart message that this part belongs to
         private String mFullMessageText;
@@ -1538,6 +1560,9 @@ public abstract class SMSDispatcher extends Handler {
 
         private final boolean mIsForVvm;
 
+        // Send queue this message takes up a slot in until it was sent or failed
+        private volatile SmsSendQueue mSendQueue;
+
         private SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
                 PendingIntent deliveryIntent, PackageInfo appInfo, String destAddr, String format,
                 AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
@@ -1569,6 +1594,41 @@ public abstract class SMSDispatcher extends Handler {
             mIsForVvm = isForVvm;
         }
 
+        /**
+         * Identifies a multipart message. One instance is shared by the trackers of all its
+         * parts and compared by identity.
+         */
+        static final class MultipartMessage {
+            final int mPartCount;
+
+            MultipartMessage(int partCount) {
+                mPartCount = partCount;
+            }
+        }
+
+        /**
+         * @return the multipart message this tracker is a part of, or null if it is a single
+         *         part message
+         */
+        MultipartMessage getMultipartMessage() {
+            return mMultipartMessage;
+        }
+
+        /**
+         * Set the queue to tell once the message was sent or failed for good.
+         */
+        void setSendQueue(SmsSendQueue sendQueue) {
+            mSendQueue = sendQueue;
+        }
+
+        private void notifySendQueue(boolean success) {
+            SmsSendQueue sendQueue = mSendQueue;
+            if (sendQueue != null) {
+                mSendQueue = null;
+                sendQueue.onSendFinished(this, success);
+            }
+        }
+
         /**
          * Returns whether this tracker holds a multi-part SMS.
          * @return true if the tracker holds a multi-part SMS; false otherwise
@@ -1742,6 +1802,7 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            notifySendQueue(false);
         }
 
         /**
@@ -1780,6 +1841,7 @@ public abstract class SMSDispatcher extends Handler {
                     Rlog.e(TAG, "Failed to send result");
                 }
             }
+            notifySendQueue(true);
         }
     }
 
@@ -1960,6 +2022,12 @@ public abstract class SMSDispatcher extends Handler {
         }
     }
 
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(getClass().getSimpleName() + ":");
+        mDeliveryPendingList.dump(pw);
+        mSendQueue.dump(pw);
+    }
+
     @UnsupportedAppUsage
     private String getMultipartMessageText(ArrayList<String> parts) {
         final StringBuilder sb = new StringBuilder();
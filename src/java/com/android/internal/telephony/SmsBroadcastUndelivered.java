@@ -18,13 +18,17 @@ package com.android.internal.telephony;
 
 import android.annotation.UnsupportedAppUsage;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.os.PersistableBundle;
+import android.os.RemoteException;
 import android.os.UserManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.Rlog;
@@ -34,9 +38,14 @@ import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Called when the credential-encrypted storage is unlocked, collecting all acknowledged messages
@@ -87,8 +96,14 @@ public class SmsBroadcastUndelivered {
             }};
 
 
+    /** Maximum number of incomplete messages deleted with one batch of operations. */
+    private static final int DELETE_BATCH_SIZE = 50;
+
     private static SmsBroadcastUndelivered instance;
 
+    /** Statistics of the last completed scan of the raw table, or null. */
+    private static volatile ScanStats sLastScanStats;
+
     /** Content resolver to use to access raw table from SmsProvider. */
     private final ContentResolver mResolver;
 
@@ -164,19 +179,22 @@ public class SmsBroadcastUndelivered {
 
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     *
+     * The table is read with one query, which SmsProvider serves without paging arguments. The
+     * cursor is filled a window at a time, so messages found early are handed to the inbound SMS
+     * handlers while the rest of the table is still being read.
      */
     static void scanRawTable(Context context, CdmaInboundSmsHandler cdmaInboundSmsHandler,
             GsmInboundSmsHandler gsmInboundSmsHandler, long oldMessageTimestamp) {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
-        long startTime = System.nanoTime();
+        ScanStats stats = new ScanStats();
         ContentResolver contentResolver = context.getContentResolver();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
-        Cursor cursor = null;
         try {
             // query only non-deleted ones
-            cursor = contentResolver.query(InboundSmsHandler.sRawUri,
+            Cursor cursor = contentResolver.query(InboundSmsHandler.sRawUri,
                     PDU_PENDING_MESSAGE_PROJECTION, "deleted = 0", null, null);
             if (cursor == null) {
                 Rlog.e(TAG, "error getting pending message cursor");
@@ -184,53 +202,100 @@ public class SmsBroadcastUndelivered {
             }
 
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = TelephonyComponentFactory.getInstance()
-                            .inject(InboundSmsTracker.class.getName()).makeInboundSmsTracker(cursor,
-                            isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
-                }
+            try {
+                while (cursor.moveToNext()) {
+                    stats.mRowsScanned++;
+                    InboundSmsTracker tracker;
+                    try {
+                        tracker = TelephonyComponentFactory.getInstance()
+                                .inject(InboundSmsTracker.class.getName())
+                                .makeInboundSmsTracker(cursor, isCurrentFormat3gpp2);
+                    } catch (IllegalArgumentException e) {
+                        Rlog.e(TAG, "error loading SmsTracker: " + e);
+                        continue;
+                    }
 
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() < oldMessageTimestamp) {
-                            // older than oldMessageTimestamp; delete if we don't find all the
-                            // segments
-                            oldMultiPartMessages.add(reference);
-                        }
+                    if (tracker.getMessageCount() == 1) {
+                        // deliver single-part message
+                        broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler, stats);
                     } else {
-                        int newCount = receivedCount + 1;
+                        SmsReferenceKey reference = new SmsReferenceKey(tracker);
+                        Integer receivedCount = multiPartReceivedCount.get(reference);
+                        int newCount = receivedCount == null ? 1 : receivedCount + 1;
                         if (newCount == tracker.getMessageCount()) {
                             // looks like we've got all the pieces; send a single tracker
                             // to state machine which will find the other pieces to broadcast
                             if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
+                            broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler,
+                                    stats);
                             // don't delete this old message until after we broadcast it
                             oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
+                        } else if (receivedCount == null
+                                && tracker.getTimestamp() < oldMessageTimestamp) {
+                            // first segment seen and older than oldMessageTimestamp; delete if we
+                            // don't find all the segments
+                            oldMultiPartMessages.add(reference);
                         }
+                        multiPartReceivedCount.put(reference, newCount);
                     }
                 }
+            } finally {
+                cursor.close();
             }
+
             // Retrieve the phone id, required for metrics
             int phoneId = getPhoneId(gsmInboundSmsHandler, cdmaInboundSmsHandler);
 
             // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
+            deleteOldMultiPartMessages(contentResolver, oldMultiPartMessages, phoneId, stats);
+        } catch (SQLException e) {
+            Rlog.e(TAG, "error reading pending SMS messages", e);
+        } finally {
+            stats.finish();
+            sLastScanStats = stats;
+            if (DBG) Rlog.d(TAG, "finished scanning raw table: " + stats);
+        }
+    }
+
+    /**
+     * Permanently delete the segments of old incomplete messages. The deletes of
+     * {@link #DELETE_BATCH_SIZE} messages are applied as one batch, which still reports the rows
+     * deleted for each message.
+     */
+    private static void deleteOldMultiPartMessages(ContentResolver contentResolver,
+            Set<SmsReferenceKey> messages, int phoneId, ScanStats stats) {
+        List<SmsReferenceKey> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+        Iterator<SmsReferenceKey> it = messages.iterator();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() < DELETE_BATCH_SIZE && it.hasNext()) {
+                continue;
+            }
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+            for (SmsReferenceKey message : batch) {
                 // delete permanently
-                int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
-                        message.getDeleteWhere(), message.getDeleteWhereArgs());
+                operations.add(ContentProviderOperation
+                        .newDelete(InboundSmsHandler.sRawUriPermanentDelete)
+                        .withSelection(message.getDeleteWhere(), message.getDeleteWhereArgs())
+                        .build());
+            }
+            ContentProviderResult[] results;
+            try {
+                results = contentResolver.applyBatch(
+                        InboundSmsHandler.sRawUriPermanentDelete.getAuthority(), operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Rlog.e(TAG, "error deleting old multi-part messages", e);
+                batch.clear();
+                continue;
+            }
+            // Segments held in memory for these messages are gone from the table
+            InboundSmsReassembler.onRawTableRowsDeleted();
+
+            TelephonyMetrics metrics = TelephonyMetrics.getInstance();
+            for (int i = 0; i < batch.size(); i++) {
+                SmsReferenceKey message = batch.get(i);
+                int rows = results[i].count == null ? 0 : results[i].count;
                 if (rows == 0) {
                     Rlog.e(TAG, "No rows were deleted from raw table!");
                 } else if (DBG) {
@@ -239,19 +304,12 @@ public class SmsBroadcastUndelivered {
                 }
                 // Update metrics with dropped SMS
                 if (rows > 0) {
-                    TelephonyMetrics metrics = TelephonyMetrics.getInstance();
+                    stats.mSegmentsDeleted += rows;
                     metrics.writeDroppedIncomingMultipartSms(phoneId, message.mFormat, rows,
                             message.mMessageCount);
                 }
             }
-        } catch (SQLException e) {
-            Rlog.e(TAG, "error reading pending SMS messages", e);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+            batch.clear();
         }
     }
 
@@ -274,7 +332,7 @@ public class SmsBroadcastUndelivered {
      */
     private static void broadcastSms(InboundSmsTracker tracker,
             CdmaInboundSmsHandler cdmaInboundSmsHandler,
-            GsmInboundSmsHandler gsmInboundSmsHandler) {
+            GsmInboundSmsHandler gsmInboundSmsHandler, ScanStats stats) {
         InboundSmsHandler handler;
         if (tracker.is3gpp2()) {
             handler = cdmaInboundSmsHandler;
@@ -283,6 +341,7 @@ public class SmsBroadcastUndelivered {
         }
         if (handler != null) {
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
+            stats.onMessageDispatched();
         } else {
             Rlog.e(TAG, "null handler for " + tracker.getFormat() + " format, can't deliver.");
         }
@@ -302,6 +361,44 @@ public class SmsBroadcastUndelivered {
         }
     }
 
+    static void dump(PrintWriter pw) {
+        ScanStats stats = sLastScanStats;
+        pw.println("SmsBroadcastUndelivered: last raw table scan "
+                + (stats == null ? "none" : stats.toString()));
+    }
+
+    /**
+     * Duration and throughput of one scan of the raw table.
+     */
+    private static class ScanStats {
+        final long mStartTimeMillis = System.currentTimeMillis();
+        final long mStartNanos = System.nanoTime();
+        long mFirstDispatchMillis = -1;
+        long mDurationMillis;
+        int mRowsScanned;
+        int mMessagesDispatched;
+        int mSegmentsDeleted;
+
+        void onMessageDispatched() {
+            if (mMessagesDispatched++ == 0) {
+                mFirstDispatchMillis = (System.nanoTime() - mStartNanos) / 1000000;
+            }
+        }
+
+        void finish() {
+            mDurationMillis = (System.nanoTime() - mStartNanos) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            long rowsPerSecond = mRowsScanned * 1000L / Math.max(1, mDurationMillis);
+            return "at " + mStartTimeMillis + ": " + mRowsScanned + " rows in " + mDurationMillis
+                    + " ms (" + rowsPerSecond + " rows/s), " + mMessagesDispatched
+                    + " messages dispatched, first after " + mFirstDispatchMillis + " ms, "
+                    + mSegmentsDeleted + " expired segments deleted";
+        }
+    }
+
     /**
      * Used as the HashMap key for matching concatenated message segments.
      */
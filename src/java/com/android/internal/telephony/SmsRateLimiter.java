@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-application limit on the number of SMS sent in a sliding period, for
+ * {@link SmsUsageMonitor}.
+ *
+ * The send times of each app are kept in a ring buffer holding at most the allowed number of
+ * messages, so a check only drops the times that left the period and adds the new ones. Each
+ * app is locked separately, so apps sending at the same time do not wait for each other. Apps
+ * that sent nothing within the period are forgotten at most once per period.
+ */
+class SmsRateLimiter {
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** Send times of one app, oldest first. */
+    private static final class SendTimes {
+        private long[] mTimes;
+        private int mHead;
+        private int mSize;
+        // Set once the app was forgotten; a caller holding it must look it up again
+        private boolean mRemoved;
+
+        SendTimes(int maxAllowed) {
+            mTimes = new long[Math.max(0, Math.min(maxAllowed, INITIAL_CAPACITY))];
+        }
+
+        void removeBefore(long beginCheckPeriod) {
+            while (mSize > 0 && mTimes[mHead] < beginCheckPeriod) {
+                mHead = (mHead + 1) % mTimes.length;
+                mSize--;
+            }
+        }
+
+        void add(long time, int count, int maxAllowed) {
+            if (mSize + count > mTimes.length) {
+                grow(Math.min(Math.max(mTimes.length * 2, mSize + count), maxAllowed));
+            }
+            for (int i = 0; i < count; i++) {
+                mTimes[(mHead + mSize) % mTimes.length] = time;
+                mSize++;
+            }
+        }
+
+        boolean isIdle(long beginCheckPeriod) {
+            return mSize == 0 || mTimes[(mHead + mSize - 1) % mTimes.length] < beginCheckPeriod;
+        }
+
+        private void grow(int capacity) {
+            long[] times = new long[capacity];
+            for (int i = 0; i < mSize; i++) {
+                times[i] = mTimes[(mHead + i) % mTimes.length];
+            }
+            mTimes = times;
+            mHead = 0;
+        }
+    }
+
+    private final int mCheckPeriod;
+    private final int mMaxAllowed;
+    private final ConcurrentHashMap<String, SendTimes> mSendTimes = new ConcurrentHashMap<>();
+    private volatile long mLastSweepTime;
+
+    /**
+     * @param checkPeriod the period in milliseconds over which messages are counted
+     * @param maxAllowed the number of messages an app may send within the period
+     */
+    SmsRateLimiter(int checkPeriod, int maxAllowed) {
+        mCheckPeriod = checkPeriod;
+        mMaxAllowed = maxAllowed;
+    }
+
+    /**
+     * Record that an app sends messages, if it is allowed to.
+     *
+     * @param appName the package name of the app
+     * @param smsWaiting the number of messages the app wants to send
+     * @param now the current time in milliseconds
+     * @return true if the app may send the messages; they are then counted against its limit
+     */
+    boolean check(String appName, int smsWaiting, long now) {
+        long beginCheckPeriod = now - mCheckPeriod;
+        if (now - mLastSweepTime >= mCheckPeriod) {
+            mLastSweepTime = now;
+            removeIdle(beginCheckPeriod);
+        }
+
+        while (true) {
+            SendTimes times = mSendTimes.computeIfAbsent(appName, k -> new SendTimes(mMaxAllowed));
+            synchronized (times) {
+                if (times.mRemoved) continue;
+                times.removeBefore(beginCheckPeriod);
+                if (times.mSize + smsWaiting <= mMaxAllowed) {
+                    times.add(now, smsWaiting, mMaxAllowed);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /** Forget all apps. */
+    void clear() {
+        mSendTimes.clear();
+    }
+
+    /**
+     * @return the number of apps with messages counted against their limit
+     */
+    int size() {
+        return mSendTimes.size();
+    }
+
+    /**
+     * Forget the apps that sent nothing within the period. This happens when an SMS app is used
+     * to send messages and then uninstalled.
+     */
+    private void removeIdle(long beginCheckPeriod) {
+        Iterator<Map.Entry<String, SendTimes>> it = mSendTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            SendTimes times = it.next().getValue();
+            synchronized (times) {
+                if (times.isIdle(beginCheckPeriod)) {
+                    times.mRemoved = true;
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.telephony.SmsManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queue of outgoing SMS of one transport, with a window of messages in flight.
+ *
+ * At most {@link #getWindow()} messages are handed to the transport at a time; the others wait
+ * here instead of being rejected, and are sent as earlier ones complete. Waiting messages are
+ * taken from the calling packages in turn, so one package sending a burst does not hold up the
+ * messages of the others. A message counts as in flight from the time it is sent until its
+ * tracker reports it sent or failed, including any retries.
+ *
+ * Thread safe. Messages are sent on the calling thread when the window has room, otherwise on
+ * the handler thread of the dispatcher.
+ */
+public class SmsSendQueue {
+    private static final String TAG = "SmsSendQueue";
+
+    /** Messages waiting beyond this many are failed with RESULT_ERROR_LIMIT_EXCEEDED. */
+    @VisibleForTesting
+    static final int MAX_QUEUED = 500;
+
+    /**
+     * A message in flight for longer than this is given up on and no longer takes up the window,
+     * so a lost response cannot stall the queue.
+     */
+    @VisibleForTesting
+    static final long SEND_TIMEOUT_MS = 3 * 60 * 1000;
+
+    /**
+     * Statistics are kept for this many packages, the ones that sent least recently are dropped
+     * first.
+     */
+    @VisibleForTesting
+    static final int MAX_PACKAGE_STATS = 50;
+
+    /**
+     * Sends a message over the transport.
+     */
+    public interface Sender {
+        /** Send the message; the tracker reports the result. */
+        void sendSms(SmsTracker tracker);
+    }
+
+    private static class Entry {
+        final SmsTracker tracker;
+        final String packageName;
+        final long queuedTime;
+        long sendTime;
+
+        Entry(SmsTracker tracker, String packageName, long queuedTime) {
+            this.tracker = tracker;
+            this.packageName = packageName;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    /**
+     * Throughput and latency of the messages of one package.
+     */
+    private static class PackageStats {
+        long sent;
+        long failed;
+        long totalQueueMs;
+        long totalSendMs;
+        long maxSendMs;
+        long firstQueuedTime;
+        long lastFinishedTime;
+
+        @Override
+        public String toString() {
+            long finished = sent + failed;
+            long elapsedMs = Math.max(1, lastFinishedTime - firstQueuedTime);
+            return "sent=" + sent + " failed=" + failed
+                    + " avgQueueMs=" + (finished == 0 ? 0 : totalQueueMs / finished)
+                    + " avgSendMs=" + (finished == 0 ? 0 : totalSendMs / finished)
+                    + " maxSendMs=" + maxSendMs
+                    + " perMinute=" + (finished * 60 * 1000 / elapsedMs);
+        }
+    }
+
+    private final String mName;
+    private final Handler mHandler;
+    private final Sender mSender;
+    private int mWindow;
+
+    // Waiting messages of each package; packages take turns in iteration order
+    private final LinkedHashMap<String, ArrayDeque<Entry>> mQueues = new LinkedHashMap<>();
+    private int mQueuedCount;
+    private final IdentityHashMap<SmsTracker, Entry> mInFlight = new IdentityHashMap<>();
+    // In access order, so the package that sent least recently is dropped first
+    private final LinkedHashMap<String, PackageStats> mStats =
+            new LinkedHashMap<String, PackageStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PackageStats> eldest) {
+                    return size() > MAX_PACKAGE_STATS;
+                }
+            };
+    private long mRejected;
+    private long mTimedOut;
+
+    private final Runnable mSendQueued = this::sendQueued;
+
+    /**
+     * @param name the transport, for logging
+     * @param handler the handler to send queued messages on
+     * @param sender sends messages over the transport
+     * @param window the maximum number of messages in flight
+     */
+    public SmsSendQueue(String name, Handler handler, Sender sender, int window) {
+        mName = name;
+        mHandler = handler;
+        mSender = sender;
+        mWindow = Math.max(1, window);
+    }
+
+    /**
+     * Send the message now if the window has room, or when it gets room.
+     */
+    public void send(SmsTracker tracker) {
+        String packageName = tracker.getAppPackageName();
+        if (packageName == null) packageName = "";
+        long now = SystemClock.elapsedRealtime();
+        Entry entry = new Entry(tracker, packageName, now);
+        synchronized (this) {
+            getStats(packageName, now);
+
+            if (mQueuedCount == 0 && pruneInFlightLocked(now) < mWindow) {
+                startLocked(entry, now);
+            } else if (mQueuedCount >= MAX_QUEUED) {
+                mRejected++;
+                entry = null;
+            } else {
+                ArrayDeque<Entry> queue = mQueues.get(packageName);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    mQueues.put(packageName, queue);
+                }
+                queue.add(entry);
+                mQueuedCount++;
+                // Nothing may complete while every slot is taken by a lost response
+                mHandler.removeCallbacks(mSendQueued);
+                mHandler.postDelayed(mSendQueued, SEND_TIMEOUT_MS);
+                return;
+            }
+        }
+        if (entry == null) {
+            Rlog.e(TAG, mName + ": send queue full, rejecting message from " + packageName);
+            tracker.onFailed(tracker.getContext(), SmsManager.RESULT_ERROR_LIMIT_EXCEEDED,
+                    0/*errorCode*/);
+        } else {
+            mSender.sendSms(tracker);
+        }
+    }
+
+    /**
+     * Called by the tracker once the message was sent or failed for good.
+     */
+    void onSendFinished(SmsTracker tracker, boolean success) {
+        synchronized (this) {
+            Entry entry = mInFlight.remove(tracker);
+            if (entry == null) return;
+            long now = SystemClock.elapsedRealtime();
+            PackageStats stats = getStats(entry.packageName, now);
+            if (success) {
+                stats.sent++;
+            } else {
+                stats.failed++;
+            }
+            long sendMs = now - entry.sendTime;
+            stats.totalQueueMs += entry.sendTime - entry.queuedTime;
+            stats.totalSendMs += sendMs;
+            stats.maxSendMs = Math.max(stats.maxSendMs, sendMs);
+            stats.lastFinishedTime = now;
+
+            if (mQueuedCount == 0) return;
+        }
+        mHandler.post(mSendQueued);
+    }
+
+    /**
+     * @return the maximum number of messages in flight
+     */
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Change the maximum number of messages in flight.
+     */
+    public void setWindow(int window) {
+        synchronized (this) {
+            mWindow = Math.max(1, window);
+            if (mQueuedCount == 0) return;
+        }
+        mHandler.post(mSendQueued);
+    }
+
+    /**
+     * @return the number of messages waiting for room in the window
+     */
+    public synchronized int getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * @return the number of messages in flight
+     */
+    public synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * @return the number of packages statistics are kept for
+     */
+    @VisibleForTesting
+    synchronized int getPackageStatsCount() {
+        return mStats.size();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(TAG + " " + mName + ": window=" + mWindow + " inFlight=" + mInFlight.size()
+                + " queued=" + mQueuedCount + " rejected=" + mRejected
+                + " timedOut=" + mTimedOut);
+        for (Map.Entry<String, PackageStats> stats : mStats.entrySet()) {
+            pw.println("  " + stats.getKey() + ": " + stats.getValue());
+        }
+    }
+
+    private void sendQueued() {
+        List<SmsTracker> toSend = new ArrayList<>();
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            int active = pruneInFlightLocked(now);
+            while (mQueuedCount > 0 && active < mWindow) {
+                // Take the next message of the package whose turn it is, then move the package
+                // to the back of the line
+                Iterator<Map.Entry<String, ArrayDeque<Entry>>> it = mQueues.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Entry>> next = it.next();
+                it.remove();
+                ArrayDeque<Entry> queue = next.getValue();
+                Entry entry = queue.poll();
+                if (!queue.isEmpty()) {
+                    mQueues.put(next.getKey(), queue);
+                }
+                mQueuedCount--;
+                startLocked(entry, now);
+                active++;
+                // Let the radio keep the link up for the messages that follow
+                if (mQueuedCount > 0) {
+                    entry.tracker.mExpectMore = true;
+                }
+                toSend.add(entry.tracker);
+            }
+            if (mQueuedCount > 0) {
+                mHandler.removeCallbacks(mSendQueued);
+                mHandler.postDelayed(mSendQueued, SEND_TIMEOUT_MS);
+            }
+        }
+        for (SmsTracker tracker : toSend) {
+            mSender.sendSms(tracker);
+        }
+    }
+
+    private void startLocked(Entry entry, long now) {
+        entry.sendTime = now;
+        mInFlight.put(entry.tracker, entry);
+        entry.tracker.setSendQueue(this);
+    }
+
+    /**
+     * Drop the messages in flight for too long.
+     * @return the number of messages still in flight
+     */
+    private int pruneInFlightLocked(long now) {
+        Iterator<Entry> it = mInFlight.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.sendTime >= SEND_TIMEOUT_MS) {
+                Rlog.w(TAG, mName + ": no result for message from " + entry.packageName);
+                it.remove();
+                mTimedOut++;
+            }
+        }
+        return mInFlight.size();
+    }
+
+    /**
+     * @return the statistics of the package, started at the given time if it has none
+     */
+    private PackageStats getStats(String packageName, long now) {
+        PackageStats stats = mStats.get(packageName);
+        if (stats == null) {
+            stats = new PackageStats();
+            stats.firstQueuedTime = now;
+            mStats.put(packageName, stats);
+        }
+        return stats;
+    }
+}
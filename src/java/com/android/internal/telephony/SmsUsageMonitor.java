@@ -24,6 +24,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.res.XmlResourceParser;
 import android.database.ContentObserver;
 import android.os.Binder;
+import android.os.FileObserver;
 import android.os.Handler;
 import android.os.Process;
 import android.os.RemoteException;
@@ -35,6 +36,7 @@ import android.telephony.SmsManager;
 import android.util.AtomicFile;
 import android.util.Xml;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
 
@@ -49,12 +51,12 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Implement the per-application based SMS control, which limits the number of
@@ -98,17 +100,17 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Messages sent by each app in the checking period. */
+    private final SmsRateLimiter mRateLimiter;
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
 
-    /** Country code for the cached short code pattern matcher. */
-    private String mCurrentCountry;
+    /** Short code pattern matchers of all countries, or null until they are (re)loaded. */
+    private volatile HashMap<String, ShortCodePatternMatcher> mPatternMatchers;
 
-    /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
-    private ShortCodePatternMatcher mCurrentPatternMatcher;
+    /** Pattern matcher of the last country checked, used when the country is unknown. */
+    private volatile ShortCodePatternMatcher mCurrentPatternMatcher;
 
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
@@ -117,10 +119,19 @@ public class SmsUsageMonitor {
     private final SettingsObserverHandler mSettingsObserverHandler;
 
     /** File holding the patterns */
-    private final File mPatternFile = new File(SHORT_CODE_PATH);
+    private final File mPatternFile;
 
-    /** Last modified time for pattern file */
-    private long mPatternFileLastModified = 0;
+    /** Reloads the patterns when the pattern file is written, added or removed. */
+    private final FileObserver mPatternFileObserver;
+
+    /**
+     * Watches for the directory of the pattern file to be created, which it may not be until
+     * the patterns are first updated, and then watches the pattern file again.
+     */
+    private final FileObserver mPatternDirObserver;
+
+    /** Set by {@link #dispose}, guarded by {@link #mPatternFileObserver}. */
+    private boolean mDisposed;
 
     /** Directory for per-app SMS permission XML file. */
     private static final String SMS_POLICY_FILE_DIRECTORY = "/data/misc/sms";
@@ -169,41 +180,121 @@ public class SmsUsageMonitor {
 
     /**
      * SMS short code regex pattern matcher for a specific country.
+     *
+     * The category patterns are combined into one pattern with a named group for each, in the
+     * order they take precedence, so a number is matched once for all categories. The combined
+     * pattern is compiled the first time the country is checked. Patterns that cannot be
+     * combined, because they use backreferences, whose numbers would shift, or group names of
+     * their own, are matched one category at a time instead.
      */
-    private static final class ShortCodePatternMatcher {
-        private final Pattern mShortCodePattern;
-        private final Pattern mPremiumShortCodePattern;
-        private final Pattern mFreeShortCodePattern;
-        private final Pattern mStandardShortCodePattern;
-
+    @VisibleForTesting
+    static final class ShortCodePatternMatcher {
+        private static final String[] GROUPS = {"free", "standard", "premium", "shortcode"};
+        private static final int[] CATEGORIES = {
+                SmsManager.SMS_CATEGORY_FREE_SHORT_CODE,
+                SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE,
+                SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE,
+                SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+
+        // Category regexes, in the order of GROUPS
+        private final String[] mRegexes;
+        private volatile Pattern mPattern;
+        // Category patterns in the order of GROUPS, used when they could not be combined
+        private volatile Pattern[] mCategoryPatterns;
+
+        @VisibleForTesting
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
-            mShortCodePattern = (shortCodeRegex != null ? Pattern.compile(shortCodeRegex) : null);
-            mPremiumShortCodePattern = (premiumShortCodeRegex != null ?
-                    Pattern.compile(premiumShortCodeRegex) : null);
-            mFreeShortCodePattern = (freeShortCodeRegex != null ?
-                    Pattern.compile(freeShortCodeRegex) : null);
-            mStandardShortCodePattern = (standardShortCodeRegex != null ?
-                    Pattern.compile(standardShortCodeRegex) : null);
+            mRegexes = new String[] {freeShortCodeRegex, standardShortCodeRegex,
+                    premiumShortCodeRegex, shortCodeRegex};
         }
 
+        @VisibleForTesting
         int getNumberCategory(String phoneNumber) {
-            if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+            Pattern pattern = mPattern;
+            Pattern[] categoryPatterns = mCategoryPatterns;
+            if (pattern == null && categoryPatterns == null) {
+                // Compiling twice on a race is harmless
+                pattern = compile();
+                if (pattern != null) {
+                    mPattern = pattern;
+                } else {
+                    categoryPatterns = compileEach();
+                    mCategoryPatterns = categoryPatterns;
+                }
             }
-            if (mStandardShortCodePattern != null && mStandardShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+            if (pattern != null) {
+                Matcher matcher = pattern.matcher(phoneNumber);
+                if (matcher.matches()) {
+                    for (int i = 0; i < GROUPS.length; i++) {
+                        if (mRegexes[i] != null && matcher.group(GROUPS[i]) != null) {
+                            return CATEGORIES[i];
+                        }
+                    }
+                }
+            } else {
+                for (int i = 0; i < GROUPS.length; i++) {
+                    if (categoryPatterns[i] != null
+                            && categoryPatterns[i].matcher(phoneNumber).matches()) {
+                        return CATEGORIES[i];
+                    }
+                }
             }
-            if (mPremiumShortCodePattern != null && mPremiumShortCodePattern.matcher(phoneNumber)
-                    .matches()) {
-                return SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+
+        /**
+         * @return the combined pattern, or null if the category patterns cannot be combined
+         */
+        private Pattern compile() {
+            // Alternatives are tried in order, so the first category matching the whole number
+            // wins, as if each pattern were matched in turn
+            StringBuilder combined = new StringBuilder();
+            for (int i = 0; i < GROUPS.length; i++) {
+                if (mRegexes[i] == null) continue;
+                if (hasBackreference(mRegexes[i])) {
+                    if (DBG) Rlog.d(TAG, "Backreference in " + GROUPS[i] + " pattern");
+                    return null;
+                }
+                if (combined.length() > 0) combined.append('|');
+                combined.append("(?<").append(GROUPS[i]).append('>').append(mRegexes[i])
+                        .append(')');
             }
-            if (mShortCodePattern != null && mShortCodePattern.matcher(phoneNumber).matches()) {
-                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+            try {
+                // A pattern that matches nothing when there are no categories
+                return Pattern.compile(combined.length() > 0 ? combined.toString() : "(?!)");
+            } catch (PatternSyntaxException e) {
+                // e.g. a group named like one of ours, the patterns are compiled one by one
+                if (DBG) Rlog.d(TAG, "Cannot combine short code patterns: " + e.getMessage());
+                return null;
             }
-            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+
+        private Pattern[] compileEach() {
+            Pattern[] patterns = new Pattern[GROUPS.length];
+            for (int i = 0; i < GROUPS.length; i++) {
+                if (mRegexes[i] != null) {
+                    patterns[i] = Pattern.compile(mRegexes[i]);
+                }
+            }
+            return patterns;
+        }
+
+        /**
+         * @return true if the regex may hold a numbered or named backreference. Escapes inside
+         *         character classes are counted too, which only costs the combined pattern.
+         */
+        private static boolean hasBackreference(String regex) {
+            for (int i = 0; i < regex.length() - 1; i++) {
+                if (regex.charAt(i) == '\\') {
+                    char c = regex.charAt(++i);
+                    if ((c >= '1' && c <= '9') || c == 'k') {
+                        return true;
+                    }
+                }
+            }
+            return false;
         }
     }
 
@@ -243,6 +334,11 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage
     public SmsUsageMonitor(Context context) {
+        this(context, new File(SHORT_CODE_PATH));
+    }
+
+    @VisibleForTesting
+    SmsUsageMonitor(Context context, File patternFile) {
         mContext = context;
         ContentResolver resolver = context.getContentResolver();
 
@@ -254,52 +350,115 @@ public class SmsUsageMonitor {
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        mRateLimiter = new SmsRateLimiter(mCheckPeriod, mMaxAllowed);
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
+        mPatternFile = patternFile;
+        final File patternDir = mPatternFile.getParentFile();
+        mPatternFileObserver = new FileObserver(patternDir.getPath(), FileObserver.CLOSE_WRITE
+                | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (mPatternFile.getName().equals(path)) {
+                    if (DBG) Rlog.d(TAG, "Short code pattern file changed");
+                    invalidatePatternMatchers();
+                }
+            }
+        };
+        mPatternDirObserver = new FileObserver(patternDir.getParent(),
+                FileObserver.CREATE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (patternDir.getName().equals(path)) {
+                    if (DBG) Rlog.d(TAG, "Short code pattern directory created");
+                    // The watch of a missing directory does not take effect, so start it again
+                    synchronized (mPatternFileObserver) {
+                        if (mDisposed) return;
+                        mPatternFileObserver.stopWatching();
+                        mPatternFileObserver.startWatching();
+                    }
+                    // The pattern file may have been written before the watch started
+                    invalidatePatternMatchers();
+                }
+            }
+        };
+        // Watching the parent first leaves no window in which the directory is created unseen
+        mPatternDirObserver.startWatching();
+        synchronized (mPatternFileObserver) {
+            mPatternFileObserver.startWatching();
+        }
+
         loadPremiumSmsPolicyDb();
     }
 
     /**
-     * Return a pattern matcher object for the specified country.
-     * @param country the country to search for
-     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     * Return the pattern matchers of all countries, loading them if needed.
+     * @return a map from country code to its {@link ShortCodePatternMatcher}
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
+    private HashMap<String, ShortCodePatternMatcher> getPatternMatchers() {
+        HashMap<String, ShortCodePatternMatcher> matchers = mPatternMatchers;
+        if (matchers != null) return matchers;
+        synchronized (mPatternFile) {
+            matchers = mPatternMatchers;
+            if (matchers == null) {
+                matchers = new HashMap<>();
+                if (mPatternFile.exists()) {
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                    loadPatternMatchersFromFile(matchers);
+                } else {
+                    if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                    loadPatternMatchersFromResource(matchers);
+                }
+                mPatternMatchers = matchers;
+            }
+            return matchers;
+        }
+    }
+
+    /** Drop the loaded patterns, so they are loaded again on the next check. */
+    private void invalidatePatternMatchers() {
+        // Waits for a load in progress, which may have read the old file
+        synchronized (mPatternFile) {
+            mPatternMatchers = null;
+        }
+    }
+
+    private void loadPatternMatchersFromFile(HashMap<String, ShortCodePatternMatcher> matchers) {
         FileReader patternReader = null;
         XmlPullParser parser = null;
         try {
             patternReader = new FileReader(mPatternFile);
             parser = Xml.newPullParser();
             parser.setInput(patternReader);
-            return getPatternMatcherFromXmlParser(parser, country);
+            loadPatternMatchersFromXmlParser(parser, matchers);
         } catch (FileNotFoundException e) {
             Rlog.e(TAG, "Short Code Pattern File not found");
         } catch (XmlPullParserException e) {
             Rlog.e(TAG, "XML parser exception reading short code pattern file", e);
         } finally {
-            mPatternFileLastModified = mPatternFile.lastModified();
             if (patternReader != null) {
                 try {
                     patternReader.close();
                 } catch (IOException e) {}
             }
         }
-        return null;
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private void loadPatternMatchersFromResource(
+            HashMap<String, ShortCodePatternMatcher> matchers) {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
             parser = mContext.getResources().getXml(id);
-            return getPatternMatcherFromXmlParser(parser, country);
+            loadPatternMatchersFromXmlParser(parser, matchers);
         } finally {
             if (parser != null) parser.close();
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
-            String country) {
+    private void loadPatternMatchersFromXmlParser(XmlPullParser parser,
+            HashMap<String, ShortCodePatternMatcher> matchers) {
         try {
             XmlUtils.beginDocument(parser, TAG_SHORTCODES);
 
@@ -307,19 +466,20 @@ public class SmsUsageMonitor {
                 XmlUtils.nextElement(parser);
                 String element = parser.getName();
                 if (element == null) {
-                    Rlog.e(TAG, "Parsing pattern data found null");
                     break;
                 }
 
                 if (element.equals(TAG_SHORTCODE)) {
-                    String currentCountry = parser.getAttributeValue(null, ATTR_COUNTRY);
-                    if (VDBG) Rlog.d(TAG, "Found country " + currentCountry);
-                    if (country.equals(currentCountry)) {
+                    String country = parser.getAttributeValue(null, ATTR_COUNTRY);
+                    if (VDBG) Rlog.d(TAG, "Found country " + country);
+                    // The first entry of a country is the one used
+                    if (country != null && !matchers.containsKey(country)) {
                         String pattern = parser.getAttributeValue(null, ATTR_PATTERN);
                         String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
                         String free = parser.getAttributeValue(null, ATTR_FREE);
                         String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
+                        matchers.put(country,
+                                new ShortCodePatternMatcher(pattern, premium, free, standard));
                     }
                 } else {
                     Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
@@ -330,13 +490,17 @@ public class SmsUsageMonitor {
         } catch (IOException e) {
             Rlog.e(TAG, "I/O exception reading short code patterns", e);
         }
-        if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
-        return null;    // country not found
+        if (DBG) Rlog.d(TAG, "Loaded short code patterns of " + matchers.size() + " countries");
     }
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        mRateLimiter.clear();
+        mPatternDirObserver.stopWatching();
+        synchronized (mPatternFileObserver) {
+            mDisposed = true;
+            mPatternFileObserver.stopWatching();
+        }
     }
 
     /**
@@ -351,17 +515,9 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
-
-            return isUnderLimit(sentList, smsWaiting);
-        }
+        long ct = System.currentTimeMillis();
+        if (VDBG) log("SMS send app=" + appName + " time=" + ct);
+        return mRateLimiter.check(appName, smsWaiting, ct);
     }
 
     /**
@@ -382,42 +538,34 @@ public class SmsUsageMonitor {
      *  {@link SmsManager#SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE}
      */
     public int checkDestination(String destAddress, String countryIso) {
-        synchronized (mSettingsObserverHandler) {
-            // always allow emergency numbers
-            if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
-                if (DBG) Rlog.d(TAG, "isEmergencyNumber");
-                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-            }
-            // always allow if the feature is disabled
-            if (!mCheckEnabled.get()) {
-                if (DBG) Rlog.e(TAG, "check disabled");
-                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-            }
+        // always allow emergency numbers
+        if (PhoneNumberUtils.isEmergencyNumber(destAddress, countryIso)) {
+            if (DBG) Rlog.d(TAG, "isEmergencyNumber");
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
+        // always allow if the feature is disabled
+        if (!mCheckEnabled.get()) {
+            if (DBG) Rlog.e(TAG, "check disabled");
+            return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+        }
 
-            if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                    }
-                    mCurrentCountry = countryIso;
-                }
-            }
+        ShortCodePatternMatcher patternMatcher;
+        if (countryIso != null) {
+            patternMatcher = getPatternMatchers().get(countryIso);
+            mCurrentPatternMatcher = patternMatcher;
+        } else {
+            patternMatcher = mCurrentPatternMatcher;
+        }
 
-            if (mCurrentPatternMatcher != null) {
-                return mCurrentPatternMatcher.getNumberCategory(destAddress);
+        if (patternMatcher != null) {
+            return patternMatcher.getNumberCategory(destAddress);
+        } else {
+            // Generic rule: numbers of 5 digits or less are considered potential short codes
+            Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
+            if (destAddress.length() <= 5) {
+                return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
             } else {
-                // Generic rule: numbers of 5 digits or less are considered potential short codes
-                Rlog.e(TAG, "No patterns for \"" + countryIso + "\": using generic short code rule");
-                if (destAddress.length() <= 5) {
-                    return SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
-                } else {
-                    return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
-                }
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
             }
         }
     }
@@ -598,44 +746,6 @@ public class SmsUsageMonitor {
         throw new SecurityException("Disallowed call for uid " + uid);
     }
 
-    /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
-     */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
-            }
-        }
-    }
-
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
-            return true;
-        }
-        return false;
-    }
-
     private static void log(String msg) {
         Rlog.d(TAG, msg);
     }
@@ -29,6 +29,7 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -54,6 +55,7 @@ import android.telephony.euicc.EuiccManager;
 import android.text.TextUtils;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IccCardConstants.State;
@@ -108,6 +110,15 @@ public class SubscriptionController extends ISub.Stub {
             ParcelUuid.fromString(CarrierConfigManager.REMOVE_GROUP_UUID_STRING);
     private final LocalLog mLocalLog = new LocalLog(200);
 
+    // Properties read with getSubscriptionProperty, dropped as their rows change
+    private final SubscriptionPropertyCache mPropertyCache = new SubscriptionPropertyCache();
+    private final ContentObserver mSubscriptionObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mPropertyCache.invalidate(uri);
+        }
+    };
+
     // Lock that both mCacheActiveSubInfoList and mCacheOpportunisticSubInfoList use.
     private Object mSubInfoListLock = new Object();
 
@@ -222,6 +233,8 @@ public class SubscriptionController extends ISub.Stub {
         // clear SLOT_INDEX for all subs
         clearSlotIndexForSubInfoRecords();
 
+        registerSubscriptionObserver();
+
         if (DBG) logdl("[SubscriptionController] init by Context");
     }
 
@@ -254,7 +267,26 @@ public class SubscriptionController extends ISub.Stub {
         // Update all subscriptions in simInfo db with invalid slot index
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
-        mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI, value, null, null);
+        updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI, value, null, null);
+    }
+
+    /**
+     * Watch the subscription database for writes made without this controller, e.g. by
+     * Settings, so the cached properties of the changed rows are dropped.
+     */
+    private void registerSubscriptionObserver() {
+        mContext.getContentResolver().registerContentObserver(SubscriptionManager.CONTENT_URI,
+                true, mSubscriptionObserver);
+    }
+
+    /**
+     * Update the subscription database and drop the cached properties of the updated rows.
+     */
+    private int updateSubscriptionDatabase(Uri uri, ContentValues values, String where,
+            String[] selectionArgs) {
+        int count = mContext.getContentResolver().update(uri, values, where, selectionArgs);
+        mPropertyCache.invalidate(uri);
+        return count;
     }
 
     private SubscriptionController(Phone phone) {
@@ -270,6 +302,8 @@ public class SubscriptionController extends ISub.Stub {
         // clear SLOT_INDEX for all subs
         clearSlotIndexForSubInfoRecords();
 
+        registerSubscriptionObserver();
+
         if (DBG) logdl("[SubscriptionController] init by Phone");
     }
 
@@ -585,25 +619,20 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        final long identity = Binder.clearCallingIdentity();
-        try {
-            List<SubscriptionInfo> subList = getActiveSubscriptionInfoList(
-                    mContext.getOpPackageName());
-            if (subList != null) {
-                for (SubscriptionInfo si : subList) {
-                    if (iccId.equals(si.getIccId())) {
-                        if (DBG)
-                            logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
-                        return si;
+        // Served from the cached rows; the caller checks permissions for the one found
+        synchronized (mSubInfoListLock) {
+            for (SubscriptionInfo si : mCacheActiveSubInfoList) {
+                if (iccId.equals(si.getIccId())) {
+                    if (DBG) {
+                        logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
                     }
+                    return si;
                 }
             }
             if (DBG) {
                 logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId
-                        + " subList=" + subList + " subInfo=null");
+                        + " subList=" + mCacheActiveSubInfoList + " subInfo=null");
             }
-        } finally {
-            Binder.restoreCallingIdentity(identity);
         }
 
         return null;
@@ -718,6 +747,8 @@ public class SubscriptionController extends ISub.Stub {
         boolean opptSubListChanged;
 
         synchronized (mSubInfoListLock) {
+            List<SubscriptionInfo> previousActiveSubInfoList =
+                    new ArrayList<>(mCacheActiveSubInfoList);
             List<SubscriptionInfo> activeSubscriptionInfoList = getSubInfo(
                     SubscriptionManager.SIM_SLOT_INDEX + ">=0 OR "
                     + SubscriptionManager.SUBSCRIPTION_TYPE + "="
@@ -739,6 +770,10 @@ public class SubscriptionController extends ISub.Stub {
                 mCacheActiveSubInfoList.clear();
             }
 
+            // Callers refresh after writing to the database, possibly not through this
+            // controller, so drop the cached properties of the rows that changed.
+            invalidateChangedProperties(previousActiveSubInfoList, mCacheActiveSubInfoList);
+
             // Refresh cached opportunistic sub list and detect whether it's changed.
             refreshCachedOpportunisticSubscriptionInfoList();
 
@@ -755,6 +790,30 @@ public class SubscriptionController extends ISub.Stub {
         }
     }
 
+    /**
+     * Drop the cached properties of the subscriptions that were added, removed or changed
+     * between two versions of the active subscription list.
+     */
+    private void invalidateChangedProperties(List<SubscriptionInfo> previous,
+            List<SubscriptionInfo> current) {
+        SparseArray<SubscriptionInfo> previousById = new SparseArray<>(previous.size());
+        for (SubscriptionInfo info : previous) {
+            previousById.put(info.getSubscriptionId(), info);
+        }
+        for (SubscriptionInfo info : current) {
+            int subId = info.getSubscriptionId();
+            SubscriptionInfo previousInfo = previousById.get(subId);
+            previousById.remove(subId);
+            if (!info.equals(previousInfo)) {
+                mPropertyCache.invalidate(SubscriptionManager.getUriForSubscriptionId(subId));
+            }
+        }
+        for (int i = 0; i < previousById.size(); i++) {
+            mPropertyCache.invalidate(
+                    SubscriptionManager.getUriForSubscriptionId(previousById.keyAt(i)));
+        }
+    }
+
     /**
      * Get the SUB count of active SUB(s)
      * @param callingPackage The package making the IPC.
@@ -1095,8 +1154,9 @@ public class SubscriptionController extends ISub.Stub {
                         }
 
                         if (value.size() > 0) {
-                            resolver.update(SubscriptionManager.getUriForSubscriptionId(subId),
-                                    value, null, null);
+                            updateSubscriptionDatabase(
+                                    SubscriptionManager.getUriForSubscriptionId(subId), value,
+                                    null, null);
                         }
 
                         if (DBG) logdl("[addSubInfoRecord] Record already exists");
@@ -1206,8 +1266,8 @@ public class SubscriptionController extends ISub.Stub {
 
                     ContentValues value = new ContentValues();
                     value.put(SubscriptionManager.DISPLAY_NAME, nameToSet);
-                    resolver.update(SubscriptionManager.getUriForSubscriptionId(subId), value,
-                            null, null);
+                    updateSubscriptionDatabase(SubscriptionManager.getUriForSubscriptionId(subId),
+                            value, null, null);
 
                     // Refresh the Cache of Active Subscription Info List
                     refreshCachedActiveSubscriptionInfoList();
@@ -1312,6 +1372,7 @@ public class SubscriptionController extends ISub.Stub {
                     SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=? AND "
                             + SubscriptionManager.SUBSCRIPTION_TYPE + "=?",
                     new String[]{Integer.toString(subId), Integer.toString(subscriptionType)});
+            mPropertyCache.invalidate(SubscriptionManager.getUriForSubscriptionId(subId));
             if (result != 1) {
                 if (DBG) {
                     logd("found NO subscription to remove with subscriptionType = "
@@ -1365,13 +1426,12 @@ public class SubscriptionController extends ISub.Stub {
 
         // update simInfo db with invalid slot index
         List<SubscriptionInfo> oldSubInfo = getSubInfoUsingSlotIndexPrivileged(slotIndex);
-        ContentResolver resolver = mContext.getContentResolver();
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX,
                 SubscriptionManager.INVALID_SIM_SLOT_INDEX);
         if (oldSubInfo != null) {
             for (int i = 0; i < oldSubInfo.size(); i++) {
-                resolver.update(SubscriptionManager.getUriForSubscriptionId(
+                updateSubscriptionDatabase(SubscriptionManager.getUriForSubscriptionId(
                         oldSubInfo.get(i).getSubscriptionId()), value, null, null);
             }
         }
@@ -1420,6 +1480,7 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         Uri uri = resolver.insert(SubscriptionManager.CONTENT_URI, value);
+        mPropertyCache.invalidate(uri);
 
         // Refresh the Cache of Active Subscription Info List
         refreshCachedActiveSubscriptionInfoList();
@@ -1488,7 +1549,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues(1);
             value.put(SubscriptionManager.CARRIER_NAME, text);
 
-            int result = mContext.getContentResolver().update(
+            int result = updateSubscriptionDatabase(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -1522,7 +1583,7 @@ public class SubscriptionController extends ISub.Stub {
             value.put(SubscriptionManager.COLOR, tint);
             if (DBG) logd("[setIconTint]- tint:" + tint + " set");
 
-            int result = mContext.getContentResolver().update(
+            int result = updateSubscriptionDatabase(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -1660,7 +1721,7 @@ public class SubscriptionController extends ISub.Stub {
             // that was removed as there doesn't seem to be a reason for that. If it is added
             // back, watch out for deadlocks.
 
-            result = mContext.getContentResolver().update(
+            result = updateSubscriptionDatabase(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -1696,7 +1757,7 @@ public class SubscriptionController extends ISub.Stub {
         value.put(SubscriptionManager.EHPLMNS, formattedEhplmns);
         value.put(SubscriptionManager.HPLMNS, formattedHplmns);
 
-        int count = mContext.getContentResolver().update(
+        int count = updateSubscriptionDatabase(
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
@@ -1795,7 +1856,7 @@ public class SubscriptionController extends ISub.Stub {
                 mContext.getOpPackageName());
         if (!updateEntireGroup || infoList == null || infoList.size() == 0) {
             // Only update specified subscriptions.
-            return mContext.getContentResolver().update(
+            return updateSubscriptionDatabase(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
         } else {
             // Update all subscriptions in the same group.
@@ -1803,7 +1864,7 @@ public class SubscriptionController extends ISub.Stub {
             for (int i = 0; i < infoList.size(); i++) {
                 subIdList[i] = infoList.get(i).getSubscriptionId();
             }
-            return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            return updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
         }
     }
@@ -1827,7 +1888,7 @@ public class SubscriptionController extends ISub.Stub {
             validateSubId(subId);
             ContentValues value = new ContentValues(1);
             value.put(SubscriptionManager.CARRIER_ID, carrierId);
-            int result = mContext.getContentResolver().update(
+            int result = updateSubscriptionDatabase(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
             // Refresh the Cache of Active Subscription Info List
@@ -1865,7 +1926,7 @@ public class SubscriptionController extends ISub.Stub {
         value.put(SubscriptionManager.MCC_STRING, mccString);
         value.put(SubscriptionManager.MNC_STRING, mncString);
 
-        int result = mContext.getContentResolver().update(
+        int result = updateSubscriptionDatabase(
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
@@ -1886,7 +1947,7 @@ public class SubscriptionController extends ISub.Stub {
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.IMSI, imsi);
 
-        int result = mContext.getContentResolver().update(
+        int result = updateSubscriptionDatabase(
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
@@ -1937,7 +1998,7 @@ public class SubscriptionController extends ISub.Stub {
         ContentValues value = new ContentValues();
         value.put(SubscriptionManager.ISO_COUNTRY_CODE, iso);
 
-        int result = mContext.getContentResolver().update(
+        int result = updateSubscriptionDatabase(
                 SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
 
         // Refresh the Cache of Active Subscription Info List
@@ -2705,6 +2766,17 @@ public class SubscriptionController extends ISub.Stub {
      * @return Value associated with subId and propKey column in database
      */
     public String getSubscriptionProperty(int subId, String propKey) {
+        String[] cachedValue = new String[1];
+        if (mPropertyCache.get(subId, propKey, cachedValue)) {
+            return cachedValue[0];
+        }
+        long generation = mPropertyCache.getGeneration();
+        String resultValue = querySubscriptionProperty(subId, propKey);
+        mPropertyCache.put(subId, propKey, resultValue, generation);
+        return resultValue;
+    }
+
+    private String querySubscriptionProperty(int subId, String propKey) {
         String resultValue = null;
         try (Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
                 new String[]{propKey},
@@ -2781,6 +2853,7 @@ public class SubscriptionController extends ISub.Stub {
             pw.println(" defaultDataSubId=" + getDefaultDataSubId());
             pw.println(" defaultVoiceSubId=" + getDefaultVoiceSubId());
             pw.println(" defaultSmsSubId=" + getDefaultSmsSubId());
+            mPropertyCache.dump(pw);
 
             pw.println(" defaultDataPhoneId=" + SubscriptionManager
                     .from(mContext).getDefaultDataPhoneId());
@@ -3017,7 +3090,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, groupUUID.toString());
             value.put(SubscriptionManager.GROUP_OWNER, callingPackage);
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("createSubscriptionGroup update DB result: " + result);
@@ -3099,7 +3172,7 @@ public class SubscriptionController extends ISub.Stub {
         // permission checks on all members.
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.GROUP_OWNER, groupOwner);
-        return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+        return updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI,
                 value, SubscriptionManager.GROUP_UUID + "=\"" + groupUuid + "\"", null);
     }
 
@@ -3141,7 +3214,7 @@ public class SubscriptionController extends ISub.Stub {
 
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, groupUuid.toString());
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("addSubscriptionsIntoGroup update DB result: " + result);
@@ -3206,7 +3279,7 @@ public class SubscriptionController extends ISub.Stub {
             ContentValues value = new ContentValues();
             value.put(SubscriptionManager.GROUP_UUID, (String) null);
             value.put(SubscriptionManager.GROUP_OWNER, (String) null);
-            int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            int result = updateSubscriptionDatabase(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
 
             if (DBG) logdl("removeSubscriptionsFromGroup update DB result: " + result);
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Cache of the subscription properties read by {@link SubscriptionController}, per
+ * subscription row of the siminfo table.
+ *
+ * A row is dropped whenever it changes, either through a write of the controller or a change
+ * notification from the provider, and read again property by property as it is asked for.
+ * Lookups from before a change are not cached once they complete, so a value read while the
+ * row was being written is never kept.
+ *
+ * Thread safe.
+ */
+class SubscriptionPropertyCache {
+    /** Value of the properties of each subscription; a null value is a cached null. */
+    private final SparseArray<HashMap<String, String>> mRows = new SparseArray<>();
+    // Incremented on every change, so lookups racing with it are not cached
+    private long mGeneration;
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    /**
+     * @return true if the property of the subscription is cached; its value is then in
+     *         {@code value[0]}
+     */
+    synchronized boolean get(int subId, String propKey, String[] value) {
+        HashMap<String, String> row = mRows.get(subId);
+        if (row != null && row.containsKey(propKey)) {
+            mHits++;
+            value[0] = row.get(propKey);
+            return true;
+        }
+        mMisses++;
+        return false;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put} with the value about to be read
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a property read from the database, unless the database changed since.
+     */
+    synchronized void put(int subId, String propKey, String value, long generation) {
+        if (generation != mGeneration) return;
+        HashMap<String, String> row = mRows.get(subId);
+        if (row == null) {
+            row = new HashMap<>();
+            mRows.put(subId, row);
+        }
+        row.put(propKey, value);
+    }
+
+    /**
+     * Drop the rows changed by a write to, or a change notification for, the given URI.
+     *
+     * @param uri {@link SubscriptionManager#CONTENT_URI} for any row, or the URI of one row
+     */
+    synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        mInvalidations++;
+        int subId = getSubId(uri);
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            mRows.clear();
+        } else {
+            mRows.remove(subId);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long minutes = Math.max(1, (SystemClock.elapsedRealtime() - mStartTime) / 60000);
+        pw.println(" SubscriptionPropertyCache: rows=" + mRows.size() + " hits=" + mHits
+                + " misses=" + mMisses + " invalidations=" + mInvalidations
+                + " queriesAvoidedPerMinute=" + (mHits / minutes));
+    }
+
+    private static int getSubId(Uri uri) {
+        if (uri == null || uri.equals(SubscriptionManager.CONTENT_URI)) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+        List<String> segments = uri.getPathSegments();
+        List<String> baseSegments = SubscriptionManager.CONTENT_URI.getPathSegments();
+        // Only URIs of a single row name a subscription
+        if (segments.size() != baseSegments.size() + 1
+                || !segments.subList(0, baseSegments.size()).equals(baseSegments)) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+        try {
+            return Integer.parseInt(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        }
+    }
+}
@@ -100,16 +100,14 @@ public class CdmaSMSDispatcher extends SMSDispatcher {
      */
     @UnsupportedAppUsage
     private void handleCdmaStatusReport(SmsMessage sms) {
-        for (int i = 0, count = deliveryPendingList.size(); i < count; i++) {
-            SmsTracker tracker = deliveryPendingList.get(i);
-            if (tracker.mMessageRef == sms.mMessageRef) {
-                Pair<Boolean, Boolean> result =
-                        mSmsDispatchersController.handleSmsStatusReport(tracker, getFormat(),
-                                sms.getPdu());
-                if (result.second) {
-                    deliveryPendingList.remove(i);
-                }
-                break;  // Only expect to see one tracker matching this message.
+        // Only expect to see one tracker matching this message.
+        SmsTracker tracker = mDeliveryPendingList.find(sms.mMessageRef);
+        if (tracker != null) {
+            Pair<Boolean, Boolean> result =
+                    mSmsDispatchersController.handleSmsStatusReport(tracker, getFormat(),
+                            sms.getPdu());
+            if (result.second) {
+                mDeliveryPendingList.remove(tracker);
             }
         }
     }
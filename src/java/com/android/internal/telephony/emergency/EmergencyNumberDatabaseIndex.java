@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.telephony.Rlog;
+import android.util.AtomicFile;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Emergency number database indexed by country, so the numbers of one country can be read
+ * without inflating and parsing the whole database.
+ *
+ * The file is written from the parsed database asset the first time it is read after a build
+ * change, and memory-mapped afterwards. It starts with a header and a table of countries
+ * sorted by ISO code, followed by the {@link ProtobufEccData.CountryInfo} of each country:
+ *
+ * <pre>
+ * int magic, int version, int fingerprint length, byte[] fingerprint (UTF-8), int count
+ * count * { byte[4] ISO code (zero padded ASCII), int offset, int length }
+ * CountryInfo messages
+ * </pre>
+ */
+class EmergencyNumberDatabaseIndex {
+    private static final String TAG = EmergencyNumberDatabaseIndex.class.getSimpleName();
+
+    private static final int MAGIC = 0x45434349; // "ECCI"
+    private static final int VERSION = 1;
+    private static final int ISO_LENGTH = 4;
+    private static final int ENTRY_SIZE = ISO_LENGTH + 8;
+
+    private final ByteBuffer mBuffer;
+    private final int mTableOffset;
+    private final int mCount;
+
+    private EmergencyNumberDatabaseIndex(ByteBuffer buffer, int tableOffset, int count) {
+        mBuffer = buffer;
+        mTableOffset = tableOffset;
+        mCount = count;
+    }
+
+    /**
+     * Map an index file.
+     *
+     * @param file the index file
+     * @param fingerprint the build the index must have been written on
+     * @return the index, or null if the file is missing, stale or corrupt
+     */
+    static EmergencyNumberDatabaseIndex open(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid once the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Rlog.e(TAG, "Unknown index format");
+                return null;
+            }
+            byte[] indexFingerprint = new byte[buffer.getInt()];
+            buffer.get(indexFingerprint);
+            if (!Arrays.equals(indexFingerprint, fingerprint.getBytes(StandardCharsets.UTF_8))) {
+                Rlog.d(TAG, "Index was written on another build");
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0) {
+                Rlog.e(TAG, "Negative country count");
+                return null;
+            }
+            int tableOffset = buffer.position();
+            for (int i = 0; i < count; i++) {
+                int entry = tableOffset + i * ENTRY_SIZE;
+                int offset = buffer.getInt(entry + ISO_LENGTH);
+                int length = buffer.getInt(entry + ISO_LENGTH + 4);
+                if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+                    Rlog.e(TAG, "Index entry out of bounds");
+                    return null;
+                }
+            }
+            return new EmergencyNumberDatabaseIndex(buffer, tableOffset, count);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException | NegativeArraySizeException ex) {
+            Rlog.e(TAG, "Failed to open index: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Write the index of a database.
+     *
+     * @param file the index file to replace
+     * @param fingerprint the current build
+     * @param allInfo the parsed database
+     * @throws IOException if the file could not be written, or the database has ISO codes the
+     *         index cannot hold
+     */
+    static void write(File file, String fingerprint, ProtobufEccData.AllInfo allInfo)
+            throws IOException {
+        // Countries listed more than once have all their numbers, as when scanning the database
+        TreeMap<String, List<ProtobufEccData.EccInfo>> countries = new TreeMap<>();
+        for (ProtobufEccData.CountryInfo countryInfo : allInfo.countries) {
+            if (encodeIso(countryInfo.isoCode) == null) {
+                throw new IOException("Unsupported ISO code " + countryInfo.isoCode);
+            }
+            List<ProtobufEccData.EccInfo> eccs = countries.get(countryInfo.isoCode);
+            if (eccs == null) {
+                eccs = new ArrayList<>();
+                countries.put(countryInfo.isoCode, eccs);
+            }
+            eccs.addAll(Arrays.asList(countryInfo.eccs));
+        }
+
+        List<byte[]> messages = new ArrayList<>(countries.size());
+        for (Map.Entry<String, List<ProtobufEccData.EccInfo>> country : countries.entrySet()) {
+            ProtobufEccData.CountryInfo countryInfo = new ProtobufEccData.CountryInfo();
+            countryInfo.isoCode = country.getKey();
+            countryInfo.eccs = country.getValue().toArray(new ProtobufEccData.EccInfo[0]);
+            messages.add(MessageNano.toByteArray(countryInfo));
+        }
+
+        byte[] fingerprintBytes = fingerprint.getBytes(StandardCharsets.UTF_8);
+        int offset = 4 * 4 + fingerprintBytes.length + countries.size() * ENTRY_SIZE;
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream stream = atomicFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprintBytes.length);
+            out.write(fingerprintBytes);
+            out.writeInt(countries.size());
+            int i = 0;
+            for (String isoCode : countries.keySet()) {
+                out.write(encodeIso(isoCode));
+                out.writeInt(offset);
+                out.writeInt(messages.get(i).length);
+                offset += messages.get(i).length;
+                i++;
+            }
+            for (byte[] message : messages) {
+                out.write(message);
+            }
+            out.flush();
+            atomicFile.finishWrite(stream);
+        } catch (IOException ex) {
+            atomicFile.failWrite(stream);
+            throw ex;
+        }
+    }
+
+    /**
+     * @param isoCode the upper case ISO code of the country
+     * @return the emergency numbers of the country, or an empty array if it has none
+     * @throws IOException if the entry of the country is corrupt
+     */
+    ProtobufEccData.EccInfo[] getEccs(String isoCode) throws IOException {
+        byte[] key = encodeIso(isoCode);
+        if (key == null) {
+            return new ProtobufEccData.EccInfo[0];
+        }
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = mTableOffset + mid * ENTRY_SIZE;
+            int cmp = compareIso(entry, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readCountry(entry).eccs;
+            }
+        }
+        return new ProtobufEccData.EccInfo[0];
+    }
+
+    private ProtobufEccData.CountryInfo readCountry(int entry) throws IOException {
+        int offset = mBuffer.getInt(entry + ISO_LENGTH);
+        int length = mBuffer.getInt(entry + ISO_LENGTH + 4);
+        // Absolute reads only on the shared buffer, so lookups may run concurrently
+        ByteBuffer message = mBuffer.duplicate();
+        message.position(offset);
+        byte[] bytes = new byte[length];
+        message.get(bytes);
+        try {
+            return ProtobufEccData.CountryInfo.parseFrom(bytes);
+        } catch (InvalidProtocolBufferNanoException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private int compareIso(int entry, byte[] key) {
+        for (int i = 0; i < ISO_LENGTH; i++) {
+            int diff = (mBuffer.get(entry + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the ISO code as zero padded ASCII, or null if it does not fit
+     */
+    private static byte[] encodeIso(String isoCode) {
+        if (isoCode == null || isoCode.length() > ISO_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[ISO_LENGTH];
+        for (int i = 0; i < isoCode.length(); i++) {
+            char c = isoCode.charAt(i);
+            if (c == 0 || c > 0x7f) return null;
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+}
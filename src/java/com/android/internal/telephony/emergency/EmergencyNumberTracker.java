@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.AsyncResult;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PersistableBundle;
@@ -53,6 +54,7 @@ import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
@@ -89,12 +91,21 @@ public class EmergencyNumberTracker extends Handler {
     private String[] mEmergencyNumberPrefix = new String[0];
 
     private static final String EMERGENCY_NUMBER_DB_ASSETS_FILE = "eccdata";
+    /** Country index of the database asset, written the first time it is parsed. */
+    private static final String EMERGENCY_NUMBER_DB_INDEX_FILE = "eccdata.idx";
+
+    /** Mapped database index shared by all Phones, or null if not available yet. */
+    private static EmergencyNumberDatabaseIndex sDatabaseIndex;
 
     private List<EmergencyNumber> mEmergencyNumberListFromDatabase = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromRadio = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListWithPrefix = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromTestMode = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberList = new ArrayList<>();
+    /** Numbers of {@link #mEmergencyNumberList}, rebuilt whenever the list changes. */
+    private volatile EmergencyNumberTrie mEmergencyNumberTrie = EmergencyNumberTrie.EMPTY;
+    /** Parsed ril.ecclist numbers, or the embedded ones, for the legacy ECC list lookup. */
+    private volatile EccListMatcher mEccListMatcher;
 
     private final LocalLog mEmergencyNumberListDatabaseLocalLog = new LocalLog(20);
     private final LocalLog mEmergencyNumberListRadioLocalLog = new LocalLog(20);
@@ -102,6 +113,32 @@ public class EmergencyNumberTracker extends Handler {
     private final LocalLog mEmergencyNumberListTestModeLocalLog = new LocalLog(20);
     private final LocalLog mEmergencyNumberListLocalLog = new LocalLog(20);
 
+    /**
+     * Emergency numbers of a comma separated ECC list, with and without the emergency number
+     * prefixes, valid as long as the list and the prefixes stay the same.
+     */
+    private static final class EccListMatcher {
+        final String mEccList;
+        final String[] mPrefixes;
+        final EmergencyNumberTrie mNumbers;
+        final EmergencyNumberTrie mPrefixedNumbers;
+
+        EccListMatcher(String eccList, String[] prefixes) {
+            mEccList = eccList;
+            mPrefixes = prefixes;
+            List<String> numbers = new ArrayList<>();
+            List<String> prefixedNumbers = new ArrayList<>();
+            for (String emergencyNum : eccList.split(",")) {
+                numbers.add(emergencyNum);
+                for (String prefix : prefixes) {
+                    prefixedNumbers.add(prefix + emergencyNum);
+                }
+            }
+            mNumbers = new EmergencyNumberTrie(numbers);
+            mPrefixedNumbers = new EmergencyNumberTrie(prefixedNumbers);
+        }
+    }
+
     /** Event indicating the update for the emergency number list from the radio. */
     private static final int EVENT_UNSOL_EMERGENCY_NUMBER_LIST = 1;
     /**
@@ -348,6 +385,23 @@ public class EmergencyNumberTracker extends Handler {
     }
 
     private void cacheEmergencyDatabaseByCountry(String countryIso) {
+        EmergencyNumberDatabaseIndex index = getDatabaseIndex();
+        if (index != null) {
+            try {
+                List<EmergencyNumber> updatedEmergencyNumberList = new ArrayList<>();
+                for (ProtobufEccData.EccInfo eccInfo : index.getEccs(countryIso.toUpperCase())) {
+                    updatedEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso));
+                }
+                logd(countryIso + " emergency database is loaded from index. ");
+                EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedEmergencyNumberList);
+                mEmergencyNumberListFromDatabase = updatedEmergencyNumberList;
+                return;
+            } catch (IOException ex) {
+                loge("Emergency database index failure: " + ex);
+            }
+        }
+
         BufferedInputStream inputStream = null;
         ProtobufEccData.AllInfo allEccMessages = null;
         List<EmergencyNumber> updatedEmergencyNumberList = new ArrayList<>();
@@ -372,6 +426,48 @@ public class EmergencyNumberTracker extends Handler {
         } finally {
             IoUtils.closeQuietly(inputStream);
         }
+        if (allEccMessages != null) {
+            writeDatabaseIndex(allEccMessages);
+        }
+    }
+
+    private File getDatabaseIndexFile() {
+        File dir = mPhone.getContext().getFilesDir();
+        return dir == null ? null : new File(dir, EMERGENCY_NUMBER_DB_INDEX_FILE);
+    }
+
+    private EmergencyNumberDatabaseIndex getDatabaseIndex() {
+        synchronized (EmergencyNumberTracker.class) {
+            if (sDatabaseIndex == null) {
+                File file = getDatabaseIndexFile();
+                if (file != null) {
+                    sDatabaseIndex = EmergencyNumberDatabaseIndex.open(file, Build.FINGERPRINT);
+                }
+            }
+            return sDatabaseIndex;
+        }
+    }
+
+    /**
+     * Index the parsed database by country, so later country changes only read that country.
+     */
+    private void writeDatabaseIndex(ProtobufEccData.AllInfo allEccMessages) {
+        File file = getDatabaseIndexFile();
+        if (file == null) {
+            return;
+        }
+        synchronized (EmergencyNumberTracker.class) {
+            if (sDatabaseIndex != null) {
+                return;
+            }
+            try {
+                EmergencyNumberDatabaseIndex.write(file, Build.FINGERPRINT, allEccMessages);
+                sDatabaseIndex = EmergencyNumberDatabaseIndex.open(file, Build.FINGERPRINT);
+                logd("Emergency database index is written.");
+            } catch (IOException ex) {
+                loge("Write emergency database index failure: " + ex);
+            }
+        }
     }
 
     /**
@@ -485,6 +581,11 @@ public class EmergencyNumberTracker extends Handler {
         mergedEmergencyNumberList.addAll(mEmergencyNumberListFromTestMode);
         EmergencyNumber.mergeSameNumbersInEmergencyNumberList(mergedEmergencyNumberList);
         mEmergencyNumberList = mergedEmergencyNumberList;
+        List<String> numbers = new ArrayList<>(mergedEmergencyNumberList.size());
+        for (EmergencyNumber num : mergedEmergencyNumberList) {
+            numbers.add(num.getNumber());
+        }
+        mEmergencyNumberTrie = new EmergencyNumberTrie(numbers);
     }
 
     /**
@@ -512,27 +613,11 @@ public class EmergencyNumberTracker extends Handler {
         }
         number = PhoneNumberUtils.stripSeparators(number);
         if (!mEmergencyNumberListFromRadio.isEmpty()) {
-            for (EmergencyNumber num : mEmergencyNumberList) {
-                // According to com.android.i18n.phonenumbers.ShortNumberInfo, in
-                // these countries, if extra digits are added to an emergency number,
-                // it no longer connects to the emergency service.
-                if (mCountryIso.equals("br") || mCountryIso.equals("cl")
-                        || mCountryIso.equals("ni")) {
-                    exactMatch = true;
-                } else {
-                    exactMatch = false || exactMatch;
-                }
-                if (exactMatch) {
-                    if (num.getNumber().equals(number)) {
-                        return true;
-                    }
-                } else {
-                    if (number.startsWith(num.getNumber())) {
-                        return true;
-                    }
-                }
+            if (exactMatch || isExactMatchCountry()) {
+                return mEmergencyNumberTrie.matches(number);
+            } else {
+                return mEmergencyNumberTrie.matchesPrefixOf(number);
             }
-            return false;
         } else {
             return isEmergencyNumberFromEccList(number, exactMatch)
                     || isEmergencyNumberForTest(number);
@@ -600,6 +685,26 @@ public class EmergencyNumberTracker extends Handler {
         return mCountryIso;
     }
 
+    /**
+     * According to com.android.i18n.phonenumbers.ShortNumberInfo, in these countries, if extra
+     * digits are added to an emergency number, it no longer connects to the emergency service.
+     */
+    private boolean isExactMatchCountry() {
+        String countryIso = mCountryIso;
+        return "br".equals(countryIso) || "cl".equals(countryIso) || "ni".equals(countryIso);
+    }
+
+    private EccListMatcher getEccListMatcher(String eccList) {
+        EccListMatcher matcher = mEccListMatcher;
+        // Prefixes are replaced, never changed in place, when the carrier config changes
+        if (matcher == null || !matcher.mEccList.equals(eccList)
+                || matcher.mPrefixes != mEmergencyNumberPrefix) {
+            matcher = new EccListMatcher(eccList, mEmergencyNumberPrefix);
+            mEccListMatcher = matcher;
+        }
+        return matcher;
+    }
+
     private synchronized void updateEmergencyCountryIso(String countryIso) {
         mCountryIso = countryIso;
     }
@@ -724,35 +829,14 @@ public class EmergencyNumberTracker extends Handler {
         if (!TextUtils.isEmpty(emergencyNumbers)) {
             // searches through the comma-separated list for a match,
             // return true if one is found.
-            for (String emergencyNum : emergencyNumbers.split(",")) {
-                // According to com.android.i18n.phonenumbers.ShortNumberInfo, in
-                // these countries, if extra digits are added to an emergency number,
-                // it no longer connects to the emergency service.
-                if (useExactMatch || mCountryIso.equals("br") || mCountryIso.equals("cl")
-                        || mCountryIso.equals("ni")) {
-                    if (number.equals(emergencyNum)) {
-                        return true;
-                    } else {
-                        for (String prefix : mEmergencyNumberPrefix) {
-                            if (number.equals(prefix + emergencyNum)) {
-                                return true;
-                            }
-                        }
-                    }
-                } else {
-                    if (number.startsWith(emergencyNum)) {
-                        return true;
-                    } else {
-                        for (String prefix : mEmergencyNumberPrefix) {
-                            if (number.startsWith(prefix + emergencyNum)) {
-                                return true;
-                            }
-                        }
-                    }
-                }
+            EccListMatcher matcher = getEccListMatcher(emergencyNumbers);
+            if (useExactMatch || isExactMatchCountry()) {
+                return matcher.mNumbers.matches(number)
+                        || matcher.mPrefixedNumbers.matches(number);
+            } else {
+                return matcher.mNumbers.matchesPrefixOf(number)
+                        || matcher.mPrefixedNumbers.matchesPrefixOf(number);
             }
-            // no matches found against the list!
-            return false;
         }
 
         logd("System property doesn't provide any emergency numbers."
@@ -763,27 +847,16 @@ public class EmergencyNumberTracker extends Handler {
         // ECC numbers when SIM/USIM is not present.
         emergencyNumbers = ((slotId < 0) ? "112,911,000,08,110,118,119,999" : "112,911");
 
-        for (String emergencyNum : emergencyNumbers.split(",")) {
-            if (useExactMatch) {
-                if (number.equals(emergencyNum)) {
-                    return true;
-                } else {
-                    for (String prefix : mEmergencyNumberPrefix) {
-                        if (number.equals(prefix + emergencyNum)) {
-                            return true;
-                        }
-                    }
-                }
-            } else {
-                if (number.startsWith(emergencyNum)) {
-                    return true;
-                } else {
-                    for (String prefix : mEmergencyNumberPrefix) {
-                        if (number.equals(prefix + emergencyNum)) {
-                            return true;
-                        }
-                    }
-                }
+        EccListMatcher matcher = getEccListMatcher(emergencyNumbers);
+        if (useExactMatch) {
+            if (matcher.mNumbers.matches(number) || matcher.mPrefixedNumbers.matches(number)) {
+                return true;
+            }
+        } else {
+            // Prefixed numbers have always been matched exactly here
+            if (matcher.mNumbers.matchesPrefixOf(number)
+                    || matcher.mPrefixedNumbers.matches(number)) {
+                return true;
             }
         }
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Immutable set of emergency numbers, matching a dialed number against all of them in a single
+ * walk over its digits.
+ *
+ * The numbers are stored in a trie over the dialable characters "0-9*#+". Numbers containing
+ * any other character are rare and are compared one by one.
+ */
+class EmergencyNumberTrie {
+    private static final int RADIX = 13;
+
+    /** Trie matching no number. */
+    static final EmergencyNumberTrie EMPTY = new EmergencyNumberTrie(new ArrayList<>());
+
+    // Child of each node for each character, 0 if none; node 0 is the root
+    private final int[] mChildren;
+    // Whether a number ends at each node
+    private final boolean[] mTerminal;
+    private final ArrayList<String> mUnindexed = new ArrayList<>();
+
+    /**
+     * @param numbers the emergency numbers, without separators
+     */
+    EmergencyNumberTrie(Collection<String> numbers) {
+        int maxNodes = 1;
+        for (String number : numbers) {
+            maxNodes += number.length();
+        }
+        int[] children = new int[maxNodes * RADIX];
+        boolean[] terminal = new boolean[maxNodes];
+        int nodeCount = 1;
+        for (String number : numbers) {
+            if (!isIndexable(number)) {
+                mUnindexed.add(number);
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < number.length(); i++) {
+                int slot = node * RADIX + indexOf(number.charAt(i));
+                if (children[slot] == 0) {
+                    children[slot] = nodeCount++;
+                }
+                node = children[slot];
+            }
+            terminal[node] = true;
+        }
+        mChildren = children;
+        mTerminal = terminal;
+    }
+
+    /**
+     * @return true if the number is one of the emergency numbers
+     */
+    boolean matches(String number) {
+        int node = 0;
+        for (int i = 0; i < number.length() && node >= 0; i++) {
+            node = next(node, number.charAt(i));
+        }
+        if (node >= 0 && mTerminal[node]) {
+            return true;
+        }
+        for (int i = 0; i < mUnindexed.size(); i++) {
+            if (number.equals(mUnindexed.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the number starts with one of the emergency numbers
+     */
+    boolean matchesPrefixOf(String number) {
+        int node = 0;
+        for (int i = 0; !mTerminal[node]; i++) {
+            if (i == number.length()) {
+                node = -1;
+                break;
+            }
+            node = next(node, number.charAt(i));
+            if (node < 0) break;
+        }
+        if (node >= 0) {
+            return true;
+        }
+        for (int i = 0; i < mUnindexed.size(); i++) {
+            if (number.startsWith(mUnindexed.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int next(int node, char c) {
+        int index = indexOf(c);
+        if (index < 0) return -1;
+        int child = mChildren[node * RADIX + index];
+        return child == 0 ? -1 : child;
+    }
+
+    private static boolean isIndexable(String number) {
+        for (int i = 0; i < number.length(); i++) {
+            if (indexOf(number.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        switch (c) {
+            case '*': return 10;
+            case '#': return 11;
+            case '+': return 12;
+            default: return -1;
+        }
+    }
+}
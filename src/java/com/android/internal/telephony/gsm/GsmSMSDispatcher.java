@@ -138,19 +138,15 @@ public final class GsmSMSDispatcher extends SMSDispatcher {
         SmsMessage sms = SmsMessage.newFromCDS(pdu);
 
         if (sms != null) {
-            int messageRef = sms.mMessageRef;
-            for (int i = 0, count = deliveryPendingList.size(); i < count; i++) {
-                SmsTracker tracker = deliveryPendingList.get(i);
-                if (tracker.mMessageRef == messageRef) {
-                    Pair<Boolean, Boolean> result = mSmsDispatchersController.handleSmsStatusReport(
-                            tracker,
-                            getFormat(),
-                            pdu);
-                    if (result.second) {
-                        deliveryPendingList.remove(i);
-                    }
-                    // Only expect to see one tracker matching this messageref
-                    break;
+            // Only expect to see one tracker matching this messageref
+            SmsTracker tracker = mDeliveryPendingList.find(sms.mMessageRef);
+            if (tracker != null) {
+                Pair<Boolean, Boolean> result = mSmsDispatchersController.handleSmsStatusReport(
+                        tracker,
+                        getFormat(),
+                        pdu);
+                if (result.second) {
+                    mDeliveryPendingList.remove(tracker);
                 }
             }
         }
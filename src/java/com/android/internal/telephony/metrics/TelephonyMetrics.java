@@ -73,6 +73,8 @@ import com.android.internal.telephony.GsmCdmaConnection;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.RIL;
 import com.android.internal.telephony.RILConstants;
+import com.android.internal.telephony.RILRequestPool;
+import com.android.internal.telephony.RilLatencyRecorder;
 import com.android.internal.telephony.SmsResponse;
 import com.android.internal.telephony.UUSInfo;
 import com.android.internal.telephony.imsphone.ImsPhoneCall;
@@ -83,6 +85,8 @@ import com.android.internal.telephony.nano.TelephonyProto.ImsCapabilities;
 import com.android.internal.telephony.nano.TelephonyProto.ImsConnectionState;
 import com.android.internal.telephony.nano.TelephonyProto.ModemPowerStats;
 import com.android.internal.telephony.nano.TelephonyProto.RilDataCall;
+import com.android.internal.telephony.nano.TelephonyProto.RilRequestLatency;
+import com.android.internal.telephony.nano.TelephonyProto.RilRequestPoolStats;
 import com.android.internal.telephony.nano.TelephonyProto.SimState;
 import com.android.internal.telephony.nano.TelephonyProto.SmsSession;
 import com.android.internal.telephony.nano.TelephonyProto.TelephonyCallSession;
@@ -706,6 +710,40 @@ public class TelephonyMetrics {
             histogramProto.bucketCounters = rilHistogram.getBucketCounters();
         }
 
+        // Build RIL request pool statistics
+        SparseArray<RILRequestPool.Stats> poolStats = RIL.getRilRequestPoolStats();
+        log.rilRequestPoolStats = new RilRequestPoolStats[poolStats.size()];
+        for (int i = 0; i < poolStats.size(); i++) {
+            RILRequestPool.Stats stats = poolStats.valueAt(i);
+            RilRequestPoolStats statsProto = new RilRequestPoolStats();
+            statsProto.phoneId = poolStats.keyAt(i);
+            statsProto.hits = stats.hits;
+            statsProto.allocations = stats.allocations;
+            statsProto.discards = stats.discards;
+            statsProto.peakInFlight = stats.peakInFlight;
+            statsProto.capacity = stats.capacity;
+            log.rilRequestPoolStats[i] = statsProto;
+        }
+
+        // Build RIL request latency percentiles
+        SparseArray<List<RilLatencyRecorder.Summary>> latencies = RIL.getRilLatencySummaries();
+        List<RilRequestLatency> latencyProtos = new ArrayList<>();
+        for (int i = 0; i < latencies.size(); i++) {
+            for (RilLatencyRecorder.Summary summary : latencies.valueAt(i)) {
+                RilRequestLatency latencyProto = new RilRequestLatency();
+                latencyProto.phoneId = latencies.keyAt(i);
+                latencyProto.request = summary.request;
+                latencyProto.phase = mapLatencyPhaseToProto(summary.phase);
+                latencyProto.count = summary.count;
+                latencyProto.p50Micros = summary.p50Micros;
+                latencyProto.p90Micros = summary.p90Micros;
+                latencyProto.p99Micros = summary.p99Micros;
+                latencyProto.maxMicros = summary.maxMicros;
+                latencyProtos.add(latencyProto);
+            }
+        }
+        log.rilRequestLatencies = latencyProtos.toArray(new RilRequestLatency[0]);
+
         // Build modem power metrics
         log.modemPowerStats = new ModemPowerMetrics().buildProto();
 
@@ -739,6 +777,19 @@ public class TelephonyMetrics {
         return log;
     }
 
+    private static int mapLatencyPhaseToProto(int phase) {
+        switch (phase) {
+            case RilLatencyRecorder.PHASE_RADIO:
+                return RilRequestLatency.PHASE_RADIO;
+            case RilLatencyRecorder.PHASE_RESPONSE:
+                return RilRequestLatency.PHASE_RESPONSE;
+            case RilLatencyRecorder.PHASE_TOTAL:
+                return RilRequestLatency.PHASE_TOTAL;
+            default:
+                return RilRequestLatency.PHASE_UNKNOWN;
+        }
+    }
+
     /** Update the sim state. */
     public void updateSimState(int phoneId, int simState) {
         int state = mapSimStateToProto(simState);
@@ -266,6 +266,16 @@ public class SimulatedCommandsVerifier implements CommandsInterface {
 
     }
 
+    @Override
+    public void registerForSmsOnSim(Handler h, int what, Object obj) {
+
+    }
+
+    @Override
+    public void unregisterForSmsOnSim(Handler h) {
+
+    }
+
     @Override
     public void setOnSmsStatus(Handler h, int what, Object obj) {
 
@@ -19,9 +19,13 @@ package com.android.internal.telephony.uicc;
 import android.annotation.UnsupportedAppUsage;
 import android.os.*;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.util.ArrayUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * {@hide}
@@ -94,6 +98,15 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int EVENT_READ_ICON_DONE = 10;
     /** Finished retrieving size of record for EFimg now. */
     static protected final int EVENT_GET_RECORD_SIZE_IMG_DONE = 11;
+    /** Finished loading an EF to store in the snapshot; post result. */
+    private static final int EVENT_SNAPSHOT_READ_DONE = 12;
+    /** Finished loading an EF to compare with the snapshot. */
+    private static final int EVENT_SNAPSHOT_CHECK_DONE = 13;
+
+    // Number of READ RECORD commands kept in flight when loading all records of an EF
+    private static final int READ_RECORD_WINDOW_DEFAULT = 4;
+    // arg2 of EVENT_READ_RECORD_DONE for reads whose failure is not retried
+    private static final int READ_RECORD_SERIAL = 1;
 
      // member variables
     @UnsupportedAppUsage
@@ -103,6 +116,46 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage
     protected final String mAid;
 
+    private int mReadRecordWindow;
+
+    // Snapshot EFs are read from and stored in between startSnapshotLoad() and
+    // finishSnapshotLoad()
+    private SimRecordSnapshot mSnapshot;
+    private boolean mSnapshotLoading;
+    private boolean mServeFromSnapshot;
+    // EFs kept in the snapshot, others are always read from the card
+    private int[] mSnapshotEfs;
+    // EFs read from the snapshot since startSnapshotLoad()
+    private final ArrayList<SimRecordSnapshot.Key> mReadFromSnapshot = new ArrayList<>();
+
+    /** EF being read from the card to store in, or compare with, the snapshot. */
+    private static class SnapshotRead {
+        final SimRecordSnapshot mSnapshot;
+        final SimRecordSnapshot.Key mKey;
+        final Message mOnLoaded;
+        final SnapshotCheck mCheck;
+
+        SnapshotRead(SimRecordSnapshot snapshot, SimRecordSnapshot.Key key, Message onLoaded,
+                SnapshotCheck check) {
+            mSnapshot = snapshot;
+            mKey = key;
+            mOnLoaded = onLoaded;
+            mCheck = check;
+        }
+    }
+
+    /** Comparison of the EFs read from a snapshot with the card. */
+    private static class SnapshotCheck {
+        int mPending;
+        boolean mChanged;
+        final Message mOnChecked;
+
+        SnapshotCheck(int pending, Message onChecked) {
+            mPending = pending;
+            mOnChecked = onChecked;
+        }
+    }
+
     static class LoadLinearFixedContext {
 
         int mEfid;
@@ -116,6 +169,15 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         @UnsupportedAppUsage
         ArrayList<byte[]> results;
 
+        // State of a load of all records, see issueRecordReads()
+        byte[][] mRecords;
+        int mNextRecord;
+        int mInFlight;
+        int mRecordsRead;
+        BitSet mRetryRecords;
+        boolean mSerial;
+        long mStartTime;
+
         @UnsupportedAppUsage
         LoadLinearFixedContext(int efid, int recordNum, Message onLoaded) {
             mEfid = efid;
@@ -139,6 +201,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
             mLoadAll = true;
             mOnLoaded = onLoaded;
             mPath = path;
+            mStartTime = SystemClock.elapsedRealtime();
         }
 
         LoadLinearFixedContext(int efid, Message onLoaded) {
@@ -147,6 +210,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
             mLoadAll = true;
             mOnLoaded = onLoaded;
             mPath = null;
+            mStartTime = SystemClock.elapsedRealtime();
         }
     }
 
@@ -157,11 +221,121 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         mParentApp = app;
         mAid = aid;
         mCi = ci;
+        mReadRecordWindow = SystemProperties.getInt("persist.radio.sim_read_window",
+                READ_RECORD_WINDOW_DEFAULT);
+    }
+
+    /**
+     * Set the number of READ RECORD commands kept in flight by {@link #loadEFLinearFixedAll};
+     * 1 reads the records one at a time.
+     */
+    @VisibleForTesting
+    public void setReadRecordWindow(int window) {
+        mReadRecordWindow = Math.max(1, window);
     }
 
     public void dispose() {
     }
 
+    /**
+     * Read the transparent EFs and single records loaded until {@link #finishSnapshotLoad}
+     * from a snapshot when they are in it, and store the others in it once read from the card.
+     *
+     * @param serve false to read all EFs from the card and only store them in the snapshot
+     * @param efs the EFs to keep in the snapshot, other EFs read meanwhile go to the card
+     */
+    void startSnapshotLoad(SimRecordSnapshot snapshot, boolean serve, int[] efs) {
+        mSnapshot = snapshot;
+        mSnapshotLoading = true;
+        mServeFromSnapshot = serve;
+        mSnapshotEfs = efs;
+        mReadFromSnapshot.clear();
+    }
+
+    /**
+     * Stop using the snapshot for loads, and save it.
+     *
+     * @return the number of EFs read from the snapshot since {@link #startSnapshotLoad}
+     */
+    int finishSnapshotLoad() {
+        if (!mSnapshotLoading) {
+            return 0;
+        }
+        mSnapshotLoading = false;
+        mSnapshot.save();
+        return mReadFromSnapshot.size();
+    }
+
+    /**
+     * Read the EFs last read from the snapshot from the card, and update the snapshot with them.
+     *
+     * @param onChecked ((AsyncResult)(onChecked.obj)).result is a Boolean, true if any of these
+     *        EFs changed on the card
+     */
+    void checkSnapshot(Message onChecked) {
+        if (mSnapshot == null || mReadFromSnapshot.isEmpty()) {
+            sendResult(onChecked, false, null);
+            return;
+        }
+        SnapshotCheck check = new SnapshotCheck(mReadFromSnapshot.size(), onChecked);
+        for (SimRecordSnapshot.Key key : mReadFromSnapshot) {
+            Message response = obtainMessage(EVENT_SNAPSHOT_CHECK_DONE,
+                    new SnapshotRead(mSnapshot, key, null, check));
+            if (key.mRecordNum == 0) {
+                readEFTransparent(key.mEfid, response);
+            } else {
+                readEFLinearFixed(key.mEfid, key.mPath, key.mRecordNum, response);
+            }
+        }
+        mReadFromSnapshot.clear();
+    }
+
+    /**
+     * Drop an EF, or all EFs if efid is 0, from the snapshot, as they changed on the card.
+     */
+    void invalidateSnapshot(int efid) {
+        if (mSnapshot == null) {
+            return;
+        }
+        if (efid == 0) {
+            mSnapshot.clear();
+        } else {
+            mSnapshot.removeEf(efid);
+        }
+        if (!mSnapshotLoading) {
+            mSnapshot.save();
+        }
+    }
+
+    /**
+     * Send the contents of an EF from the snapshot, if it is being loaded and the EF is in it.
+     *
+     * @return true if the EF was sent
+     */
+    private boolean loadFromSnapshot(SimRecordSnapshot.Key key, Message onLoaded) {
+        if (!mServeFromSnapshot || !mSnapshotLoading
+                || !ArrayUtils.contains(mSnapshotEfs, key.mEfid) || !mSnapshot.contains(key)) {
+            return false;
+        }
+        mReadFromSnapshot.add(key);
+        byte[] data = mSnapshot.get(key);
+        sendResult(onLoaded, data, data == null ? new IccFileNotFound(key.mEfid) : null);
+        return true;
+    }
+
+    /**
+     * @return the message to send an EF read from the card to, so that it is stored in the
+     *         snapshot if one is being loaded
+     */
+    private Message storeInSnapshot(SimRecordSnapshot.Key key, Message onLoaded) {
+        if (!mSnapshotLoading || !ArrayUtils.contains(mSnapshotEfs, key.mEfid)
+                || onLoaded == null) {
+            return onLoaded;
+        }
+        return obtainMessage(EVENT_SNAPSHOT_READ_DONE,
+                new SnapshotRead(mSnapshot, key, onLoaded, null));
+    }
+
     //***** Public Methods
 
     /**
@@ -178,6 +352,14 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage
     public void loadEFLinearFixed(int fileid, String path, int recordNum, Message onLoaded) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
+        SimRecordSnapshot.Key key = new SimRecordSnapshot.Key(fileid, efPath, recordNum);
+        if (loadFromSnapshot(key, onLoaded)) {
+            return;
+        }
+        readEFLinearFixed(fileid, efPath, recordNum, storeInSnapshot(key, onLoaded));
+    }
+
+    private void readEFLinearFixed(int fileid, String efPath, int recordNum, Message onLoaded) {
         Message response
                 = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, recordNum, efPath, onLoaded));
@@ -258,6 +440,10 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     /**
      * Load all records from a SIM Linear Fixed EF
      *
+     * Several records are read at once (see {@link #setReadRecordWindow}); if any of these
+     * reads fail, the remaining records are read one at a time, and the load fails only if a
+     * record cannot be read on its own.
+     *
      * @param fileid EF id
      * @param path Path of the EF on the card
      * @param onLoaded
@@ -301,6 +487,14 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
     @UnsupportedAppUsage
     public void loadEFTransparent(int fileid, Message onLoaded) {
+        SimRecordSnapshot.Key key = new SimRecordSnapshot.Key(fileid, getEFPath(fileid), 0);
+        if (loadFromSnapshot(key, onLoaded)) {
+            return;
+        }
+        readEFTransparent(fileid, storeInSnapshot(key, onLoaded));
+    }
+
+    private void readEFTransparent(int fileid, Message onLoaded) {
         Message response = obtainMessage(EVENT_GET_BINARY_SIZE_DONE,
                         fileid, 0, onLoaded);
 
@@ -369,6 +563,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     public void updateEFLinearFixed(int fileid, String path, int recordNum, byte[] data,
             String pin2, Message onComplete) {
         String efPath = (path == null) ? getEFPath(fileid) : path;
+        invalidateSnapshot(fileid);
         mCi.iccIOForApp(COMMAND_UPDATE_RECORD, fileid, efPath,
                         recordNum, READ_RECORD_MODE_ABSOLUTE, data.length,
                         IccUtils.bytesToHexString(data), pin2, mAid, onComplete);
@@ -386,6 +581,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage
     public void updateEFLinearFixed(int fileid, int recordNum, byte[] data,
             String pin2, Message onComplete) {
+        invalidateSnapshot(fileid);
         mCi.iccIOForApp(COMMAND_UPDATE_RECORD, fileid, getEFPath(fileid),
                         recordNum, READ_RECORD_MODE_ABSOLUTE, data.length,
                         IccUtils.bytesToHexString(data), pin2, mAid, onComplete);
@@ -398,6 +594,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
      */
     @UnsupportedAppUsage
     public void updateEFTransparent(int fileid, byte[] data, Message onComplete) {
+        invalidateSnapshot(fileid);
         mCi.iccIOForApp(COMMAND_UPDATE_BINARY, fileid, getEFPath(fileid),
                         0, 0, data.length,
                         IccUtils.bytesToHexString(data), null, mAid, onComplete);
@@ -420,20 +617,90 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     }
 
     private boolean processException(Message response, AsyncResult ar) {
-        IccException iccException;
-        boolean flag = false;
-        IccIoResult result = (IccIoResult) ar.result;
+        Throwable ex = getException(ar);
+        if (ex != null) {
+            sendResult(response, null, ex);
+            return true;
+        }
+        return false;
+    }
+
+    private static Throwable getException(AsyncResult ar) {
         if (ar.exception != null) {
-            sendResult(response, null, ar.exception);
-            flag = true;
+            return ar.exception;
+        }
+        return ((IccIoResult) ar.result).getException();
+    }
+
+    /**
+     * Issue the next READ RECORD commands of a load of all records: up to the window of
+     * commands in flight, or, once a read failed, one command after all others completed.
+     */
+    private void issueRecordReads(LoadLinearFixedContext lc) {
+        String path = (lc.mPath == null) ? getEFPath(lc.mEfid) : lc.mPath;
+        if (lc.mSerial || mReadRecordWindow <= 1) {
+            if (lc.mInFlight > 0) {
+                return;
+            }
+            int recordNum = lc.mRetryRecords.nextSetBit(0);
+            if (recordNum >= 0) {
+                lc.mRetryRecords.clear(recordNum);
+            } else {
+                recordNum = lc.mNextRecord++;
+            }
+            readRecord(lc, path, recordNum, READ_RECORD_SERIAL);
+        } else {
+            while (lc.mInFlight < mReadRecordWindow && lc.mNextRecord <= lc.mCountRecords) {
+                readRecord(lc, path, lc.mNextRecord++, 0);
+            }
+        }
+    }
+
+    private void readRecord(LoadLinearFixedContext lc, String path, int recordNum, int mode) {
+        lc.mInFlight++;
+        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                recordNum,
+                READ_RECORD_MODE_ABSOLUTE,
+                lc.mRecordSize, null, null, mAid,
+                obtainMessage(EVENT_READ_RECORD_DONE, recordNum, mode, lc));
+    }
+
+    private void onRecordRead(LoadLinearFixedContext lc, int recordNum, int mode,
+            AsyncResult ar) {
+        lc.mInFlight--;
+        Throwable ex = getException(ar);
+        if (ex == null) {
+            lc.mRecords[recordNum - 1] = ((IccIoResult) ar.result).payload;
+            lc.mRecordsRead++;
+        } else if (mode == READ_RECORD_SERIAL) {
+            loge("loadEFLinearFixedAll: failed to read record " + recordNum + " of EF 0x"
+                    + Integer.toHexString(lc.mEfid) + " after "
+                    + (SystemClock.elapsedRealtime() - lc.mStartTime) + " ms");
+            sendResult(lc.mOnLoaded, null, ex);
+            return;
         } else {
-            iccException = result.getException();
-            if (iccException != null) {
-                sendResult(response, null, iccException);
-                flag = true;
+            if (!lc.mSerial) {
+                loge("loadEFLinearFixedAll: reading EF 0x" + Integer.toHexString(lc.mEfid)
+                        + " one record at a time after " + ex);
+                lc.mSerial = true;
             }
+            lc.mRetryRecords.set(recordNum);
         }
-        return flag;
+
+        if (lc.mRecordsRead == lc.mCountRecords) {
+            onAllRecordsRead(lc);
+        } else {
+            issueRecordReads(lc);
+        }
+    }
+
+    private void onAllRecordsRead(LoadLinearFixedContext lc) {
+        logd("loadEFLinearFixedAll: read " + lc.mCountRecords + " records of EF 0x"
+                + Integer.toHexString(lc.mEfid) + " in "
+                + (SystemClock.elapsedRealtime() - lc.mStartTime) + " ms, window "
+                + mReadRecordWindow + (lc.mSerial ? ", serial fallback" : ""));
+        lc.results = new ArrayList<byte[]>(Arrays.asList(lc.mRecords));
+        sendResult(lc.mOnLoaded, lc.results, null);
     }
 
     //***** Overridden from Handler
@@ -511,7 +778,15 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 lc.mCountRecords = size / lc.mRecordSize;
 
                  if (lc.mLoadAll) {
-                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                     lc.mRecords = new byte[lc.mCountRecords][];
+                     lc.mRetryRecords = new BitSet();
+                     lc.mNextRecord = lc.mRecordNum;
+                     if (lc.mCountRecords == 0) {
+                         onAllRecordsRead(lc);
+                     } else {
+                         issueRecordReads(lc);
+                     }
+                     break;
                  }
 
                  if (path == null) {
@@ -565,35 +840,54 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 lc = (LoadLinearFixedContext) ar.userObj;
                 result = (IccIoResult) ar.result;
                 response = lc.mOnLoaded;
-                path = lc.mPath;
+
+                if (lc.mLoadAll) {
+                    onRecordRead(lc, msg.arg1, msg.arg2, ar);
+                    break;
+                }
 
                 if (processException(response, (AsyncResult) msg.obj)) {
                     break;
                 }
 
-                if (!lc.mLoadAll) {
-                    sendResult(response, result.payload, null);
+                sendResult(response, result.payload, null);
+            break;
+
+            case EVENT_SNAPSHOT_READ_DONE:
+                ar = (AsyncResult) msg.obj;
+                SnapshotRead read = (SnapshotRead) ar.userObj;
+                response = read.mOnLoaded;
+                if (ar.exception == null) {
+                    read.mSnapshot.put(read.mKey, (byte[]) ar.result);
+                } else if (ar.exception instanceof IccFileNotFound) {
+                    read.mSnapshot.put(read.mKey, null);
                 } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
-
-                    if (lc.mRecordNum > lc.mCountRecords) {
-                        sendResult(response, lc.results, null);
-                    } else {
-                        if (path == null) {
-                            path = getEFPath(lc.mEfid);
-                        }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
-                    }
+                    read.mSnapshot.remove(read.mKey);
                 }
+                sendResult(response, ar.result, ar.exception);
+                break;
 
-            break;
+            case EVENT_SNAPSHOT_CHECK_DONE:
+                ar = (AsyncResult) msg.obj;
+                read = (SnapshotRead) ar.userObj;
+                if (ar.exception == null) {
+                    read.mCheck.mChanged |= read.mSnapshot.put(read.mKey, (byte[]) ar.result);
+                } else if (ar.exception instanceof IccFileNotFound) {
+                    read.mCheck.mChanged |= read.mSnapshot.put(read.mKey, null);
+                } else {
+                    // Could not be checked, read it from the card next time
+                    read.mSnapshot.remove(read.mKey);
+                }
+                if (--read.mCheck.mPending == 0) {
+                    if (read.mCheck.mChanged) {
+                        logd("checkSnapshot: EFs changed on the card");
+                    }
+                    if (!mSnapshotLoading) {
+                        read.mSnapshot.save();
+                    }
+                    sendResult(read.mCheck.mOnChecked, read.mCheck.mChanged, null);
+                }
+                break;
 
             case EVENT_READ_BINARY_DONE:
             case EVENT_READ_ICON_DONE:
@@ -25,15 +25,19 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Registrant;
 import android.os.RegistrantList;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionInfo;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.MccTable;
 import com.android.internal.util.ArrayUtils;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
@@ -174,6 +178,22 @@ public abstract class IccRecords extends Handler implements IccConstants {
     @UnsupportedAppUsage
     private final Object mLock = new Object();
 
+    // Snapshot of the EFs of the card, see startSnapshotLoad(). Null while it is read on the
+    // background thread.
+    private SimRecordSnapshot mSnapshot;
+    // The card mSnapshot is, or is being read, for
+    private String mSnapshotIccId;
+    // Set when the card no longer matches the snapshot, to load the next records from the card
+    private boolean mSnapshotStale;
+    private boolean mLoadingFromSnapshot;
+    // Start of the current load of all records, or 0
+    private long mRecordsRequestedTime;
+    // Number and total duration of the loads of all records, with and without a snapshot
+    private int mLoadsFromSnapshot;
+    private long mLoadsFromSnapshotTime;
+    private int mLoadsFromCard;
+    private long mLoadsFromCardTime;
+
     CarrierTestOverride mCarrierTestOverride;
 
     //Arbitrary offset for the Handler
@@ -216,6 +236,8 @@ public abstract class IccRecords extends Handler implements IccConstants {
     public static final int EVENT_REFRESH = 31; // ICC refresh occurred
     protected static final int EVENT_APP_READY = 1;
     private static final int EVENT_AKA_AUTHENTICATE_DONE          = 90;
+    private static final int EVENT_SNAPSHOT_CHECKED = 92;
+    private static final int EVENT_SNAPSHOT_READ = 93;
 
     public static final int CALL_FORWARDING_STATUS_DISABLED = 0;
     public static final int CALL_FORWARDING_STATUS_ENABLED = 1;
@@ -283,6 +305,8 @@ public abstract class IccRecords extends Handler implements IccConstants {
 
         mCarrierTestOverride = new CarrierTestOverride();
         mCi.registerForIccRefresh(this, EVENT_REFRESH, null);
+        // Once the card status that created the application is handled, the card is known
+        post(this::readSnapshot);
     }
 
     // Override IccRecords for testing
@@ -822,6 +846,24 @@ public abstract class IccRecords extends Handler implements IccConstants {
                 }
                 break;
 
+            case EVENT_SNAPSHOT_READ:
+                SimRecordSnapshot snapshot = (SimRecordSnapshot) msg.obj;
+                // Ignore the snapshot of a card since replaced
+                if (!mDestroyed.get() && mSnapshot == null && mSnapshotIccId != null
+                        && snapshot.isOf(mSnapshotIccId, mParentApp.getAid())) {
+                    mSnapshot = snapshot;
+                }
+                break;
+
+            case EVENT_SNAPSHOT_CHECKED:
+                ar = (AsyncResult) msg.obj;
+                if (!mDestroyed.get() && ar.exception == null && (Boolean) ar.result) {
+                    log("Records changed on the card since the snapshot, reloading them");
+                    mSnapshotStale = true;
+                    onRefresh(true, null);
+                }
+                break;
+
             case EVENT_AKA_AUTHENTICATE_DONE:
                 ar = (AsyncResult)msg.obj;
                 auth_rsp = null;
@@ -908,8 +950,14 @@ public abstract class IccRecords extends Handler implements IccConstants {
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleRefresh with SIM_FILE_UPDATED");
+                mFh.invalidateSnapshot(refreshResponse.efId);
                 handleFileUpdate(refreshResponse.efId);
                 break;
+            case IccRefreshResponse.REFRESH_RESULT_INIT:
+            case IccRefreshResponse.REFRESH_RESULT_RESET:
+                if (DBG) log("handleRefresh with SIM_REFRESH_INIT or SIM_REFRESH_RESET");
+                mFh.invalidateSnapshot(0);
+                break;
             default:
                 // unknown refresh operation
                 if (DBG) log("handleRefresh with unknown operation");
@@ -921,6 +969,109 @@ public abstract class IccRecords extends Handler implements IccConstants {
 
     protected abstract void onAllRecordsLoaded();
 
+    /**
+     * Start a load of all records. The EFs read by the load are taken from the snapshot of the
+     * card if it has them, and stored in it otherwise.
+     *
+     * Subclasses call this before requesting the records, and {@link #finishSnapshotLoad}
+     * once they are all loaded. If the snapshot is still being read, the records are loaded
+     * from the card.
+     *
+     * @param snapshotEfs the EFs read by the load that can be kept in the snapshot. EFs that
+     *        change without a REFRESH, such as EF_SMS, and EF_ICCID, the key of the snapshot,
+     *        are left out.
+     */
+    protected void startSnapshotLoad(int[] snapshotEfs) {
+        mRecordsRequestedTime = SystemClock.elapsedRealtime();
+        mLoadingFromSnapshot = false;
+        boolean serve = !mSnapshotStale;
+        mSnapshotStale = false;
+        if (mFh == null || !isSnapshotEnabled()) {
+            return;
+        }
+
+        readSnapshot();
+        if (mSnapshot == null) {
+            log("Snapshot not read yet, loading the records from the card");
+            return;
+        }
+        mLoadingFromSnapshot = serve && !mSnapshot.isEmpty();
+        mFh.startSnapshotLoad(mSnapshot, serve, snapshotEfs);
+    }
+
+    private static boolean isSnapshotEnabled() {
+        return SystemProperties.getBoolean("persist.radio.sim_snapshot", true);
+    }
+
+    /**
+     * Read the snapshot of the card on the background thread, unless it is read or being read
+     * already.
+     */
+    private void readSnapshot() {
+        if (mDestroyed.get() || !isSnapshotEnabled()) {
+            return;
+        }
+        String iccId = getCardIccId();
+        if (TextUtils.isEmpty(iccId) || iccId.equals(mSnapshotIccId)) {
+            return;
+        }
+        Context context = mContext;
+        String aid = mParentApp.getAid();
+        mSnapshot = null;
+        mSnapshotIccId = iccId;
+        BackgroundThread.getHandler().post(() -> {
+            File directory = SimRecordSnapshot.getDirectory(context);
+            SimRecordSnapshot snapshot =
+                    directory == null ? null : SimRecordSnapshot.load(directory, iccId, aid);
+            if (snapshot != null) {
+                obtainMessage(EVENT_SNAPSHOT_READ, snapshot).sendToTarget();
+            }
+        });
+    }
+
+    /**
+     * Finish the load started by {@link #startSnapshotLoad}. If EFs were taken from the
+     * snapshot, they are then read from the card, and all records are loaded again if any of
+     * them changed.
+     */
+    protected void finishSnapshotLoad() {
+        if (mRecordsRequestedTime == 0) {
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mRecordsRequestedTime;
+        mRecordsRequestedTime = 0;
+        if (mLoadingFromSnapshot) {
+            mLoadsFromSnapshot++;
+            mLoadsFromSnapshotTime += elapsed;
+        } else {
+            mLoadsFromCard++;
+            mLoadsFromCardTime += elapsed;
+        }
+        if (mFh == null) {
+            return;
+        }
+
+        int fromSnapshot = mFh.finishSnapshotLoad();
+        log("Records loaded in " + elapsed + " ms, " + fromSnapshot + " EFs from snapshot");
+        if (fromSnapshot > 0) {
+            mFh.checkSnapshot(obtainMessage(EVENT_SNAPSHOT_CHECKED));
+        }
+    }
+
+    /**
+     * @return the ICCID reported in the status of the card, or null if not known
+     */
+    private String getCardIccId() {
+        try {
+            UiccCard card = UiccController.getInstance().getUiccCardForPhone(
+                    mParentApp.getPhoneId());
+            return card == null ? null : card.getIccId();
+        } catch (RuntimeException ex) {
+            // UiccController not created yet
+            return null;
+        }
+    }
+
     /**
      * Retrieves the SPN/PLMN display condition from UICC.
      *
@@ -1228,6 +1379,11 @@ public abstract class IccRecords extends Handler implements IccConstants {
         pw.println(" mRecordsRequested=" + mRecordsRequested);
         pw.println(" mLockedRecordsReqReason=" + mLockedRecordsReqReason);
         pw.println(" mRecordsToLoad=" + mRecordsToLoad);
+        pw.println(" mSnapshot=" + mSnapshot);
+        pw.println(" loadsFromSnapshot=" + mLoadsFromSnapshot + " averageMs="
+                + (mLoadsFromSnapshot == 0 ? 0 : mLoadsFromSnapshotTime / mLoadsFromSnapshot));
+        pw.println(" loadsFromCard=" + mLoadsFromCard + " averageMs="
+                + (mLoadsFromCard == 0 ? 0 : mLoadsFromCardTime / mLoadsFromCard));
         pw.println(" mRdnCache=" + mAdnCache);
 
         String iccIdToPrint = SubscriptionInfo.givePrintableIccid(mFullIccId);
@@ -47,6 +47,10 @@ public class IsimUiccRecords extends IccRecords implements IsimRecords {
     private static final int EVENT_APP_READY = 1;
     private static final int EVENT_ISIM_AUTHENTICATE_DONE          = 91;
 
+    // EFs read by fetchIsimRecords() that are kept in the snapshot of the card. The IMPI
+    // identifies the subscriber and is always read from the card.
+    private static final int[] SNAPSHOT_EFS = {EF_DOMAIN, EF_IST};
+
     // ISIM EF records (see 3GPP TS 31.103)
     @UnsupportedAppUsage
     private String mIsimImpi;               // IMS private user identity
@@ -157,6 +161,7 @@ public class IsimUiccRecords extends IccRecords implements IsimRecords {
     @UnsupportedAppUsage
     protected void fetchIsimRecords() {
         mRecordsRequested = true;
+        startSnapshotLoad(SNAPSHOT_EFS);
 
         mFh.loadEFTransparent(EF_IMPI, obtainMessage(
                 IccRecords.EVENT_GET_ICC_RECORD_DONE, new EfIsimImpiLoaded()));
@@ -315,6 +320,7 @@ public class IsimUiccRecords extends IccRecords implements IsimRecords {
     @Override
     protected void onAllRecordsLoaded() {
        if (DBG) log("record load complete");
+        finishSnapshotLoad();
         mLoaded.set(true);
         mRecordsLoadedRegistrants.notifyRegistrants(new AsyncResult(null, null, null));
     }
@@ -52,6 +52,10 @@ public class RuimRecords extends IccRecords {
 
     private boolean  mOtaCommited=false;
 
+    // EFs read by fetchRuimRecords() that are kept in the snapshot of the card. The MDN, IMSI_M
+    // and MIP user profile identify the subscriber and are always read from the card.
+    private static final int[] SNAPSHOT_EFS = {EF_PL, EF_CSIM_LI, EF_CSIM_SPN, EF_CSIM_EPRL};
+
     // ***** Instance Variables
 
     private String mMyMobileNumber;
@@ -783,6 +787,7 @@ public class RuimRecords extends IccRecords {
     @Override
     protected void onAllRecordsLoaded() {
         if (DBG) log("record load complete");
+        finishSnapshotLoad();
 
         // Further records that can be inserted are Operator/OEM dependent
 
@@ -849,6 +854,7 @@ public class RuimRecords extends IccRecords {
     @UnsupportedAppUsage
     private void fetchRuimRecords() {
         mRecordsRequested = true;
+        startSnapshotLoad(SNAPSHOT_EFS);
 
         if (DBG) log("fetchRuimRecords " + mRecordsToLoad);
 
@@ -135,6 +135,17 @@ public class SIMRecords extends IccRecords {
     private static final int CFIS_ADN_CAPABILITY_ID_OFFSET = 14;
     private static final int CFIS_ADN_EXTENSION_ID_OFFSET = 15;
 
+    // EFs read by fetchSimRecords() that are kept in the snapshot of the card. Dialling numbers
+    // (EF_MSISDN, EF_MBDN, EF_MAILBOX_CPHS, the forwarding number in EF_CFIS) and their EF_EXT
+    // records are subscriber data and are always read from the card. EF_FPLMN is left out as the
+    // modem updates it on registration rejections. EF_PNN is read by record, which the snapshot
+    // serves; EF_OPL is not read here, and whole linear fixed EFs are never served from it.
+    private static final int[] SNAPSHOT_EFS = {
+            EF_MBI, EF_AD, EF_MWIS, EF_VOICE_MAIL_INDICATOR_CPHS, EF_CFF_CPHS, EF_SPN,
+            EF_SPN_CPHS, EF_SPN_SHORT_CPHS, EF_SPDI, EF_PNN, EF_SST, EF_INFO_CPHS, EF_CSP_CPHS,
+            EF_GID1, EF_GID2, EF_PLMN_W_ACT, EF_OPLMN_W_ACT, EF_HPLMN_W_ACT, EF_EHPLMN, EF_LI,
+            EF_PL};
+
     // ***** Event Constants
     private static final int SIM_RECORD_EVENT_BASE = 0x00;
     private static final int EVENT_GET_IMSI_DONE = 3 + SIM_RECORD_EVENT_BASE;
@@ -1432,6 +1443,7 @@ public class SIMRecords extends IccRecords {
     @Override
     protected void onAllRecordsLoaded() {
         if (DBG) log("record load complete");
+        finishSnapshotLoad();
 
         setSimLanguageFromEF();
         setVoiceCallForwardingFlagFromSimRecords();
@@ -1522,6 +1534,7 @@ public class SIMRecords extends IccRecords {
     @UnsupportedAppUsage
     protected void fetchSimRecords() {
         mRecordsRequested = true;
+        startSnapshotLoad(SNAPSHOT_EFS);
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
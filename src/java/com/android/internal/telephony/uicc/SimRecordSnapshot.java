@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.telephony.Rlog;
+import android.util.AtomicFile;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Contents of the EFs read while loading the records of a card application, kept across boots
+ * so the records can be loaded again before the card answers.
+ *
+ * A snapshot belongs to one application of one card. It is stored in device encrypted storage,
+ * under a hash of the ICCID and AID salted with a random value kept per device, so the file
+ * neither holds the ICCID nor can be matched to it off the device. The records classes leave
+ * subscriber identifiers out of their snapshots. EFs not found on the card are kept as null.
+ *
+ * Not thread safe; used on the handler thread of the records once loaded. {@link #save} writes
+ * the file on the background thread.
+ */
+class SimRecordSnapshot {
+    private static final String TAG = "SimRecordSnapshot";
+
+    private static final String DIRECTORY = "sim_snapshots";
+    private static final int MAGIC = 0x53494d53; // "SIMS"
+    private static final int VERSION = 3;
+    // Snapshots of the cards last used in the device
+    private static final int MAX_SNAPSHOTS = 8;
+    // Salt of the owner hashes, created with the first snapshot
+    private static final String SALT_FILE = "salt";
+    private static final int SALT_LENGTH = 32;
+
+    /** EF, or record of a linear fixed EF, read from the card. */
+    static final class Key {
+        final int mEfid;
+        final String mPath;
+        // 1-based record number, or 0 for a transparent EF
+        final int mRecordNum;
+
+        Key(int efid, String path, int recordNum) {
+            mEfid = efid;
+            mPath = path;
+            mRecordNum = recordNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mEfid == other.mEfid && mRecordNum == other.mRecordNum
+                    && Objects.equals(mPath, other.mPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mEfid, mPath, mRecordNum);
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(mEfid)
+                    + (mRecordNum == 0 ? "" : "[" + mRecordNum + "]");
+        }
+    }
+
+    private final File mFile;
+    private final byte[] mSalt;
+    // Salted SHA-256 of the ICCID and AID
+    private final byte[] mOwnerHash;
+    private final HashMap<Key, byte[]> mFiles = new HashMap<>();
+    private boolean mDirty;
+
+    private SimRecordSnapshot(File directory, byte[] salt, byte[] ownerHash) {
+        mFile = new File(directory, IccUtils.bytesToHexString(ownerHash));
+        mSalt = salt;
+        mOwnerHash = ownerHash;
+    }
+
+    /**
+     * @return the directory of the snapshots, or null if it is not available
+     */
+    static File getDirectory(Context context) {
+        Context storageContext = context.createDeviceProtectedStorageContext();
+        if (storageContext == null || storageContext.getFilesDir() == null) {
+            return null;
+        }
+        return new File(storageContext.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Read the snapshot of an application. Reads the file, so not to be called on the main
+     * thread.
+     *
+     * @param directory the directory of the snapshots
+     * @param iccId the ICCID of the card
+     * @param aid the AID of the application
+     * @return the snapshot, empty if none was saved or it could not be read, or null if the
+     *         salt of the directory could not be read or created
+     */
+    static SimRecordSnapshot load(File directory, String iccId, String aid) {
+        byte[] salt = getSalt(directory);
+        if (salt == null) {
+            return null;
+        }
+        SimRecordSnapshot snapshot =
+                new SimRecordSnapshot(directory, salt, hashOwner(salt, iccId, aid));
+        if (!snapshot.mFile.exists()) {
+            return snapshot;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshot.mFile)))) {
+            byte[] ownerHash = new byte[snapshot.mOwnerHash.length];
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Rlog.e(TAG, "Ignoring snapshot of unknown format");
+                return snapshot;
+            }
+            in.readFully(ownerHash);
+            if (!Arrays.equals(ownerHash, snapshot.mOwnerHash)) {
+                Rlog.e(TAG, "Ignoring snapshot of another card");
+                return snapshot;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readInt(), in.readBoolean() ? in.readUTF() : null,
+                        in.readInt());
+                int length = in.readInt();
+                byte[] data = null;
+                if (length >= 0) {
+                    data = new byte[length];
+                    in.readFully(data);
+                }
+                snapshot.mFiles.put(key, data);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Rlog.e(TAG, "Failed to read snapshot: " + ex);
+            snapshot.mFiles.clear();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if this is the snapshot of the given application
+     */
+    boolean isOf(String iccId, String aid) {
+        return Arrays.equals(mOwnerHash, hashOwner(mSalt, iccId, aid));
+    }
+
+    boolean isEmpty() {
+        return mFiles.isEmpty();
+    }
+
+    boolean contains(Key key) {
+        return mFiles.containsKey(key);
+    }
+
+    /**
+     * @return a copy of the EF, or null if it was not found on the card
+     */
+    byte[] get(Key key) {
+        byte[] data = mFiles.get(key);
+        return data == null ? null : data.clone();
+    }
+
+    /**
+     * @param data the EF read from the card, or null if it was not found
+     * @return true if the EF was in the snapshot with other contents
+     */
+    boolean put(Key key, byte[] data) {
+        boolean known = mFiles.containsKey(key);
+        byte[] old = mFiles.put(key, data == null ? null : data.clone());
+        if (known && Arrays.equals(old, data)) {
+            return false;
+        }
+        mDirty = true;
+        return known;
+    }
+
+    void remove(Key key) {
+        if (mFiles.containsKey(key)) {
+            mFiles.remove(key);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drop all records of an EF.
+     */
+    void removeEf(int efid) {
+        Iterator<Key> it = mFiles.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().mEfid == efid) {
+                it.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    void clear() {
+        if (!mFiles.isEmpty()) {
+            mFiles.clear();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Write the snapshot if it changed since it was read or last written. The contents are
+     * copied now and written to the file on the background thread, in order with other saves.
+     */
+    void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        final File file = mFile;
+        final byte[] contents = mFiles.isEmpty() ? null : toByteArray();
+        BackgroundThread.getHandler().post(() -> write(file, contents));
+    }
+
+    private byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(mOwnerHash);
+            out.writeInt(mFiles.size());
+            for (Map.Entry<Key, byte[]> entry : mFiles.entrySet()) {
+                Key key = entry.getKey();
+                out.writeInt(key.mEfid);
+                out.writeBoolean(key.mPath != null);
+                if (key.mPath != null) {
+                    out.writeUTF(key.mPath);
+                }
+                out.writeInt(key.mRecordNum);
+                byte[] data = entry.getValue();
+                out.writeInt(data == null ? -1 : data.length);
+                if (data != null) {
+                    out.write(data);
+                }
+            }
+        } catch (IOException ex) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param contents the snapshot to write, or null to delete it
+     */
+    private static void write(File file, byte[] contents) {
+        if (contents == null) {
+            file.delete();
+            return;
+        }
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Rlog.e(TAG, "Failed to create " + directory);
+            return;
+        }
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream stream = null;
+        try {
+            stream = atomicFile.startWrite();
+            stream.write(contents);
+            atomicFile.finishWrite(stream);
+        } catch (IOException ex) {
+            Rlog.e(TAG, "Failed to write snapshot: " + ex);
+            if (stream != null) {
+                atomicFile.failWrite(stream);
+            }
+            return;
+        }
+        pruneSnapshots(directory);
+    }
+
+    /**
+     * Drop the snapshots of the cards used least recently.
+     */
+    private static void pruneSnapshots(File directory) {
+        File[] files = directory.listFiles(file -> !SALT_FILE.equals(file.getName()));
+        if (files == null || files.length <= MAX_SNAPSHOTS) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = MAX_SNAPSHOTS; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Read the salt of the snapshots in a directory, creating it if there is none yet.
+     *
+     * @return the salt, or null if it could not be read or written
+     */
+    private static byte[] getSalt(File directory) {
+        AtomicFile saltFile = new AtomicFile(new File(directory, SALT_FILE));
+        try {
+            byte[] salt = saltFile.readFully();
+            if (salt.length == SALT_LENGTH) {
+                return salt;
+            }
+            Rlog.e(TAG, "Replacing salt of unexpected length " + salt.length);
+        } catch (FileNotFoundException ex) {
+            // First snapshot in this directory
+        } catch (IOException ex) {
+            Rlog.e(TAG, "Failed to read salt: " + ex);
+            return null;
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Rlog.e(TAG, "Failed to create " + directory);
+            return null;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        FileOutputStream stream = null;
+        try {
+            stream = saltFile.startWrite();
+            stream.write(salt);
+            saltFile.finishWrite(stream);
+        } catch (IOException ex) {
+            Rlog.e(TAG, "Failed to write salt: " + ex);
+            if (stream != null) {
+                saltFile.failWrite(stream);
+            }
+            return null;
+        }
+        return salt;
+    }
+
+    private static byte[] hashOwner(byte[] salt, String iccId, String aid) {
+        try {
+            // Neither the file name nor its contents reveal the ICCID, and without the salt
+            // the hash cannot be checked against known ICCIDs
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest((iccId + "/" + aid).getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimRecordSnapshot{files=" + mFiles.size() + " dirty=" + mDirty + "}";
+    }
+}
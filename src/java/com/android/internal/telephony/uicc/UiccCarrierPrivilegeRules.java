@@ -33,14 +33,18 @@ import android.telephony.UiccAccessRule;
 import android.text.TextUtils;
 import android.util.LocalLog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandException;
+import com.android.internal.telephony.uicc.asn1.Asn1Decoder;
+import com.android.internal.telephony.uicc.asn1.Asn1Node;
+import com.android.internal.telephony.uicc.asn1.InvalidAsn1DataException;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -91,15 +95,18 @@ public class UiccCarrierPrivilegeRules extends Handler {
      *       DB
      */
     // Values from the data standard.
-    private static final String TAG_ALL_REF_AR_DO = "FF40";
-    private static final String TAG_REF_AR_DO = "E2";
-    private static final String TAG_REF_DO = "E1";
-    private static final String TAG_DEVICE_APP_ID_REF_DO = "C1";
-    private static final String TAG_PKG_REF_DO = "CA";
-    private static final String TAG_AR_DO = "E3";
-    private static final String TAG_PERM_AR_DO = "DB";
-    private static final String TAG_AID_REF_DO = "4F";
-    private static final String CARRIER_PRIVILEGE_AID = "FFFFFFFFFFFF";
+    private static final int TAG_ALL_REF_AR_DO = 0xFF40;
+    private static final int TAG_REF_AR_DO = 0xE2;
+    private static final int TAG_REF_DO = 0xE1;
+    private static final int TAG_DEVICE_APP_ID_REF_DO = 0xC1;
+    private static final int TAG_PKG_REF_DO = 0xCA;
+    private static final int TAG_AR_DO = 0xE3;
+    private static final int TAG_PERM_AR_DO = 0xDB;
+    private static final int TAG_AID_REF_DO = 0x4F;
+    private static final byte[] CARRIER_PRIVILEGE_AID = IccUtils.hexStringToBytes("FFFFFFFFFFFF");
+
+    // A response APDU holds up to 256 bytes of data
+    private static final int RULES_INITIAL_CAPACITY = 256;
 
     private static final int EVENT_OPEN_LOGICAL_CHANNEL_DONE = 1;
     private static final int EVENT_TRANSMIT_LOGICAL_CHANNEL_DONE = 2;
@@ -190,7 +197,9 @@ public class UiccCarrierPrivilegeRules extends Handler {
     @UnsupportedAppUsage
     private AtomicInteger mState;
     private List<UiccAccessRule> mAccessRules;
-    private String mRules;
+    // Rules read so far from the current applet
+    private byte[] mRules = new byte[RULES_INITIAL_CAPACITY];
+    private int mRulesLength;
     @UnsupportedAppUsage
     private Message mLoadedCallback;
     // LocalLog buffer to hold important status messages for debugging.
@@ -220,7 +229,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
         mState = new AtomicInteger(STATE_LOADING);
         mStatusMessage.log("Not loaded.");
         mLoadedCallback = loadedCallback;
-        mRules = "";
+        mRulesLength = 0;
         mAccessRules = new ArrayList<>();
 
         // Open logical channel with ARA_D.
@@ -476,7 +485,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
                     } else {
                         if (mAIDInUse == ARAD) {
                             // Open logical channel with ARA_M.
-                            mRules = "";
+                            mRulesLength = 0;
                             openChannel(ARAM);
                         }
                         if (mAIDInUse == ARAM) {
@@ -509,12 +518,11 @@ public class UiccCarrierPrivilegeRules extends Handler {
                     if (response.sw1 == 0x90 && response.sw2 == 0x00
                             && response.payload != null && response.payload.length > 0) {
                         try {
-                            mRules += IccUtils.bytesToHexString(response.payload)
-                                    .toUpperCase(Locale.US);
+                            appendRules(response.payload);
                             if (isDataComplete()) {
                                 //TODO: here's where AccessRules are being updated from the psim
                                 // b/139133814
-                                mAccessRules.addAll(parseRules(mRules));
+                                mAccessRules.addAll(parseRules(mRules, mRulesLength));
                                 if (mAIDInUse == ARAD) {
                                     mCheckedRules = true;
                                 } else {
@@ -527,7 +535,8 @@ public class UiccCarrierPrivilegeRules extends Handler {
                                                 mChannelId, mAIDInUse));
                                 break;
                             }
-                        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+                        } catch (IllegalArgumentException | IndexOutOfBoundsException
+                                | InvalidAsn1DataException ex) {
                             if (mAIDInUse == ARAM) {
                                 updateState(STATE_ERROR, "Error parsing rules: " + ex);
                             }
@@ -565,7 +574,7 @@ public class UiccCarrierPrivilegeRules extends Handler {
                 log("EVENT_CLOSE_LOGICAL_CHANNEL_DONE");
                 if (mAIDInUse == ARAD) {
                     // Close logical channel with ARA_D and then open logical channel with ARA_M.
-                    mRules = "";
+                    mRulesLength = 0;
                     openChannel(ARAM);
                 }
                 break;
@@ -589,48 +598,75 @@ public class UiccCarrierPrivilegeRules extends Handler {
         }
     }
 
+    private void appendRules(byte[] data) {
+        if (mRulesLength + data.length > mRules.length) {
+            mRules = Arrays.copyOf(mRules, Math.max(mRules.length * 2, mRulesLength + data.length));
+        }
+        System.arraycopy(data, 0, mRules, mRulesLength, data.length);
+        mRulesLength += data.length;
+    }
+
     /*
      * Check if all rule bytes have been read from UICC.
      * For long payload, we need to fetch it repeatly before start parsing it.
      */
     private boolean isDataComplete() {
-        log("isDataComplete mRules:" + mRules);
-        if (mRules.startsWith(TAG_ALL_REF_AR_DO)) {
-            TLV allRules = new TLV(TAG_ALL_REF_AR_DO);
-            String lengthBytes = allRules.parseLength(mRules);
-            log("isDataComplete lengthBytes: " + lengthBytes);
-            if (mRules.length() == TAG_ALL_REF_AR_DO.length() + lengthBytes.length() +
-                    allRules.length) {
-                log("isDataComplete yes");
-                return true;
-            } else {
-                log("isDataComplete no");
-                return false;
-            }
-        } else {
+        if (mRulesLength < 2 || (mRules[0] & 0xFF) != TAG_ALL_REF_AR_DO >> 8
+                || (mRules[1] & 0xFF) != (TAG_ALL_REF_AR_DO & 0xFF)) {
             throw new IllegalArgumentException("Tags don't match.");
         }
+        // Length encoding is in GPC_Specification_2.2.1: 11.1.5 APDU Message and Data Length.
+        // Length field could be either 1 byte if length < 128, or multiple bytes with first byte
+        // specifying how many bytes are used for length, followed by length bytes.
+        int offset = 2;
+        if (offset >= mRulesLength) {
+            throw new IndexOutOfBoundsException("No length.");
+        }
+        int length = mRules[offset++] & 0xFF;
+        if (length >= 0x80) {
+            int numBytes = length - 0x80;
+            if (numBytes > 3) {
+                throw new IllegalArgumentException("Length too long.");
+            }
+            if (offset + numBytes > mRulesLength) {
+                throw new IndexOutOfBoundsException("No length.");
+            }
+            length = 0;
+            for (int i = 0; i < numBytes; i++) {
+                length = (length << 8) | (mRules[offset++] & 0xFF);
+            }
+        }
+        if (DBG) log("isDataComplete length=" + length + " read=" + (mRulesLength - offset));
+        return mRulesLength == offset + length;
     }
 
     /*
-     * Parses the rules from the input string.
+     * Parses the rules from the input bytes.
      */
-    private static List<UiccAccessRule> parseRules(String rules) {
-        log("Got rules: " + rules);
-
-        TLV allRefArDo = new TLV(TAG_ALL_REF_AR_DO); //FF40
-        allRefArDo.parse(rules, true);
-
-        String arDos = allRefArDo.value;
-        List<UiccAccessRule> accessRules = new ArrayList<>();
-        while (!arDos.isEmpty()) {
-            TLV refArDo = new TLV(TAG_REF_AR_DO); //E2
-            arDos = refArDo.parse(arDos, false);
-            UiccAccessRule accessRule = parseRefArdo(refArDo.value);
+    @VisibleForTesting
+    static List<UiccAccessRule> parseRules(byte[] rules, int length)
+            throws InvalidAsn1DataException {
+        Asn1Decoder decoder = new Asn1Decoder(rules, 0, length);
+        Asn1Node allRefArDo = decoder.nextNode(); //FF40
+        if (allRefArDo.getTag() != TAG_ALL_REF_AR_DO) {
+            throw new IllegalArgumentException("Tags don't match.");
+        }
+        if (decoder.hasNextNode()) {
+            throw new IllegalArgumentException("Did not consume all.");
+        }
+
+        List<Asn1Node> refArDos = allRefArDo.getChildren();
+        List<UiccAccessRule> accessRules = new ArrayList<>(refArDos.size());
+        for (int i = 0; i < refArDos.size(); i++) {
+            Asn1Node refArDo = refArDos.get(i); //E2
+            if (refArDo.getTag() != TAG_REF_AR_DO) {
+                throw new IllegalArgumentException("Tags don't match.");
+            }
+            UiccAccessRule accessRule = parseRefArdo(refArDo);
             if (accessRule != null) {
                 accessRules.add(accessRule);
             } else {
-                Rlog.e(LOG_TAG, "Skip unrecognized rule." + refArDo.value);
+                Rlog.e(LOG_TAG, "Skip unrecognized rule " + i);
             }
         }
         return accessRules;
@@ -639,73 +675,63 @@ public class UiccCarrierPrivilegeRules extends Handler {
     /*
      * Parses a single rule.
      */
-    private static UiccAccessRule parseRefArdo(String rule) {
-        log("Got rule: " + rule);
-
-        String certificateHash = null;
+    private static UiccAccessRule parseRefArdo(Asn1Node rule) throws InvalidAsn1DataException {
+        byte[] certificateHash = null;
         String packageName = null;
-        String tmp = null;
         long accessType = 0;
 
-        while (!rule.isEmpty()) {
-            if (rule.startsWith(TAG_REF_DO)) {
-                TLV refDo = new TLV(TAG_REF_DO); //E1
-                rule = refDo.parse(rule, false);
+        List<Asn1Node> dos = rule.getChildren();
+        for (int i = 0; i < dos.size(); i++) {
+            Asn1Node node = dos.get(i);
+            if (node.getTag() == TAG_REF_DO) { //E1
+                List<Asn1Node> refDos = node.getChildren();
+                int index = 0;
                 // Allow 4F tag with a default value "FF FF FF FF FF FF" to be compatible with
                 // devices having GP access control enforcer:
                 //  - If no 4F tag is present, it's a CP rule.
                 //  - If 4F tag has value "FF FF FF FF FF FF", it's a CP rule.
                 //  - If 4F tag has other values, it's not a CP rule and Android should ignore it.
-                TLV deviceDo = new TLV(TAG_DEVICE_APP_ID_REF_DO); //C1
-                if (refDo.value.startsWith(TAG_AID_REF_DO)) {
-                    TLV cpDo = new TLV(TAG_AID_REF_DO); //4F
-                    String remain = cpDo.parse(refDo.value, false);
-                    if (!cpDo.lengthBytes.equals("06") || !cpDo.value.equals(CARRIER_PRIVILEGE_AID)
-                            || remain.isEmpty() || !remain.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
+                if (index < refDos.size() && refDos.get(index).getTag() == TAG_AID_REF_DO) { //4F
+                    if (!Arrays.equals(refDos.get(index).asBytes(), CARRIER_PRIVILEGE_AID)) {
                         return null;
                     }
-                    tmp = deviceDo.parse(remain, false);
-                    certificateHash = deviceDo.value;
-                } else if (refDo.value.startsWith(TAG_DEVICE_APP_ID_REF_DO)) {
-                    tmp = deviceDo.parse(refDo.value, false);
-                    certificateHash = deviceDo.value;
-                } else {
+                    index++;
+                }
+                if (index == refDos.size()
+                        || refDos.get(index).getTag() != TAG_DEVICE_APP_ID_REF_DO) { //C1
                     return null;
                 }
-                if (!tmp.isEmpty()) {
-                    if (!tmp.startsWith(TAG_PKG_REF_DO)) {
+                certificateHash = refDos.get(index++).asBytes();
+                packageName = null;
+                if (index < refDos.size()) {
+                    if (refDos.get(index).getTag() != TAG_PKG_REF_DO) { //CA
                         return null;
                     }
-                    TLV pkgDo = new TLV(TAG_PKG_REF_DO); //CA
-                    pkgDo.parse(tmp, true);
-                    packageName = new String(IccUtils.hexStringToBytes(pkgDo.value));
-                } else {
-                    packageName = null;
+                    if (index + 1 != refDos.size()) {
+                        throw new IllegalArgumentException("Did not consume all.");
+                    }
+                    packageName = new String(refDos.get(index).asBytes());
                 }
-            } else if (rule.startsWith(TAG_AR_DO)) {
-                TLV arDo = new TLV(TAG_AR_DO); //E3
-                rule = arDo.parse(rule, false);
-                // Skip all the irrelevant tags (All the optional tags here are two bytes
-                // according to the spec GlobalPlatform Secure Element Access Control).
-                String remain = arDo.value;
-                while (!remain.isEmpty() && !remain.startsWith(TAG_PERM_AR_DO)) {
-                    TLV tmpDo = new TLV(remain.substring(0, 2));
-                    remain = tmpDo.parse(remain, false);
+            } else if (node.getTag() == TAG_AR_DO) { //E3
+                // Skip all the irrelevant tags before the permissions.
+                List<Asn1Node> arDos = node.getChildren();
+                int index = 0;
+                while (index < arDos.size() && arDos.get(index).getTag() != TAG_PERM_AR_DO) {
+                    index++;
                 }
-                if (remain.isEmpty()) {
+                if (index == arDos.size()) {
                     return null;
                 }
-                TLV permDo = new TLV(TAG_PERM_AR_DO); //DB
-                permDo.parse(remain, true);
+                if (index + 1 != arDos.size()) { //DB
+                    throw new IllegalArgumentException("Did not consume all.");
+                }
             } else  {
                 // Spec requires it must be either TAG_REF_DO or TAG_AR_DO.
                 throw new RuntimeException("Invalid Rule type");
             }
         }
 
-        UiccAccessRule accessRule = new UiccAccessRule(
-                IccUtils.hexStringToBytes(certificateHash), packageName, accessType);
-        return accessRule;
+        return new UiccAccessRule(certificateHash, packageName, accessType);
     }
 
     /*
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream that reads from a ByteBuffer. Like a ByteArrayInputStream, reading never throws.
+ *
+ * This is the stream the {@link PduParser} reads from. It lets the parser work on a PDU held in
+ * any ByteBuffer, including a direct or memory-mapped one, and hand out part data and nested
+ * multipart bodies as views into the same buffer instead of copies.
+ */
+class PduByteBufferStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int mMark;
+
+    /**
+     * @param buffer the data between the position and limit of this buffer is read. The buffer
+     *        itself is not modified.
+     */
+    PduByteBufferStream(ByteBuffer buffer) {
+        mBuffer = buffer.slice();
+        mMark = 0;
+    }
+
+    @Override
+    public synchronized int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b) {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public synchronized long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readAheadLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+
+    /**
+     * Return a read-only view of the next bytes and advance past them.
+     *
+     * @param length number of bytes wanted
+     * @return a view of at most {@code length} bytes, fewer if the stream ends before
+     */
+    synchronized ByteBuffer slice(int length) {
+        int count = Math.max(0, Math.min(length, mBuffer.remaining()));
+        ByteBuffer view = mBuffer.duplicate();
+        view.limit(view.position() + count);
+        mBuffer.position(mBuffer.position() + count);
+        return view.slice().asReadOnlyBuffer();
+    }
+}
@@ -19,13 +19,21 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.text.TextUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -112,6 +120,12 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * Part data left out of mMessage when composing for streaming, in message order.
+     * Null when the whole message is composed in memory.
+     */
+    private ArrayList<PartDataSegment> mStreamedParts = null;
+
     /**
      * Map of all content type
      */
@@ -182,6 +196,173 @@ public class PduComposer {
         return mMessage.toByteArray();
     }
 
+    /**
+     * Make the message and write it to the given stream. Unlike {@link #make()}, part data is
+     * not buffered: the composer first determines the size of every part, composes the headers
+     * in memory, and then streams each part's data from its byte array, buffer or Uri straight
+     * into the output. The memory needed is therefore independent of the attachment sizes.
+     *
+     * @param out the stream the message is written to. It is not closed.
+     * @return true if the message was written, false if the PDU is invalid, in which case
+     *         nothing has been written
+     * @throws IOException if writing fails, or part data could not be read or changed size
+     *         while it was being written
+     */
+    public boolean make(OutputStream out) throws IOException {
+        return make(out, null);
+    }
+
+    /**
+     * Make the message and write it to the given channel at its current position. Part data
+     * stored in files is transferred without passing through the Java heap where possible.
+     *
+     * @see #make(OutputStream)
+     */
+    public boolean make(FileChannel channel) throws IOException {
+        return make(Channels.newOutputStream(channel), channel);
+    }
+
+    private boolean make(OutputStream out, FileChannel channel) throws IOException {
+        mStreamedParts = new ArrayList<PartDataSegment>();
+        try {
+            // Pass one: compose everything but the part data, which is only sized.
+            if (make() == null) {
+                return false;
+            }
+
+            // Pass two: interleave the composed bytes with the part data.
+            byte[] message = mMessage.toByteArray();
+            int written = 0;
+            for (PartDataSegment segment : mStreamedParts) {
+                out.write(message, written, segment.offset - written);
+                written = segment.offset;
+                writePartData(segment, out, channel);
+            }
+            out.write(message, written, message.length - written);
+            out.flush();
+            return true;
+        } finally {
+            mStreamedParts = null;
+        }
+    }
+
+    /**
+     * Part data to be written at a given offset of the composed message.
+     */
+    private static class PartDataSegment {
+        final int offset;
+        final PduPart part;
+        final int length;
+
+        PartDataSegment(int offset, PduPart part, int length) {
+            this.offset = offset;
+            this.part = part;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Determine the length of a part's data without loading it.
+     *
+     * @return the length, or -1 if the data is not available
+     */
+    private int getPartDataLength(PduPart part) {
+        // Data not loaded yet is sized and streamed from its Uri rather than loaded
+        ByteBuffer data = part.isDataLoaded() ? part.getDataBuffer() : null;
+        if (data != null) {
+            return data.remaining();
+        }
+
+        Uri uri = part.getDataUri();
+        if (uri == null) {
+            return -1;
+        }
+        try (ParcelFileDescriptor pfd = mResolver.openFileDescriptor(uri, "r")) {
+            long size = pfd != null ? pfd.getStatSize() : -1;
+            if (size >= 0) {
+                return size > Integer.MAX_VALUE ? -1 : (int) size;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Fall through and count the data instead.
+        }
+
+        // The size is unknown, e.g. the data comes through a pipe, so read it once.
+        try (InputStream is = mResolver.openInputStream(uri)) {
+            if (is == null) {
+                return -1;
+            }
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            long length = 0;
+            for (int len = 0; (len = is.read(buffer)) != -1; ) {
+                length += len;
+            }
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write exactly the number of bytes of part data that was accounted for when composing.
+     */
+    private void writePartData(PartDataSegment segment, OutputStream out, FileChannel channel)
+            throws IOException {
+        ByteBuffer data = segment.part.isDataLoaded() ? segment.part.getDataBuffer() : null;
+        if (data != null) {
+            if (data.remaining() != segment.length) {
+                throw new IOException("Part data changed size");
+            }
+            if (channel != null) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } else if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+                while (data.hasRemaining()) {
+                    int len = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, len);
+                    out.write(buffer, 0, len);
+                }
+            }
+            return;
+        }
+
+        try (InputStream is = mResolver.openInputStream(segment.part.getDataUri())) {
+            if (is == null) {
+                throw new IOException("Part data is not available");
+            }
+            long remaining = segment.length;
+            if (channel != null && is instanceof FileInputStream) {
+                // File to file, let the kernel copy the data.
+                FileChannel source = ((FileInputStream) is).getChannel();
+                long position = source.position();
+                while (remaining > 0) {
+                    long len = source.transferTo(position, remaining, channel);
+                    if (len <= 0) {
+                        break;
+                    }
+                    position += len;
+                    remaining -= len;
+                }
+            } else {
+                byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+                while (remaining > 0) {
+                    int len = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (len == -1) {
+                        break;
+                    }
+                    out.write(buffer, 0, len);
+                    remaining -= len;
+                }
+            }
+            if (remaining != 0) {
+                throw new IOException("Part data changed size");
+            }
+        }
+    }
+
     /**
      *  Copy buf to mMessage.
      */
@@ -995,9 +1176,15 @@ public class PduComposer {
             int headerLength = attachment.getLength();
 
             int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+            byte[] partData = mStreamedParts != null ? null : part.getData();
 
-            if (partData != null) {
+            if (mStreamedParts != null) {
+                // Only account for the data here, it is streamed out later.
+                dataLength = getPartDataLength(part);
+                if (dataLength < 0) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+            } else if (partData != null) {
                 arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
             } else {
@@ -1027,7 +1214,8 @@ public class PduComposer {
                 }
             }
 
-            if (dataLength != (attachment.getLength() - headerLength)) {
+            if (mStreamedParts == null
+                    && dataLength != (attachment.getLength() - headerLength)) {
                 throw new RuntimeException("BUG: Length sanity check failed");
             }
 
@@ -1035,6 +1223,11 @@ public class PduComposer {
             appendUintvarInteger(headerLength);
             appendUintvarInteger(dataLength);
             mStack.copy();
+
+            if (mStreamedParts != null) {
+                // The data follows the part headers just copied into the message.
+                mStreamedParts.add(new PartDataSegment(mPosition, part, dataLength));
+            }
         }
 
         return PDU_COMPOSE_SUCCESS;
@@ -1077,6 +1270,8 @@ public class PduComposer {
     private class BufferStack {
         private LengthRecordNode stack = null;
         private LengthRecordNode toCopy = null;
+        // Nodes and their buffers already copied, reused by newbuf() to avoid allocation
+        private LengthRecordNode free = null;
 
         int stackSize = 0;
 
@@ -1091,7 +1286,17 @@ public class PduComposer {
                 throw new RuntimeException("BUG: Invalid newbuf() before copy()");
             }
 
-            LengthRecordNode temp = new LengthRecordNode();
+            ByteArrayOutputStream buffer;
+            LengthRecordNode temp;
+            if (free != null) {
+                temp = free;
+                free = free.next;
+                buffer = temp.currentMessage;
+                buffer.reset();
+            } else {
+                temp = new LengthRecordNode();
+                buffer = new ByteArrayOutputStream();
+            }
 
             temp.currentMessage = mMessage;
             temp.currentPosition = mPosition;
@@ -1101,7 +1306,7 @@ public class PduComposer {
 
             stackSize = stackSize + 1;
 
-            mMessage = new ByteArrayOutputStream();
+            mMessage = buffer;
             mPosition = 0;
         }
 
@@ -1129,9 +1334,17 @@ public class PduComposer {
          *  Append current message to the message before.
          */
         void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
+            try {
+                // Write the buffer out directly instead of copying it into a new array first
+                toCopy.currentMessage.writeTo(mMessage);
+            } catch (IOException e) {
+                // Writing to a ByteArrayOutputStream does not fail
+                throw new RuntimeException(e);
+            }
+            mPosition = mPosition + toCopy.currentPosition;
 
+            toCopy.next = free;
+            free = toCopy;
             toCopy = null;
         }
 
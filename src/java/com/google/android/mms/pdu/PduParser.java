@@ -25,6 +25,7 @@ import com.google.android.mms.InvalidHeaderValueException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -56,7 +57,12 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduByteBufferStream mPduDataStream = null;
+
+    /**
+     * Whether part data are views into the pdu rather than copies.
+     */
+    private final boolean mParseInPlace;
 
     /**
      * Store pdu headers
@@ -97,8 +103,25 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new PduByteBufferStream(ByteBuffer.wrap(pduDataStream));
+        mParseContentDisposition = parseContentDisposition;
+        mParseInPlace = false;
+    }
+
+    /**
+     * Constructor for parsing in place. The pdu is read directly from the buffer, which may be
+     * direct or memory-mapped, and part data of the parsed pdu are read-only views into it
+     * (see {@link PduPart#getDataBuffer}) rather than copies, unless they need decoding. The
+     * buffer contents must therefore not change while the parsed pdu is in use.
+     *
+     * @param pduData pdu data between the buffer's position and limit; the buffer's position
+     *        is not changed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new PduByteBufferStream(pduData);
         mParseContentDisposition = parseContentDisposition;
+        mParseInPlace = true;
     }
 
     /**
@@ -233,7 +256,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    private PduHeaders parseHeaders(PduByteBufferStream pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -832,7 +855,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    private PduBody parseParts(PduByteBufferStream pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -897,34 +920,44 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
-                if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
-                    // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
-                    // take the first part of children.
-                    part = childBody.getPart(0);
-                } else {
-                    // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
+                if (mParseInPlace) {
+                    // Parsing in place, take a view of the data instead of copying it.
+                    ByteBuffer partData = pduDataStream.slice(dataLength);
+                    if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+                        // parse "multipart/vnd.wap.multipart.alternative".
+                        PduBody childBody = parseParts(new PduByteBufferStream(partData));
+                        // take the first part of children.
+                        part = childBody.getPart(0);
+                    } else if (isBinaryTransferEncoding(part)) {
+                        part.setDataBuffer(partData);
+                    } else {
+                        byte[] encodedData = new byte[partData.remaining()];
+                        partData.get(encodedData);
+                        byte[] decodedData = decodePartData(part, encodedData);
+                        if (null == decodedData) {
+                            log("Decode part data error!");
+                            return null;
                         }
+                        part.setData(decodedData);
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
+                } else {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                    if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+                        // parse "multipart/vnd.wap.multipart.alternative".
+                        PduBody childBody =
+                                parseParts(new PduByteBufferStream(ByteBuffer.wrap(partData)));
+                        // take the first part of children.
+                        part = childBody.getPart(0);
+                    } else {
+                        partData = decodePartData(part, partData);
+                        if (null == partData) {
+                            log("Decode part data error!");
+                            return null;
+                        }
+                        part.setData(partData);
                     }
-                    part.setData(partData);
                 }
             }
 
@@ -941,6 +974,46 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Check whether the part data is stored as is, i.e. needs no decoding.
+     *
+     * @param part the part whose Content-Transfer-Encoding is checked
+     * @return true if the encoding is absent or "binary"
+     */
+    private static boolean isBinaryTransferEncoding(PduPart part) {
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null == partDataEncoding) {
+            return true;
+        }
+        String encoding = new String(partDataEncoding);
+        return !encoding.equalsIgnoreCase(PduPart.P_BASE64)
+                && !encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE);
+    }
+
+    /**
+     * Decode part data according to the part's Content-Transfer-Encoding.
+     *
+     * @param part the part the data belongs to
+     * @param partData the encoded data
+     * @return the decoded data, or null if decoding failed
+     */
+    private static byte[] decodePartData(PduPart part, byte[] partData) {
+        // Check Content-Transfer-Encoding.
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null != partDataEncoding) {
+            String encoding = new String(partDataEncoding);
+            if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                // Decode "base64" into "binary".
+                return Base64.decodeBase64(partData);
+            } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                // Decode "quoted-printable" into "binary".
+                return QuotedPrintable.decodeQuotedPrintable(partData);
+            }
+        }
+        // "binary" is the default encoding.
+        return partData;
+    }
+
     /**
      * Log status.
      *
@@ -958,7 +1031,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    private static int parseUnsignedInt(PduByteBufferStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -992,7 +1065,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    private static int parseValueLength(PduByteBufferStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1021,7 +1094,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    private static EncodedStringValue parseEncodedStringValue(PduByteBufferStream pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -1066,7 +1139,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    private static byte[] parseWapString(PduByteBufferStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1188,7 +1261,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    private static byte[] getWapString(PduByteBufferStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1223,7 +1296,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    private static int extractByteValue(PduByteBufferStream pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1236,7 +1309,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    private static int parseShortInteger(PduByteBufferStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1256,7 +1329,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    private static long parseLongInteger(PduByteBufferStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1294,7 +1367,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    private static long parseIntegerValue(PduByteBufferStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1318,7 +1391,7 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    private static int skipWapValue(PduByteBufferStream pduDataStream, int length) {
         assert(null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1337,7 +1410,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    private static void parseContentTypeParams(PduByteBufferStream pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1520,7 +1593,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    private static byte[] parseContentType(PduByteBufferStream pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1591,7 +1664,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    private boolean parsePartHeaders(PduByteBufferStream pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -2008,4 +2081,116 @@ public class PduParser {
 
         return true;
     }
+
+    /*
+     * The protected parse helpers below take the ByteArrayInputStream they always took, so that
+     * subclasses keep compiling and linking. The parser itself reads through a
+     * PduByteBufferStream, so each of them copies what is left of the stream, runs the step on the
+     * copy and then advances the stream past the bytes the step consumed. This moves the mark of
+     * the stream to where the step started.
+     */
+
+    private interface ParseStep<T> {
+        T parse(PduByteBufferStream pduDataStream);
+    }
+
+    private static <T> T parseFrom(ByteArrayInputStream pduDataStream, ParseStep<T> step) {
+        if (pduDataStream == null) {
+            return step.parse(null);
+        }
+        pduDataStream.mark(0);
+        byte[] data = new byte[pduDataStream.available()];
+        pduDataStream.read(data, 0, data.length);
+        PduByteBufferStream stream = new PduByteBufferStream(ByteBuffer.wrap(data));
+        try {
+            return step.parse(stream);
+        } finally {
+            pduDataStream.reset();
+            pduDataStream.skip(data.length - stream.available());
+        }
+    }
+
+    /** @see #parseHeaders(PduByteBufferStream) */
+    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, this::parseHeaders);
+    }
+
+    /** @see #parseParts(PduByteBufferStream) */
+    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, this::parseParts);
+    }
+
+    /** @see #parseUnsignedInt(PduByteBufferStream) */
+    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseUnsignedInt);
+    }
+
+    /** @see #parseValueLength(PduByteBufferStream) */
+    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseValueLength);
+    }
+
+    /** @see #parseEncodedStringValue(PduByteBufferStream) */
+    protected static EncodedStringValue parseEncodedStringValue(
+            ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseEncodedStringValue);
+    }
+
+    /** @see #parseWapString(PduByteBufferStream, int) */
+    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+            int stringType) {
+        return parseFrom(pduDataStream, stream -> parseWapString(stream, stringType));
+    }
+
+    /** @see #getWapString(PduByteBufferStream, int) */
+    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+            int stringType) {
+        return parseFrom(pduDataStream, stream -> getWapString(stream, stringType));
+    }
+
+    /** @see #extractByteValue(PduByteBufferStream) */
+    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::extractByteValue);
+    }
+
+    /** @see #parseShortInteger(PduByteBufferStream) */
+    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseShortInteger);
+    }
+
+    /** @see #parseLongInteger(PduByteBufferStream) */
+    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseLongInteger);
+    }
+
+    /** @see #parseIntegerValue(PduByteBufferStream) */
+    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+        return parseFrom(pduDataStream, PduParser::parseIntegerValue);
+    }
+
+    /** @see #skipWapValue(PduByteBufferStream, int) */
+    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+        return parseFrom(pduDataStream, stream -> skipWapValue(stream, length));
+    }
+
+    /** @see #parseContentTypeParams(PduByteBufferStream, HashMap, Integer) */
+    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+            HashMap<Integer, Object> map, Integer length) {
+        parseFrom(pduDataStream, stream -> {
+            parseContentTypeParams(stream, map, length);
+            return null;
+        });
+    }
+
+    /** @see #parseContentType(PduByteBufferStream, HashMap) */
+    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+            HashMap<Integer, Object> map) {
+        return parseFrom(pduDataStream, stream -> parseContentType(stream, map));
+    }
+
+    /** @see #parsePartHeaders(PduByteBufferStream, PduPart, int) */
+    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+            PduPart part, int length) {
+        return parseFrom(pduDataStream, stream -> parsePartHeaders(stream, part, length));
+    }
 }
@@ -17,8 +17,16 @@
 
 package com.google.android.mms.pdu;
 
+import android.content.ContentResolver;
 import android.net.Uri;
-
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,6 +127,18 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data as a read-only view into a buffer, used instead of mPartData when the
+      * pdu was parsed in place.
+      */
+     private ByteBuffer mPartDataBuffer = null;
+
+     /**
+      * Resolver the data is read from on first access when the part was loaded lazily,
+      * null once the data has been read.
+      */
+     private volatile ContentResolver mLazyDataResolver = null;
+
      private static final String TAG = "PduPart";
 
      /**
@@ -140,14 +160,137 @@ public class PduPart {
 
          mPartData = new byte[data.length];
          System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartDataBuffer = null;
+         mLazyDataResolver = null;
+     }
+
+     /**
+      * Set the data uri and read the data from it only when it is first accessed.
+      *
+      * @param uri the uri of the data
+      * @param resolver the resolver used to read it
+      */
+     void setLazyData(Uri uri, ContentResolver resolver) {
+         mUri = uri;
+         mPartData = null;
+         mPartDataBuffer = null;
+         mLazyDataResolver = resolver;
+     }
+
+     /**
+      * @return false if the part data is yet to be read from its Uri on first access
+      */
+     public boolean isDataLoaded() {
+         return mLazyDataResolver == null;
+     }
+
+     /**
+      * Open a stream over the part data. Data that was not loaded yet is streamed from its
+      * Uri instead of being read into memory.
+      *
+      * @return the stream, or null if the part has no data
+      * @throws IOException if the data could not be opened
+      */
+     public InputStream openDataStream() throws IOException {
+         ContentResolver resolver = mLazyDataResolver;
+         if (resolver != null) {
+             return resolver.openInputStream(mUri);
+         }
+         if (mPartDataBuffer != null) {
+             return new PduByteBufferStream(mPartDataBuffer);
+         }
+         if (mPartData != null) {
+             return new ByteArrayInputStream(mPartData);
+         }
+         return null;
+     }
+
+     /**
+      * Read data that was not loaded yet from its Uri. Callers that load parts lazily should do
+      * this off the main thread, otherwise the first call to {@link #getData},
+      * {@link #getDataBuffer} or {@link #getDataLength} reads the data on the calling thread.
+      *
+      * @throws IOException if the data could not be read, the part is then left unloaded and a
+      *         later access tries again
+      */
+     public void loadData() throws IOException {
+         if (mLazyDataResolver == null) {
+             return;
+         }
+         synchronized (this) {
+             ContentResolver resolver = mLazyDataResolver;
+             if (resolver == null) {
+                 return;
+             }
+             ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             try (InputStream is = resolver.openInputStream(mUri)) {
+                 if (is == null) {
+                     throw new IOException("No data at " + mUri);
+                 }
+                 byte[] buffer = new byte[256];
+                 for (int len = 0; (len = is.read(buffer)) != -1; ) {
+                     baos.write(buffer, 0, len);
+                 }
+             }
+             mPartData = baos.toByteArray();
+             mLazyDataResolver = null;
+         }
+     }
+
+     private void loadLazyData() {
+         try {
+             loadData();
+         } catch (IOException e) {
+             Log.e(TAG, "Failed to load part data", e);
+             throw new UncheckedIOException(e);
+         }
+     }
+
+     /**
+      * Set part data without copying it. The part keeps a read-only view of the bytes between
+      * the buffer's position and limit, so the buffer contents must not change afterwards.
+      *
+      * @param data the data
+      */
+     public void setDataBuffer(ByteBuffer data) {
+         if (data == null) {
+             return;
+         }
+
+         mPartDataBuffer = data.slice().asReadOnlyBuffer();
+         mPartData = null;
+         mLazyDataResolver = null;
+     }
+
+     /**
+      * @return A read-only view of the part data or null if the data wasn't set or
+      *         the data is stored as Uri. Unlike {@link #getData} this does not copy the data.
+      * @throws UncheckedIOException if data not loaded yet could not be read
+      */
+     public ByteBuffer getDataBuffer() {
+         loadLazyData();
+         if (mPartDataBuffer != null) {
+             return mPartDataBuffer.duplicate();
+         }
+         if (mPartData != null) {
+             return ByteBuffer.wrap(mPartData).asReadOnlyBuffer();
+         }
+         return null;
      }
 
      /**
       * @return A copy of the part data or null if the data wasn't set or
       *         the data is stored as Uri.
+      * @throws UncheckedIOException if data not loaded yet could not be read
       * @see #getDataUri
       */
      public byte[] getData() {
+         loadLazyData();
+         if (mPartDataBuffer != null) {
+             byte[] byteArray = new byte[mPartDataBuffer.remaining()];
+             mPartDataBuffer.duplicate().get(byteArray);
+             return byteArray;
+         }
          if(mPartData == null) {
             return null;
          }
@@ -159,8 +302,13 @@ public class PduPart {
 
     /**
      * @return The length of the data, if this object have data, else 0.
+     * @throws UncheckedIOException if data not loaded yet could not be read
      */
      public int getDataLength() {
+         loadLazyData();
+         if (mPartDataBuffer != null) {
+             return mPartDataBuffer.remaining();
+         }
          if(mPartData != null){
              return mPartData.length;
          } else {
@@ -17,15 +17,20 @@
 
 package com.google.android.mms.pdu;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Mms.Addr;
@@ -61,6 +66,11 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is the high-level manager of PDU storage.
@@ -93,6 +103,18 @@ public class PduPersister {
     private static PduPersister sPersister;
     private static final PduCache PDU_CACHE_INSTANCE;
 
+    /**
+     * Copies the data of parts persisted in a batch, a few at a time.
+     */
+    private static final int MAX_PART_DATA_THREADS = 4;
+    private static final ThreadPoolExecutor PART_DATA_EXECUTOR = new ThreadPoolExecutor(
+            MAX_PART_DATA_THREADS, MAX_PART_DATA_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        PART_DATA_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private static final int[] ADDRESS_FIELDS = new int[] {
             PduHeaders.BCC,
             PduHeaders.CC,
@@ -354,7 +376,7 @@ public class PduPersister {
         return null;
     }
 
-    private PduPart[] loadParts(long msgId) throws MmsException {
+    private PduPart[] loadParts(long msgId, boolean lazyPartData) throws MmsException {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/part"),
                 PART_PROJECTION, null, null, null);
@@ -441,6 +463,11 @@ public class PduPersister {
                         byte [] blob = new EncodedStringValue(text != null ? text : "")
                             .getTextString();
                         baos.write(blob, 0, blob.length);
+                    } else if (lazyPartData) {
+                        // Read on first access, most callers only need the text and SMIL.
+                        part.setLazyData(partURI, mContentResolver);
+                        parts[partIdx++] = part;
+                        continue;
                     } else {
 
                         try {
@@ -524,31 +551,54 @@ public class PduPersister {
      * @throws MmsException Failed to load some fields of a PDU.
      */
     public GenericPdu load(Uri uri) throws MmsException {
+        return load(uri, false);
+    }
+
+    /**
+     * Load a PDU from storage by given Uri.
+     *
+     * @param uri The Uri of the PDU to be loaded.
+     * @param lazyPartData If true, the data of parts other than text and SMIL is not read until
+     *        it is first accessed or {@link PduPart#loadData} is called. Such a PDU is not
+     *        cached, so later eager loads never see parts with data still pending.
+     * @return A generic PDU object, it may be cast to dedicated PDU.
+     * @throws MmsException Failed to load some fields of a PDU.
+     */
+    public GenericPdu load(Uri uri, boolean lazyPartData) throws MmsException {
         GenericPdu pdu = null;
         PduCacheEntry cacheEntry = null;
         int msgBox = 0;
         long threadId = -1;
-        try {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "load: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        return cacheEntry.getPdu();
-                    }
+
+        // Cache hits do not take the cache monitor, so they never wait behind a persist or a
+        // purge of other messages
+        cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+        if (cacheEntry != null && !PDU_CACHE_INSTANCE.isUpdating(uri)) {
+            return cacheEntry.getPdu();
+        }
+
+        synchronized(PDU_CACHE_INSTANCE) {
+            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
+                try {
+                    PDU_CACHE_INSTANCE.wait();
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "load: ", e);
+                }
+            }
+            // Loaded by the caller we waited for, or by one that finished after the check above
+            cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+            if (cacheEntry != null) {
+                return cacheEntry.getPdu();
             }
+            // Tell the cache to indicate to other callers that this item
+            // is currently being updated.
+            PDU_CACHE_INSTANCE.setUpdating(uri, true);
+        }
 
+        try {
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
                     PDU_PROJECTION, null, null, null);
             PduHeaders headers = new PduHeaders();
@@ -607,7 +657,7 @@ public class PduPersister {
             // load multiparts and put them into the body of the PDU.
             if ((msgType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)
                     || (msgType == PduHeaders.MESSAGE_TYPE_SEND_REQ)) {
-                PduPart[] parts = loadParts(msgId);
+                PduPart[] parts = loadParts(msgId, lazyPartData);
                 if (parts != null) {
                     int partsNum = parts.length;
                     for (int i = 0; i < partsNum; i++) {
@@ -666,7 +716,9 @@ public class PduPersister {
             }
         } finally {
             synchronized(PDU_CACHE_INSTANCE) {
-                if (pdu != null) {
+                // A PDU with pending part data would be handed to eager loads from the cache
+                // and would not be sized right against the cache budget
+                if (pdu != null && !lazyPartData) {
                     assert(PDU_CACHE_INSTANCE.get(uri) == null);
                     // Update the cache entry with the real info
                     cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
@@ -701,6 +753,121 @@ public class PduPersister {
     public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
         Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        ContentValues values = getPartValues(part);
+        String contentType = values.getAsString(Part.CONTENT_TYPE);
+
+        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+        if (res == null) {
+            throw new MmsException("Failed to persist part, return null.");
+        }
+
+        persistData(part, res, contentType, preOpenedFiles);
+        // After successfully store the data, we should update
+        // the dataUri of the part.
+        part.setDataUri(res);
+
+        return res;
+    }
+
+    /**
+     * Persist all parts of a body. The part rows are inserted with a single batch, text parts
+     * with their text, and the data of the other parts is then copied a few parts at a time.
+     *
+     * @param body The body whose parts are saved.
+     * @param msgId The id of the message the parts belong to.
+     * @param preOpenedFiles if not null, a map of preopened InputStreams for the parts.
+     * @throws MmsException Failed to insert a part or to save its data.
+     */
+    private void persistParts(PduBody body, long msgId,
+            final HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
+        int partsNum = body.getPartsNum();
+        if (partsNum == 1) {
+            persistPart(body.getPart(0), msgId, preOpenedFiles);
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(partsNum);
+        String[] contentTypes = new String[partsNum];
+        for (int i = 0; i < partsNum; i++) {
+            PduPart part = body.getPart(i);
+            ContentValues values = getPartValues(part);
+            contentTypes[i] = values.getAsString(Part.CONTENT_TYPE);
+            if (isTextContentType(contentTypes[i])) {
+                // Saves the update persistData() would otherwise make for the text
+                byte[] data = part.getData();
+                values.put(Part.TEXT, data != null ? new EncodedStringValue(data).getString() : "");
+            }
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Mms.CONTENT_URI.getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to persist parts.", e);
+            throw new MmsException(e);
+        }
+        long insertedTime = SystemClock.elapsedRealtime();
+
+        ArrayList<Future<Void>> copies = new ArrayList<Future<Void>>(partsNum);
+        for (int i = 0; i < partsNum; i++) {
+            final PduPart part = body.getPart(i);
+            final Uri res = results[i].uri;
+            final String contentType = contentTypes[i];
+            if (res == null) {
+                throw new MmsException("Failed to persist part, return null.");
+            }
+            if (isTextContentType(contentType)) {
+                part.setDataUri(res);
+                continue;
+            }
+            copies.add(PART_DATA_EXECUTOR.submit(() -> {
+                persistData(part, res, contentType, preOpenedFiles);
+                part.setDataUri(res);
+                return null;
+            }));
+        }
+
+        // Wait for every copy, even after a failure, so that none outlives this call
+        MmsException failure = null;
+        for (Future<Void> copy : copies) {
+            try {
+                copy.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof MmsException
+                            ? (MmsException) e.getCause() : new MmsException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                if (failure == null) {
+                    failure = new MmsException(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "persistParts: " + partsNum + " parts inserted in "
+                    + (insertedTime - startTime) + "ms, " + copies.size() + " copied in "
+                    + (SystemClock.elapsedRealtime() - insertedTime) + "ms");
+        }
+    }
+
+    private static boolean isTextContentType(String contentType) {
+        return ContentType.TEXT_PLAIN.equals(contentType)
+                || ContentType.APP_SMIL.equals(contentType)
+                || ContentType.TEXT_HTML.equals(contentType);
+    }
+
+    /**
+     * Build the row of a part, without its data.
+     */
+    private ContentValues getPartValues(PduPart part) throws MmsException {
         ContentValues values = new ContentValues(8);
 
         int charset = part.getCharset();
@@ -751,17 +918,7 @@ public class PduPersister {
             values.put(Part.CONTENT_LOCATION, (String) value);
         }
 
-        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
-        if (res == null) {
-            throw new MmsException("Failed to persist part, return null.");
-        }
-
-        persistData(part, res, contentType, preOpenedFiles);
-        // After successfully store the data, we should update
-        // the dataUri of the part.
-        part.setDataUri(res);
-
-        return res;
+        return values;
     }
 
     /**
@@ -789,9 +946,7 @@ public class PduPersister {
 
         try {
             byte[] data = part.getData();
-            if (ContentType.TEXT_PLAIN.equals(contentType)
-                    || ContentType.APP_SMIL.equals(contentType)
-                    || ContentType.TEXT_HTML.equals(contentType)) {
+            if (isTextContentType(contentType)) {
                 ContentValues cv = new ContentValues();
                 if (data == null) {
                     data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
@@ -1079,7 +1234,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.getDataBuffer() != null)
                 || (!uri.equals(part.getDataUri()))) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -1340,10 +1495,12 @@ public class PduPersister {
                     // Otherwise, a slideshow with two text slides would be marked as textOnly.
                     textOnly = false;
                 }
+                if (partsNum > 0) {
+                    persistParts(body, dummyId, preOpenedFiles);
+                }
                 for (int i = 0; i < partsNum; i++) {
                     PduPart part = body.getPart(i);
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
 
                     // If we've got anything besides text/plain or SMIL part, then we've got
                     // an mms message with some other type of attachment.
@@ -19,8 +19,26 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A bounded cache. When full, entries are evicted according to the eviction policy, either the
+ * least recently used entry or the least hit one, oldest first among equals. The cache is
+ * bounded by a number of entries and, for subclasses that implement {@link #sizeOf}, a number of
+ * bytes.
+ *
+ * {@link #get} does not lock and never waits for writers. Methods that modify the cache are
+ * synchronized on the cache, so subclasses can keep their own state consistent with it by
+ * synchronizing on the cache too.
+ *
+ * Entries are kept in eviction order by access stamps in a concurrent sorted set, so a get
+ * and an eviction both cost O(log n).
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
@@ -28,37 +46,128 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    /** Evict the least recently used entry first. */
+    public static final int EVICTION_LRU = 0;
+    /** Evict the least hit entry first, the least recently used of those if several. */
+    public static final int EVICTION_LFU = 1;
+
+    private final ConcurrentHashMap<K, CacheEntry<K, V>> mCacheMap;
+    // The next victim first. May briefly hold stale stamps, which evictOne() skips.
+    private final ConcurrentSkipListSet<Stamp<K, V>> mEvictionOrder;
+    private final AtomicLong mAccessSequence = new AtomicLong(0);
+    private final int mMaxItems;
+    private final long mMaxBytes;
+    private final int mEvictionPolicy;
+
+    // Only modified while holding the cache lock
+    private volatile long mSizeInBytes;
+    private final AtomicLong mHitCount = new AtomicLong(0);
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS, Long.MAX_VALUE, EVICTION_LRU);
     }
 
-    public boolean put(K key, V value) {
+    /**
+     * @param maxItems maximum number of entries
+     * @param maxBytes maximum total of {@link #sizeOf} over all entries
+     * @param evictionPolicy {@link #EVICTION_LRU} or {@link #EVICTION_LFU}
+     */
+    protected AbstractCache(int maxItems, long maxBytes, int evictionPolicy) {
+        if (maxItems <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxItems and maxBytes must be positive");
+        }
+        if (evictionPolicy != EVICTION_LRU && evictionPolicy != EVICTION_LFU) {
+            throw new IllegalArgumentException("Unknown eviction policy " + evictionPolicy);
+        }
+        mCacheMap = new ConcurrentHashMap<K, CacheEntry<K, V>>();
+        mEvictionOrder = new ConcurrentSkipListSet<Stamp<K, V>>(
+                evictionPolicy == EVICTION_LFU ? LFU_ORDER : LRU_ORDER);
+        mMaxItems = maxItems;
+        mMaxBytes = maxBytes;
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    public synchronized boolean put(K key, V value) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
+        if (key == null) {
+            return false;
+        }
+
+        int size = sizeOf(key, value);
+        if (size > mMaxBytes) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+                Log.v(TAG, "Failed! " + key + " is larger than the cache.");
             }
             return false;
         }
 
-        if (key != null) {
-            CacheEntry<V> cacheEntry = new CacheEntry<V>();
-            cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+        CacheEntry<K, V> previous = removeEntry(key);
+        if (previous != null) {
+            entryRemoved(false, key, previous.value);
+        }
 
-            if (LOCAL_LOGV) {
-                Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+        while (!mCacheMap.isEmpty()
+                && (mCacheMap.size() >= mMaxItems || mSizeInBytes + size > mMaxBytes)) {
+            evictOne();
+        }
+
+        CacheEntry<K, V> cacheEntry =
+                new CacheEntry<K, V>(key, value, size, mAccessSequence.incrementAndGet());
+        mCacheMap.put(key, cacheEntry);
+        mEvictionOrder.add(cacheEntry.stamp.get());
+        mSizeInBytes += size;
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
+        }
+        return true;
+    }
+
+    /**
+     * Evict the first entry in eviction order, skipping stamps left behind by concurrent gets.
+     */
+    private void evictOne() {
+        Stamp<K, V> stamp;
+        while ((stamp = mEvictionOrder.pollFirst()) != null) {
+            CacheEntry<K, V> cacheEntry = stamp.entry;
+            if (cacheEntry.stamp.get() == stamp && mCacheMap.get(cacheEntry.key) == cacheEntry) {
+                evict(cacheEntry);
+                return;
             }
-            return true;
         }
-        return false;
+        // A get may have replaced a stamp without having added the new one yet
+        Iterator<CacheEntry<K, V>> it = mCacheMap.values().iterator();
+        if (it.hasNext()) {
+            evict(it.next());
+        }
+    }
+
+    private void evict(CacheEntry<K, V> cacheEntry) {
+        removeEntry(cacheEntry.key);
+        mEvictionCount.incrementAndGet();
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Evicted " + cacheEntry.key + ", hit "
+                    + cacheEntry.stamp.get().hits + " times.");
+        }
+        entryRemoved(true, cacheEntry.key, cacheEntry.value);
+    }
+
+    /**
+     * Remove an entry from the map and from the eviction order. Called with the cache lock held.
+     */
+    private CacheEntry<K, V> removeEntry(K key) {
+        CacheEntry<K, V> cacheEntry = mCacheMap.remove(key);
+        if (cacheEntry != null) {
+            mEvictionOrder.remove(cacheEntry.stamp.get());
+            mSizeInBytes -= cacheEntry.size;
+        }
+        return cacheEntry;
     }
 
     public V get(K key) {
@@ -67,24 +176,49 @@ public abstract class AbstractCache<K, V> {
         }
 
         if (key != null) {
-            CacheEntry<V> cacheEntry = mCacheMap.get(key);
+            CacheEntry<K, V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
-                cacheEntry.hit++;
+                int hit = touch(cacheEntry);
+                mHitCount.incrementAndGet();
                 if (LOCAL_LOGV) {
-                    Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
+                    Log.v(TAG, key + " hit " + hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount.incrementAndGet();
         return null;
     }
 
-    public V purge(K key) {
+    /**
+     * Move an entry to its new place in eviction order without taking the cache lock.
+     *
+     * @return the new hit count of the entry
+     */
+    private int touch(CacheEntry<K, V> cacheEntry) {
+        Stamp<K, V> previous;
+        Stamp<K, V> next;
+        do {
+            previous = cacheEntry.stamp.get();
+            next = new Stamp<K, V>(cacheEntry, previous.hits + 1,
+                    mAccessSequence.incrementAndGet());
+        } while (!cacheEntry.stamp.compareAndSet(previous, next));
+
+        mEvictionOrder.add(next);
+        mEvictionOrder.remove(previous);
+        if (mCacheMap.get(cacheEntry.key) != cacheEntry) {
+            // Removed meanwhile, do not leave the new stamp behind
+            mEvictionOrder.remove(next);
+        }
+        return next.hits;
+    }
+
+    public synchronized V purge(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to purge " + key);
         }
 
-        CacheEntry<V> v = mCacheMap.remove(key);
+        CacheEntry<K, V> v = removeEntry(key);
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -93,20 +227,101 @@ public abstract class AbstractCache<K, V> {
         return v != null ? v.value : null;
     }
 
-    public void purgeAll() {
+    public synchronized void purgeAll() {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purging cache, " + mCacheMap.size()
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mEvictionOrder.clear();
+        mSizeInBytes = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
-    private static class CacheEntry<V> {
-        int hit;
-        V value;
+    /**
+     * @return the total of {@link #sizeOf} over all entries
+     */
+    public long sizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Return the size of an entry in bytes, counted against the byte limit. By default entries
+     * have no size and only the number of entries is bounded.
+     */
+    protected int sizeOf(K key, V value) {
+        return 0;
+    }
+
+    /**
+     * Called with the cache lock held when an entry is evicted to make room, or replaced by
+     * {@link #put}. It is not called for explicit purges.
+     *
+     * @param evicted true if the entry was evicted, false if it was replaced
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue) {
+    }
+
+    private static final Comparator<Stamp<?, ?>> LRU_ORDER = new Comparator<Stamp<?, ?>>() {
+        @Override
+        public int compare(Stamp<?, ?> a, Stamp<?, ?> b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Stamp<?, ?>> LFU_ORDER = new Comparator<Stamp<?, ?>>() {
+        @Override
+        public int compare(Stamp<?, ?> a, Stamp<?, ?> b) {
+            if (a.hits != b.hits) {
+                return Integer.compare(a.hits, b.hits);
+            }
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static class CacheEntry<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        // The current stamp, replaced rather than modified so the sorted set stays consistent
+        final AtomicReference<Stamp<K, V>> stamp;
+
+        CacheEntry(K key, V value, int size, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            stamp = new AtomicReference<Stamp<K, V>>(new Stamp<K, V>(this, 0, sequence));
+        }
+    }
+
+    /**
+     * The hit count and access order of an entry at one access. Sequences are unique, so
+     * stamps are totally ordered.
+     */
+    private static class Stamp<K, V> {
+        final CacheEntry<K, V> entry;
+        final int hits;
+        final long sequence;
+
+        Stamp(CacheEntry<K, V> entry, int hits, long sequence) {
+            this.entry = entry;
+            this.hits = hits;
+            this.sequence = sequence;
+        }
     }
 }
@@ -25,6 +25,8 @@ import android.util.Log;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final String TAG = "PduCache";
@@ -44,6 +46,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final int MMS_CONVERSATION    = 10;
     private static final int MMS_CONVERSATION_ID = 11;
 
+    private static final int MAX_CACHED_ITEMS    = 500;
+    private static final long MAX_CACHED_BYTES   = 4 * 1024 * 1024;
+
     private static final UriMatcher URI_MATCHER;
     private static final HashMap<Integer, Integer> MATCH_TO_MSGBOX_ID_MAP;
 
@@ -71,14 +76,18 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         MATCH_TO_MSGBOX_ID_MAP.put(MMS_OUTBOX, Mms.MESSAGE_BOX_OUTBOX);
     }
 
+    // The indexes are only used by writers and are guarded by the cache lock. get() and
+    // isUpdating() do not take the lock, so readers of the cache, including PduPersister.load on
+    // a hit, never wait behind a persist or a purge.
     private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
     private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+    private final Set<Uri> mUpdating;
 
     private PduCache() {
+        super(MAX_CACHED_ITEMS, MAX_CACHED_BYTES, EVICTION_LRU);
         mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
         mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mUpdating = ConcurrentHashMap.newKeySet();
     }
 
     synchronized public static final PduCache getInstance() {
@@ -93,23 +102,24 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     @Override
     synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
-
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
-        }
-
         Uri finalKey = normalizeKey(uri);
+        // May evict or replace entries, which updates the indexes below
         boolean result = super.put(finalKey, entry);
         if (result) {
+            int msgBoxId = entry.getMessageBox();
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            if (msgBox == null) {
+                msgBox = new HashSet<Uri>();
+                mMessageBoxes.put(msgBoxId, msgBox);
+            }
+
+            long threadId = entry.getThreadId();
+            HashSet<Uri> thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new HashSet<Uri>();
+                mThreads.put(threadId, thread);
+            }
+
             msgBox.add(finalKey);
             thread.add(finalKey);
         }
@@ -117,7 +127,32 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
+    /**
+     * Look up an entry. Message box Uris such as content://mms/inbox/1 find the entry cached
+     * for content://mms/1, as put() stores it under that key.
+     */
+    @Override
+    public PduCacheEntry get(Uri uri) {
+        Uri finalKey = normalizeKey(uri);
+        return super.get(finalKey != null ? finalKey : uri);
+    }
+
+    @Override
+    protected int sizeOf(Uri uri, PduCacheEntry entry) {
+        return entry.getSizeInBytes();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Uri key, PduCacheEntry oldValue) {
+        // Keep the indexes in step with the cache, put() indexes a replacing entry again
+        removeFromThreads(key, oldValue);
+        removeFromMessageBoxes(key, oldValue);
+        if (LOCAL_LOGV && evicted) {
+            Log.v(TAG, "Evicted " + key + ", " + sizeInBytes() + " bytes cached.");
+        }
+    }
+
+    public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
         } else {
@@ -125,7 +160,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         }
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
+    public boolean isUpdating(Uri uri) {
         return mUpdating.contains(uri);
     }
 
@@ -232,6 +267,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.get(entry.getThreadId());
         if (thread != null) {
             thread.remove(key);
+            if (thread.isEmpty()) {
+                mThreads.remove(entry.getThreadId());
+            }
         }
     }
 
@@ -253,9 +291,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
+            if (msgBox.isEmpty()) {
+                mMessageBoxes.remove(entry.getMessageBox());
+            }
         }
     }
 }
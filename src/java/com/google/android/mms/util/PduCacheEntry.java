@@ -18,16 +18,43 @@
 package com.google.android.mms.util;
 
 import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduPart;
 
 public final class PduCacheEntry {
+    // Rough heap cost of a PDU and its headers, and of each part without its data
+    private static final int PDU_OVERHEAD_BYTES = 1024;
+    private static final int PART_OVERHEAD_BYTES = 256;
+
     private final GenericPdu mPdu;
     private final int mMessageBox;
     private final long mThreadId;
+    private final int mSizeInBytes;
 
     public PduCacheEntry(GenericPdu pdu, int msgBox, long threadId) {
         mPdu = pdu;
         mMessageBox = msgBox;
         mThreadId = threadId;
+        mSizeInBytes = estimateSize(pdu);
+    }
+
+    private static int estimateSize(GenericPdu pdu) {
+        long size = PDU_OVERHEAD_BYTES;
+        if (pdu instanceof MultimediaMessagePdu) {
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            if (body != null) {
+                for (int i = 0; i < body.getPartsNum(); i++) {
+                    // Only data held in memory counts, data behind a Uri is not loaded
+                    PduPart part = body.getPart(i);
+                    size += PART_OVERHEAD_BYTES;
+                    if (part.isDataLoaded()) {
+                        size += part.getDataLength();
+                    }
+                }
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     public GenericPdu getPdu() {
@@ -41,4 +68,11 @@ public final class PduCacheEntry {
     public long getThreadId() {
         return mThreadId;
     }
+
+    /**
+     * @return the estimated memory held by this entry, measured when it was created
+     */
+    public int getSizeInBytes() {
+        return mSizeInBytes;
+    }
 }
@@ -81,6 +81,7 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -279,6 +280,12 @@ public class ContextFixture implements TestFixture<Context> {
             return mAssetManager;
         }
 
+        @Override
+        public File getFilesDir() {
+            // Nothing is cached to disk in tests
+            return null;
+        }
+
         @Override
         public Resources getResources() {
             return mResources;
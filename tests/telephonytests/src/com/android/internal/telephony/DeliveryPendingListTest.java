@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+import com.android.internal.telephony.SMSDispatcher.SmsTracker.MultipartMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class DeliveryPendingListTest {
+    private DeliveryPendingList mList;
+
+    @Before
+    public void setUp() throws Exception {
+        mList = new DeliveryPendingList();
+    }
+
+    private static SmsTracker makeTracker(int messageRef, MultipartMessage multipartMessage) {
+        SmsTracker tracker = mock(SmsTracker.class);
+        tracker.mMessageRef = messageRef;
+        doReturn(multipartMessage).when(tracker).getMultipartMessage();
+        return tracker;
+    }
+
+    @Test
+    @SmallTest
+    public void testFindOldestWithMessageRef() {
+        SmsTracker first = makeTracker(7, null);
+        SmsTracker second = makeTracker(7, null);
+        SmsTracker other = makeTracker(8, null);
+        mList.add(first);
+        mList.add(second);
+        mList.add(other);
+
+        assertSame(first, mList.find(7));
+        mList.remove(first);
+        assertSame(second, mList.find(7));
+        mList.remove(second);
+        assertNull(mList.find(7));
+        assertSame(other, mList.find(8));
+        assertEquals(1, mList.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testMultipartMessageCountedOnce() {
+        MultipartMessage message = new MultipartMessage(2);
+        SmsTracker part1 = makeTracker(1, message);
+        SmsTracker part2 = makeTracker(2, message);
+        mList.add(part1);
+        mList.add(part2);
+        mList.add(makeTracker(3, null));
+        assertEquals(3, mList.size());
+        assertEquals(2, mList.getPendingMessageCount());
+
+        mList.remove(part1);
+        assertEquals(2, mList.getPendingMessageCount());
+        mList.remove(part2);
+        assertEquals(1, mList.getPendingMessageCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testOldestMessageDroppedWhenFull() {
+        MultipartMessage message = new MultipartMessage(2);
+        SmsTracker part1 = makeTracker(0, message);
+        SmsTracker part2 = makeTracker(1, message);
+        mList.add(part1);
+        mList.add(part2);
+        for (int i = 0; i < DeliveryPendingList.MAX_PENDING - 1; i++) {
+            mList.add(makeTracker(2 + i, null));
+        }
+
+        // Dropping the oldest part gives up on the whole message
+        assertNull(mList.find(0));
+        assertNull(mList.find(1));
+        assertEquals(DeliveryPendingList.MAX_PENDING - 1, mList.size());
+        assertEquals(DeliveryPendingList.MAX_PENDING - 1, mList.getPendingMessageCount());
+        assertEquals(DeliveryPendingList.MAX_PENDING - 1, mList.asList().size());
+    }
+
+    @Test
+    @SmallTest
+    public void testLaterPartsDroppedWithOldest() {
+        MultipartMessage message = new MultipartMessage(2);
+        SmsTracker part1 = makeTracker(0, message);
+        SmsTracker part2 = makeTracker(1, message);
+        mList.add(part1);
+        for (int i = 0; i < DeliveryPendingList.MAX_PENDING / 2; i++) {
+            mList.add(makeTracker(2 + i, null));
+        }
+        mList.add(part2);
+        SmsTracker next = makeTracker(DeliveryPendingList.MAX_PENDING, null);
+        for (int i = DeliveryPendingList.MAX_PENDING / 2; i < DeliveryPendingList.MAX_PENDING - 2;
+                i++) {
+            mList.add(makeTracker(2 + i, null));
+        }
+        mList.add(next);
+
+        // part2 was added in the middle, it goes with part1 and nothing else is dropped
+        assertNull(mList.find(0));
+        assertNull(mList.find(1));
+        assertSame(next, mList.find(DeliveryPendingList.MAX_PENDING));
+        assertEquals(DeliveryPendingList.MAX_PENDING - 1, mList.size());
+        assertEquals(DeliveryPendingList.MAX_PENDING - 1, mList.asList().size());
+        assertFalse(mList.asList().contains(part2));
+    }
+
+    @Test
+    @SmallTest
+    public void testListKeptInStep() {
+        SmsTracker first = makeTracker(1, null);
+        SmsTracker second = makeTracker(2, null);
+        mList.add(first);
+        mList.add(second);
+        assertEquals(Arrays.asList(first, second), mList.asList());
+        mList.remove(first);
+        assertEquals(Arrays.asList(second), mList.asList());
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveThroughList() {
+        SmsTracker first = makeTracker(1, null);
+        SmsTracker second = makeTracker(2, null);
+        SmsTracker third = makeTracker(3, null);
+        mList.add(first);
+        mList.add(second);
+        mList.add(third);
+        ArrayList<SmsTracker> list = mList.asList();
+
+        assertSame(first, list.remove(0));
+        assertNull(mList.find(1));
+        assertTrue(list.remove(third));
+        assertFalse(list.remove(third));
+        assertNull(mList.find(3));
+        assertEquals(1, mList.size());
+        assertEquals(Arrays.asList(second), list);
+
+        try {
+            list.set(0, first);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        list.clear();
+        assertEquals(0, mList.size());
+        assertTrue(list.isEmpty());
+    }
+}
@@ -18,18 +18,28 @@ package com.android.internal.telephony;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.telephony.SubscriptionManager;
 import android.test.mock.MockContentProvider;
 
+import java.util.ArrayList;
+
 public class FakeSmsContentProvider extends MockContentProvider {
     private static final String RAW_TABLE_NAME = "raw";
     public SQLiteOpenHelper mDbHelper = new InMemorySmsDbHelper();
+    public int mQueryCount;
+    public int mBatchCount;
 
     private static final UriMatcher sURLMatcher =
             new UriMatcher(UriMatcher.NO_MATCH);
@@ -75,11 +85,40 @@ public class FakeSmsContentProvider extends MockContentProvider {
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
                         @Nullable String selection, @Nullable String[] selectionArgs,
                         @Nullable String sortOrder) {
+        mQueryCount++;
         SQLiteDatabase db = mDbHelper.getReadableDatabase();
         return db.query(RAW_TABLE_NAME, projection, selection, selectionArgs, null, null,
                 sortOrder);
     }
 
+    /**
+     * Like SmsProvider, only the SQL selection and sort order are honoured; paging arguments such
+     * as {@link ContentResolver#QUERY_ARG_LIMIT} are ignored.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection,
+                        @Nullable Bundle queryArgs,
+                        @Nullable CancellationSignal cancellationSignal) {
+        if (queryArgs == null) {
+            return query(uri, projection, null, null, null);
+        }
+        return query(uri, projection,
+                queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SELECTION),
+                queryArgs.getStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS),
+                queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER));
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> ops)
+            throws OperationApplicationException {
+        mBatchCount++;
+        ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            results[i] = ops.get(i).apply(this, results, i);
+        }
+        return results;
+    }
+
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
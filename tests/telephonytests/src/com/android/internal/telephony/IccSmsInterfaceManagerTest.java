@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.STATUS_ON_ICC_FREE;
+import static android.telephony.SmsManager.STATUS_ON_ICC_READ;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.UserManager;
+import android.telephony.SmsManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.IccConstants;
+import com.android.internal.telephony.uicc.IccFileHandler;
+import com.android.internal.telephony.uicc.IccRefreshResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class IccSmsInterfaceManagerTest extends TelephonyTest {
+    private static final String PACKAGE = "com.android.messaging";
+    private static final long TIMEOUT = 1000;
+
+    @Mock
+    private CommandsInterface mMockCi;
+    @Mock
+    private IccFileHandler mIccFileHandler;
+
+    private IccSmsInterfaceManager mIccSmsInterfaceMgr;
+    private IccSmsInterfaceManagerHandler mIccSmsInterfaceManagerHandler;
+    private Handler mResultHandler;
+    private final List<AsyncResult> mResults = new ArrayList<>();
+    // The records of EF_SMS on the card
+    private final ArrayList<byte[]> mCardRecords = new ArrayList<>();
+
+    private class IccSmsInterfaceManagerHandler extends HandlerThread {
+        private IccSmsInterfaceManagerHandler(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mIccSmsInterfaceMgr = new IccSmsInterfaceManager(mPhone, mContext,
+                    (AppOpsManager) mContext.getSystemService(Context.APP_OPS_SERVICE),
+                    (UserManager) mContext.getSystemService(Context.USER_SERVICE),
+                    mSmsDispatchersController);
+            mResultHandler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    mResults.add((AsyncResult) msg.obj);
+                }
+            };
+            setReady(true);
+        }
+    }
+
+    private static void reply(Message response, Object result) {
+        if (response != null) {
+            AsyncResult.forMessage(response, result, null);
+            response.sendToTarget();
+        }
+    }
+
+    private static byte[] record(int status, String pdu) {
+        byte[] record = new byte[176];
+        record[0] = (byte) status;
+        byte[] bytes = pdu.getBytes();
+        System.arraycopy(bytes, 0, record, 1, bytes.length);
+        return record;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mPhone.mCi = mMockCi;
+        doReturn(mIccFileHandler).when(mPhone).getIccFileHandler();
+        doNothing().when(mContext).enforceCallingPermission(any(), any());
+
+        mCardRecords.add(record(STATUS_ON_ICC_READ, "first"));
+        mCardRecords.add(record(STATUS_ON_ICC_READ, "second"));
+        mCardRecords.add(record(STATUS_ON_ICC_FREE, ""));
+        doAnswer(invocation -> {
+            reply(invocation.getArgument(1), new ArrayList<>(mCardRecords));
+            return null;
+        }).when(mIccFileHandler).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+        doAnswer(invocation -> {
+            int index = invocation.getArgument(1);
+            reply(invocation.getArgument(2), mCardRecords.get(index - 1));
+            return null;
+        }).when(mIccFileHandler).loadEFLinearFixed(eq(IccConstants.EF_SMS), anyInt(), any());
+        doAnswer(invocation -> {
+            int index = invocation.getArgument(1);
+            mCardRecords.set(index - 1, invocation.getArgument(2));
+            reply(invocation.getArgument(4), null);
+            return null;
+        }).when(mIccFileHandler).updateEFLinearFixed(eq(IccConstants.EF_SMS), anyInt(), any(),
+                any(), any());
+        doAnswer(invocation -> {
+            int index = invocation.getArgument(0);
+            mCardRecords.set(index - 1, record(STATUS_ON_ICC_FREE, ""));
+            reply(invocation.getArgument(1), null);
+            return null;
+        }).when(mMockCi).deleteSmsOnSim(anyInt(), any());
+
+        mIccSmsInterfaceManagerHandler = new IccSmsInterfaceManagerHandler(TAG);
+        mIccSmsInterfaceManagerHandler.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mIccSmsInterfaceManagerHandler.quit();
+        super.tearDown();
+    }
+
+    /**
+     * Wait for the card replies, then for the results sent in turn by the manager.
+     */
+    private void processAllMessages() {
+        for (int i = 0; i < 3; i++) {
+            waitForHandlerAction(mIccSmsInterfaceMgr.mHandler, TIMEOUT);
+        }
+    }
+
+    private List<SmsRawData> getAllMessages() {
+        mResults.clear();
+        mIccSmsInterfaceMgr.getAllMessagesFromIccEfAsync(PACKAGE,
+                mResultHandler.obtainMessage());
+        processAllMessages();
+        assertEquals(1, mResults.size());
+        assertNull(mResults.get(0).exception);
+        return (List<SmsRawData>) mResults.get(0).result;
+    }
+
+    private void assertRecords(List<SmsRawData> sms) {
+        assertEquals(mCardRecords.size(), sms.size());
+        for (int i = 0; i < sms.size(); i++) {
+            if (mCardRecords.get(i)[0] == STATUS_ON_ICC_FREE) {
+                assertNull(sms.get(i));
+            } else {
+                assertArrayEquals(mCardRecords.get(i), sms.get(i).getBytes());
+            }
+        }
+    }
+
+    private void sendToManager(Handler h, int what, Object result) {
+        Message.obtain(h, what, new AsyncResult(null, result, null)).sendToTarget();
+        processAllMessages();
+    }
+
+    @Test
+    @SmallTest
+    public void testSmsRecordsLoadShared() {
+        mIccSmsInterfaceMgr.getAllMessagesFromIccEfAsync(PACKAGE, mResultHandler.obtainMessage());
+        mIccSmsInterfaceMgr.getAllMessagesFromIccEfAsync(PACKAGE, mResultHandler.obtainMessage());
+        processAllMessages();
+        assertEquals(2, mResults.size());
+        for (AsyncResult ar : mResults) {
+            assertRecords((List<SmsRawData>) ar.result);
+        }
+        verify(mIccFileHandler, times(1)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+
+        // Later callers get the copy without reading the card
+        assertRecords(getAllMessages());
+        assertRecords(mIccSmsInterfaceMgr.getAllMessagesFromIccEf(PACKAGE));
+        verify(mIccFileHandler, times(1)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+    }
+
+    @Test
+    @SmallTest
+    public void testSmsRecordsFollowUpdates() {
+        assertRecords(getAllMessages());
+
+        assertTrue(mIccSmsInterfaceMgr.updateMessageOnIccEf(PACKAGE, 3, STATUS_ON_ICC_READ,
+                "third".getBytes()));
+        assertTrue(mIccSmsInterfaceMgr.updateMessageOnIccEf(PACKAGE, 1, STATUS_ON_ICC_FREE,
+                null));
+
+        List<SmsRawData> sms = getAllMessages();
+        assertNull(sms.get(0));
+        assertArrayEquals(mIccSmsInterfaceMgr.makeSmsRecordData(STATUS_ON_ICC_READ,
+                "third".getBytes()), sms.get(2).getBytes());
+        assertRecords(sms);
+        verify(mIccFileHandler, times(1)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+        verify(mIccFileHandler, never()).loadEFLinearFixed(eq(IccConstants.EF_SMS), anyInt(),
+                any());
+    }
+
+    @Test
+    @SmallTest
+    public void testSmsRecordsInvalidatedByRefresh() {
+        ArgumentCaptor<Handler> handler = ArgumentCaptor.forClass(Handler.class);
+        ArgumentCaptor<Integer> what = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockCi).registerForIccRefresh(handler.capture(), what.capture(), any());
+        assertRecords(getAllMessages());
+
+        // A refresh of another file keeps the copy
+        IccRefreshResponse refresh = new IccRefreshResponse();
+        refresh.refreshResult = IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE;
+        refresh.efId = IccConstants.EF_MSISDN;
+        sendToManager(handler.getValue(), what.getValue(), refresh);
+        assertRecords(getAllMessages());
+        verify(mIccFileHandler, times(1)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+
+        // A refresh of EF_SMS reads it again
+        refresh.efId = IccConstants.EF_SMS;
+        mCardRecords.set(2, record(STATUS_ON_ICC_READ, "third"));
+        sendToManager(handler.getValue(), what.getValue(), refresh);
+        assertRecords(getAllMessages());
+        verify(mIccFileHandler, times(2)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+    }
+
+    @Test
+    @SmallTest
+    public void testSmsOnSimReloadsOneRecord() {
+        // SIMRecords keeps the single setOnSmsOnSim handler
+        verify(mMockCi, never()).setOnSmsOnSim(any(), anyInt(), any());
+        ArgumentCaptor<Handler> handler = ArgumentCaptor.forClass(Handler.class);
+        ArgumentCaptor<Integer> what = ArgumentCaptor.forClass(Integer.class);
+        verify(mMockCi).registerForSmsOnSim(handler.capture(), what.capture(), any());
+        assertRecords(getAllMessages());
+
+        // The card stored a new message in the free record
+        mCardRecords.set(2, record(STATUS_ON_ICC_READ, "third"));
+        sendToManager(handler.getValue(), what.getValue(), 3);
+
+        assertRecords(getAllMessages());
+        verify(mIccFileHandler, times(1)).loadEFLinearFixedAll(eq(IccConstants.EF_SMS), any());
+        verify(mIccFileHandler, times(1)).loadEFLinearFixed(eq(IccConstants.EF_SMS), anyInt(),
+                any());
+        verify(mIccFileHandler).loadEFLinearFixed(eq(IccConstants.EF_SMS), eq(3), any());
+    }
+}
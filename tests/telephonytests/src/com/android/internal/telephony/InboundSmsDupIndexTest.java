@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InboundSmsDupIndexTest {
+    private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+    private static final String ADDRESS = "1234567890";
+
+    private FakeSmsContentProvider mContentProvider;
+    private MockContentResolver mResolver;
+    private InboundSmsDupIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mContentProvider = new FakeSmsContentProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        mIndex = new InboundSmsDupIndex();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+    }
+
+    private static InboundSmsTracker makeTracker(int sequenceNumber, int messageCount,
+            long timestamp, String messageBody) {
+        return new InboundSmsTracker(new byte[] {1, 2, 3}, timestamp, -1, false, ADDRESS,
+                ADDRESS, 42, sequenceNumber, messageCount, false, messageBody, false, 0);
+    }
+
+    @Test
+    @SmallTest
+    public void testRebuildFromRawTable() {
+        InboundSmsTracker stored = makeTracker(1, 2, 1000, "first");
+        InboundSmsTracker processed = makeTracker(1, 1, 2000, "second");
+        mContentProvider.insert(sRawUri, stored.getContentValues());
+        ContentValues values = processed.getContentValues();
+        values.put("deleted", 1);
+        mContentProvider.insert(sRawUri, values);
+
+        // Nothing can be answered before the raw table has been read
+        assertEquals(InboundSmsDupIndex.UNKNOWN, mIndex.lookupExact(stored));
+
+        mIndex.rebuild(mResolver, sRawUri);
+        assertTrue(mIndex.isReady());
+        assertEquals(InboundSmsDupIndex.PRESENT, mIndex.lookupExact(stored));
+        assertEquals(InboundSmsDupIndex.PRESENT, mIndex.lookupExact(processed));
+        assertEquals(InboundSmsDupIndex.PRESENT, mIndex.lookupInexact(stored));
+        assertEquals(InboundSmsDupIndex.ABSENT,
+                mIndex.lookupExact(makeTracker(1, 1, 2001, "second")));
+        assertEquals(1, mIndex.getFallbackCount());
+        assertEquals(3, mIndex.getHitCount());
+        assertEquals(1, mIndex.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testInexactMatch() {
+        mIndex.rebuild(mResolver, sRawUri);
+        mIndex.add(makeTracker(2, 3, 1000, "part"));
+
+        // A retransmission with a new timestamp is not an exact match, but conflicts
+        InboundSmsTracker retransmitted = makeTracker(2, 3, 5000, "part");
+        assertEquals(InboundSmsDupIndex.ABSENT, mIndex.lookupExact(retransmitted));
+        assertEquals(InboundSmsDupIndex.PRESENT, mIndex.lookupInexact(retransmitted));
+        assertEquals(InboundSmsDupIndex.ABSENT, mIndex.lookupInexact(makeTracker(3, 3, 5000,
+                "part")));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictedEntriesFallBackToDatabase() {
+        mIndex.rebuild(mResolver, sRawUri);
+        InboundSmsTracker first = makeTracker(1, 1, 0, "body");
+        mIndex.add(first);
+        for (int i = 1; i <= InboundSmsDupIndex.MAX_ENTRIES; i++) {
+            mIndex.add(makeTracker(1, 1, i, "body"));
+        }
+
+        // The evicted entry must not be reported as absent
+        assertEquals(InboundSmsDupIndex.UNKNOWN, mIndex.lookupExact(first));
+        assertEquals(InboundSmsDupIndex.PRESENT,
+                mIndex.lookupExact(makeTracker(1, 1, InboundSmsDupIndex.MAX_ENTRIES, "body")));
+
+        mIndex.invalidate();
+        assertFalse(mIndex.isReady());
+        assertEquals(InboundSmsDupIndex.UNKNOWN,
+                mIndex.lookupExact(makeTracker(1, 1, InboundSmsDupIndex.MAX_ENTRIES, "body")));
+    }
+}
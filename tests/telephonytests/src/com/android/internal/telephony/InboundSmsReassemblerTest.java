@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InboundSmsReassemblerTest {
+    private static final String FAKE_ADDRESS = "1234567890";
+    private static final int FAKE_SUBID = 0;
+
+    private InboundSmsReassembler mReassembler;
+
+    @Before
+    public void setUp() throws Exception {
+        mReassembler = new InboundSmsReassembler();
+    }
+
+    private static InboundSmsTracker makeTracker(String address, int referenceNumber,
+            int sequenceNumber, int messageCount, boolean is3gpp2WapPdu) {
+        return new InboundSmsTracker(new byte[]{(byte) sequenceNumber}, sequenceNumber, -1,
+                is3gpp2WapPdu, address, address, referenceNumber, sequenceNumber, messageCount,
+                is3gpp2WapPdu, "body", false /* isClass0 */, FAKE_SUBID);
+    }
+
+    private static InboundSmsReassembler.Segment makeSegment(InboundSmsTracker tracker) {
+        return new InboundSmsReassembler.Segment(tracker.getPdu(), tracker.getTimestamp(),
+                tracker.getDisplayAddress(), tracker.getDestPort());
+    }
+
+    private InboundSmsReassembler.Segment[] add(InboundSmsTracker tracker) {
+        return mReassembler.addSegment(tracker,
+                tracker.getSequenceNumber() - tracker.getIndexOffset(), makeSegment(tracker));
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsCompleteInAnyOrder() {
+        InboundSmsTracker part3 = makeTracker(FAKE_ADDRESS, 1, 3, 3, false);
+        assertNull(add(part3));
+        assertTrue(mReassembler.hasMessage(part3));
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 1, 3, false)));
+        // A repeated segment replaces the earlier copy and does not complete the message
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 1, 3, false)));
+
+        InboundSmsReassembler.Segment[] segments = add(makeTracker(FAKE_ADDRESS, 1, 2, 3, false));
+        assertNotNull(segments);
+        for (int i = 0; i < segments.length; i++) {
+            assertEquals(i + 1, segments[i].pdu[0]);
+        }
+        // Complete messages are handed over and no longer held
+        assertFalse(mReassembler.hasMessage(part3));
+        assertEquals(0, mReassembler.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testMessagesAreKeptApart() {
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 1, 2, false)));
+        // Same address and reference number but a 3GPP2 WAP PDU, or another count or sender
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 1, 2, true)));
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 2, 3, false)));
+        assertNull(add(makeTracker("0987654321", 1, 2, 2, false)));
+        assertEquals(4, mReassembler.size());
+
+        assertNotNull(add(makeTracker(FAKE_ADDRESS, 1, 2, 2, false)));
+        assertEquals(3, mReassembler.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testOldestMessageEvicted() {
+        for (int ref = 0; ref <= InboundSmsReassembler.MAX_MESSAGES; ref++) {
+            assertNull(add(makeTracker(FAKE_ADDRESS, ref, 1, 2, false)));
+        }
+        assertEquals(InboundSmsReassembler.MAX_MESSAGES, mReassembler.size());
+        assertFalse(mReassembler.hasMessage(makeTracker(FAKE_ADDRESS, 0, 1, 2, false)));
+        assertTrue(mReassembler.hasMessage(makeTracker(FAKE_ADDRESS, 1, 1, 2, false)));
+    }
+
+    @Test
+    @SmallTest
+    public void testRawTableDeletesDropSegments() {
+        InboundSmsTracker part1 = makeTracker(FAKE_ADDRESS, 1, 1, 2, false);
+        assertNull(add(part1));
+
+        // e.g. SmsBroadcastUndelivered deleted the expired segments of the message
+        InboundSmsReassembler.onRawTableRowsDeleted();
+        assertFalse(mReassembler.hasMessage(part1));
+        assertEquals(0, mReassembler.size());
+
+        // The second segment alone does not complete the message, which is read again
+        assertNull(add(makeTracker(FAKE_ADDRESS, 1, 2, 2, false)));
+        assertNotNull(add(part1));
+
+        // A reassembler created after the delete keeps its segments
+        InboundSmsReassembler reassembler = new InboundSmsReassembler();
+        reassembler.addSegment(part1, 0, makeSegment(part1));
+        assertTrue(reassembler.hasMessage(part1));
+    }
+
+    /**
+     * Drives a flood of interleaved multi-part messages through the reassembler, the work the
+     * handler previously did with one raw table query per arriving segment.
+     */
+    @Test
+    @LargeTest
+    public void testMultipartFlood() {
+        final int messages = InboundSmsReassembler.MAX_MESSAGES;
+        final int messageCount = 10;
+        final int rounds = 200;
+        InboundSmsTracker[][] trackers = new InboundSmsTracker[messages][messageCount];
+        for (int ref = 0; ref < messages; ref++) {
+            for (int seq = 1; seq <= messageCount; seq++) {
+                trackers[ref][seq - 1] = makeTracker(FAKE_ADDRESS, ref, seq, messageCount, false);
+            }
+        }
+
+        int completed = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int seq = 0; seq < messageCount; seq++) {
+                for (int ref = 0; ref < messages; ref++) {
+                    InboundSmsReassembler.Segment[] segments = add(trackers[ref][seq]);
+                    if (segments != null) {
+                        assertSame(trackers[ref][0].getPdu(), segments[0].pdu);
+                        completed++;
+                    }
+                }
+            }
+            // Every message completes within its round, nothing is left pending
+            assertEquals(0, mReassembler.size());
+        }
+        assertEquals(rounds * messages, completed);
+        assertEquals(0, mReassembler.size());
+    }
+}
@@ -97,4 +97,19 @@ public class InboundSmsTrackerTest {
         mInboundSmsTracker = new InboundSmsTracker(createFakeCursor(), false);
         testInitialization();
     }
+
+    @Test
+    @SmallTest
+    public void testPduStoredAsHex() {
+        assertEquals(HexDump.toHexString(FAKE_PDU),
+                mInboundSmsTracker.getContentValues().getAsString("pdu"));
+
+        // Both forms are read back
+        MatrixCursor mc = new MatrixCursor(new String[]{"pdu"});
+        mc.addRow(new Object[]{FAKE_PDU});
+        mc.addRow(new Object[]{HexDump.toHexString(FAKE_PDU)});
+        while (mc.moveToNext()) {
+            assertTrue(Arrays.equals(FAKE_PDU, InboundSmsTracker.getPdu(mc, 0)));
+        }
+    }
 }
\ No newline at end of file
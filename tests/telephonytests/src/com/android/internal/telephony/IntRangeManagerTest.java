@@ -1161,4 +1161,111 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    @Test @SmallTest
+    public void testAddChannelStartingAtEndOfRange() {
+        // new [3, 5] existing [1, 3]
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 3, "client1"));
+        testManager.reset();
+        assertTrue("enabling range 2", testManager.enableRange(3, 5, "client2"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 4, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+    }
+
+    @Test @SmallTest
+    public void testAddChannelJoiningSeveralRanges() {
+        // new [3, 10] existing [1, 2] [5, 6] [8, 12]
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 2, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(5, 6, "client1"));
+        assertTrue("enabling range 3", testManager.enableRange(8, 12, "client1"));
+        testManager.reset();
+        assertTrue("enabling range 4", testManager.enableRange(3, 10, "client2"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 3, 7, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 12, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+    }
+
+    @Test @SmallTest
+    public void testAddSameChannelAfterOtherClient() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 5, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(1, 5, "client2"));
+        assertTrue("enabling range 3", testManager.enableRange(1, 5, "client2"));
+        testManager.reset();
+        // a single disable removes the range of client2
+        assertTrue("disabling range 1", testManager.disableRange(1, 5, "client1"));
+        assertTrue("disabling range 2", testManager.disableRange(1, 5, "client2"));
+        assertFalse("disabling range 3", testManager.disableRange(1, 5, "client2"));
+        assertTrue("range manager empty", testManager.isEmpty());
+    }
+
+    @Test @SmallTest
+    public void testBatchUpdate() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(100, 120, "client1"));
+        testManager.reset();
+        testManager.startBatch();
+        assertTrue("enabling range 2", testManager.enableRange(200, 250, "client1"));
+        assertTrue("enabling range 3", testManager.enableRange(121, 150, "client2"));
+        assertTrue("enabling range 4", testManager.enableRange(300, 300, "client2"));
+        assertTrue("disabling range 4", testManager.disableRange(300, 300, "client2"));
+        assertEquals("flags in batch", 0, testManager.flags);
+        assertTrue("finishing batch", testManager.finishBatch());
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 100, 150, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), 200, 250, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // no radio update when the enabled ranges do not change
+        testManager.reset();
+        testManager.startBatch();
+        assertTrue("enabling range 5", testManager.enableRange(400, 410, "client1"));
+        assertTrue("disabling range 5", testManager.disableRange(400, 410, "client1"));
+        assertTrue("enabling range 6", testManager.enableRange(110, 130, "client3"));
+        assertTrue("finishing batch", testManager.finishBatch());
+        assertEquals("flags after test", 0, testManager.flags);
+    }
+
+    @Test @SmallTest
+    public void testBatchUpdateFailure() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(100, 120, "client1"));
+        testManager.startBatch();
+        assertTrue("disabling range 1", testManager.disableRange(100, 120, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(200, 250, "client1"));
+        testManager.finishUpdateReturnValue = false;
+        assertFalse("finishing batch", testManager.finishBatch());
+
+        // the ranges are restored
+        testManager.finishUpdateReturnValue = true;
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 100, 120, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        testManager.startBatch();
+        assertTrue("enabling range 2", testManager.enableRange(200, 250, "client1"));
+        testManager.cancelBatch();
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        assertTrue("disabling range 1", testManager.disableRange(100, 120, "client1"));
+        assertTrue("range manager empty", testManager.isEmpty());
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.os.WorkSource;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RILRequestPoolTest {
+    private RILRequestPool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mPool = new RILRequestPool();
+    }
+
+    @Test
+    @SmallTest
+    public void testReuseAndCounters() {
+        RILRequest rr = RILRequest.obtain(mPool, 1, null, new WorkSource());
+        rr.release();
+        RILRequest reused = RILRequest.obtain(mPool, 2, null, new WorkSource());
+        assertSame(rr, reused);
+
+        RILRequestPool.Stats stats = mPool.getStats();
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.allocations);
+        assertEquals(50, stats.getHitRatePercent());
+    }
+
+    @Test
+    @SmallTest
+    public void testReleaseClearsReferences() {
+        WorkSource ws = new WorkSource();
+        ws.add(1, "a");
+        RILRequest rr = RILRequest.obtain(mPool, 1, null, ws);
+        assertEquals("1:a", rr.mClientId);
+        rr.release();
+        assertNull(rr.mWorkSource);
+        assertNull(rr.mClientId);
+        assertNull(rr.mResult);
+        assertEquals(RIL.INVALID_WAKELOCK, rr.mWakeLockType);
+
+        // A second release must not put the same instance into the pool twice
+        rr.release();
+        assertEquals(1, mPool.getStats().pooled);
+    }
+
+    @Test
+    @SmallTest
+    public void testCapacityFollowsPeakInFlight() {
+        assertEquals(RILRequestPool.MIN_CAPACITY, mPool.getCapacity());
+        mPool.onInFlight(20);
+        mPool.onInFlight(10);
+        assertEquals(20, mPool.getCapacity());
+        mPool.onInFlight(RILRequestPool.MAX_CAPACITY * 2);
+        assertEquals(RILRequestPool.MAX_CAPACITY, mPool.getCapacity());
+
+        mPool = new RILRequestPool();
+        RILRequest[] requests = new RILRequest[RILRequestPool.MIN_CAPACITY + 2];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = RILRequest.obtain(mPool, i, null, new WorkSource());
+        }
+        for (RILRequest rr : requests) {
+            rr.release();
+        }
+        RILRequestPool.Stats stats = mPool.getStats();
+        assertEquals(RILRequestPool.MIN_CAPACITY, stats.pooled);
+        assertEquals(2, stats.discards);
+    }
+
+    @Test
+    @SmallTest
+    public void testAcquireFindsObjectAboveHole() {
+        RILRequest[] requests = new RILRequest[3];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = RILRequest.obtain(mPool, i, null, new WorkSource());
+        }
+        for (RILRequest rr : requests) {
+            rr.release();
+        }
+        // Leave the lowest slots empty while the highest one is still pooled
+        assertSame(requests[0], mPool.acquire());
+        assertSame(requests[1], mPool.acquire());
+        assertSame(requests[2], mPool.acquire());
+        assertNull(mPool.acquire());
+
+        RILRequestPool.Stats stats = mPool.getStats();
+        assertEquals(3, stats.hits);
+        assertEquals(0, stats.pooled);
+    }
+}
@@ -80,9 +80,12 @@ import static com.android.internal.telephony.RILConstants.RIL_REQUEST_WRITE_SMS_
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doReturn;
@@ -133,6 +136,7 @@ import android.telephony.CellSignalStrengthLte;
 import android.telephony.CellSignalStrengthNr;
 import android.telephony.CellSignalStrengthTdscdma;
 import android.telephony.CellSignalStrengthWcdma;
+import android.telephony.ClientRequestStats;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
 import android.telephony.SmsManager;
@@ -560,6 +564,68 @@ public class RILTest extends TelephonyTest {
         verifyRILResponse(mRILUnderTest, mSerialNumberCaptor.getValue(), RIL_REQUEST_OPERATOR);
     }
 
+    @FlakyTest
+    @Test
+    public void testGetOperatorCoalesced() throws Exception {
+        mRILUnderTest.setRequestCoalescingEnabled(true);
+        mRILUnderTest.getOperator(obtainMessage());
+        mRILUnderTest.getOperator(obtainMessage());
+        mRILUnderTest.getOperator(null);
+        verify(mRadioProxy, times(1)).getOperator(mSerialNumberCaptor.capture());
+        assertEquals(1, mRILUnderTest.getRilRequestList().size());
+        assertEquals(2, mRILUnderTest.getCoalescedRequestCount(RIL_REQUEST_OPERATOR));
+
+        verifyRILResponse(mRILUnderTest, mSerialNumberCaptor.getValue(), RIL_REQUEST_OPERATOR);
+
+        // Once the response is delivered a new request goes to the radio again
+        mRILUnderTest.getOperator(obtainMessage());
+        verify(mRadioProxy, times(2)).getOperator(anyInt());
+    }
+
+    @FlakyTest
+    @Test
+    public void testGetCellInfoListCoalescedBillsEachClient() throws Exception {
+        mRILUnderTest.setRequestCoalescingEnabled(true);
+        WorkSource leader = new WorkSource();
+        leader.add(100, "foo");
+        WorkSource follower = new WorkSource();
+        follower.add(200, "bar");
+        mRILUnderTest.getCellInfoList(obtainMessage(), leader);
+        mRILUnderTest.getCellInfoList(obtainMessage(), follower);
+        verify(mRadioProxy, times(1)).getCellInfoList(mSerialNumberCaptor.capture());
+        assertEquals(1, getClientRequestStats("200:bar").getPendingRequestsCount());
+
+        verifyRILResponse(
+                mRILUnderTest, mSerialNumberCaptor.getValue(), RIL_REQUEST_GET_CELL_INFO_LIST);
+        ClientRequestStats stats = getClientRequestStats("200:bar");
+        assertEquals(0, stats.getPendingRequestsCount());
+        assertEquals(1, stats.getCompletedRequestsCount());
+    }
+
+    private ClientRequestStats getClientRequestStats(String clientId) {
+        for (ClientRequestStats stats : mRILUnderTest.getClientRequestStats()) {
+            if (clientId.equals(stats.getCallingPackage())) return stats;
+        }
+        fail("No stats for " + clientId);
+        return null;
+    }
+
+    @Test
+    public void testCopyCoalescedResult() {
+        String[] operator = new String[] {"long", "short", "310260"};
+        String[] operatorCopy = (String[]) RILRequest.copyCoalescedResult(operator);
+        assertNotSame(operator, operatorCopy);
+        assertTrue(Arrays.equals(operator, operatorCopy));
+
+        ArrayList<CellInfo> cellInfos =
+                getCellInfoListForLTE(MCC_STR, MNC_STR, ALPHA_LONG, ALPHA_SHORT);
+        ArrayList<CellInfo> cellInfosCopy =
+                (ArrayList<CellInfo>) RILRequest.copyCoalescedResult(cellInfos);
+        assertNotSame(cellInfos, cellInfosCopy);
+        assertNotSame(cellInfos.get(0), cellInfosCopy.get(0));
+        assertEquals(cellInfos, cellInfosCopy);
+    }
+
     @FlakyTest
     @Test
     public void testSetRadioPower() throws Exception {
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIGNAL_STRENGTH;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+public class RilLatencyRecorderTest {
+    private RilLatencyRecorder mRecorder;
+
+    @Before
+    public void setUp() throws Exception {
+        mRecorder = new RilLatencyRecorder();
+    }
+
+    @Test
+    @SmallTest
+    public void testBucketBoundaries() {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket < RilLatencyRecorder.Histogram.BUCKET_COUNT - 1; bucket++) {
+            long upperBound = RilLatencyRecorder.Histogram.upperBoundOf(bucket);
+            assertTrue(upperBound > previousUpperBound);
+            assertEquals(bucket, RilLatencyRecorder.Histogram.bucketOf(previousUpperBound + 1));
+            assertEquals(bucket, RilLatencyRecorder.Histogram.bucketOf(upperBound));
+            previousUpperBound = upperBound;
+        }
+        assertEquals(RilLatencyRecorder.Histogram.BUCKET_COUNT - 1,
+                RilLatencyRecorder.Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    @SmallTest
+    public void testPercentiles() {
+        for (int i = 1; i <= 100; i++) {
+            mRecorder.record(RIL_REQUEST_OPERATOR, RilLatencyRecorder.PHASE_RADIO, i * 1000);
+        }
+        mRecorder.record(RIL_REQUEST_SIGNAL_STRENGTH, RilLatencyRecorder.PHASE_TOTAL, 42);
+
+        List<RilLatencyRecorder.Summary> summaries = mRecorder.getSummaries();
+        assertEquals(2, summaries.size());
+
+        // Summaries are ordered by request id
+        RilLatencyRecorder.Summary signal = summaries.get(0);
+        assertEquals(RIL_REQUEST_SIGNAL_STRENGTH, signal.request);
+        assertEquals(RilLatencyRecorder.PHASE_TOTAL, signal.phase);
+        assertEquals(42, signal.maxMicros);
+
+        RilLatencyRecorder.Summary operator = summaries.get(1);
+        assertEquals(RIL_REQUEST_OPERATOR, operator.request);
+        assertEquals(RilLatencyRecorder.PHASE_RADIO, operator.phase);
+        assertEquals(100, operator.count);
+        assertEquals(100000, operator.maxMicros);
+        // Percentiles are bucket upper bounds, within 25% of the exact value
+        assertTrue(operator.p50Micros >= 50000 && operator.p50Micros <= 62500);
+        assertTrue(operator.p90Micros >= 90000 && operator.p90Micros <= 112500);
+        assertTrue(operator.p99Micros >= 99000 && operator.p99Micros <= 100000);
+    }
+}
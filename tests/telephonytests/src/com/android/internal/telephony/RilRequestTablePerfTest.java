@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.WorkSource;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.SparseArray;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of {@link RilRequestTable} under concurrent response delivery, next to the
+ * SparseArray guarded by one monitor that RIL used before. One thread sends requests while
+ * several "binder" threads look up and remove them. Each run is warmed up first and the results
+ * are logged so they can be compared between builds.
+ */
+public class RilRequestTablePerfTest {
+    private static final String TAG = "RilRequestTablePerfTest";
+
+    private static final int REQUEST_COUNT = 200000;
+    private static final int RESPONDER_COUNT = 4;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    /** The operations RIL performs on its outstanding request list. */
+    private interface RequestList {
+        void put(RILRequest rr);
+        RILRequest get(int serial);
+        RILRequest remove(int serial);
+        int size();
+    }
+
+    private static RequestList newStripedTable() {
+        final RilRequestTable table = new RilRequestTable();
+        return new RequestList() {
+            @Override
+            public void put(RILRequest rr) {
+                table.put(rr);
+            }
+
+            @Override
+            public RILRequest get(int serial) {
+                return table.get(serial);
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                return table.remove(serial);
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+        };
+    }
+
+    private static RequestList newLockedSparseArray() {
+        final SparseArray<RILRequest> list = new SparseArray<>();
+        return new RequestList() {
+            @Override
+            public void put(RILRequest rr) {
+                synchronized (list) {
+                    list.append(rr.mSerial, rr);
+                }
+            }
+
+            @Override
+            public RILRequest get(int serial) {
+                synchronized (list) {
+                    return list.get(serial);
+                }
+            }
+
+            @Override
+            public RILRequest remove(int serial) {
+                synchronized (list) {
+                    RILRequest rr = list.get(serial);
+                    if (rr != null) {
+                        list.remove(serial);
+                    }
+                    return rr;
+                }
+            }
+
+            @Override
+            public int size() {
+                synchronized (list) {
+                    return list.size();
+                }
+            }
+        };
+    }
+
+    @Test
+    @LargeTest
+    public void testConcurrentResponseDeliveryThroughput() throws Exception {
+        RILRequest[] requests = new RILRequest[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            requests[i] = RILRequest.obtain(i, null, new WorkSource());
+        }
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            deliver(newStripedTable(), requests);
+            deliver(newLockedSparseArray(), requests);
+        }
+        long tableNs = 0;
+        long sparseArrayNs = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            tableNs += deliver(newStripedTable(), requests);
+            sparseArrayNs += deliver(newLockedSparseArray(), requests);
+        }
+
+        Rlog.d(TAG, "RilRequestTable: " + opsPerSecond(tableNs) + " ops/s, locked SparseArray: "
+                + opsPerSecond(sparseArrayNs) + " ops/s (" + RESPONDER_COUNT
+                + " responder threads)");
+    }
+
+    private static long opsPerSecond(long totalNs) {
+        return (long) REQUEST_COUNT * MEASURED_RUNS * 1000000000L / Math.max(totalNs, 1);
+    }
+
+    /**
+     * Run one round of request/response traffic through the list.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private static long deliver(final RequestList list, final RILRequest[] requests)
+            throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger published = new AtomicInteger(0);
+        final AtomicInteger delivered = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(RESPONDER_COUNT + 1);
+
+        long start = System.nanoTime();
+        new Thread(() -> {
+            for (int i = 0; i < requests.length; i++) {
+                list.put(requests[i]);
+                published.set(i + 1);
+            }
+            done.countDown();
+        }).start();
+        for (int t = 0; t < RESPONDER_COUNT; t++) {
+            new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests.length) {
+                    while (published.get() <= i) {
+                        Thread.yield();
+                    }
+                    RILRequest rr = requests[i];
+                    if (list.get(rr.mSerial) == rr && list.remove(rr.mSerial) == rr) {
+                        delivered.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsedNs = System.nanoTime() - start;
+
+        assertEquals(requests.length, delivered.get());
+        assertEquals(0, list.size());
+        return elapsedNs;
+    }
+}
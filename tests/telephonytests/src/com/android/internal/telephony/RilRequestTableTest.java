@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.WorkSource;
+import android.util.SparseArray;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RilRequestTableTest {
+    private RilRequestTable mTable;
+
+    @Before
+    public void setUp() throws Exception {
+        mTable = new RilRequestTable();
+    }
+
+    private static RILRequest newRequest(int request) {
+        return RILRequest.obtain(request, null, new WorkSource());
+    }
+
+    @Test
+    @SmallTest
+    public void testPutGetRemove() {
+        RILRequest rr = newRequest(1);
+        mTable.put(rr);
+        assertEquals(1, mTable.size());
+        assertSame(rr, mTable.get(rr.mSerial));
+        assertSame(rr, mTable.remove(rr.mSerial));
+        assertEquals(0, mTable.size());
+        assertNull(mTable.get(rr.mSerial));
+        assertNull(mTable.remove(rr.mSerial));
+        assertNull(mTable.get(-1));
+    }
+
+    @Test
+    @SmallTest
+    public void testGrowAndRemoveKeepsProbeChainsIntact() {
+        RILRequest[] requests = new RILRequest[500];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = newRequest(i);
+            mTable.put(requests[i]);
+        }
+        assertEquals(requests.length, mTable.size());
+
+        // Remove every other request, then make sure the rest are still reachable
+        for (int i = 0; i < requests.length; i += 2) {
+            assertSame(requests[i], mTable.remove(requests[i].mSerial));
+        }
+        for (int i = 0; i < requests.length; i++) {
+            if (i % 2 == 0) {
+                assertNull(mTable.get(requests[i].mSerial));
+            } else {
+                assertSame(requests[i], mTable.get(requests[i].mSerial));
+            }
+        }
+        assertEquals(requests.length / 2, mTable.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotAndRemoveAll() {
+        Set<RILRequest> added = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            RILRequest rr = newRequest(i);
+            added.add(rr);
+            mTable.put(rr);
+        }
+
+        List<RILRequest> snapshot = mTable.snapshot();
+        assertEquals(added, new HashSet<>(snapshot));
+        assertEquals(40, mTable.size());
+        for (int i = 1; i < snapshot.size(); i++) {
+            assertTrue(snapshot.get(i - 1).mSerial < snapshot.get(i).mSerial);
+        }
+
+        List<RILRequest> removed = mTable.removeAll();
+        assertEquals(added, new HashSet<>(removed));
+        assertEquals(0, mTable.size());
+        assertTrue(mTable.snapshot().isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testSparseArrayView() {
+        SparseArray<RILRequest> view = mTable.asSparseArray();
+        RILRequest first = newRequest(1);
+        RILRequest second = newRequest(2);
+        mTable.put(second);
+        mTable.put(first);
+
+        assertEquals(2, view.size());
+        assertSame(first, view.get(first.mSerial));
+        assertSame(first, view.valueAt(0));
+        assertEquals(second.mSerial, view.keyAt(1));
+        assertEquals(1, view.indexOfKey(second.mSerial));
+
+        mTable.remove(first.mSerial);
+        assertEquals(1, view.size());
+        assertNull(view.get(first.mSerial));
+        assertSame(second, view.valueAt(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testSparseArrayViewWritesThrough() {
+        SparseArray<RILRequest> view = mTable.asSparseArray();
+        RILRequest[] requests = new RILRequest[4];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = newRequest(i);
+            view.append(requests[i].mSerial, requests[i]);
+        }
+        assertEquals(requests.length, mTable.size());
+        assertSame(requests[2], mTable.get(requests[2].mSerial));
+
+        view.delete(requests[0].mSerial);
+        assertNull(mTable.get(requests[0].mSerial));
+        view.removeAt(0);
+        assertNull(mTable.get(requests[1].mSerial));
+        assertEquals(2, view.size());
+        assertSame(requests[2], view.valueAt(0));
+        assertTrue(view.indexOfKey(requests[0].mSerial) < 0);
+
+        try {
+            view.put(requests[0].mSerial, requests[2]);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        view.clear();
+        assertEquals(0, mTable.size());
+        assertEquals(0, view.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSparseArrayViewIndexStableUntilTableChanges() {
+        SparseArray<RILRequest> view = mTable.asSparseArray();
+        for (int i = 0; i < 20; i++) {
+            mTable.put(newRequest(i));
+        }
+        int size = view.size();
+        int previous = -1;
+        for (int i = 0; i < size; i++) {
+            assertTrue(view.keyAt(i) > previous);
+            assertEquals(i, view.indexOfKey(view.keyAt(i)));
+            previous = view.keyAt(i);
+        }
+
+        RILRequest added = newRequest(21);
+        mTable.put(added);
+        assertEquals(size + 1, view.size());
+        assertSame(added, view.valueAt(size));
+    }
+
+    /**
+     * One thread adds requests while several "binder" threads concurrently look up and remove
+     * them, mimicking response delivery. Every response must find its request exactly once.
+     */
+    @Test
+    @LargeTest
+    public void testConcurrentResponseDelivery() throws Exception {
+        final int requestCount = 200000;
+        final int responderCount = 4;
+        final RILRequest[] requests = new RILRequest[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            requests[i] = newRequest(i);
+        }
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger published = new AtomicInteger(0);
+        final AtomicInteger delivered = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(responderCount + 1);
+
+        new Thread(() -> {
+            for (int i = 0; i < requestCount; i++) {
+                mTable.put(requests[i]);
+                published.set(i + 1);
+            }
+            done.countDown();
+        }).start();
+        for (int t = 0; t < responderCount; t++) {
+            new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requestCount) {
+                    while (published.get() <= i) {
+                        Thread.yield();
+                    }
+                    RILRequest rr = requests[i];
+                    if (mTable.get(rr.mSerial) == rr && mTable.remove(rr.mSerial) == rr) {
+                        delivered.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+
+        assertEquals(requestCount, delivered.get());
+        assertEquals(0, mTable.size());
+        assertTrue(mTable.snapshot().isEmpty());
+    }
+}
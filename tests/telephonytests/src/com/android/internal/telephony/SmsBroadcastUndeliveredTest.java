@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmsBroadcastUndeliveredTest extends TelephonyTest {
+    private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
+
+    private FakeSmsContentProvider mContentProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mContentProvider = new FakeSmsContentProvider();
+        ((MockContentResolver) mContext.getContentResolver()).addProvider(
+                Telephony.Sms.CONTENT_URI.getAuthority(), mContentProvider);
+        doAnswer(invocation -> new InboundSmsTracker((Cursor) invocation.getArgument(0),
+                (boolean) invocation.getArgument(1)))
+                .when(mTelephonyComponentFactory)
+                .makeInboundSmsTracker(any(Cursor.class), anyBoolean());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContentProvider.shutdown();
+        super.tearDown();
+    }
+
+    private void insertFirstSegment(int referenceNumber, long timestamp) {
+        InboundSmsTracker tracker = new InboundSmsTracker(new byte[] {1, 2, 3}, timestamp, -1,
+                false, "1234567890", "1234567890", referenceNumber, 1, 2, false, "part 1",
+                false, 0);
+        mContentProvider.insert(sRawUri, tracker.getContentValues());
+    }
+
+    @Test
+    @SmallTest
+    public void testScanDeletesExpiredSegmentsInBatches() {
+        long now = System.currentTimeMillis();
+        // More incomplete messages than one delete batch holds
+        int expired = 201;
+        for (int i = 0; i < expired; i++) {
+            insertFirstSegment(i, now - 2000);
+        }
+        insertFirstSegment(expired, now);
+
+        SmsBroadcastUndelivered.scanRawTable(mContext, null, null, now - 1000);
+
+        // Only the recent incomplete message is kept
+        assertEquals(1, mContentProvider.getNumRows());
+        // The table is read with a single query
+        assertEquals(1, mContentProvider.mQueryCount);
+        // The deletes are batched
+        assertTrue(mContentProvider.mBatchCount < expired);
+    }
+}
@@ -44,6 +44,9 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 public class SmsDispatchersControllerTest extends TelephonyTest {
     @Mock
     private SMSDispatcher.SmsTracker mTracker;
@@ -111,6 +114,18 @@ public class SmsDispatchersControllerTest extends TelephonyTest {
                 any(Message.class));
     }
 
+    @Test @SmallTest
+    public void testDumpIncludesEveryDispatcher() throws Exception {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        mSmsDispatchersController.dump(null, pw, new String[0]);
+        pw.flush();
+        String dump = sw.toString();
+        assertTrue(dump.contains("GsmSMSDispatcher:"));
+        assertTrue(dump.contains("CdmaSMSDispatcher:"));
+        assertTrue(dump.contains("ImsSmsDispatcher:"));
+    }
+
     @Test @SmallTest
     public void testSendImsGmsTestWithOutDesAddr() throws Exception {
         switchImsSmsFormat(PhoneConstants.PHONE_TYPE_GSM);
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SmsRateLimiterTest {
+    private static final int CHECK_PERIOD = 60000;
+    private static final int MAX_ALLOWED = 30;
+
+    @Test
+    @SmallTest
+    public void testLimitWithinPeriod() {
+        SmsRateLimiter limiter = new SmsRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        for (int i = 0; i < MAX_ALLOWED; i++) {
+            assertTrue(limiter.check("app", 1, 1000 + i));
+        }
+        assertFalse(limiter.check("app", 1, 2000));
+        // Other apps have their own limit
+        assertTrue(limiter.check("other", MAX_ALLOWED, 2000));
+
+        // The first message leaves the period, making room for one more
+        assertTrue(limiter.check("app", 1, 1001 + CHECK_PERIOD));
+        assertFalse(limiter.check("app", 1, 1001 + CHECK_PERIOD));
+        assertTrue(limiter.check("app", 2, 1003 + CHECK_PERIOD));
+    }
+
+    @Test
+    @SmallTest
+    public void testMultipartCountedAtOnce() {
+        SmsRateLimiter limiter = new SmsRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        assertFalse(limiter.check("app", MAX_ALLOWED + 1, 1000));
+        assertTrue(limiter.check("app", MAX_ALLOWED - 1, 1000));
+        assertFalse(limiter.check("app", 2, 1000));
+        assertTrue(limiter.check("app", 1, 1000));
+    }
+
+    @Test
+    @SmallTest
+    public void testIdleAppsForgotten() {
+        SmsRateLimiter limiter = new SmsRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        for (int i = 0; i < 100; i++) {
+            limiter.check("app" + i, 1, CHECK_PERIOD);
+        }
+        assertEquals(100, limiter.size());
+
+        limiter.check("app", 1, 3 * CHECK_PERIOD);
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    @MediumTest
+    public void testConcurrentApps() throws Exception {
+        final int apps = 16;
+        final int attempts = 10000;
+        SmsRateLimiter limiter = new SmsRateLimiter(CHECK_PERIOD, MAX_ALLOWED);
+        AtomicInteger[] allowed = new AtomicInteger[apps];
+        CountDownLatch done = new CountDownLatch(apps * 2);
+        for (int i = 0; i < apps; i++) {
+            allowed[i] = new AtomicInteger();
+            // Two threads per app, so each app is also contended
+            for (int j = 0; j < 2; j++) {
+                final int app = i;
+                new Thread(() -> {
+                    for (int k = 0; k < attempts; k++) {
+                        if (limiter.check("app" + app, 1, 1000)) {
+                            allowed[app].incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }).start();
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        for (int i = 0; i < apps; i++) {
+            assertEquals(MAX_ALLOWED, allowed[i].get());
+        }
+    }
+}
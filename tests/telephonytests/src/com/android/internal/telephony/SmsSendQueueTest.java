@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SMSDispatcher.SmsTracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SmsSendQueueTest {
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private final List<SmsTracker> mSent = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("SmsSendQueueTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+    }
+
+    private SmsSendQueue makeQueue(int window) {
+        return new SmsSendQueue("test", mHandler, tracker -> {
+            synchronized (mSent) {
+                mSent.add(tracker);
+            }
+        }, window);
+    }
+
+    private static SmsTracker makeTracker(String packageName) {
+        SmsTracker tracker = mock(SmsTracker.class);
+        doReturn(packageName).when(tracker).getAppPackageName();
+        return tracker;
+    }
+
+    private void waitForHandler() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(latch::countDown);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    private SmsTracker getSent(int index) {
+        synchronized (mSent) {
+            return mSent.get(index);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testSendsWithinWindow() throws Exception {
+        SmsSendQueue queue = makeQueue(2);
+        SmsTracker first = makeTracker("a");
+        SmsTracker second = makeTracker("a");
+        SmsTracker third = makeTracker("a");
+        queue.send(first);
+        queue.send(second);
+        queue.send(third);
+
+        // The third message waits for room in the window
+        assertEquals(2, mSent.size());
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(1, queue.getQueuedCount());
+
+        queue.onSendFinished(first, true);
+        waitForHandler();
+        assertEquals(3, mSent.size());
+        assertSame(third, getSent(2));
+        assertEquals(0, queue.getQueuedCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testPackagesTakeTurns() throws Exception {
+        SmsSendQueue queue = makeQueue(1);
+        SmsTracker busy1 = makeTracker("busy");
+        SmsTracker busy2 = makeTracker("busy");
+        SmsTracker busy3 = makeTracker("busy");
+        SmsTracker other = makeTracker("other");
+        queue.send(busy1);
+        queue.send(busy2);
+        queue.send(busy3);
+        queue.send(other);
+
+        queue.onSendFinished(busy1, true);
+        waitForHandler();
+        assertSame(busy2, getSent(1));
+        // More messages are waiting, so the radio is told to expect them
+        assertTrue(busy2.mExpectMore);
+
+        // The other package is served before the busy one sends again
+        queue.onSendFinished(busy2, true);
+        waitForHandler();
+        assertSame(other, getSent(2));
+
+        queue.onSendFinished(other, false);
+        waitForHandler();
+        assertSame(busy3, getSent(3));
+        assertFalse(busy3.mExpectMore);
+    }
+
+    @Test
+    @SmallTest
+    public void testPackageStatsBounded() throws Exception {
+        SmsSendQueue queue = makeQueue(1);
+        for (int i = 0; i < SmsSendQueue.MAX_PACKAGE_STATS + 10; i++) {
+            SmsTracker tracker = makeTracker("package" + i);
+            queue.send(tracker);
+            queue.onSendFinished(tracker, true);
+        }
+        assertEquals(SmsSendQueue.MAX_PACKAGE_STATS, queue.getPackageStatsCount());
+
+        // The packages that sent last are the ones kept
+        StringWriter sw = new StringWriter();
+        queue.dump(new PrintWriter(sw, true));
+        String dump = sw.toString();
+        assertFalse(dump.contains("package9:"));
+        assertTrue(dump.contains("package10:"));
+        assertTrue(dump.contains("package" + (SmsSendQueue.MAX_PACKAGE_STATS + 9) + ":"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.SmsUsageMonitor.ShortCodePatternMatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Test cases for short code pattern matching and reloading in SmsUsageMonitor. The patterns of
+ * real countries are covered by {@link SmsUsageMonitorShortCodeTest}.
+ */
+public class SmsUsageMonitorTest {
+    private static final long RELOAD_TIMEOUT_MS = 5000;
+    private static final String COUNTRY = "xx";
+    private static final String NUMBER = "55512";
+
+    private File mRoot;
+    private SmsUsageMonitor mMonitor;
+
+    @Before
+    public void setUp() throws Exception {
+        // InstrumentationTestRunner prepares a looper, but AndroidJUnitRunner does not.
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+        mRoot = new File(TestApplication.getAppContext().getCacheDir(),
+                "SmsUsageMonitorTest" + SystemClock.elapsedRealtimeNanos());
+        mRoot.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mMonitor != null) {
+            mMonitor.dispose();
+        }
+        deleteRecursively(mRoot);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The category of a number as found before the patterns were combined, matching each
+     * category pattern in turn.
+     */
+    private static int sequentialCategory(String number, String shortCode, String premium,
+            String free, String standard) {
+        if (free != null && Pattern.matches(free, number)) {
+            return SMS_CATEGORY_FREE_SHORT_CODE;
+        }
+        if (standard != null && Pattern.matches(standard, number)) {
+            return SMS_CATEGORY_STANDARD_SHORT_CODE;
+        }
+        if (premium != null && Pattern.matches(premium, number)) {
+            return SMS_CATEGORY_PREMIUM_SHORT_CODE;
+        }
+        if (shortCode != null && Pattern.matches(shortCode, number)) {
+            return SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+        }
+        return SMS_CATEGORY_NOT_SHORT_CODE;
+    }
+
+    private static void assertSameAsSequential(String shortCode, String premium, String free,
+            String standard, int maxNumber) {
+        ShortCodePatternMatcher matcher =
+                new ShortCodePatternMatcher(shortCode, premium, free, standard);
+        for (int i = 0; i <= maxNumber; i++) {
+            String number = Integer.toString(i);
+            assertEquals("number: " + number,
+                    sequentialCategory(number, shortCode, premium, free, standard),
+                    matcher.getNumberCategory(number));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCombinedPatternKeepsPrecedence() {
+        // Overlapping categories, the earlier one in precedence must win
+        assertSameAsSequential("\\d{1,5}", "1\\d{3}|55\\d{3}", "1\\d{2}|116\\d{3}",
+                "1[0-4]\\d{2}|55[0-4]\\d\\d", 199999);
+        // Possessive quantifiers and anchors within one category
+        assertSameAsSequential("\\d++", "9\\d*+", null, "^90\\d$", 99999);
+        // Missing categories
+        assertSameAsSequential(null, "1\\d{3}", null, null, 9999);
+        assertSameAsSequential(null, null, null, null, 999);
+    }
+
+    @Test
+    @SmallTest
+    public void testBackreferencesMatchedPerCategory() {
+        // Numbered backreferences would point at other groups once combined
+        assertSameAsSequential("\\d{3}", "(\\d)(\\d)\\2", "(\\d)\\1\\d", null, 999);
+        assertSameAsSequential("\\d{3}", "(?<d>\\d)\\k<d>\\d", null, null, 999);
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE,
+                new ShortCodePatternMatcher("\\d{3}", null, "(\\d)\\1\\d", null)
+                        .getNumberCategory("112"));
+    }
+
+    @Test
+    @SmallTest
+    public void testGroupNamesOfPatternMatchedPerCategory() {
+        // A group named like a category cannot be combined with that category's group
+        assertSameAsSequential("(?<free>\\d{3})", "9\\d\\d", "1\\d\\d", null, 999);
+    }
+
+    private void writePatternFile(File file, String attributes) throws IOException {
+        String xml = "<shortcodes><shortcode country=\"" + COUNTRY + "\" " + attributes
+                + " /></shortcodes>";
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(xml.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void assertCategoryWithin(int category) {
+        long deadline = SystemClock.elapsedRealtime() + RELOAD_TIMEOUT_MS;
+        while (mMonitor.checkDestination(NUMBER, COUNTRY) != category
+                && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertEquals(category, mMonitor.checkDestination(NUMBER, COUNTRY));
+    }
+
+    @Test
+    @SmallTest
+    public void testPatternFileChangesReloadPatterns() throws Exception {
+        File patternFile = new File(mRoot, "codes");
+        writePatternFile(patternFile, "pattern=\"\\d{5}\" premium=\"555\\d\\d\"");
+        mMonitor = new SmsUsageMonitor(TestApplication.getAppContext(), patternFile);
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE, mMonitor.checkDestination(NUMBER, COUNTRY));
+
+        // Rewritten
+        writePatternFile(patternFile, "pattern=\"\\d{5}\" free=\"555\\d\\d\"");
+        assertCategoryWithin(SMS_CATEGORY_FREE_SHORT_CODE);
+
+        // Replaced by a rename
+        File newFile = new File(mRoot, "codes.new");
+        writePatternFile(newFile, "pattern=\"\\d{5}\" standard=\"555\\d\\d\"");
+        newFile.renameTo(patternFile);
+        assertCategoryWithin(SMS_CATEGORY_STANDARD_SHORT_CODE);
+
+        // Removed, the resource has no patterns for the country and the generic rule applies
+        patternFile.delete();
+        assertCategoryWithin(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE);
+    }
+
+    @Test
+    @SmallTest
+    public void testPatternDirectoryCreatedLater() throws Exception {
+        File patternDir = new File(mRoot, "sms");
+        File patternFile = new File(patternDir, "codes");
+        mMonitor = new SmsUsageMonitor(TestApplication.getAppContext(), patternFile);
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+                mMonitor.checkDestination(NUMBER, COUNTRY));
+
+        patternDir.mkdir();
+        writePatternFile(patternFile, "pattern=\"\\d{5}\" premium=\"555\\d\\d\"");
+        assertCategoryWithin(SMS_CATEGORY_PREMIUM_SHORT_CODE);
+
+        // Later changes are seen too
+        writePatternFile(patternFile, "pattern=\"\\d{5}\" free=\"555\\d\\d\"");
+        assertCategoryWithin(SMS_CATEGORY_FREE_SHORT_CODE);
+    }
+}
@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -385,6 +386,79 @@ public class SubscriptionControllerTest extends TelephonyTest {
                 mCallingPackage));
     }
 
+    @Test
+    @SmallTest
+    public void testSubscriptionPropertyUpdatedAfterWrite() throws Exception {
+        testInsertSim();
+        int subID = mSubscriptionControllerUT.getActiveSubIdList(/*visibleOnly*/false)[0];
+
+        mSubscriptionControllerUT.setSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE, "1");
+        assertEquals("1", mSubscriptionControllerUT.getSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE));
+
+        // The cached value is dropped by the write
+        mSubscriptionControllerUT.setSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE, "2");
+        assertEquals("2", mSubscriptionControllerUT.getSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE));
+    }
+
+    @Test
+    @SmallTest
+    public void testSubscriptionPropertyDroppedForChangedRowsOnRefresh() throws Exception {
+        testInsertSim();
+        int subID = mSubscriptionControllerUT.getActiveSubIdList(/*visibleOnly*/false)[0];
+        mSubscriptionControllerUT.setSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE, "1");
+        assertEquals("1", mSubscriptionControllerUT.getSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE));
+
+        // A write that leaves the subscription info as it was keeps the row
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.WFC_IMS_MODE, "2");
+        mMockContentResolver.update(SubscriptionManager.getUriForSubscriptionId(subID), values,
+                null, null);
+        mSubscriptionControllerUT.refreshCachedActiveSubscriptionInfoList();
+        assertEquals("1", mSubscriptionControllerUT.getSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE));
+
+        // A write that changes it drops the row
+        values = new ContentValues();
+        values.put(SubscriptionManager.NUMBER, "12345");
+        mMockContentResolver.update(SubscriptionManager.getUriForSubscriptionId(subID), values,
+                null, null);
+        mSubscriptionControllerUT.refreshCachedActiveSubscriptionInfoList();
+        assertEquals("2", mSubscriptionControllerUT.getSubscriptionProperty(
+                subID, SubscriptionManager.WFC_IMS_MODE));
+    }
+
+    @Test
+    @SmallTest
+    public void testActiveSubscriptionInfoForIccIdFromCache() throws Exception {
+        testInsertSim();
+        int subID = mSubscriptionControllerUT.getActiveSubIdList(/*visibleOnly*/false)[0];
+        SubscriptionInfo info =
+                mSubscriptionControllerUT.getActiveSubscriptionInfoForIccId("test", mCallingPackage);
+        assertNotNull(info);
+        assertEquals(subID, info.getSubscriptionId());
+        assertNull(mSubscriptionControllerUT.getActiveSubscriptionInfoForIccId("other",
+                mCallingPackage));
+
+        // Rows not yet in the cached list are not seen
+        ContentValues values = new ContentValues();
+        values.put(SubscriptionManager.ICC_ID, "other");
+        mMockContentResolver.update(SubscriptionManager.getUriForSubscriptionId(subID), values,
+                null, null);
+        assertNotNull(mSubscriptionControllerUT.getActiveSubscriptionInfoForIccId("test",
+                mCallingPackage));
+        mSubscriptionControllerUT.refreshCachedActiveSubscriptionInfoList();
+        assertNull(mSubscriptionControllerUT.getActiveSubscriptionInfoForIccId("test",
+                mCallingPackage));
+        assertEquals(subID, mSubscriptionControllerUT.getActiveSubscriptionInfoForIccId("other",
+                mCallingPackage).getSubscriptionId());
+    }
+
     @Test
     @SmallTest
     public void testSkipMigrateImsSettings() throws Exception {
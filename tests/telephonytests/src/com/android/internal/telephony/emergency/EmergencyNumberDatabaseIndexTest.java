@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class EmergencyNumberDatabaseIndexTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("eccdata", ".idx");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static ProtobufEccData.CountryInfo makeCountry(String isoCode, String... numbers) {
+        ProtobufEccData.CountryInfo countryInfo = new ProtobufEccData.CountryInfo();
+        countryInfo.isoCode = isoCode;
+        countryInfo.eccs = new ProtobufEccData.EccInfo[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            countryInfo.eccs[i] = new ProtobufEccData.EccInfo();
+            countryInfo.eccs[i].phoneNumber = numbers[i];
+            countryInfo.eccs[i].types = new int[] {ProtobufEccData.EccInfo.Type.POLICE};
+        }
+        return countryInfo;
+    }
+
+    private static ProtobufEccData.AllInfo makeDatabase() {
+        ProtobufEccData.AllInfo allInfo = new ProtobufEccData.AllInfo();
+        allInfo.countries = new ProtobufEccData.CountryInfo[] {
+                makeCountry("US", "911"),
+                makeCountry("GB", "999", "112"),
+                makeCountry("AU", "000"),
+                makeCountry("US", "112"),
+        };
+        return allInfo;
+    }
+
+    public void testLookupByCountry() throws Exception {
+        EmergencyNumberDatabaseIndex.write(mFile, "build", makeDatabase());
+        EmergencyNumberDatabaseIndex index = EmergencyNumberDatabaseIndex.open(mFile, "build");
+        assertNotNull(index);
+
+        ProtobufEccData.EccInfo[] eccs = index.getEccs("GB");
+        assertEquals(2, eccs.length);
+        assertEquals("999", eccs[0].phoneNumber);
+        assertEquals("112", eccs[1].phoneNumber);
+        assertEquals(ProtobufEccData.EccInfo.Type.POLICE, eccs[0].types[0]);
+
+        // Countries listed twice keep all their numbers
+        eccs = index.getEccs("US");
+        assertEquals(2, eccs.length);
+        assertEquals("911", eccs[0].phoneNumber);
+        assertEquals("112", eccs[1].phoneNumber);
+
+        assertEquals(1, index.getEccs("AU").length);
+        assertEquals(0, index.getEccs("FR").length);
+        assertEquals(0, index.getEccs("ZZZZZ").length);
+    }
+
+    public void testStaleOrCorruptIndexIgnored() throws Exception {
+        EmergencyNumberDatabaseIndex.write(mFile, "build", makeDatabase());
+        assertNull(EmergencyNumberDatabaseIndex.open(mFile, "other build"));
+
+        mFile.delete();
+        assertNull(EmergencyNumberDatabaseIndex.open(mFile, "build"));
+
+        mFile.createNewFile();
+        assertNull(EmergencyNumberDatabaseIndex.open(mFile, "build"));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class EmergencyNumberTrieTest extends TestCase {
+    private static final EmergencyNumberTrie TRIE = new EmergencyNumberTrie(Arrays.asList(
+            "112", "911", "000", "08", "110", "118", "119", "999", "*112#", "+4412", "91N"));
+
+    public void testExactMatch() throws Exception {
+        assertTrue(TRIE.matches("112"));
+        assertTrue(TRIE.matches("08"));
+        assertTrue(TRIE.matches("*112#"));
+        assertTrue(TRIE.matches("+4412"));
+        assertTrue(TRIE.matches("91N"));
+        assertFalse(TRIE.matches("11"));
+        assertFalse(TRIE.matches("1123"));
+        assertFalse(TRIE.matches("0"));
+        assertFalse(TRIE.matches(""));
+        assertFalse(TRIE.matches("11a"));
+    }
+
+    public void testPrefixMatch() throws Exception {
+        assertTrue(TRIE.matchesPrefixOf("112"));
+        assertTrue(TRIE.matchesPrefixOf("1123456"));
+        assertTrue(TRIE.matchesPrefixOf("0800"));
+        assertTrue(TRIE.matchesPrefixOf("*112#1"));
+        assertTrue(TRIE.matchesPrefixOf("91N1"));
+        assertFalse(TRIE.matchesPrefixOf("11"));
+        assertFalse(TRIE.matchesPrefixOf("0"));
+        assertFalse(TRIE.matchesPrefixOf("21121"));
+        assertFalse(TRIE.matchesPrefixOf(""));
+    }
+
+    public void testEmpty() throws Exception {
+        assertFalse(EmergencyNumberTrie.EMPTY.matches(""));
+        assertFalse(EmergencyNumberTrie.EMPTY.matches("112"));
+        assertFalse(EmergencyNumberTrie.EMPTY.matchesPrefixOf("112"));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IccFileHandlerTest extends TelephonyTest {
+    private static final int RECORD_SIZE = 4;
+
+    @Mock
+    private CommandsInterface mCi;
+    private IccFileHandler mIccFileHandler;
+    private Handler mResultHandler;
+    private IccFileHandlerTestHandler mIccFileHandlerTestHandler;
+
+    // READ RECORD commands awaiting a response
+    private final List<Message> mReads = new ArrayList<>();
+    private int mRecordCount;
+    private int mFailingRecord;
+    private AsyncResult mLoadResult;
+
+    private class IccFileHandlerTestHandler extends HandlerThread {
+        private IccFileHandlerTestHandler(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mIccFileHandler = new SIMFileHandler(mUiccCardApplication3gpp, "aid", mCi);
+            mResultHandler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    mLoadResult = (AsyncResult) msg.obj;
+                }
+            };
+            setReady(true);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        doAnswer(invocation -> {
+            int command = (int) invocation.getArguments()[0];
+            int recordNum = (int) invocation.getArguments()[3];
+            Message response = (Message) invocation.getArguments()[9];
+            if (command == IccFileHandler.COMMAND_GET_RESPONSE) {
+                byte[] data = new byte[IccFileHandler.GET_RESPONSE_EF_SIZE_BYTES];
+                int size = mRecordCount * RECORD_SIZE;
+                data[IccFileHandler.RESPONSE_DATA_FILE_SIZE_1] = (byte) (size >> 8);
+                data[IccFileHandler.RESPONSE_DATA_FILE_SIZE_2] = (byte) size;
+                data[IccFileHandler.RESPONSE_DATA_FILE_TYPE] = IccFileHandler.TYPE_EF;
+                data[IccFileHandler.RESPONSE_DATA_STRUCTURE] =
+                        IccFileHandler.EF_TYPE_LINEAR_FIXED;
+                data[IccFileHandler.RESPONSE_DATA_RECORD_LENGTH] = RECORD_SIZE;
+                AsyncResult.forMessage(response, new IccIoResult(0x90, 0x00, data), null);
+                response.sendToTarget();
+            } else if (recordNum == mFailingRecord) {
+                mFailingRecord = 0;
+                // Record not found
+                AsyncResult.forMessage(response, new IccIoResult(0x6a, 0x83, (byte[]) null),
+                        null);
+                response.sendToTarget();
+            } else {
+                AsyncResult.forMessage(response, new IccIoResult(0x90, 0x00,
+                        new byte[] {(byte) recordNum, 0, 0, 0}), null);
+                synchronized (mReads) {
+                    mReads.add(response);
+                }
+            }
+            return null;
+        }).when(mCi).iccIOForApp(anyInt(), anyInt(), anyString(), anyInt(), anyInt(), anyInt(),
+                nullable(String.class), nullable(String.class), anyString(),
+                (Message) anyObject());
+
+        mIccFileHandlerTestHandler = new IccFileHandlerTestHandler(TAG);
+        mIccFileHandlerTestHandler.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mIccFileHandlerTestHandler.quit();
+        super.tearDown();
+    }
+
+    private void respondToReads(boolean reversed) {
+        List<Message> reads;
+        synchronized (mReads) {
+            reads = new ArrayList<>(mReads);
+            mReads.clear();
+        }
+        for (int i = 0; i < reads.size(); i++) {
+            reads.get(reversed ? reads.size() - 1 - i : i).sendToTarget();
+        }
+        waitForHandlerAction(mIccFileHandler, 1000);
+    }
+
+    private int getPendingReads() {
+        synchronized (mReads) {
+            return mReads.size();
+        }
+    }
+
+    private void assertRecordsLoaded() {
+        assertNotNull(mLoadResult);
+        assertNull(mLoadResult.exception);
+        List<byte[]> records = (List<byte[]>) mLoadResult.result;
+        assertEquals(mRecordCount, records.size());
+        for (int i = 0; i < mRecordCount; i++) {
+            assertEquals(i + 1, records.get(i)[0]);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllRecordsPipelined() {
+        mRecordCount = 5;
+        mIccFileHandler.setReadRecordWindow(3);
+        mIccFileHandler.loadEFLinearFixedAll(IccConstants.EF_ADN,
+                mResultHandler.obtainMessage());
+        waitForHandlerAction(mIccFileHandler, 1000);
+        assertEquals(3, getPendingReads());
+
+        // Records answered out of order are returned in order
+        respondToReads(true);
+        assertEquals(2, getPendingReads());
+        respondToReads(true);
+        assertEquals(0, getPendingReads());
+        waitForHandlerAction(mResultHandler, 1000);
+        assertRecordsLoaded();
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadAllRecordsFallsBackToSerial() {
+        mRecordCount = 5;
+        mFailingRecord = 2;
+        mIccFileHandler.setReadRecordWindow(3);
+        mIccFileHandler.loadEFLinearFixedAll(IccConstants.EF_ADN,
+                mResultHandler.obtainMessage());
+        waitForHandlerAction(mIccFileHandler, 1000);
+        assertEquals(2, getPendingReads());
+
+        // The failed record is read again on its own once the other reads completed
+        for (int recordNum : new int[] {2, 4, 5}) {
+            respondToReads(false);
+            assertEquals(1, getPendingReads());
+            synchronized (mReads) {
+                AsyncResult ar = (AsyncResult) mReads.get(0).obj;
+                assertEquals(recordNum, ((IccIoResult) ar.result).payload[0]);
+            }
+        }
+        respondToReads(false);
+        waitForHandlerAction(mResultHandler, 1000);
+        assertRecordsLoaded();
+    }
+
+    @Test
+    @SmallTest
+    public void testSnapshotKeepsListedEfsOnly() throws Exception {
+        mRecordCount = 2;
+        File directory = Files.createTempDirectory("snapshots").toFile();
+        SimRecordSnapshot snapshot = SimRecordSnapshot.load(directory, "8901", "aid");
+        SimRecordSnapshot.Key adn1 = new SimRecordSnapshot.Key(IccConstants.EF_ADN,
+                mIccFileHandler.getEFPath(IccConstants.EF_ADN), 1);
+        SimRecordSnapshot.Key adn2 = new SimRecordSnapshot.Key(IccConstants.EF_ADN,
+                mIccFileHandler.getEFPath(IccConstants.EF_ADN), 2);
+        SimRecordSnapshot.Key sms1 = new SimRecordSnapshot.Key(IccConstants.EF_SMS,
+                mIccFileHandler.getEFPath(IccConstants.EF_SMS), 1);
+        snapshot.put(adn1, new byte[] {9, 9, 9, 9});
+        mIccFileHandler.startSnapshotLoad(snapshot, true, new int[] {IccConstants.EF_ADN});
+
+        // A listed EF in the snapshot is not read from the card
+        mIccFileHandler.loadEFLinearFixed(IccConstants.EF_ADN, 1, mResultHandler.obtainMessage());
+        waitForHandlerAction(mIccFileHandler, 1000);
+        assertEquals(0, getPendingReads());
+        assertArrayEquals(new byte[] {9, 9, 9, 9}, (byte[]) mLoadResult.result);
+
+        // A listed EF missing from the snapshot is read from the card and stored
+        mIccFileHandler.loadEFLinearFixed(IccConstants.EF_ADN, 2, mResultHandler.obtainMessage());
+        waitForHandlerAction(mIccFileHandler, 1000);
+        respondToReads(false);
+        // The card reply is passed on by the snapshot
+        waitForHandlerAction(mIccFileHandler, 1000);
+        waitForHandlerAction(mResultHandler, 1000);
+        assertArrayEquals(new byte[] {2, 0, 0, 0}, (byte[]) mLoadResult.result);
+        assertArrayEquals(new byte[] {2, 0, 0, 0}, snapshot.get(adn2));
+
+        // Other EFs read during the load are not stored
+        mIccFileHandler.loadEFLinearFixed(IccConstants.EF_SMS, 1, mResultHandler.obtainMessage());
+        waitForHandlerAction(mIccFileHandler, 1000);
+        respondToReads(false);
+        waitForHandlerAction(mResultHandler, 1000);
+        assertArrayEquals(new byte[] {1, 0, 0, 0}, (byte[]) mLoadResult.result);
+        assertFalse(snapshot.contains(sms1));
+        assertTrue(snapshot.contains(adn1));
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import com.android.internal.os.BackgroundThread;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SimRecordSnapshotTest extends TestCase {
+    private static final String ICCID = "89014103211118510720";
+    private static final SimRecordSnapshot.Key EF_SPN_KEY =
+            new SimRecordSnapshot.Key(IccConstants.EF_SPN, "3F007F20", 0);
+    private static final SimRecordSnapshot.Key EF_PNN_KEY =
+            new SimRecordSnapshot.Key(IccConstants.EF_PNN, "3F007F20", 1);
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = Files.createTempDirectory("snapshots").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Wait for the snapshots saved so far to be written.
+     */
+    private static void waitForWrites() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        BackgroundThread.getHandler().post(latch::countDown);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    public void testSavedPerCard() throws Exception {
+        SimRecordSnapshot snapshot = SimRecordSnapshot.load(mDirectory, ICCID, "a0");
+        assertTrue(snapshot.isEmpty());
+        assertFalse(snapshot.put(EF_SPN_KEY, new byte[] {1, 2}));
+        assertFalse(snapshot.put(EF_PNN_KEY, null));
+        snapshot.save();
+        waitForWrites();
+
+        snapshot = SimRecordSnapshot.load(mDirectory, ICCID, "a0");
+        assertTrue(snapshot.isOf(ICCID, "a0"));
+        assertTrue(Arrays.equals(new byte[] {1, 2}, snapshot.get(EF_SPN_KEY)));
+        // EFs not found on the card are kept
+        assertTrue(snapshot.contains(EF_PNN_KEY));
+        assertNull(snapshot.get(EF_PNN_KEY));
+
+        assertTrue(SimRecordSnapshot.load(mDirectory, "8902", "a0").isEmpty());
+        assertTrue(SimRecordSnapshot.load(mDirectory, ICCID, "a1").isEmpty());
+    }
+
+    public void testChanges() throws Exception {
+        SimRecordSnapshot snapshot = SimRecordSnapshot.load(mDirectory, ICCID, "a0");
+        snapshot.put(EF_SPN_KEY, new byte[] {1, 2});
+        assertFalse(snapshot.put(EF_SPN_KEY, new byte[] {1, 2}));
+        assertTrue(snapshot.put(EF_SPN_KEY, new byte[] {3}));
+        assertTrue(snapshot.put(EF_SPN_KEY, null));
+
+        snapshot.put(EF_PNN_KEY, new byte[] {4});
+        snapshot.put(new SimRecordSnapshot.Key(IccConstants.EF_PNN, "3F007F20", 2),
+                new byte[] {5});
+        snapshot.removeEf(IccConstants.EF_PNN);
+        assertFalse(snapshot.contains(EF_PNN_KEY));
+        assertTrue(snapshot.contains(EF_SPN_KEY));
+
+        snapshot.clear();
+        snapshot.save();
+        waitForWrites();
+        assertTrue(SimRecordSnapshot.load(mDirectory, ICCID, "a0").isEmpty());
+    }
+
+    public void testIccIdNotStored() throws Exception {
+        SimRecordSnapshot snapshot = SimRecordSnapshot.load(mDirectory, ICCID, "a0");
+        snapshot.put(EF_SPN_KEY, new byte[] {1, 2});
+        snapshot.save();
+        waitForWrites();
+
+        File[] files = mDirectory.listFiles();
+        // The snapshot and the salt
+        assertEquals(2, files.length);
+        for (File file : files) {
+            assertFalse(file.getName().contains(ICCID));
+            String contents = new String(Files.readAllBytes(file.toPath()),
+                    StandardCharsets.ISO_8859_1);
+            assertFalse(contents.contains(ICCID));
+        }
+    }
+
+    public void testOwnerHashSaltedPerDevice() throws Exception {
+        File otherDirectory = Files.createTempDirectory("snapshots").toFile();
+        try {
+            SimRecordSnapshot snapshot = SimRecordSnapshot.load(mDirectory, ICCID, "a0");
+            snapshot.put(EF_SPN_KEY, new byte[] {1, 2});
+            snapshot.save();
+            SimRecordSnapshot other = SimRecordSnapshot.load(otherDirectory, ICCID, "a0");
+            other.put(EF_SPN_KEY, new byte[] {1, 2});
+            other.save();
+            waitForWrites();
+
+            // The same card gives a different file on another device
+            String[] names = mDirectory.list((dir, name) -> !name.equals("salt"));
+            String[] otherNames = otherDirectory.list((dir, name) -> !name.equals("salt"));
+            assertEquals(1, names.length);
+            assertEquals(1, otherNames.length);
+            assertFalse(names[0].equals(otherNames[0]));
+
+            // The salt is kept, so the snapshot is found again until it is lost
+            assertFalse(SimRecordSnapshot.load(mDirectory, ICCID, "a0").isEmpty());
+            assertTrue(new File(mDirectory, "salt").delete());
+            assertTrue(SimRecordSnapshot.load(mDirectory, ICCID, "a0").isEmpty());
+        } finally {
+            for (File file : otherDirectory.listFiles()) {
+                file.delete();
+            }
+            otherDirectory.delete();
+        }
+    }
+}
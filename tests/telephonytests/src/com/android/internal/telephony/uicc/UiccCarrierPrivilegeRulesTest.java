@@ -28,6 +28,7 @@ import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.telephony.UiccAccessRule;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.internal.telephony.CommandException;
@@ -40,6 +41,9 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class UiccCarrierPrivilegeRulesTest extends TelephonyTest {
     private UiccCarrierPrivilegeRules mUiccCarrierPrivilegeRules;
     public UiccCarrierPrivilegeRulesTest() {
@@ -300,6 +304,46 @@ public class UiccCarrierPrivilegeRulesTest extends TelephonyTest {
         assertEquals(0, mUiccCarrierPrivilegeRules.getPackageNames().size());
     }
 
+    @Test
+    @SmallTest
+    public void testParseRules_ManyRules() throws Exception {
+        /**
+         * FF40 82 0C08
+         *   E2 4B (x 40)
+         *      E1 3D
+         *         C1 20 <SHA-256 of the signing certificate>
+         *         CA 19 com.example.carrier.appNN
+         *      E3 0A
+         *         DB 08 0000000000000001
+         */
+        final int ruleCount = 40;
+        StringBuilder rules = new StringBuilder();
+        for (int i = 0; i < ruleCount; i++) {
+            String packageName = String.format("com.example.carrier.app%02d", i);
+            rules.append("E24BE13DC120");
+            for (int j = 0; j < 32; j++) {
+                rules.append(String.format("%02X", i));
+            }
+            rules.append("CA19").append(IccUtils.bytesToHexString(packageName.getBytes()))
+                    .append("E30ADB080000000000000001");
+        }
+        byte[] payload = IccUtils.hexStringToBytes("FF40820C08" + rules);
+        assertEquals(5 + 0x0C08, payload.length);
+
+        List<UiccAccessRule> accessRules =
+                UiccCarrierPrivilegeRules.parseRules(payload, payload.length);
+
+        assertEquals(ruleCount, accessRules.size());
+        for (int i = 0; i < ruleCount; i++) {
+            assertEquals(String.format("com.example.carrier.app%02d", i),
+                    accessRules.get(i).getPackageName());
+        }
+        char[] certHash = new char[64];
+        Arrays.fill(certHash, '7');
+        assertTrue(new String(certHash).equalsIgnoreCase(
+                accessRules.get(7).getCertificateHexString()));
+    }
+
     @Test
     @SmallTest
     public void testRetryARAM_shouldRetry() {
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class PduComposerTest extends TestCase {
+    private static final Uri PART_URI = Uri.parse("content://mms/part/11");
+    private static final byte[] ARRAY_DATA = "text part".getBytes();
+    private static final byte[] BUFFER_DATA = "direct buffer part".getBytes();
+    // Larger than the composer's block size so the Uri part is copied in several steps
+    private static final int URI_DATA_LENGTH = 3000;
+
+    private FakePartProvider mProvider;
+    private Context mContext;
+    private File mPartFile;
+    private byte[] mUriData;
+
+    private class FakePartProvider extends MockContentProvider {
+        int mOpens;
+
+        @Override
+        public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+            mOpens++;
+            return ParcelFileDescriptor.open(mPartFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUriData = new byte[URI_DATA_LENGTH];
+        for (int i = 0; i < mUriData.length; i++) {
+            mUriData[i] = (byte) i;
+        }
+        mPartFile = File.createTempFile("part", null);
+        try (FileOutputStream out = new FileOutputStream(mPartFile)) {
+            out.write(mUriData);
+        }
+        mProvider = new FakePartProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("mms", mProvider);
+        mContext = mock(Context.class);
+        doReturn(resolver).when(mContext).getContentResolver();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPartFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * An m-send-req with one part of each kind of data: a byte array, a direct buffer and a Uri.
+     */
+    private static SendReq newSendReq() {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550001"));
+        req.addTo(new EncodedStringValue("+15550002"));
+        req.setContentType("application/vnd.wap.multipart.mixed".getBytes());
+        PduBody body = new PduBody();
+
+        PduPart part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setContentLocation("a.txt".getBytes());
+        // The first part is the start of the message, which keeps the parsed parts in order
+        part.setContentId("<a>".getBytes());
+        part.setData(ARRAY_DATA);
+        body.addPart(part);
+
+        part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setContentLocation("b.txt".getBytes());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_DATA.length);
+        buffer.put(BUFFER_DATA);
+        buffer.flip();
+        part.setDataBuffer(buffer);
+        body.addPart(part);
+
+        part = new PduPart();
+        part.setContentType("application/octet-stream".getBytes());
+        part.setContentLocation("c.bin".getBytes());
+        part.setDataUri(PART_URI);
+        body.addPart(part);
+
+        req.setBody(body);
+        return req;
+    }
+
+    private void assertRoundTrip(byte[] pdu) {
+        SendReq req = (SendReq) new PduParser(pdu, true).parse();
+        assertEquals("+15550001", req.getFrom().getString());
+        PduBody body = req.getBody();
+        assertEquals(3, body.getPartsNum());
+        assertTrue(Arrays.equals(ARRAY_DATA, body.getPart(0).getData()));
+        assertTrue(Arrays.equals(BUFFER_DATA, body.getPart(1).getData()));
+        assertEquals("c.bin", new String(body.getPart(2).getContentLocation()));
+        assertTrue(Arrays.equals(mUriData, body.getPart(2).getData()));
+    }
+
+    public void testMakeToStreamMatchesMake() throws Exception {
+        SendReq req = newSendReq();
+        byte[] expected = new PduComposer(mContext, req).make();
+        assertNotNull(expected);
+        assertRoundTrip(expected);
+
+        mProvider.mOpens = 0;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new PduComposer(mContext, req).make(out));
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+        assertRoundTrip(out.toByteArray());
+        // The Uri part is sized from getStatSize, then opened once more to copy it
+        assertEquals(2, mProvider.mOpens);
+    }
+
+    public void testMakeToChannelMatchesMake() throws Exception {
+        SendReq req = newSendReq();
+        byte[] expected = new PduComposer(mContext, req).make();
+        byte[] prefix = {1, 2, 3};
+
+        File file = File.createTempFile("pdu", null);
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(prefix);
+                FileChannel channel = out.getChannel();
+                assertTrue(new PduComposer(mContext, req).make(channel));
+                // The message was written at the channel's position
+                assertEquals(prefix.length + expected.length, channel.position());
+            }
+
+            byte[] written = new byte[(int) file.length()];
+            try (FileInputStream in = new FileInputStream(file)) {
+                assertEquals(written.length, in.read(written));
+            }
+            assertTrue(Arrays.equals(prefix, Arrays.copyOf(written, prefix.length)));
+            byte[] pdu = Arrays.copyOfRange(written, prefix.length, written.length);
+            assertTrue(Arrays.equals(expected, pdu));
+            assertRoundTrip(pdu);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testMakeToStreamWritesNothingForInvalidPdu() throws Exception {
+        SendReq req = newSendReq();
+        req.getBody().getPart(2).setDataUri(null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(new PduComposer(mContext, req).make(out));
+        assertEquals(0, out.size());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Time taken to parse a large m-retrieve-conf, from a byte array and in place from a direct
+ * buffer. Each way is warmed up first and the results are logged so they can be compared between
+ * builds.
+ */
+public class PduParserPerfTest extends TestCase {
+    private static final String TAG = "PduParserPerfTest";
+
+    private static final int PART_COUNT = 8;
+    private static final int PART_SIZE = 128 * 1024;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 20;
+
+    private static byte[] composeLargePdu() {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550001"));
+        req.addTo(new EncodedStringValue("+15550002"));
+        req.setContentType("application/vnd.wap.multipart.mixed".getBytes());
+        PduBody body = new PduBody();
+        for (int i = 0; i < PART_COUNT; i++) {
+            PduPart part = new PduPart();
+            part.setContentType("image/jpeg".getBytes());
+            part.setContentLocation(("image" + i + ".jpg").getBytes());
+            byte[] data = new byte[PART_SIZE];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            part.setData(data);
+            body.addPart(part);
+        }
+        req.setBody(body);
+        return new PduComposer(mock(Context.class), req).make();
+    }
+
+    private static void assertParsed(GenericPdu pdu) {
+        assertEquals(PART_COUNT, ((SendReq) pdu).getBody().getPartsNum());
+    }
+
+    @LargeTest
+    public void testParseTime() {
+        byte[] pdu = composeLargePdu();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pdu.length);
+        buffer.put(pdu);
+        buffer.flip();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            assertParsed(new PduParser(pdu, true).parse());
+            assertParsed(new PduParser(buffer, true).parse());
+        }
+        long arrayNs = 0;
+        long bufferNs = 0;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            assertParsed(new PduParser(pdu, true).parse());
+            arrayNs += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertParsed(new PduParser(buffer, true).parse());
+            bufferNs += System.nanoTime() - start;
+        }
+
+        Log.d(TAG, "parse of " + pdu.length + " bytes: byte[] " + (arrayNs / MEASURED_RUNS / 1000)
+                + "us, direct buffer " + (bufferNs / MEASURED_RUNS / 1000) + "us");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PduParserTest extends TestCase {
+    private static final String[] PART_DATA = {"hello", "second part"};
+
+    private static byte[] composeSendReq() {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+15550001"));
+        req.addTo(new EncodedStringValue("+15550002"));
+        req.setSubject(new EncodedStringValue("subject"));
+        req.setContentType("application/vnd.wap.multipart.mixed".getBytes());
+        PduBody body = new PduBody();
+        for (int i = 0; i < PART_DATA.length; i++) {
+            PduPart part = new PduPart();
+            part.setContentType("text/plain".getBytes());
+            part.setContentLocation(("part" + i + ".txt").getBytes());
+            part.setContentId(("<part" + i + ">").getBytes());
+            part.setData(PART_DATA[i].getBytes());
+            body.addPart(part);
+        }
+        req.setBody(body);
+        return new PduComposer(mock(Context.class), req).make();
+    }
+
+    /**
+     * Parse a pdu from a direct buffer whose data does not start at position 0.
+     */
+    private static GenericPdu parseInPlace(byte[] pdu) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pdu.length + 3);
+        buffer.put(new byte[] {1, 2, 3});
+        buffer.put(pdu);
+        buffer.position(3);
+        GenericPdu parsed = new PduParser(buffer, true).parse();
+        // The caller's buffer is left alone
+        assertEquals(3, buffer.position());
+        return parsed;
+    }
+
+    private static void assertSendReq(GenericPdu pdu) {
+        assertTrue(pdu instanceof SendReq);
+        SendReq req = (SendReq) pdu;
+        assertEquals("+15550001", req.getFrom().getString());
+        assertEquals("+15550002", req.getTo()[0].getString());
+        assertEquals("subject", req.getSubject().getString());
+        PduBody body = req.getBody();
+        assertEquals(PART_DATA.length, body.getPartsNum());
+        for (int i = 0; i < PART_DATA.length; i++) {
+            PduPart part = body.getPart(i);
+            assertEquals("part" + i + ".txt", new String(part.getContentLocation()));
+            assertEquals(PART_DATA[i], new String(part.getData()));
+            assertEquals(PART_DATA[i].length(), part.getDataLength());
+        }
+    }
+
+    public void testRoundTripFromArray() {
+        assertSendReq(new PduParser(composeSendReq(), true).parse());
+    }
+
+    public void testRoundTripFromBuffer() {
+        byte[] pdu = composeSendReq();
+        GenericPdu parsed = parseInPlace(pdu);
+        assertSendReq(parsed);
+
+        // Recomposing the parsed pdu gives the same bytes
+        byte[] recomposed = new PduComposer(mock(Context.class), parsed).make();
+        assertTrue(Arrays.equals(pdu, recomposed));
+    }
+
+    public void testPartDataStreamFromBuffer() throws Exception {
+        PduPart part = ((SendReq) parseInPlace(composeSendReq())).getBody().getPart(1);
+        assertNotNull(part.getDataBuffer());
+
+        InputStream in = part.openDataStream();
+        assertEquals(PART_DATA[1].length(), in.available());
+        byte[] data = new byte[PART_DATA[1].length() + 10];
+        assertEquals(PART_DATA[1].length(), in.read(data));
+        assertEquals(PART_DATA[1], new String(data, 0, PART_DATA[1].length()));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(data));
+    }
+
+    public void testNestedMultipartFromBuffer() throws Exception {
+        // m-send-req whose second part is a multipart/alternative holding one text part
+        ByteArrayOutputStream nested = new ByteArrayOutputStream();
+        nested.write(1);
+        nested.write(encodePart(0x83, "b.txt", "nested".getBytes()));
+        ByteArrayOutputStream pdu = new ByteArrayOutputStream();
+        pdu.write(new byte[] {(byte) 0x8C, (byte) 0x80, (byte) 0x98, 'T', '1', 0,
+                (byte) 0x8D, (byte) 0x90, (byte) 0x89, 1, (byte) 0x81, (byte) 0x84, (byte) 0xA3});
+        pdu.write(2);
+        pdu.write(encodePart(0x83, "a.txt", "hello".getBytes()));
+        pdu.write(encodePart(0xA6, "alt", nested.toByteArray()));
+
+        for (GenericPdu parsed : new GenericPdu[] {
+                new PduParser(pdu.toByteArray(), true).parse(),
+                parseInPlace(pdu.toByteArray())}) {
+            PduBody body = ((MultimediaMessagePdu) parsed).getBody();
+            assertEquals(2, body.getPartsNum());
+            assertEquals("hello", new String(body.getPart(0).getData()));
+            assertEquals("b.txt", new String(body.getPart(1).getContentLocation()));
+            assertEquals("nested", new String(body.getPart(1).getData()));
+        }
+    }
+
+    public void testProtectedHelpersOnByteArrayInputStream() {
+        // Short-integer 1, Value-length 3 and a Text-string
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                new byte[] {(byte) 0x81, 3, 'a', 'b', 0, 9});
+        assertEquals(1, PduParser.parseShortInteger(in));
+        assertEquals(5, in.available());
+        assertEquals(3, PduParser.parseValueLength(in));
+        // 0 is TYPE_TEXT_STRING
+        assertEquals("ab", new String(PduParser.parseWapString(in, 0)));
+        assertEquals(1, in.available());
+        // The mark is left where the last step started
+        in.reset();
+        assertEquals(4, in.available());
+
+        PduParser parser = new PduParser(new byte[0], true);
+        PduHeaders headers = parser.parseHeaders(new ByteArrayInputStream(composeSendReq()));
+        assertEquals("+15550001", headers.getEncodedStringValue(PduHeaders.FROM).getString());
+        assertNull(parser.parseHeaders((ByteArrayInputStream) null));
+    }
+
+    /**
+     * Encode a part with a well-known content type and a content location header.
+     */
+    private static byte[] encodePart(int contentType, String location, byte[] data)
+            throws Exception {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(contentType);
+        headers.write(0x8E);
+        headers.write(location.getBytes());
+        headers.write(0);
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        part.write(headers.size());
+        part.write(data.length);
+        part.write(headers.toByteArray());
+        part.write(data);
+        return part.toByteArray();
+    }
+}
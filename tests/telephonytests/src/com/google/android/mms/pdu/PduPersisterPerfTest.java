@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.mms.util.PduCache;
+import com.google.android.mms.util.PduCacheEntry;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Throughput of {@link PduPersister#load} on cached messages from several reader threads, alone
+ * and while a writer keeps caching and purging other messages under the cache lock. The results
+ * are logged so they can be compared between builds.
+ */
+public class PduPersisterPerfTest extends TestCase {
+    private static final String TAG = "PduPersisterPerfTest";
+
+    private static final int MESSAGE_COUNT = 100;
+    private static final int READER_COUNT = 4;
+    private static final int LOADS_PER_READER = 200000;
+
+    private PduPersister mPersister;
+    private Uri[] mUris;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Context context = mock(Context.class);
+        doReturn(new MockContentResolver()).when(context).getContentResolver();
+        mPersister = PduPersister.getPduPersister(context);
+        PduCache cache = PduCache.getInstance();
+        cache.purgeAll();
+        mUris = new Uri[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            mUris[i] = Uri.parse("content://mms/" + (i + 1));
+            cache.put(mUris[i], new PduCacheEntry(new RetrieveConf(), Mms.MESSAGE_BOX_INBOX, 1));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PduCache.getInstance().purgeAll();
+        mPersister.release();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testConcurrentCachedLoads() throws Exception {
+        // Warm up
+        runReaders(false);
+
+        long idleNs = runReaders(false);
+        long busyNs = runReaders(true);
+
+        long loads = (long) READER_COUNT * LOADS_PER_READER;
+        Log.d(TAG, READER_COUNT + " readers: " + (loads * 1000000000L / Math.max(idleNs, 1))
+                + " loads/s, with a busy writer: "
+                + (loads * 1000000000L / Math.max(busyNs, 1)) + " loads/s");
+    }
+
+    /**
+     * @param withWriter whether a writer caches and purges other messages meanwhile
+     * @return the time the readers took in nanoseconds
+     */
+    private long runReaders(boolean withWriter) throws Exception {
+        final PduCache cache = PduCache.getInstance();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread writer = null;
+        if (withWriter) {
+            final RetrieveConf sent = new RetrieveConf();
+            writer = new Thread(() -> {
+                Uri uri = Uri.parse("content://mms/" + (MESSAGE_COUNT + 1));
+                while (!stop.get()) {
+                    cache.put(uri, new PduCacheEntry(sent, Mms.MESSAGE_BOX_SENT, 2));
+                    cache.purge(Uri.parse("content://mms/sent"));
+                }
+            });
+            writer.start();
+        }
+
+        final CountDownLatch done = new CountDownLatch(READER_COUNT);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        long start = System.nanoTime();
+        for (int t = 0; t < READER_COUNT; t++) {
+            final int offset = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < LOADS_PER_READER; i++) {
+                        if (mPersister.load(mUris[(i + offset) % MESSAGE_COUNT]) == null) {
+                            failed.set(true);
+                        }
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+                done.countDown();
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsedNs = System.nanoTime() - start;
+
+        stop.set(true);
+        if (writer != null) {
+            writer.join();
+        }
+        assertFalse(failed.get());
+        return elapsedNs;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Part;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.google.android.mms.MmsException;
+import com.google.android.mms.util.PduCache;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PduPersisterTest extends TestCase {
+    private static final long MSG_ID = 7;
+    private static final long PART_ID = 11;
+    private static final Uri MSG_URI = Uri.parse("content://mms/inbox/" + MSG_ID);
+    private static final byte[] PART_DATA = "vcard data".getBytes();
+
+    private FakeMmsProvider mProvider;
+    private PduPersister mPersister;
+    private File mPartFile;
+
+    private class FakeMmsProvider extends MockContentProvider {
+        int mFailedReads;
+        int mReads;
+        int mQueries;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            MatrixCursor cursor = new MatrixCursor(projection);
+            String path = uri.getPath();
+            if (path.endsWith("/part")) {
+                cursor.newRow().add(Part._ID, PART_ID)
+                        .add(Part.CONTENT_TYPE, "text/x-vCard");
+            } else if (!path.endsWith("/addr")) {
+                cursor.newRow().add(Mms._ID, MSG_ID)
+                        .add(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX)
+                        .add(Mms.THREAD_ID, 1)
+                        .add(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+            }
+            return cursor;
+        }
+
+        @Override
+        public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+            mReads++;
+            if (mFailedReads > 0) {
+                mFailedReads--;
+                throw new FileNotFoundException(uri.toString());
+            }
+            return ParcelFileDescriptor.open(mPartFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPartFile = File.createTempFile("part", null);
+        try (FileOutputStream out = new FileOutputStream(mPartFile)) {
+            out.write(PART_DATA);
+        }
+        mProvider = new FakeMmsProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("mms", mProvider);
+        Context context = mock(Context.class);
+        doReturn(resolver).when(context).getContentResolver();
+        mPersister = PduPersister.getPduPersister(context);
+        PduCache.getInstance().purgeAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PduCache.getInstance().purgeAll();
+        mPersister.release();
+        mPartFile.delete();
+        super.tearDown();
+    }
+
+    private PduPart loadPart(boolean lazyPartData) throws Exception {
+        RetrieveConf pdu = (RetrieveConf) mPersister.load(MSG_URI, lazyPartData);
+        assertEquals(1, pdu.getBody().getPartsNum());
+        return pdu.getBody().getPart(0);
+    }
+
+    public void testLazyLoadIsNotCached() throws Exception {
+        PduPart part = loadPart(true);
+        assertFalse(part.isDataLoaded());
+        assertEquals(0, mProvider.mReads);
+        assertNull(PduCache.getInstance().get(MSG_URI));
+
+        // An eager load reads the data and caches a complete pdu
+        part = loadPart(false);
+        assertTrue(part.isDataLoaded());
+        assertEquals(1, mProvider.mReads);
+        RetrieveConf cached = (RetrieveConf) PduCache.getInstance().get(MSG_URI).getPdu();
+        assertTrue(cached.getBody().getPart(0).isDataLoaded());
+        assertTrue(Arrays.equals(PART_DATA, cached.getBody().getPart(0).getData()));
+    }
+
+    public void testLazyDataLoadedOnce() throws Exception {
+        PduPart part = loadPart(true);
+        part.loadData();
+        assertTrue(part.isDataLoaded());
+        assertTrue(Arrays.equals(PART_DATA, part.getData()));
+        assertEquals(PART_DATA.length, part.getDataLength());
+        assertEquals(1, mProvider.mReads);
+    }
+
+    public void testLazyDataFailureIsReported() throws Exception {
+        PduPart part = loadPart(true);
+        mProvider.mFailedReads = 2;
+        try {
+            part.loadData();
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertFalse(part.isDataLoaded());
+        try {
+            part.getData();
+            fail("Expected UncheckedIOException");
+        } catch (UncheckedIOException expected) {
+        }
+        assertFalse(part.isDataLoaded());
+
+        // The part is left pending, so the next access reads it
+        assertTrue(Arrays.equals(PART_DATA, part.getData()));
+        assertEquals(3, mProvider.mReads);
+    }
+
+    public void testLoadServesCachedPdu() throws Exception {
+        GenericPdu pdu = mPersister.load(MSG_URI);
+        int queries = mProvider.mQueries;
+
+        assertSame(pdu, mPersister.load(MSG_URI));
+        assertSame(pdu, mPersister.load(Uri.parse("content://mms/" + MSG_ID)));
+        assertEquals(queries, mProvider.mQueries);
+    }
+
+    public void testCachedLoadDoesNotWaitForCacheLock() throws Exception {
+        final GenericPdu pdu = mPersister.load(MSG_URI);
+        final PduCache cache = PduCache.getInstance();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Stands in for a persist or purge of another message holding the cache lock
+        Thread writer = new Thread(() -> {
+            synchronized (cache) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        writer.start();
+        try {
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+            final AtomicReference<GenericPdu> loaded = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    loaded.set(mPersister.load(MSG_URI));
+                } catch (MmsException e) {
+                }
+            });
+            reader.start();
+            reader.join(5000);
+            assertSame(pdu, loaded.get());
+        } finally {
+            release.countDown();
+            writer.join();
+        }
+    }
+
+    public void testConcurrentLoadsShareOnePdu() throws Exception {
+        final int readerCount = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final GenericPdu[] loaded = new GenericPdu[readerCount];
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            final int index = i;
+            readers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    loaded[index] = mPersister.load(MSG_URI);
+                } catch (InterruptedException | MmsException e) {
+                }
+            });
+            readers[i].start();
+        }
+        start.countDown();
+        for (Thread reader : readers) {
+            reader.join(5000);
+        }
+
+        // One reader loaded the pdu, the others waited for it or found it in the cache
+        GenericPdu cached = PduCache.getInstance().get(MSG_URI).getPdu();
+        for (GenericPdu pdu : loaded) {
+            assertSame(cached, pdu);
+        }
+    }
+}
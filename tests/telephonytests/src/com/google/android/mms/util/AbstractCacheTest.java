@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class AbstractCacheTest extends TestCase {
+    /**
+     * Values are strings whose length is their size in bytes.
+     */
+    private static class TestCache extends AbstractCache<String, String> {
+        final List<String> mEvicted = new ArrayList<>();
+        final List<String> mReplaced = new ArrayList<>();
+
+        TestCache(int maxItems, long maxBytes, int evictionPolicy) {
+            super(maxItems, maxBytes, evictionPolicy);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue) {
+            (evicted ? mEvicted : mReplaced).add(key);
+        }
+    }
+
+    public void testLruEvictsLeastRecentlyUsed() {
+        TestCache cache = new TestCache(3, Long.MAX_VALUE, AbstractCache.EVICTION_LRU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+
+        cache.put("d", "4");
+        assertNull(cache.get("b"));
+        cache.put("e", "5");
+        assertNull(cache.get("c"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(3, cache.size());
+        assertEquals(Arrays.asList("b", "c"), cache.mEvicted);
+        assertEquals(2, cache.getEvictionCount());
+    }
+
+    public void testLfuEvictsLeastHitOldestFirst() {
+        TestCache cache = new TestCache(3, Long.MAX_VALUE, AbstractCache.EVICTION_LFU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        // c was never hit
+        cache.put("d", "4");
+        assertEquals(Arrays.asList("c"), cache.mEvicted);
+        // b and d were hit once, b longer ago
+        cache.get("d");
+        cache.put("e", "5");
+        assertEquals(Arrays.asList("c", "b"), cache.mEvicted);
+        assertEquals("1", cache.get("a"));
+        assertEquals("4", cache.get("d"));
+        assertEquals("5", cache.get("e"));
+    }
+
+    public void testByteBudget() {
+        TestCache cache = new TestCache(10, 10, AbstractCache.EVICTION_LRU);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        assertEquals(8, cache.sizeInBytes());
+
+        // Only as many entries as needed make room
+        cache.put("c", "cccc");
+        assertEquals(Arrays.asList("a"), cache.mEvicted);
+        assertEquals(8, cache.sizeInBytes());
+
+        // A replaced entry gives back its bytes and is not counted as evicted
+        cache.put("b", "bb");
+        assertEquals(Arrays.asList("b"), cache.mReplaced);
+        assertEquals(6, cache.sizeInBytes());
+        assertEquals("bb", cache.get("b"));
+
+        // An entry larger than the cache is refused without evicting anything
+        assertFalse(cache.put("d", "ddddddddddd"));
+        assertEquals(2, cache.size());
+        assertEquals(6, cache.sizeInBytes());
+
+        assertEquals("cccc", cache.purge("c"));
+        assertEquals(2, cache.sizeInBytes());
+        assertEquals(Arrays.asList("a"), cache.mEvicted);
+        cache.purgeAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    public void testHitAndMissCounts() {
+        TestCache cache = new TestCache(10, Long.MAX_VALUE, AbstractCache.EVICTION_LRU);
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.get(null);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertFalse(cache.put(null, "1"));
+    }
+}
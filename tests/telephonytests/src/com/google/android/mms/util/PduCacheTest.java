@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import junit.framework.TestCase;
+
+public class PduCacheTest extends TestCase {
+    private static final Uri INBOX = Uri.parse("content://mms/inbox");
+    private static final Uri SENT = Uri.parse("content://mms/sent");
+
+    private PduCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.purgeAll();
+        super.tearDown();
+    }
+
+    private static Uri message(long id) {
+        return Uri.parse("content://mms/" + id);
+    }
+
+    private static Uri thread(long threadId) {
+        return Uri.parse("content://mms-sms/conversations/" + threadId);
+    }
+
+    private void put(long id, int msgBox, long threadId) {
+        assertTrue(mCache.put(message(id), new PduCacheEntry(new GenericPdu(), msgBox, threadId)));
+    }
+
+    public void testPurgeByMessageBoxAndThread() {
+        put(1, Mms.MESSAGE_BOX_INBOX, 1);
+        put(2, Mms.MESSAGE_BOX_SENT, 1);
+        put(3, Mms.MESSAGE_BOX_INBOX, 2);
+
+        mCache.purge(INBOX);
+        assertNull(mCache.get(message(1)));
+        assertNull(mCache.get(message(3)));
+        assertNotNull(mCache.get(message(2)));
+
+        mCache.purge(thread(1));
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.sizeInBytes());
+    }
+
+    public void testPurgedEntryLeavesNoIndex() {
+        put(1, Mms.MESSAGE_BOX_INBOX, 1);
+        assertNotNull(mCache.purge(Uri.parse("content://mms/inbox/1")));
+
+        // Cached again elsewhere, the purges of its old box and thread leave it alone
+        put(1, Mms.MESSAGE_BOX_SENT, 2);
+        mCache.purge(INBOX);
+        mCache.purge(thread(1));
+        assertNotNull(mCache.get(message(1)));
+
+        mCache.purge(SENT);
+        assertNull(mCache.get(message(1)));
+    }
+
+    public void testReplacedEntryLeavesNoIndex() {
+        put(1, Mms.MESSAGE_BOX_INBOX, 1);
+        put(1, Mms.MESSAGE_BOX_SENT, 2);
+        assertEquals(1, mCache.size());
+
+        mCache.purge(INBOX);
+        mCache.purge(thread(1));
+        assertNotNull(mCache.get(message(1)));
+        assertEquals(Mms.MESSAGE_BOX_SENT, mCache.get(message(1)).getMessageBox());
+
+        mCache.purge(thread(2));
+        assertNull(mCache.get(message(1)));
+    }
+
+    public void testEvictedEntryLeavesNoIndex() {
+        // The cache is shared, so count evictions from here
+        long evictions = mCache.getEvictionCount();
+        int maxItems = 0;
+        for (long id = 1; mCache.getEvictionCount() == evictions; id++) {
+            put(id, Mms.MESSAGE_BOX_INBOX, 1);
+            maxItems = (int) id - 1;
+        }
+        // The first message was evicted, least recently used
+        assertNull(mCache.get(message(1)));
+        assertEquals(maxItems, mCache.size());
+        assertEquals(maxItems * (long) new PduCacheEntry(new GenericPdu(), 0, 0)
+                .getSizeInBytes(), mCache.sizeInBytes());
+
+        put(1, Mms.MESSAGE_BOX_SENT, 2);
+        mCache.purge(INBOX);
+        assertEquals(1, mCache.size());
+        assertNotNull(mCache.get(message(1)));
+    }
+
+    public void testMessageBoxUriFindsEntry() {
+        put(1, Mms.MESSAGE_BOX_INBOX, 1);
+        assertNotNull(mCache.get(Uri.parse("content://mms/inbox/1")));
+        assertNull(mCache.get(Uri.parse("content://mms/inbox/2")));
+    }
+}